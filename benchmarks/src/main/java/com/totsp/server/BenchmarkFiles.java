@@ -0,0 +1,30 @@
+package com.totsp.server;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+/**
+ * Temp files to serve in benchmarks (random content, deleted on exit if not before).
+ *
+ */
+final class BenchmarkFiles {
+
+   private BenchmarkFiles() {
+   }
+
+   static File create(int size, String extension) throws IOException {
+      File file = File.createTempFile("bench", extension);
+      file.deleteOnExit();
+      byte[] content = new byte[size];
+      new Random(size).nextBytes(content);
+      RandomAccessFile raf = new RandomAccessFile(file, "rw");
+      try {
+         raf.write(content);
+      } finally {
+         raf.close();
+      }
+      return file;
+   }
+}
@@ -0,0 +1,166 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Engine;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Whole requests over loopback, in process server (either engine), 200 (whole file) and 206 (a range of it),
+ * per file size, from 1 and from 16 concurrent clients (each a persistent connection).
+ *
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FileTransferBenchmark {
+
+   static final int PORT = 8190;
+   static final int RANGE_BYTES = 16 * 1024;
+
+   @State(Scope.Benchmark)
+   public static class Server {
+
+      @Param({ "BLOCKING", "NIO" })
+      public Engine engine;
+
+      @Param({ "1024", "65536", "1048576" })
+      public int size;
+
+      HTTPServer server;
+      File file;
+      byte[] fullRequest;
+      byte[] rangeRequest;
+
+      @Setup(Level.Trial)
+      public void start() throws IOException {
+         file = BenchmarkFiles.create(size, ".mp4");
+         // pool and loops sized for the concurrent clients
+         server = new HTTPServer("bench", PORT, engine == Engine.NIO ? 2 : 16, null);
+         server.setEngine(engine);
+         // clients stay on one connection for a whole iteration
+         server.setKeepAlive(5000, Integer.MAX_VALUE);
+         server.start();
+         String path = "/" + file.getAbsolutePath();
+         fullRequest = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes("ISO-8859-1");
+         int rangeEnd = Math.min(size, RANGE_BYTES) - 1;
+         rangeRequest = ("GET " + path + " HTTP/1.1\r\nHost: localhost\r\nRange: bytes=0-" + rangeEnd + "\r\n\r\n")
+                  .getBytes("ISO-8859-1");
+      }
+
+      @TearDown(Level.Trial)
+      public void stop() {
+         server.stop();
+         file.delete();
+      }
+   }
+
+   // one persistent connection per benchmark thread
+   @State(Scope.Thread)
+   public static class Client {
+
+      Socket socket;
+      OutputStream out;
+      InputStream in;
+      final byte[] buffer = new byte[64 * 1024];
+
+      @Setup(Level.Iteration)
+      public void connect() throws IOException {
+         socket = new Socket("localhost", PORT);
+         socket.setTcpNoDelay(true);
+         out = socket.getOutputStream();
+         in = new BufferedInputStream(socket.getInputStream(), 8192);
+      }
+
+      @TearDown(Level.Iteration)
+      public void close() throws IOException {
+         socket.close();
+      }
+
+      // send request, read whole response, return body length
+      long exchange(byte[] request) throws IOException {
+         out.write(request);
+         out.flush();
+         return readResponse();
+      }
+
+      private long readResponse() throws IOException {
+         // header block, byte at a time (buffered)
+         long contentLength = -1;
+         StringBuilder line = new StringBuilder();
+         while (true) {
+            int b = in.read();
+            if (b < 0) {
+               throw new IOException("connection closed");
+            }
+            if (b != '\n') {
+               if (b != '\r') {
+                  line.append((char) b);
+               }
+               continue;
+            }
+            if (line.length() == 0) {
+               break;
+            }
+            if (line.length() > 16 && line.substring(0, 16).equalsIgnoreCase("Content-Length: ")) {
+               contentLength = Long.parseLong(line.substring(16).trim());
+            }
+            line.setLength(0);
+         }
+         for (long remaining = contentLength; remaining > 0;) {
+            int read = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+            if (read < 0) {
+               throw new IOException("connection closed in body");
+            }
+            remaining -= read;
+         }
+         return contentLength;
+      }
+   }
+
+   @Benchmark
+   @Threads(1)
+   public long get200(Server server, Client client) throws IOException {
+      return client.exchange(server.fullRequest);
+   }
+
+   @Benchmark
+   @Threads(16)
+   public long get200Concurrent(Server server, Client client) throws IOException {
+      return client.exchange(server.fullRequest);
+   }
+
+   @Benchmark
+   @Threads(1)
+   public long get206(Server server, Client client) throws IOException {
+      return client.exchange(server.rangeRequest);
+   }
+
+   @Benchmark
+   @Threads(16)
+   public long get206Concurrent(Server server, Client client) throws IOException {
+      return client.exchange(server.rangeRequest);
+   }
+}
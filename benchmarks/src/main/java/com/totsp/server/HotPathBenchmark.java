@@ -0,0 +1,121 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+import com.totsp.server.enums.SupportedFileType;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per request work outside of I/O, file type lookup, file metadata (mime type, ETag), date formatting,
+ * header assembly, and routing a parsed request to its Response.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HotPathBenchmark {
+
+   private File file;
+   private String path;
+   private FileInfoCache fileInfoCache;
+   private FileInfoCache.FileInfo fileInfo;
+   private RequestProcessor processor;
+   private Request fullRequest;
+   private Request rangeRequest;
+
+   @Setup(Level.Trial)
+   public void setup() throws IOException {
+      file = BenchmarkFiles.create(64 * 1024, ".jpg");
+      path = file.getAbsolutePath();
+      fileInfoCache = new FileInfoCache();
+      fileInfo = fileInfoCache.get(path);
+      processor = new RequestProcessor("bench", null);
+      fullRequest = parse("GET /" + path + " HTTP/1.1\r\nHost: localhost\r\n\r\n");
+      rangeRequest = parse("GET /" + path + " HTTP/1.1\r\nHost: localhost\r\nRange: bytes=1024-4095\r\n\r\n");
+   }
+
+   @TearDown(Level.Trial)
+   public void tearDown() {
+      file.delete();
+   }
+
+   @Benchmark
+   public SupportedFileType supportedFileType() {
+      return SupportedFileType.getFromString(path);
+   }
+
+   // uncached metadata, stat, mime type, ETag and Last-Modified date
+   @Benchmark
+   public FileInfoCache.FileInfo fileInfo() {
+      return new FileInfoCache.FileInfo(file, System.nanoTime());
+   }
+
+   @Benchmark
+   public FileInfoCache.FileInfo fileInfoCached() {
+      return fileInfoCache.get(path);
+   }
+
+   @Benchmark
+   public String dateFormat() {
+      return RequestProcessor.getDateString(System.currentTimeMillis());
+   }
+
+   @Benchmark
+   public byte[] headers200() {
+      HeaderWriter headers = HeaderWriter.get();
+      headers.status(Status.OK).append(HeaderWriter.ACCEPT_RANGES);
+      headers.header(HeaderWriter.CONTENT_TYPE, fileInfo.mimeType);
+      headers.header(HeaderWriter.CONTENT_LENGTH, fileInfo.length);
+      headers.date();
+      headers.header(HeaderWriter.ETAG, fileInfo.etag);
+      headers.header(HeaderWriter.LAST_MODIFIED, fileInfo.lastModifiedDate);
+      headers.append(HeaderWriter.CONNECTION_KEEP_ALIVE);
+      headers.append(HeaderWriter.CRLF);
+      return headers.toByteArray();
+   }
+
+   // parsed request to Response, routing, metadata (cached), headers, no I/O
+   @Benchmark
+   public Response process200() throws IOException {
+      Response response = processor.process(fullRequest, 1);
+      response.done();
+      return response;
+   }
+
+   @Benchmark
+   public Response process206() throws IOException {
+      Response response = processor.process(rangeRequest, 1);
+      response.done();
+      return response;
+   }
+
+   //
+   // priv helpers
+   //
+
+   // own buffer, so the Request stays valid
+   private static Request parse(String raw) throws IOException {
+      RequestBuffer buffer = new RequestBuffer();
+      buffer.read(new ByteArrayInputStream(raw.getBytes("ISO-8859-1")));
+      return buffer.next();
+   }
+}
@@ -0,0 +1,60 @@
+package com.totsp.server;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request line and header parsing (RequestBuffer into Request), one buffer per connection, as the engines do.
+ *
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParsingBenchmark {
+
+   private static final String MINIMAL = "GET /storage/emulated/0/DCIM/Camera/IMG_20121227_163753.jpg HTTP/1.1\r\n"
+            + "Host: 192.168.0.142:8999\r\n\r\n";
+
+   // what a browser, or a media player seeking, sends
+   private static final String BROWSER = "GET /storage/emulated/0/DCIM/Camera/VID_20121227_163753.mp4 HTTP/1.1\r\n"
+            + "Host: 192.168.0.142:8999\r\n"
+            + "User-Agent: Mozilla/5.0 (Linux; Android 4.2; Nexus 7) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/30.0 Safari/537.36\r\n"
+            + "Accept: text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8\r\n"
+            + "Accept-Encoding: gzip, deflate\r\n" + "Accept-Language: en-US,en;q=0.8\r\n" + "Connection: keep-alive\r\n"
+            + "Range: bytes=1048576-\r\n" + "If-Range: \"5f3a2b1c\"\r\n" + "Cookie: session=0123456789abcdef\r\n\r\n";
+
+   @Param({ "minimal", "browser" })
+   public String request;
+
+   private ByteArrayInputStream in;
+   private RequestBuffer buffer;
+
+   @Setup
+   public void setup() throws IOException {
+      in = new ByteArrayInputStream((request.equals("minimal") ? MINIMAL : BROWSER).getBytes("ISO-8859-1"));
+      buffer = new RequestBuffer();
+   }
+
+   @Benchmark
+   public Request parse() throws IOException {
+      in.reset();
+      buffer.read(in);
+      return buffer.next();
+   }
+}
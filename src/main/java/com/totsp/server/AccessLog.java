@@ -0,0 +1,373 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Access log, one line per response (Common Log Format, plus time taken in microseconds, and "aborted" if the client
+ * went away first), for auditing what was served to whom.
+ *
+ * Request threads fill preallocated, fixed size records in a bounded lock-free ring (many producers, no allocation,
+ * no I/O, never waits, a full ring drops the record and counts it). One writer thread formats records into a reused
+ * buffer and appends them to the file in batches, rotating it (file.1, file.2, ...) once it reaches maxFileBytes.
+ *
+ */
+final class AccessLog {
+
+   private static final Logger LOG = LoggerFactory.getLogger(AccessLog.class);
+
+   static final int DEFAULT_CAPACITY = 1024;
+   static final long DEFAULT_MAX_FILE_BYTES = 4 * 1024 * 1024;
+   static final int DEFAULT_MAX_FILES = 3;
+   static final int MAX_TARGET = 256; // longer targets are cut (with "...")
+
+   private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+   private static final int MAX_TOKEN = 16; // method and version, whatever client sent, are cut to this
+   private static final int MAX_LINE = MAX_TARGET + 256;
+   private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+   private static final byte[] ABORTED = HeaderWriter.ascii(" aborted");
+
+   private final File file;
+   private final long maxFileBytes;
+   private final int maxFiles;
+
+   // ring, record of sequence s is s & mask, published[slot] is s + 1 once filled
+   private final Record[] records;
+   private final AtomicLongArray published;
+   private final int capacity;
+   private final int mask;
+   private final AtomicLong tail = new AtomicLong(); // next sequence to claim (request threads)
+   private volatile long head; // next sequence to write (written only by writer thread)
+
+   private final AtomicLong dropped = new AtomicLong();
+   private final AtomicLong written = new AtomicLong();
+
+   private volatile Thread thread;
+   private volatile boolean running;
+
+   // writer thread only
+   private final byte[] buffer = new byte[WRITE_BUFFER_SIZE];
+   private int count;
+   private OutputStream out;
+   private long fileBytes;
+   private final SimpleDateFormat dateFormat = new SimpleDateFormat("dd/MMM/yyyy:HH:mm:ss Z", Locale.US);
+   private long dateSecond = -1;
+   private byte[] date;
+
+   AccessLog(final File file) {
+      this(file, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_BYTES, DEFAULT_MAX_FILES);
+   }
+
+   AccessLog(final File file, final int capacity, final long maxFileBytes, final int maxFiles) {
+      this.file = file;
+      this.maxFileBytes = maxFileBytes;
+      this.maxFiles = maxFiles;
+      // power of 2, so slot is a mask not a mod
+      int size = 1;
+      while (size < capacity) {
+         size <<= 1;
+      }
+      this.capacity = size;
+      this.mask = size - 1;
+      this.records = new Record[size];
+      for (int i = 0; i < size; i++) {
+         records[i] = new Record();
+      }
+      this.published = new AtomicLongArray(size);
+      dateFormat.setTimeZone(TimeZone.getTimeZone("GMT"));
+   }
+
+   synchronized void start() {
+      if (running) {
+         return;
+      }
+      running = true;
+      thread = new Thread("httpserver-access-log") {
+         @Override
+         public void run() {
+            writeLoop();
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   // stops after writing what is already queued
+   synchronized void stop() {
+      if (!running) {
+         return;
+      }
+      running = false;
+      LockSupport.unpark(thread);
+      try {
+         thread.join(5000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Record a written (complete) or abandoned response, bytes actually sent, remote may be null.
+    * Returns right away, false if the ring was full (record dropped).
+    *
+    */
+   boolean log(Response response, InetAddress remote, long bytes, boolean complete) {
+      long seq = claim();
+      if (seq < 0) {
+         dropped.incrementAndGet();
+         return false;
+      }
+      Record r = records[(int) (seq & mask)];
+      r.time = System.currentTimeMillis();
+      r.micros = (System.nanoTime() - response.received) / 1000;
+      r.remote = remote;
+      r.method = response.method;
+      r.version = response.version;
+      r.setTarget(response.target);
+      r.status = response.status;
+      r.bytes = bytes;
+      r.complete = complete;
+      published.lazySet((int) (seq & mask), seq + 1);
+      return true;
+   }
+
+   long getDropped() {
+      return dropped.get();
+   }
+
+   // lines taken from the ring for the file (on disk by the next flush, at most IDLE_PARK_NANOS later)
+   long getWritten() {
+      return written.get();
+   }
+
+   //
+   // priv helpers
+   //
+
+   // next free sequence, or -1 if full
+   private long claim() {
+      while (true) {
+         long t = tail.get();
+         if (t - head >= capacity) {
+            return -1;
+         }
+         if (tail.compareAndSet(t, t + 1)) {
+            return t;
+         }
+      }
+   }
+
+   private void writeLoop() {
+      try {
+         open();
+         while (true) {
+            int lines = drain();
+            if (lines == 0) {
+               flush();
+               if (!running && !isPublished(head)) {
+                  break;
+               }
+               // no wakeups from request threads (keeps them cheap), records wait at most this long
+               LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+         }
+      } catch (IOException e) {
+         LOG.error("ERROR writing access log, it is off:" + e.getMessage(), e);
+         running = false;
+      } finally {
+         close();
+      }
+   }
+
+   // format published records into the buffer in order (stops at a claimed record not yet filled), writing as it fills
+   private int drain() throws IOException {
+      int lines = 0;
+      long seq = head;
+      while (isPublished(seq)) {
+         if (count + MAX_LINE > buffer.length) {
+            flush();
+         }
+         format(records[(int) (seq & mask)]);
+         seq++;
+         head = seq; // record is free again
+         lines++;
+      }
+      written.addAndGet(lines);
+      return lines;
+   }
+
+   private boolean isPublished(long seq) {
+      return published.get((int) (seq & mask)) == seq + 1;
+   }
+
+   // remote - - [date] "METHOD /target VERSION" status bytes micros[ aborted]
+   private void format(Record r) {
+      if (r.remote != null) {
+         append(r.remote.getHostAddress());
+      } else {
+         append('-');
+      }
+      append(" - - [");
+      appendDate(r.time - r.micros / 1000);
+      append("] \"");
+      appendToken(r.method != null ? r.method : "-");
+      append(" /");
+      System.arraycopy(r.target, 0, buffer, count, r.targetLength);
+      count += r.targetLength;
+      if (r.version != null && r.version.length() > 0) {
+         append(' ');
+         appendToken(r.version);
+      }
+      append("\" ");
+      append(r.status);
+      append(' ');
+      append(Long.toString(r.bytes));
+      append(' ');
+      append(Long.toString(r.micros));
+      if (!r.complete) {
+         System.arraycopy(ABORTED, 0, buffer, count, ABORTED.length);
+         count += ABORTED.length;
+      }
+      append('\n');
+   }
+
+   // formatted once per second
+   private void appendDate(long millis) {
+      long second = millis / 1000;
+      if (second != dateSecond) {
+         date = HeaderWriter.ascii(dateFormat.format(new Date(millis)));
+         dateSecond = second;
+      }
+      System.arraycopy(date, 0, buffer, count, date.length);
+      count += date.length;
+   }
+
+   // our own text (ASCII)
+   private void append(String s) {
+      for (int i = 0; i < s.length(); i++) {
+         buffer[count++] = (byte) s.charAt(i);
+      }
+   }
+
+   // what client sent, cut to MAX_TOKEN, ASCII only, anything else (or a quote, or a control character) as '?'
+   private void appendToken(String s) {
+      int end = Math.min(s.length(), MAX_TOKEN);
+      for (int i = 0; i < end; i++) {
+         buffer[count++] = safe(s.charAt(i));
+      }
+   }
+
+   // "200" of "200 OK"
+   private void append(Status status) {
+      String desc = status.getDesc();
+      for (int i = 0; i < 3; i++) {
+         buffer[count++] = (byte) desc.charAt(i);
+      }
+   }
+
+   private void append(char c) {
+      buffer[count++] = (byte) c;
+   }
+
+   private static byte safe(char c) {
+      return c < 0x20 || c >= 0x7f || c == '"' ? (byte) '?' : (byte) c;
+   }
+
+   private void flush() throws IOException {
+      if (count == 0) {
+         return;
+      }
+      if (fileBytes > 0 && fileBytes + count > maxFileBytes) {
+         rotate();
+      }
+      out.write(buffer, 0, count);
+      out.flush();
+      fileBytes += count;
+      count = 0;
+   }
+
+   private void open() throws IOException {
+      File dir = file.getAbsoluteFile().getParentFile();
+      if (dir != null && !dir.exists()) {
+         dir.mkdirs();
+      }
+      out = new FileOutputStream(file, true);
+      fileBytes = file.length();
+   }
+
+   // file -> file.1 -> file.2 ... up to maxFiles old files kept (0 keeps none, file just starts over)
+   private void rotate() throws IOException {
+      out.close();
+      if (maxFiles > 0) {
+         new File(file.getPath() + "." + maxFiles).delete();
+         for (int i = maxFiles - 1; i >= 1; i--) {
+            new File(file.getPath() + "." + i).renameTo(new File(file.getPath() + "." + (i + 1)));
+         }
+         file.renameTo(new File(file.getPath() + ".1"));
+      } else {
+         file.delete();
+      }
+      out = new FileOutputStream(file, false);
+      fileBytes = 0;
+   }
+
+   private void close() {
+      try {
+         if (out != null) {
+            out.close();
+         }
+      } catch (IOException e) {
+         LOG.error("ERROR closing access log", e);
+      }
+      out = null;
+   }
+
+   /**
+    * One log line, fields only (target copied into a fixed array), reused, written only by the request thread
+    * that claimed it until published, then read only by the writer thread.
+    *
+    */
+   private static final class Record {
+
+      private final byte[] target = new byte[MAX_TARGET];
+      private int targetLength;
+      private long time;
+      private long micros;
+      private long bytes;
+      private InetAddress remote;
+      private String method;
+      private String version;
+      private Status status;
+      private boolean complete;
+
+      void setTarget(String t) {
+         int length = t != null ? t.length() : 0;
+         int n = Math.min(length, length > MAX_TARGET ? MAX_TARGET - 3 : MAX_TARGET);
+         for (int i = 0; i < n; i++) {
+            target[i] = safe(t.charAt(i));
+         }
+         if (n < length) {
+            target[n++] = '.';
+            target[n++] = '.';
+            target[n++] = '.';
+         }
+         targetLength = n;
+      }
+   }
+}
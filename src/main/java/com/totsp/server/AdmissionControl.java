@@ -0,0 +1,128 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits on what the server takes on at once, open connections, connections queued for a thread (BLOCKING engine),
+ * and file responses being streamed. Over a limit is answered right away with 503 and Retry-After (load shedding),
+ * rather than left to wait (and time out) while memory and descriptors climb. 0 means no limit (the default).
+ *
+ * Shared by the engines (connections) and RequestProcessor (file streams), counts rejections for sizing.
+ *
+ */
+final class AdmissionControl {
+
+   static final int DEFAULT_RETRY_AFTER_SECONDS = 1;
+
+   private volatile int maxConnections;
+   private volatile int maxQueuedConnections;
+   private volatile int maxFileStreams;
+   private volatile byte[] rejectResponse = createRejectResponse(DEFAULT_RETRY_AFTER_SECONDS, false);
+   private volatile byte[] busyResponse = createRejectResponse(DEFAULT_RETRY_AFTER_SECONDS, true);
+
+   private final AtomicInteger connections = new AtomicInteger();
+   private final AtomicInteger fileStreams = new AtomicInteger();
+   private final AtomicLong rejectedConnections = new AtomicLong();
+   private final AtomicLong rejectedFileStreams = new AtomicLong();
+
+   void setLimits(int maxConnections, int maxQueuedConnections, int maxFileStreams) {
+      this.maxConnections = maxConnections;
+      this.maxQueuedConnections = maxQueuedConnections;
+      this.maxFileStreams = maxFileStreams;
+   }
+
+   void setRetryAfter(int seconds) {
+      this.rejectResponse = createRejectResponse(seconds, false);
+      this.busyResponse = createRejectResponse(seconds, true);
+   }
+
+   /**
+    * Admit a new connection, queued is how many accepted connections are already waiting for a thread.
+    * If true, caller must releaseConnection when it closes. If false it's counted as rejected,
+    * caller writes getRejectResponse and closes.
+    *
+    */
+   boolean tryAcquireConnection(int queued) {
+      int maxQueued = maxQueuedConnections;
+      if (maxQueued > 0 && queued >= maxQueued) {
+         rejectedConnections.incrementAndGet();
+         return false;
+      }
+      if (!tryAcquire(connections, maxConnections)) {
+         rejectedConnections.incrementAndGet();
+         return false;
+      }
+      return true;
+   }
+
+   void releaseConnection() {
+      connections.decrementAndGet();
+   }
+
+   /**
+    * Admit a file response (body streamed from a file), if true caller must releaseFileStream when it's done
+    * (see Response.done). If false it's counted as rejected, caller answers getBusyResponse.
+    *
+    */
+   boolean tryAcquireFileStream() {
+      if (!tryAcquire(fileStreams, maxFileStreams)) {
+         rejectedFileStreams.incrementAndGet();
+         return false;
+      }
+      return true;
+   }
+
+   void releaseFileStream() {
+      fileStreams.decrementAndGet();
+   }
+
+   // whole 503 response, pre-encoded, written straight to a connection that won't be served
+   byte[] getRejectResponse() {
+      return rejectResponse;
+   }
+
+   // whole 503 response, pre-encoded, to a file request over maxFileStreams (connection stays open)
+   byte[] getBusyResponse() {
+      return busyResponse;
+   }
+
+   int getConnections() {
+      return connections.get();
+   }
+
+   int getFileStreams() {
+      return fileStreams.get();
+   }
+
+   long getRejectedConnections() {
+      return rejectedConnections.get();
+   }
+
+   long getRejectedFileStreams() {
+      return rejectedFileStreams.get();
+   }
+
+   //
+   // priv helpers
+   //
+
+   private static boolean tryAcquire(AtomicInteger count, int max) {
+      while (true) {
+         int current = count.get();
+         if (max > 0 && current >= max) {
+            return false;
+         }
+         if (count.compareAndSet(current, current + 1)) {
+            return true;
+         }
+      }
+   }
+
+   private static byte[] createRejectResponse(int retryAfterSeconds, boolean keepAlive) {
+      return HeaderWriter.ascii("HTTP/1.1 " + Status.SERVICE_UNAVAILABLE.getDesc() + "\r\nRetry-After: " + retryAfterSeconds
+               + "\r\nContent-Length: 0\r\nConnection: " + (keepAlive ? "keep-alive" : "close") + "\r\n\r\n");
+   }
+}
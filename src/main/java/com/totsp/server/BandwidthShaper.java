@@ -0,0 +1,282 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import java.io.InterruptedIOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bandwidth shaping for file responses, so one big download can't take the whole uplink while others stutter.
+ *
+ * Each file response being sent is a Stream with its own token bucket. Its rate is a weighted fair share of the total
+ * limit, among the streams that are sending (total * weight / weight of active streams). A stream that hasn't asked
+ * for bytes (or waited for them) for IDLE_NANOS, a stalled client, a paused player, a full HTTP/2 window, is left out
+ * until it asks again, so its share goes to the others. Range (206, playback) streams can be given more weight than
+ * whole file (bulk) downloads. Each client connection has a bucket of its own too, at the per connection limit,
+ * shared by its streams (one at a time, or multiplexed, HTTP/2). Buckets hold a short burst, so a stream starts right
+ * away and small responses aren't held back. 0 means no limit (the default for both).
+ *
+ * A Stream, and its Connection, are only used by the thread writing its response(s) (one at a time for HTTP/2, under
+ * the connection's lock), no locks here, the set of open streams is shared.
+ *
+ */
+final class BandwidthShaper {
+
+   static final int QUANTUM = 8 * 1024; // streams wait for at least this much (or what's left), not byte by byte
+   static final int MIN_BURST = 2 * QUANTUM;
+   static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+   private static final long NANOS_PER_SECOND = TimeUnit.SECONDS.toNanos(1);
+
+   private volatile long maxBytesPerSecond;
+   private volatile long maxConnectionBytesPerSecond;
+   private volatile int rangeWeight = 1;
+
+   private final Set<Stream> open = Collections.newSetFromMap(new ConcurrentHashMap<Stream, Boolean>());
+
+   void setLimits(long maxBytesPerSecond, long maxConnectionBytesPerSecond, int rangeWeight) {
+      this.maxBytesPerSecond = maxBytesPerSecond;
+      this.maxConnectionBytesPerSecond = maxConnectionBytesPerSecond;
+      this.rangeWeight = Math.max(1, rangeWeight);
+   }
+
+   boolean isEnabled() {
+      return maxBytesPerSecond > 0 || maxConnectionBytesPerSecond > 0;
+   }
+
+   /**
+    * Bucket for a client connection just accepted, its responses are opened from it.
+    *
+    */
+   Connection connection() {
+      return connection(System.nanoTime());
+   }
+
+   Connection connection(long now) {
+      return new Connection(now);
+   }
+
+   // file responses being shaped right now
+   int getStreams() {
+      return open.size();
+   }
+
+   //
+   // priv helpers
+   //
+
+   // weight of the streams sending now
+   private int activeWeight(long now) {
+      int total = 0;
+      for (Stream stream : open) {
+         if (stream.isActive(now)) {
+            total += stream.weight;
+         }
+      }
+      return total;
+   }
+
+   // 1/20 of a second, at least MIN_BURST
+   private static long burst(long rate) {
+      return Math.max(MIN_BURST, rate / 20);
+   }
+
+   /**
+    * Token bucket of one client connection (per connection limit), tokens are bytes that may be sent.
+    *
+    */
+   final class Connection {
+
+      private final Bucket bucket;
+
+      private Connection(long now) {
+         this.bucket = new Bucket(maxConnectionBytesPerSecond, now);
+      }
+
+      /**
+       * Stream for a response about to be written, or null if it isn't shaped (no limits, or not a file response).
+       * If not null caller must close it when the response is done (or abandoned).
+       *
+       */
+      Stream open(Response response) {
+         if (!isEnabled() || response.file == null || response.body.length == 0) {
+            return null;
+         }
+         return open(response.status == Status.PARTIAL_OK, System.nanoTime());
+      }
+
+      Stream open(boolean range, long now) {
+         Stream stream = new Stream(this, range ? rangeWeight : 1, now);
+         open.add(stream);
+         return stream;
+      }
+   }
+
+   /**
+    * One response, its share of the total (own bucket), and its connection's bucket.
+    *
+    */
+   final class Stream {
+
+      private final Connection connection;
+      private final int weight;
+      private final Bucket share;
+      private volatile long activeUntil; // System.nanoTime, sending (or waiting to) until then
+
+      private Stream(Connection connection, int weight, long now) {
+         this.connection = connection;
+         this.weight = weight;
+         this.activeUntil = now + IDLE_NANOS;
+         this.share = new Bucket(shareRate(now), now);
+      }
+
+      // bytes/second this stream gets now (share of the total, capped by its connection's limit)
+      long rate(long now) {
+         long rate = shareRate(now);
+         long limit = maxConnectionBytesPerSecond;
+         if (limit > 0) {
+            rate = rate > 0 ? Math.min(rate, limit) : limit;
+         }
+         return rate > 0 ? rate : Long.MAX_VALUE;
+      }
+
+      /**
+       * Bytes that may be sent now, up to wanted, 0 if none yet (see delayNanos). Taken right away,
+       * anything not actually sent should be given back.
+       *
+       */
+      long take(long wanted, long now) {
+         activeUntil = now + IDLE_NANOS;
+         long rate = shareRate(now);
+         long limit = maxConnectionBytesPerSecond;
+         long n = wanted;
+         if (rate > 0) {
+            n = Math.min(n, share.refill(rate, now));
+         }
+         if (limit > 0) {
+            n = Math.min(n, connection.bucket.refill(limit, now));
+         }
+         n = Math.max(0, n);
+         if (rate > 0) {
+            share.tokens -= n;
+         }
+         if (limit > 0) {
+            connection.bucket.tokens -= n;
+         }
+         return n;
+      }
+
+      void giveBack(long unsent) {
+         if (maxBytesPerSecond > 0) {
+            share.tokens += unsent;
+         }
+         if (maxConnectionBytesPerSecond > 0) {
+            connection.bucket.tokens += unsent;
+         }
+      }
+
+      // nanos until take will give at least a QUANTUM (or wanted, if less), waiting counts as sending
+      long delayNanos(long wanted, long now) {
+         long rate = shareRate(now);
+         long limit = maxConnectionBytesPerSecond;
+         long delay = 0;
+         if (rate > 0) {
+            delay = share.delayNanos(wanted, rate, now);
+         }
+         if (limit > 0) {
+            delay = Math.max(delay, connection.bucket.delayNanos(wanted, limit, now));
+         }
+         activeUntil = now + delay + IDLE_NANOS;
+         return delay;
+      }
+
+      /**
+       * Blocking take (BLOCKING engine), waits until at least some bytes may be sent, returns how many (up to wanted).
+       *
+       */
+      long acquire(long wanted) throws InterruptedIOException {
+         while (true) {
+            long now = System.nanoTime();
+            long delay = delayNanos(wanted, now);
+            if (delay == 0) {
+               return take(wanted, now);
+            }
+            LockSupport.parkNanos(this, delay);
+            if (Thread.interrupted()) {
+               throw new InterruptedIOException("interrupted waiting for bandwidth");
+            }
+         }
+      }
+
+      // safe to call more than once
+      void close() {
+         open.remove(this);
+      }
+
+      boolean isActive(long now) {
+         return activeUntil - now > 0;
+      }
+
+      // share of the total limit among active streams (this one counts, it's asking), 0 if no limit
+      private long shareRate(long now) {
+         long total = maxBytesPerSecond;
+         if (total <= 0) {
+            return 0;
+         }
+         int active = activeWeight(now);
+         if (!isActive(now) || !open.contains(this)) {
+            active += weight;
+         }
+         return Math.max(1, total * weight / Math.max(weight, active));
+      }
+   }
+
+   /**
+    * Tokens (bytes that may be sent) added at a rate, up to a burst.
+    *
+    */
+   private static final class Bucket {
+
+      private long tokens;
+      private long last; // System.nanoTime tokens were last added
+
+      Bucket(long rate, long now) {
+         this.tokens = burst(Math.max(0, rate));
+         this.last = now;
+      }
+
+      // add tokens for time since last, up to burst (rate may have changed, streams come and go), returns tokens
+      long refill(long rate, long now) {
+         long elapsed = now - last;
+         if (elapsed <= 0) {
+            return tokens;
+         }
+         long burst = burst(rate);
+         // over a second fills any bucket (and so would anything that overflows below)
+         long added = elapsed >= NANOS_PER_SECOND || rate > Long.MAX_VALUE / elapsed ? burst : elapsed * rate
+                  / NANOS_PER_SECOND;
+         if (tokens + added >= burst) {
+            tokens = Math.max(tokens, burst);
+            last = now;
+         } else if (added > 0) {
+            tokens += added;
+            // keep the remainder (fraction of a byte) for next time
+            last += added * NANOS_PER_SECOND / rate;
+         }
+         return tokens;
+      }
+
+      // nanos until it holds at least a QUANTUM (or wanted, if less)
+      long delayNanos(long wanted, long rate, long now) {
+         long needed = Math.min(wanted, QUANTUM) - refill(rate, now);
+         if (needed <= 0) {
+            return 0;
+         }
+         return Math.max(1, needed * NANOS_PER_SECOND / rate);
+      }
+   }
+}
@@ -0,0 +1,15 @@
+package com.totsp.server;
+
+import java.util.List;
+
+/**
+ * TextRequestCallback that can take requests in batches, used when callbacks are asynchronous
+ * (see HTTPServer.setAsyncCallbacks). Batches arrive on one dispatch thread, in the order requests were received.
+ * (Synchronous callbacks still get onRequest, one at a time.)
+ *
+ */
+public interface BatchTextRequestCallback extends TextRequestCallback {
+
+   void onRequests(List<String> requests);
+
+}
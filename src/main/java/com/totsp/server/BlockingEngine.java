@@ -0,0 +1,283 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Execution;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Thread per connection engine, acceptor thread hands each socket to a RequestHandler on an executor,
+ * per Execution, fixed pool, elastic pool, or a virtual thread each.
+ *
+ */
+final class BlockingEngine implements ServerEngine {
+
+   private static final Logger LOG = LoggerFactory.getLogger(BlockingEngine.class);
+
+   // ELASTIC pool grows to at most this many times numThreads
+   static final int ELASTIC_MAX_FACTOR = 8;
+
+   private static final int MAX_REJECTING = 64;
+   private static final int REJECT_READ_TIMEOUT_MILLIS = 1000;
+   private static final int ACCEPT_RETRY_MILLIS = 100; // pause after a failed accept, before the next
+
+   private final RequestProcessor processor;
+   private final int port;
+   private final int numThreads;
+   private final Execution execution;
+
+   private ExecutorService executor;
+   private ExecutorService workers; // HTTP/2 stream processing and sending, created with the first h2c connection
+   private ServerSocketChannel serverChannel;
+   private BlockingQueue<SocketChannel> rejecting;
+   private Thread rejecter;
+
+   BlockingEngine(final RequestProcessor processor, final int port, final int numThreads, final Execution execution) {
+      this.processor = processor;
+      this.port = port;
+      this.numThreads = numThreads;
+      this.execution = execution;
+   }
+
+   public void start() throws IOException {
+      executor = createExecutor();
+      // channel based (blocking mode) so accepted sockets have a channel, for zero-copy file transfer
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(new InetSocketAddress(port));
+
+      LOG.info("ANDROID HTTP server started (BLOCKING engine, " + execution + " execution), addr:"
+               + serverChannel.socket().getInetAddress());
+
+      final ExecutorService exec = executor;
+      final ServerSocketChannel server = serverChannel;
+
+      // connections over admission limits are answered (503) one at a time, by their own thread
+      rejecting = new ArrayBlockingQueue<SocketChannel>(MAX_REJECTING);
+      final BlockingQueue<SocketChannel> rejectQueue = rejecting;
+      rejecter = new Thread("httpserver-reject") {
+         @Override
+         public void run() {
+            try {
+               while (true) {
+                  reject(rejectQueue.take());
+               }
+            } catch (InterruptedException e) {
+               // stopped
+            }
+         }
+      };
+      rejecter.setDaemon(true);
+      rejecter.start();
+
+      // submit stuff to executor off of current thread (exec will handle each as a thread, but we don't want to block callers that just use "start" here)
+      new Thread() {
+         @Override
+         public void run() {
+            while (!exec.isShutdown()) {
+               try {
+                  SocketChannel channel = server.accept();
+                  if (!processor.getAdmission().tryAcquireConnection(getQueuedConnections())) {
+                     LOG.warn("too many connections, rejecting connection (503)");
+                     if (!rejecting.offer(channel)) {
+                        // even the rejecter is backed up, just close
+                        close(channel);
+                     }
+                     continue;
+                  }
+                  try {
+                     exec.submit(new RequestHandler(processor, channel.socket(), BlockingEngine.this));
+                  } catch (RejectedExecutionException e) {
+                     // stopping
+                     processor.getAdmission().releaseConnection();
+                     channel.close();
+                  }
+               } catch (ClosedChannelException e) {
+                  if (!exec.isShutdown()) {
+                     LOG.error("ERROR running server executor:" + e.getMessage(), e);
+                  }
+                  return;
+               } catch (IOException e) {
+                  // out of file descriptors (EMFILE/ENFILE) and the like, pass, connections close and free some up
+                  LOG.error("ERROR accepting connection:" + e.getMessage(), e);
+                  try {
+                     Thread.sleep(ACCEPT_RETRY_MILLIS);
+                  } catch (InterruptedException ie) {
+                     return;
+                  }
+               }
+            }
+         }
+      }.start();
+   }
+
+   // true if accepted connections are queued waiting for a pool thread (never, with virtual threads)
+   boolean hasWaitingConnections() {
+      return getQueuedConnections() > 0;
+   }
+
+   public int getQueuedConnections() {
+      ExecutorService exec = executor;
+      return exec instanceof ThreadPoolExecutor ? ((ThreadPoolExecutor) exec).getQueue().size() : 0;
+   }
+
+   public void stop() {
+      if (executor == null) {
+         return;
+      }
+      executor.shutdown();
+      try {
+         serverChannel.close();
+      } catch (IOException e) {
+         LOG.error("ERROR closing server socket:" + e.getMessage(), e);
+      }
+      rejecter.interrupt();
+      try {
+         rejecter.join(REJECT_READ_TIMEOUT_MILLIS * 2);
+      } catch (InterruptedException e) {
+         LOG.error("ERROR stopping server:" + e.getMessage(), e);
+      }
+      // connections still waiting for their 503 are just closed
+      SocketChannel channel;
+      while ((channel = rejecting.poll()) != null) {
+         close(channel);
+      }
+      try {
+         executor.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         LOG.error("ERROR stopping server:" + e.getMessage(), e);
+      }
+      executor.shutdownNow();
+      ExecutorService w;
+      synchronized (this) {
+         w = workers;
+         workers = null;
+      }
+      if (w != null) {
+         w.shutdownNow();
+      }
+   }
+
+   /**
+    * Run a task for an HTTP/2 connection (a stream to process, or its sender) on a worker, per Execution.
+    * Workers are a pool of their own, tasks never wait on a connection's thread (and connections never on them).
+    *
+    * @throws RejectedExecutionException if stopping
+    */
+   void executeWorker(final Runnable task) {
+      ExecutorService w;
+      synchronized (this) {
+         if (workers == null) {
+            if (executor == null || executor.isShutdown()) {
+               throw new RejectedExecutionException("engine stopped");
+            }
+            workers = createExecutor(execution, Math.max(1, numThreads));
+         }
+         w = workers;
+      }
+      if (w instanceof ThreadPoolExecutor) {
+         w.execute(task);
+         return;
+      }
+      // a thread per task (virtual), its buffer cache goes with it
+      w.execute(new Runnable() {
+         public void run() {
+            try {
+               task.run();
+            } finally {
+               processor.getBuffers().releaseThreadCache();
+            }
+         }
+      });
+   }
+
+   //
+   // priv helpers
+   //
+
+   // over admission limits, read the request (closing with unread input would reset, client wouldn't see the 503),
+   // answer 503, and close, on the rejecter thread, so acceptor never waits on a client
+   private void reject(SocketChannel channel) {
+      RequestBuffer request = processor.createRequestBuffer();
+      TlsChannel tls = null;
+      try {
+         channel.socket().setSoTimeout(REJECT_READ_TIMEOUT_MILLIS);
+         Tls config = processor.getTls();
+         if (config != null) {
+            tls = new TlsChannel(config, channel, processor.getBuffers());
+         }
+         InputStream in = tls != null ? Channels.newInputStream(tls) : channel.socket().getInputStream();
+         while (request.next() == null && request.read(in) >= 0) {
+            // until we have the request header, or client is done
+         }
+         WritableByteChannel out = tls != null ? tls : channel;
+         ByteBuffer response = ByteBuffer.wrap(processor.getAdmission().getRejectResponse());
+         while (response.hasRemaining()) {
+            out.write(response);
+         }
+      } catch (IOException e) {
+         LOG.debug("ERROR writing 503 (normal if client went away, or is slow) e:{}", e.getMessage());
+      } finally {
+         request.release();
+         if (tls != null) {
+            tls.close();
+         }
+         close(channel);
+      }
+   }
+
+   private void close(SocketChannel channel) {
+      try {
+         channel.close();
+      } catch (IOException e) {
+         LOG.error("ERROR closing socket", e);
+      }
+   }
+
+   private ExecutorService createExecutor() {
+      return createExecutor(execution, numThreads);
+   }
+
+   // (also the NIO engine's request workers)
+   static ExecutorService createExecutor(Execution execution, int numThreads) {
+      switch (execution) {
+         case ELASTIC:
+            return new ElasticThreadPool(numThreads, numThreads * ELASTIC_MAX_FACTOR);
+         case VIRTUAL:
+            ExecutorService virtual = newVirtualThreadPerTaskExecutor();
+            if (virtual != null) {
+               return virtual;
+            }
+            LOG.warn("virtual threads not available on this JVM, using FIXED execution");
+            return Executors.newFixedThreadPool(numThreads);
+         default:
+            return Executors.newFixedThreadPool(numThreads);
+      }
+   }
+
+   // Executors.newVirtualThreadPerTaskExecutor (Java 21+), by reflection, we still build for (and run on) old VMs
+   private static ExecutorService newVirtualThreadPerTaskExecutor() {
+      try {
+         return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+      } catch (Exception e) {
+         return null;
+      }
+   }
+}
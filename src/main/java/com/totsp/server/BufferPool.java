@@ -0,0 +1,351 @@
+package com.totsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffers reused instead of allocated per connection or response (request buffers, compressor chunks, shared file
+ * blocks), heap (when bytes are parsed or handed to java.util.zip as arrays), or direct (file to socket, no copy
+ * through a temporary direct buffer on every write).
+ *
+ * Size classes are powers of 2, MIN_SIZE to MAX_SIZE, a request gets the smallest class that fits (anything bigger is
+ * allocated, and dropped on release). Each thread keeps a few free buffers of each class (no contention), past that
+ * they go to a shared free list. Both count against maxPooledBytes (0 pools nothing, every acquire allocates). Handlers
+ * give what their thread kept back to the shared lists when their connection ends (the thread may never serve another,
+ * virtual threads, elastic pools, HTTP/2 readers), what a thread kept still stops counting once it has ended.
+ *
+ * With leak detection on, each buffer handed out is tracked (weakly, with where it was acquired), one collected
+ * without being released is counted, and logged. Off by default, it costs an allocation per acquire.
+ *
+ */
+final class BufferPool {
+
+   private static final Logger LOG = LoggerFactory.getLogger(BufferPool.class);
+
+   static final int MIN_SIZE = 1024;
+   static final int MAX_SIZE = 1024 * 1024;
+   static final long DEFAULT_MAX_POOLED_BYTES = 4 * 1024 * 1024;
+
+   private static final int MIN_SHIFT = 10;
+   private static final int CLASSES = 11; // 1KB ... 1MB
+   private static final int THREAD_CACHE_BYTES = 256 * 1024; // per class, per thread (at least one buffer)
+
+   private volatile long maxPooledBytes;
+   private volatile boolean leakDetection;
+
+   // shared free lists, heap and direct, by class (each guarded by itself)
+   private final ArrayDeque<ByteBuffer>[] heap = freeLists();
+   private final ArrayDeque<ByteBuffer>[] direct = freeLists();
+   private final AtomicLong pooledBytes = new AtomicLong(); // free, in shared lists and thread caches
+
+   private final ConcurrentLinkedQueue<ThreadCache> threadCaches = new ConcurrentLinkedQueue<ThreadCache>();
+   private final ThreadLocal<ThreadCache> caches = new ThreadLocal<ThreadCache>() {
+      @Override
+      protected ThreadCache initialValue() {
+         ThreadCache cache = new ThreadCache();
+         threadCaches.add(cache);
+         return cache;
+      }
+   };
+
+   private final AtomicLong acquired = new AtomicLong();
+   private final AtomicLong released = new AtomicLong();
+   private final AtomicLong allocated = new AtomicLong();
+   private final AtomicLong allocatedBytes = new AtomicLong();
+   private final AtomicLong leaks = new AtomicLong();
+
+   private final ConcurrentHashMap<Tracked, Tracked> tracked = new ConcurrentHashMap<Tracked, Tracked>();
+   private final ReferenceQueue<ByteBuffer> collected = new ReferenceQueue<ByteBuffer>();
+
+   BufferPool() {
+      this(DEFAULT_MAX_POOLED_BYTES);
+   }
+
+   BufferPool(final long maxPooledBytes) {
+      this.maxPooledBytes = maxPooledBytes;
+   }
+
+   void setMaxPooledBytes(long maxPooledBytes) {
+      this.maxPooledBytes = maxPooledBytes;
+   }
+
+   void setLeakDetection(boolean leakDetection) {
+      this.leakDetection = leakDetection;
+      if (!leakDetection) {
+         tracked.clear();
+      }
+   }
+
+   /**
+    * Buffer of at least size bytes (capacity may be more, limit is size, position 0), heap or direct.
+    * Caller must release it when done, and not use it after.
+    *
+    */
+   ByteBuffer acquire(int size, boolean isDirect) {
+      acquired.incrementAndGet();
+      int c = sizeClass(size);
+      ByteBuffer buffer = null;
+      if (c >= 0 && maxPooledBytes > 0) {
+         ThreadCache cache = caches.get();
+         buffer = cache.lists[isDirect ? 1 : 0][c].pollLast();
+         if (buffer != null) {
+            cache.bytes -= buffer.capacity();
+         } else {
+            ArrayDeque<ByteBuffer> free = (isDirect ? direct : heap)[c];
+            synchronized (free) {
+               buffer = free.pollLast();
+            }
+         }
+         if (buffer != null) {
+            pooledBytes.addAndGet(-buffer.capacity());
+         }
+      }
+      if (buffer == null) {
+         int capacity = c >= 0 ? MIN_SIZE << c : size;
+         buffer = isDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+         allocated.incrementAndGet();
+         allocatedBytes.addAndGet(capacity);
+      }
+      buffer.clear();
+      buffer.limit(size);
+      if (leakDetection) {
+         track(buffer);
+      }
+      return buffer;
+   }
+
+   /**
+    * Give back a buffer from acquire (null is ignored).
+    *
+    */
+   void release(ByteBuffer buffer) {
+      release(buffer, true);
+   }
+
+   /**
+    * Give back a buffer acquired on another thread (a response head, written on a worker, released by an event loop),
+    * to the shared lists, where the thread that acquired it finds it again (it never looks in this thread's cache).
+    *
+    */
+   void releaseShared(ByteBuffer buffer) {
+      release(buffer, false);
+   }
+
+   private void release(ByteBuffer buffer, boolean threadCache) {
+      if (buffer == null) {
+         return;
+      }
+      released.incrementAndGet();
+      if (!tracked.isEmpty()) {
+         tracked.remove(new Tracked(buffer, null, null));
+      }
+      int c = sizeClass(buffer.capacity());
+      long max = maxPooledBytes;
+      if (c < 0 || buffer.capacity() != MIN_SIZE << c || max <= 0) {
+         return;
+      }
+      if (!reserve(buffer.capacity(), max)) {
+         // full, let GC have it
+         return;
+      }
+      boolean isDirect = buffer.isDirect();
+      if (threadCache) {
+         ThreadCache cache = caches.get();
+         ArrayDeque<ByteBuffer> kept = cache.lists[isDirect ? 1 : 0][c];
+         if (kept.isEmpty() || (kept.size() + 1) * (long) buffer.capacity() <= THREAD_CACHE_BYTES) {
+            kept.addLast(buffer);
+            cache.bytes += buffer.capacity();
+            return;
+         }
+      }
+      ArrayDeque<ByteBuffer> free = (isDirect ? direct : heap)[c];
+      synchronized (free) {
+         free.addLast(buffer);
+      }
+   }
+
+   /**
+    * Move what the calling thread keeps to the shared lists, for threads about to end (or that may not serve another
+    * connection), so the buffers are reused by other threads, not stranded with this one.
+    *
+    */
+   void releaseThreadCache() {
+      ThreadCache cache = caches.get();
+      caches.remove();
+      threadCaches.remove(cache);
+      for (int kind = 0; kind < 2; kind++) {
+         for (int c = 0; c < CLASSES; c++) {
+            ArrayDeque<ByteBuffer> kept = cache.lists[kind][c];
+            if (kept.isEmpty()) {
+               continue;
+            }
+            // (still counted in pooledBytes, only where they're kept changes)
+            ArrayDeque<ByteBuffer> free = (kind == 1 ? direct : heap)[c];
+            synchronized (free) {
+               free.addAll(kept);
+            }
+            kept.clear();
+         }
+      }
+      cache.bytes = 0;
+   }
+
+   // acquired, not yet released
+   long getInUse() {
+      return acquired.get() - released.get();
+   }
+
+   long getAcquired() {
+      return acquired.get();
+   }
+
+   // acquires that had to allocate (no free buffer of the class), the rest were reused
+   long getAllocated() {
+      return allocated.get();
+   }
+
+   long getAllocatedBytes() {
+      return allocatedBytes.get();
+   }
+
+   // free, in the shared lists and kept by threads
+   long getPooledBytes() {
+      return pooledBytes.get();
+   }
+
+   // collected without being released (only counted with leak detection on)
+   long getLeaks() {
+      pollLeaks();
+      return leaks.get();
+   }
+
+   //
+   // priv helpers
+   //
+
+   // index of smallest class that holds size, -1 if none does
+   static int sizeClass(int size) {
+      if (size > MAX_SIZE) {
+         return -1;
+      }
+      int c = 0;
+      while ((MIN_SIZE << c) < size) {
+         c++;
+      }
+      return c;
+   }
+
+   // count capacity as pooled, false if that would go over max (even after dropping what ended threads kept)
+   private boolean reserve(int capacity, long max) {
+      if (pooledBytes.addAndGet(capacity) <= max) {
+         return true;
+      }
+      pooledBytes.addAndGet(-capacity);
+      if (reclaimEndedThreads() == 0) {
+         return false;
+      }
+      if (pooledBytes.addAndGet(capacity) <= max) {
+         return true;
+      }
+      pooledBytes.addAndGet(-capacity);
+      return false;
+   }
+
+   // buffers kept by threads that have ended are left to GC, and stop counting, returns bytes freed
+   private long reclaimEndedThreads() {
+      long freed = 0;
+      for (ThreadCache cache : threadCaches) {
+         Thread owner = cache.owner.get();
+         // (ended, so its cache isn't changing, and what it wrote is visible)
+         if ((owner == null || !owner.isAlive()) && threadCaches.remove(cache)) {
+            freed += cache.bytes;
+         }
+      }
+      if (freed > 0) {
+         pooledBytes.addAndGet(-freed);
+      }
+      return freed;
+   }
+
+   private void track(ByteBuffer buffer) {
+      pollLeaks();
+      Tracked t = new Tracked(buffer, collected, new Throwable("buffer acquired here"));
+      tracked.put(t, t);
+   }
+
+   private void pollLeaks() {
+      Reference<? extends ByteBuffer> ref;
+      while ((ref = collected.poll()) != null) {
+         Tracked t = (Tracked) ref;
+         if (tracked.remove(t) != null) {
+            leaks.incrementAndGet();
+            LOG.warn("LEAK buffer of {} bytes was never released", t.capacity, t.site);
+         }
+      }
+   }
+
+   @SuppressWarnings({ "unchecked", "rawtypes" })
+   private static ArrayDeque<ByteBuffer>[] freeLists() {
+      ArrayDeque<ByteBuffer>[] lists = new ArrayDeque[CLASSES];
+      for (int i = 0; i < CLASSES; i++) {
+         lists[i] = new ArrayDeque<ByteBuffer>();
+      }
+      return lists;
+   }
+
+   /**
+    * Free buffers one thread keeps, heap and direct, by class, only used by that thread (until it ends).
+    *
+    */
+   private static final class ThreadCache {
+
+      private final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+      @SuppressWarnings({ "unchecked", "rawtypes" })
+      private final ArrayDeque<ByteBuffer>[][] lists = new ArrayDeque[][] { freeLists(), freeLists() };
+      private long bytes;
+   }
+
+   /**
+    * Weak reference to a buffer handed out, equal to another for the same buffer (identity, buffers compare by content).
+    *
+    */
+   private static final class Tracked extends WeakReference<ByteBuffer> {
+
+      private final int hash;
+      private final int capacity;
+      private final Throwable site;
+
+      Tracked(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue, Throwable site) {
+         super(buffer, queue);
+         this.hash = System.identityHashCode(buffer);
+         this.capacity = buffer.capacity();
+         this.site = site;
+      }
+
+      @Override
+      public int hashCode() {
+         return hash;
+      }
+
+      @Override
+      public boolean equals(Object o) {
+         if (this == o) {
+            return true;
+         }
+         if (!(o instanceof Tracked)) {
+            return false;
+         }
+         ByteBuffer buffer = get();
+         return buffer != null && buffer == ((Tracked) o).get();
+      }
+   }
+}
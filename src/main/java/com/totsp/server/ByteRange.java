@@ -0,0 +1,128 @@
+package com.totsp.server;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Satisfiable byte range of a file (start and end inclusive), and parsing of Range request header, RFC 7233.
+ *
+ */
+final class ByteRange {
+
+   // lots of tiny ranges is abuse (or a very confused client), ignore the header and send the whole thing
+   static final int MAX_RANGES = 32;
+
+   private static final Comparator<ByteRange> BY_START = new Comparator<ByteRange>() {
+      public int compare(ByteRange a, ByteRange b) {
+         return a.start < b.start ? -1 : (a.start == b.start ? 0 : 1);
+      }
+   };
+
+   final long start;
+   final long end;
+
+   ByteRange(long start, long end) {
+      this.start = start;
+      this.end = end;
+   }
+
+   long length() {
+      return end - start + 1;
+   }
+
+   /**
+    * Parse Range header value against entity length.
+    *
+    * Handles "bytes=a-b", "bytes=a-" (to end), "bytes=-n" (last n bytes), and lists of them, "bytes=0-99,500-599".
+    * Returns null if the header isn't a valid byte range set, or has no range in it (caller ignores it, serves 200),
+    * empty list if nothing in it is satisfiable (416), otherwise ranges sorted, with overlapping and adjacent
+    * ranges coalesced.
+    *
+    */
+   static List<ByteRange> parse(String value, long entityLength) {
+      String v = value.trim();
+      int eq = v.indexOf('=');
+      if (eq < 0 || !v.substring(0, eq).trim().equalsIgnoreCase("bytes")) {
+         return null;
+      }
+
+      String[] specs = v.substring(eq + 1).split(",");
+      if (specs.length > MAX_RANGES) {
+         return null;
+      }
+
+      List<ByteRange> ranges = new ArrayList<ByteRange>(specs.length);
+      boolean parsed = false;
+      for (String raw : specs) {
+         String spec = raw.trim();
+         if (spec.length() == 0) {
+            // empty list elements are allowed
+            continue;
+         }
+         int dash = spec.indexOf('-');
+         if (dash < 0) {
+            return null;
+         }
+         String first = spec.substring(0, dash).trim();
+         String last = spec.substring(dash + 1).trim();
+         parsed = true;
+         try {
+            if (first.length() == 0) {
+               // suffix, last n bytes
+               long suffix = parseNonNegative(last);
+               if (suffix > 0 && entityLength > 0) {
+                  ranges.add(new ByteRange(Math.max(0, entityLength - suffix), entityLength - 1));
+               }
+            } else {
+               long start = parseNonNegative(first);
+               long end = last.length() == 0 ? entityLength - 1 : parseNonNegative(last);
+               if (end < start) {
+                  return null;
+               }
+               // "If the last-byte-pos value is absent, or if the value is greater than or equal to the current length of the entity-body, last-byte-pos is taken to be equal to one less than the current length of the entity- body in bytes."
+               if (start < entityLength) {
+                  ranges.add(new ByteRange(start, Math.min(end, entityLength - 1)));
+               }
+            }
+         } catch (NumberFormatException e) {
+            return null;
+         }
+      }
+      // at least one spec, "bytes=" or "bytes=," isn't a byte range set
+      return parsed ? coalesce(ranges) : null;
+   }
+
+   //
+   // priv helpers
+   //
+
+   private static long parseNonNegative(String s) {
+      if (s.length() == 0 || s.charAt(0) == '-' || s.charAt(0) == '+') {
+         throw new NumberFormatException("not a byte position:" + s);
+      }
+      return Long.parseLong(s);
+   }
+
+   private static List<ByteRange> coalesce(List<ByteRange> ranges) {
+      if (ranges.size() < 2) {
+         return ranges;
+      }
+      Collections.sort(ranges, BY_START);
+      List<ByteRange> merged = new ArrayList<ByteRange>(ranges.size());
+      ByteRange current = ranges.get(0);
+      for (int i = 1; i < ranges.size(); i++) {
+         ByteRange r = ranges.get(i);
+         if (r.start <= current.end + 1) {
+            // overlapping or adjacent
+            current = new ByteRange(current.start, Math.max(current.end, r.end));
+         } else {
+            merged.add(current);
+            current = r;
+         }
+      }
+      merged.add(current);
+      return merged;
+   }
+}
@@ -0,0 +1,244 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.OverflowPolicy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Asynchronous TextRequestCallback delivery, request threads put text requests in a bounded lock-free ring
+ * (many producers), one dispatch thread takes them out in batches and calls the callback, so a slow callback
+ * never holds up the ACK, or a request thread.
+ *
+ * Order is kept, requests are delivered in the order they got a slot (overall, and so per connection).
+ * When the ring is full, OverflowPolicy decides (see there), a coalesced request takes the place in order
+ * of the first request that overflowed.
+ *
+ */
+final class CallbackDispatcher {
+
+   private static final Logger LOG = LoggerFactory.getLogger(CallbackDispatcher.class);
+
+   static final int MAX_BATCH = 64;
+
+   private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+   private static final long FULL_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+
+   private final TextRequestCallback callback;
+   private final OverflowPolicy policy;
+
+   // ring, slot of sequence s is s & mask, null until published
+   private final AtomicReferenceArray<String> slots;
+   private final int capacity;
+   private final int mask;
+   private final AtomicLong tail = new AtomicLong(); // next sequence to claim (producers)
+   private volatile long head; // next sequence to deliver (written only by dispatch thread)
+
+   // newest overflowing request (COALESCE), delivered before sequence seq
+   private final AtomicReference<Overflow> overflow = new AtomicReference<Overflow>();
+
+   private final AtomicLong dropped = new AtomicLong();
+   private final AtomicLong coalesced = new AtomicLong();
+
+   private volatile Thread thread;
+   private volatile boolean running;
+   private volatile boolean waiting; // dispatch thread is parked, producers unpark it
+
+   CallbackDispatcher(final TextRequestCallback callback, final int capacity, final OverflowPolicy policy) {
+      this.callback = callback;
+      this.policy = policy;
+      // power of 2, so slot is a mask not a mod
+      int size = 1;
+      while (size < capacity) {
+         size <<= 1;
+      }
+      this.capacity = size;
+      this.mask = size - 1;
+      this.slots = new AtomicReferenceArray<String>(size);
+   }
+
+   synchronized void start() {
+      if (running) {
+         return;
+      }
+      running = true;
+      thread = new Thread("httpserver-callback") {
+         @Override
+         public void run() {
+            dispatchLoop();
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   // stops after delivering what is already queued
+   synchronized void stop() {
+      if (!running) {
+         return;
+      }
+      running = false;
+      LockSupport.unpark(thread);
+      try {
+         thread.join(5000);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /**
+    * Queue request for the callback (returns right away, unless full and policy is BLOCK). An NIO event loop thread
+    * never waits, BLOCK is COALESCE there (a parked loop would stall every connection on it).
+    *
+    */
+   void dispatch(String request) {
+      while (!offer(request)) {
+         OverflowPolicy p = policy;
+         if (p == OverflowPolicy.BLOCK && NioEngine.isLoopThread()) {
+            p = OverflowPolicy.COALESCE;
+         }
+         switch (p) {
+            case DROP:
+               dropped.incrementAndGet();
+               return;
+            case COALESCE:
+               coalesce(request);
+               wakeDispatcher();
+               return;
+            default:
+               // BLOCK, wait for dispatch thread to make room
+               if (!running) {
+                  dropped.incrementAndGet();
+                  return;
+               }
+               LockSupport.parkNanos(FULL_PARK_NANOS);
+         }
+      }
+      wakeDispatcher();
+   }
+
+   long getDropped() {
+      return dropped.get();
+   }
+
+   long getCoalesced() {
+      return coalesced.get();
+   }
+
+   //
+   // priv helpers
+   //
+
+   private boolean offer(String request) {
+      while (true) {
+         long t = tail.get();
+         if (t - head >= capacity) {
+            return false;
+         }
+         if (tail.compareAndSet(t, t + 1)) {
+            slots.lazySet((int) (t & mask), request);
+            return true;
+         }
+      }
+   }
+
+   // replace pending overflow with newer request, keeping the place of the first overflow
+   private void coalesce(String request) {
+      while (true) {
+         Overflow previous = overflow.get();
+         Overflow next = new Overflow(request, previous == null ? tail.get() : previous.seq);
+         if (overflow.compareAndSet(previous, next)) {
+            if (previous != null) {
+               coalesced.incrementAndGet();
+            }
+            return;
+         }
+      }
+   }
+
+   private void wakeDispatcher() {
+      if (waiting) {
+         LockSupport.unpark(thread);
+      }
+   }
+
+   private void dispatchLoop() {
+      List<String> batch = new ArrayList<String>(MAX_BATCH);
+      while (true) {
+         fill(batch);
+         if (batch.isEmpty()) {
+            if (!running) {
+               return;
+            }
+            waiting = true;
+            // recheck after announcing, a producer may have published just before
+            if (!hasPending()) {
+               LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+            waiting = false;
+            continue;
+         }
+         deliver(batch);
+         batch = new ArrayList<String>(MAX_BATCH);
+      }
+   }
+
+   // take up to MAX_BATCH published requests in order (stops at a claimed slot not yet published)
+   private void fill(List<String> batch) {
+      long seq = head;
+      while (batch.size() < MAX_BATCH) {
+         Overflow o = overflow.get();
+         if (o != null && o.seq <= seq && overflow.compareAndSet(o, null)) {
+            batch.add(o.request);
+            continue;
+         }
+         int slot = (int) (seq & mask);
+         String request = slots.get(slot);
+         if (request == null) {
+            break;
+         }
+         slots.set(slot, null);
+         batch.add(request);
+         seq++;
+         head = seq;
+      }
+   }
+
+   private boolean hasPending() {
+      return slots.get((int) (head & mask)) != null || overflow.get() != null;
+   }
+
+   private void deliver(List<String> batch) {
+      try {
+         if (callback instanceof BatchTextRequestCallback) {
+            ((BatchTextRequestCallback) callback).onRequests(batch);
+         } else {
+            for (String request : batch) {
+               callback.onRequest(request);
+            }
+         }
+      } catch (RuntimeException e) {
+         // a bad callback doesn't stop dispatch
+         LOG.error("ERROR in text request callback:" + e.getMessage(), e);
+      }
+   }
+
+   private static final class Overflow {
+
+      final String request;
+      final long seq;
+
+      Overflow(String request, long seq) {
+         this.request = request;
+         this.seq = seq;
+      }
+   }
+}
@@ -0,0 +1,155 @@
+package com.totsp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Compresses a file region as it's sent, for files too big to compress ahead of time (see CompressedCache),
+ * output is HTTP chunked transfer coding (length isn't known up front). Pulled a chunk at a time by the engines,
+ * so the NIO engine can stop whenever the socket is full and pick up again on OP_WRITE.
+ *
+ * Every buffer from next is only valid until the next call (one buffer, reused), end must be called when done
+ * (or abandoned) to free the native deflater, and give the buffers back to the pool.
+ *
+ */
+final class ChunkedCompressor {
+
+   static final int BUFFER_SIZE = 16 * 1024;
+
+   // gzip member header, deflate, no name, no mtime, unknown OS
+   private static final byte[] GZIP_HEADER = { 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff };
+   private static final byte[] LAST_CHUNK = HeaderWriter.ascii("0\r\n\r\n");
+
+   // room for chunk size line before data ("3ff6\r\n"), and CRLF after
+   private static final int DATA_START = 8;
+
+   // data per chunk, so a whole chunk (size line, data, CRLF) fits one pooled buffer
+   static final int CHUNK_SIZE = BUFFER_SIZE - DATA_START - 2;
+
+   private final FileChannel source;
+   private final boolean gzip;
+   private final Deflater deflater;
+   private final CRC32 crc = new CRC32();
+   private final BufferPool pool;
+   private final ByteBuffer inputBuffer;
+   private final ByteBuffer chunkBuffer;
+   private final byte[] input;
+   private final byte[] chunk;
+
+   private long position;
+   private long remaining;
+   private final long length;
+   private boolean headerSent;
+   private boolean trailerSent;
+   private boolean lastSent;
+   private boolean ended;
+
+   ChunkedCompressor(FileChannel source, long offset, long length, String encoding) {
+      this(null, source, offset, length, encoding);
+   }
+
+   // pool null, buffers are allocated
+   ChunkedCompressor(BufferPool pool, FileChannel source, long offset, long length, String encoding) {
+      this.pool = pool;
+      this.inputBuffer = pool != null ? pool.acquire(BUFFER_SIZE, false) : ByteBuffer.allocate(BUFFER_SIZE);
+      this.chunkBuffer = pool != null ? pool.acquire(BUFFER_SIZE, false) : ByteBuffer.allocate(BUFFER_SIZE);
+      this.input = inputBuffer.array();
+      this.chunk = chunkBuffer.array();
+      this.source = source;
+      this.position = offset;
+      this.remaining = length;
+      this.length = length;
+      this.gzip = Compression.GZIP.equals(encoding);
+      // gzip wraps raw deflate itself, "deflate" is zlib format
+      this.deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, gzip);
+   }
+
+   /**
+    * Next chunk to send (size line, data, CRLF, or the last chunk), null once everything is out.
+    *
+    */
+   ByteBuffer next() throws IOException {
+      if (lastSent) {
+         return null;
+      }
+      int len = 0;
+      if (gzip && !headerSent) {
+         System.arraycopy(GZIP_HEADER, 0, chunk, DATA_START, GZIP_HEADER.length);
+         len = GZIP_HEADER.length;
+         headerSent = true;
+      }
+      while (len < CHUNK_SIZE && !deflater.finished()) {
+         if (deflater.needsInput()) {
+            if (remaining > 0) {
+               fill();
+            } else {
+               deflater.finish();
+            }
+         }
+         len += deflater.deflate(chunk, DATA_START + len, CHUNK_SIZE - len);
+      }
+      if (deflater.finished() && gzip && !trailerSent && len + 8 <= CHUNK_SIZE) {
+         writeTrailer(DATA_START + len);
+         len += 8;
+         trailerSent = true;
+      }
+      if (len == 0) {
+         lastSent = true;
+         return ByteBuffer.wrap(LAST_CHUNK);
+      }
+      return frame(len);
+   }
+
+   void end() {
+      deflater.end();
+      if (pool != null && !ended) {
+         ended = true;
+         pool.release(inputBuffer);
+         pool.release(chunkBuffer);
+      }
+   }
+
+   //
+   // priv helpers
+   //
+
+   private void fill() throws IOException {
+      ByteBuffer in = ByteBuffer.wrap(input, 0, (int) Math.min(BUFFER_SIZE, remaining));
+      int read = source.read(in, position);
+      if (read < 0) {
+         throw new IOException("file ended early, sent " + (length - remaining) + " of " + length + " bytes");
+      }
+      crc.update(input, 0, read);
+      deflater.setInput(input, 0, read);
+      position += read;
+      remaining -= read;
+   }
+
+   // CRC32 and length mod 2^32, little endian
+   private void writeTrailer(int at) {
+      long value = crc.getValue();
+      for (int i = 0; i < 4; i++) {
+         chunk[at + i] = (byte) (value >> (8 * i));
+      }
+      for (int i = 0; i < 4; i++) {
+         chunk[at + 4 + i] = (byte) (length >> (8 * i));
+      }
+   }
+
+   // size line right before the data, CRLF after
+   private ByteBuffer frame(int len) {
+      String size = Integer.toHexString(len);
+      int start = DATA_START - size.length() - 2;
+      for (int i = 0; i < size.length(); i++) {
+         chunk[start + i] = (byte) size.charAt(i);
+      }
+      chunk[DATA_START - 2] = '\r';
+      chunk[DATA_START - 1] = '\n';
+      chunk[DATA_START + len] = '\r';
+      chunk[DATA_START + len + 1] = '\n';
+      return ByteBuffer.wrap(chunk, start, DATA_START + len + 2 - start);
+   }
+}
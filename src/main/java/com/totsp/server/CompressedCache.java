@@ -0,0 +1,121 @@
+package com.totsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Precompressed variants of text files, keyed by path, ETag and encoding, so repeat downloads of the same
+ * log or dump cost no CPU (compressed once, at best level, then served from memory with a Content-Length).
+ *
+ * Only files up to maxFileBytes are compressed ahead (bigger ones are compressed as they're sent, see
+ * ChunkedCompressor). Least recently used variants are dropped to stay under maxBytes (of compressed data).
+ * A changed file has a new ETag, so old variants are never served, they just age out.
+ *
+ */
+final class CompressedCache {
+
+   private static final Logger LOG = LoggerFactory.getLogger(CompressedCache.class);
+
+   static final long DEFAULT_MAX_BYTES = 4 * 1024 * 1024;
+   static final long DEFAULT_MAX_FILE_BYTES = 1024 * 1024;
+
+   private final long maxBytes;
+   private final long maxFileBytes;
+
+   // access order, eldest is least recently used (guarded by entries)
+   private final Map<String, byte[]> entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true);
+   private long usedBytes;
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+
+   CompressedCache() {
+      this(DEFAULT_MAX_BYTES, DEFAULT_MAX_FILE_BYTES);
+   }
+
+   CompressedCache(final long maxBytes, final long maxFileBytes) {
+      this.maxBytes = maxBytes;
+      this.maxFileBytes = Math.min(Math.min(maxFileBytes, maxBytes), Integer.MAX_VALUE);
+   }
+
+   // true if source gets a precompressed variant (otherwise caller streams it)
+   boolean fits(FileInfoCache.FileInfo source) {
+      return source.length <= maxFileBytes;
+   }
+
+   /**
+    * Compressed content of source, compressing it now if it isn't cached yet, or null if too big
+    * (or it can't be read), caller streams it instead.
+    *
+    */
+   byte[] get(FileInfoCache.FileInfo source, String encoding) {
+      if (!fits(source)) {
+         return null;
+      }
+      String key = source.file.getPath() + "|" + source.etag + "|" + encoding;
+      synchronized (entries) {
+         byte[] compressed = entries.get(key);
+         if (compressed != null) {
+            hits.incrementAndGet();
+            return compressed;
+         }
+      }
+      misses.incrementAndGet();
+
+      // compress outside the lock, two threads may both do the same file, last one in wins, that's fine
+      byte[] compressed;
+      try {
+         compressed = Compression.compress(source, encoding);
+      } catch (IOException e) {
+         LOG.warn("could not compress file, streaming it:" + e.getMessage());
+         return null;
+      }
+      if (compressed.length > maxBytes) {
+         return compressed;
+      }
+      synchronized (entries) {
+         byte[] previous = entries.remove(key);
+         if (previous != null) {
+            usedBytes -= previous.length;
+         }
+         Iterator<byte[]> lru = entries.values().iterator();
+         while (usedBytes + compressed.length > maxBytes && lru.hasNext()) {
+            usedBytes -= lru.next().length;
+            lru.remove();
+         }
+         entries.put(key, compressed);
+         usedBytes += compressed.length;
+      }
+      return compressed;
+   }
+
+   // cached compressed content of source, or null, never compresses (and isn't counted as a hit or miss)
+   byte[] peek(FileInfoCache.FileInfo source, String encoding) {
+      if (!fits(source)) {
+         return null;
+      }
+      synchronized (entries) {
+         return entries.get(source.file.getPath() + "|" + source.etag + "|" + encoding);
+      }
+   }
+
+   long getUsedBytes() {
+      synchronized (entries) {
+         return usedBytes;
+      }
+   }
+
+   long getHits() {
+      return hits.get();
+   }
+
+   long getMisses() {
+      return misses.get();
+   }
+}
@@ -0,0 +1,152 @@
+package com.totsp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Content-Encoding negotiation and compression helpers, gzip and deflate (zlib), for text content only,
+ * media (JPG, MP4, etc) is already compressed and never is.
+ *
+ */
+final class Compression {
+
+   static final String GZIP = "gzip";
+   static final String DEFLATE = "deflate";
+
+   // smaller bodies aren't worth it (headers and framing eat the savings)
+   static final int MIN_BYTES = 256;
+
+   private Compression() {
+   }
+
+   /**
+    * Encoding to use per Accept-Encoding, GZIP or DEFLATE (gzip preferred at equal q), or null for identity.
+    * Tokens with q=0 are refused, "*" stands for gzip if it's not listed.
+    *
+    */
+   static String negotiate(String acceptEncoding) {
+      if (acceptEncoding == null) {
+         return null;
+      }
+      float gzip = -1;
+      float deflate = -1;
+      float any = -1;
+      for (String token : acceptEncoding.split(",")) {
+         String name = token;
+         float q = 1;
+         int semi = token.indexOf(';');
+         if (semi > -1) {
+            name = token.substring(0, semi);
+            q = parseQ(token.substring(semi + 1));
+         }
+         name = name.trim().toLowerCase(Locale.US);
+         if (name.equals(GZIP) || name.equals("x-gzip")) {
+            gzip = q;
+         } else if (name.equals(DEFLATE)) {
+            deflate = q;
+         } else if (name.equals("*")) {
+            any = q;
+         }
+      }
+      if (gzip < 0) {
+         gzip = any;
+      }
+      if (gzip > 0 && gzip >= deflate) {
+         return GZIP;
+      }
+      return deflate > 0 ? DEFLATE : null;
+   }
+
+   // text, and text-like, types, everything else (images, audio, video) is already compressed
+   static boolean isCompressible(String mimeType) {
+      if (mimeType == null) {
+         return false;
+      }
+      return mimeType.startsWith("text/") || mimeType.endsWith("json") || mimeType.endsWith("xml")
+               || mimeType.endsWith("javascript");
+   }
+
+   // ETag of the encoded variant, different from the identity one (they're different bytes)
+   static String variantTag(String etag, String encoding) {
+      return etag.substring(0, etag.length() - 1) + "-" + encoding + "\"";
+   }
+
+   static byte[] compress(byte[] data, String encoding) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(64, data.length / 4));
+      try {
+         OutputStream out = open(bytes, encoding, Deflater.DEFAULT_COMPRESSION);
+         out.write(data);
+         out.close();
+      } catch (IOException e) {
+         // in memory, can't happen
+         throw new IllegalStateException(e);
+      }
+      return bytes.toByteArray();
+   }
+
+   // whole file, compressed at best level (it's done once, then cached)
+   static byte[] compress(FileInfoCache.FileInfo source, String encoding) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) Math.max(64, source.length / 4));
+      InputStream in = new FileInputStream(source.file);
+      try {
+         OutputStream out = open(bytes, encoding, Deflater.BEST_COMPRESSION);
+         byte[] buffer = new byte[8192];
+         long total = 0;
+         for (int read; (read = in.read(buffer)) > -1;) {
+            out.write(buffer, 0, read);
+            total += read;
+         }
+         out.close();
+         if (total != source.length) {
+            // changed since metadata was loaded, don't cache it under this ETag
+            throw new IOException("file changed while compressing");
+         }
+      } finally {
+         in.close();
+      }
+      return bytes.toByteArray();
+   }
+
+   //
+   // priv helpers
+   //
+
+   private static OutputStream open(OutputStream out, String encoding, final int level) throws IOException {
+      if (GZIP.equals(encoding)) {
+         return new GZIPOutputStream(out, 8192) {
+            {
+               def.setLevel(level);
+            }
+         };
+      }
+      return new DeflaterOutputStream(out, new Deflater(level), 8192) {
+         @Override
+         public void close() throws IOException {
+            super.close();
+            // not the default deflater, so it's ours to end
+            def.end();
+         }
+      };
+   }
+
+   private static float parseQ(String params) {
+      for (String param : params.split(";")) {
+         String p = param.trim();
+         if (p.startsWith("q=") || p.startsWith("Q=")) {
+            try {
+               return Float.parseFloat(p.substring(2).trim());
+            } catch (NumberFormatException e) {
+               return 0;
+            }
+         }
+      }
+      return 1;
+   }
+}
@@ -0,0 +1,186 @@
+package com.totsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hot content cache, memory mapped (read only) files, for the few files that get served over and over
+ * (latest camera shots, a clip shared to several devices). Responses are slices of the mapped file,
+ * no open, no read, per request, and the pages are shared with the OS page cache (not on the Java heap).
+ *
+ * A file is mapped the second time it's asked for within a while (so one-off requests don't churn the cache),
+ * only if it fits maxFileBytes. Least recently used files are dropped to stay under maxBytes total.
+ * An entry is only used while the file's length and mtime (from FileInfoCache) still match, otherwise remapped.
+ *
+ * NOTE mappings are released by GC once dropped (no unmap in the Java 6 API), so the byte budget is what is referenced
+ * by the cache, not strictly what is mapped. Files cached here should be replaced, not truncated in place.
+ *
+ */
+final class ContentCache {
+
+   private static final Logger LOG = LoggerFactory.getLogger(ContentCache.class);
+
+   // paths asked for recently, but not (yet) cached, second request maps the file
+   private static final int MAX_CANDIDATES = 64;
+
+   private final long maxBytes;
+   private final long maxFileBytes;
+
+   // access order, eldest is least recently used (both guarded by entries)
+   private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+   private final Map<String, Boolean> candidates = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Boolean> eldest) {
+         return size() > MAX_CANDIDATES;
+      }
+   };
+   private long usedBytes;
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+
+   ContentCache(final long maxBytes, final long maxFileBytes) {
+      this.maxBytes = maxBytes;
+      // can't map more than an int worth in one buffer
+      this.maxFileBytes = Math.min(Math.min(maxFileBytes, maxBytes), Integer.MAX_VALUE);
+   }
+
+   /**
+    * Whole file content, read only (callers slice or duplicate it, never change position of it), or null if file
+    * isn't cached (not hot yet, too big, or can't be mapped), caller serves from file as usual.
+    *
+    */
+   ByteBuffer get(FileInfoCache.FileInfo info) {
+      if (info.length == 0 || info.length > maxFileBytes) {
+         return null;
+      }
+      String path = info.file.getPath();
+      synchronized (entries) {
+         Entry entry = entries.get(path);
+         if (entry != null && entry.length == info.length && entry.lastModified == info.lastModified) {
+            hits.incrementAndGet();
+            return entry.content;
+         }
+         if (entry != null) {
+            // file changed
+            remove(path);
+         }
+         misses.incrementAndGet();
+         if (candidates.remove(path) == null) {
+            // first time, just remember it
+            candidates.put(path, Boolean.TRUE);
+            return null;
+         }
+      }
+
+      // map outside the lock, two threads may both map the same file, last one in wins, that's fine
+      ByteBuffer content = map(info);
+      if (content == null) {
+         return null;
+      }
+      synchronized (entries) {
+         remove(path);
+         Iterator<Entry> lru = entries.values().iterator();
+         while (usedBytes + info.length > maxBytes && lru.hasNext()) {
+            usedBytes -= lru.next().length;
+            lru.remove();
+         }
+         entries.put(path, new Entry(content, info.length, info.lastModified));
+         usedBytes += info.length;
+      }
+      return content;
+   }
+
+   void clear() {
+      synchronized (entries) {
+         entries.clear();
+         candidates.clear();
+         usedBytes = 0;
+      }
+   }
+
+   long getUsedBytes() {
+      synchronized (entries) {
+         return usedBytes;
+      }
+   }
+
+   long getHits() {
+      return hits.get();
+   }
+
+   long getMisses() {
+      return misses.get();
+   }
+
+   /**
+    * Region of content as its own buffer (shares content, independent position and limit).
+    *
+    */
+   static ByteBuffer slice(ByteBuffer content, long offset, long length) {
+      ByteBuffer region = content.duplicate();
+      region.limit((int) (offset + length));
+      region.position((int) offset);
+      return region.slice();
+   }
+
+   //
+   // priv helpers
+   //
+
+   // caller holds lock
+   private void remove(String path) {
+      Entry removed = entries.remove(path);
+      if (removed != null) {
+         usedBytes -= removed.length;
+      }
+   }
+
+   private ByteBuffer map(FileInfoCache.FileInfo info) {
+      RandomAccessFile file = null;
+      try {
+         file = new RandomAccessFile(info.file, "r");
+         if (file.length() != info.length) {
+            // changed since metadata was loaded, leave it for next time
+            return null;
+         }
+         // mapping stays valid after the channel is closed
+         return file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, info.length).asReadOnlyBuffer();
+      } catch (IOException e) {
+         LOG.warn("could not map file, serving from disk:" + e.getMessage());
+         return null;
+      } finally {
+         if (file != null) {
+            try {
+               file.close();
+            } catch (IOException e) {
+               LOG.error("Error closing file", e);
+            }
+         }
+      }
+   }
+
+   private static final class Entry {
+
+      final ByteBuffer content;
+      final long length;
+      final long lastModified;
+
+      Entry(final ByteBuffer content, final long length, final long lastModified) {
+         this.content = content;
+         this.length = length;
+         this.lastModified = lastModified;
+      }
+   }
+}
@@ -0,0 +1,472 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.SupportedFileType;
+
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In memory index of directory listings under configured roots (entries are SupportedFileType files, and subdirectories),
+ * for the directory listing endpoint, so a folder of thousands of photos isn't rescanned on every request.
+ *
+ * A listing is built the first time its directory is asked for, then kept current a change at a time from file system
+ * events (see DirectoryWatcher, only the entry named in the event is looked at again). Without a WatchService, or after
+ * events were lost, the directory is rescanned when its mtime changes, and otherwise its entries are looked at again
+ * (a file rewritten in place doesn't move the directory's mtime), both at most once per CHECK_MILLIS.
+ * Least recently used listings are dropped (and no longer watched) past maxListings.
+ *
+ * Listings are immutable snapshots, sorted by name, replaced on each change, so readers never lock.
+ * Builds and updates are serialized (one lock), a build of a huge directory holds up other builds, not cached listings.
+ *
+ */
+final class DirectoryIndex implements DirectoryWatcher.Listener {
+
+   static final int DEFAULT_MAX_LISTINGS = 64;
+   static final long CHECK_MILLIS = 1000;
+
+   private final String[] roots; // absolute paths, no trailing separator
+   private final int maxListings;
+   private final DirectoryWatcher watcher; // null, no WatchService, mtime checks only
+
+   // access order, eldest is least recently used (guarded by this)
+   private final Map<String, Listing> listings;
+
+   private final AtomicLong builds = new AtomicLong();
+   private final AtomicLong updates = new AtomicLong();
+
+   DirectoryIndex(final File[] roots, final int maxListings, final boolean watch) {
+      this.roots = new String[roots.length];
+      for (int i = 0; i < roots.length; i++) {
+         this.roots[i] = trimSeparator(roots[i].getAbsolutePath());
+      }
+      this.maxListings = maxListings;
+      this.listings = new LinkedHashMap<String, Listing>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, Listing> eldest) {
+            if (size() > DirectoryIndex.this.maxListings) {
+               unwatch(eldest.getValue());
+               return true;
+            }
+            return false;
+         }
+      };
+      this.watcher = watch ? DirectoryWatcher.create(this) : null;
+   }
+
+   /**
+    * Listing of directory at path, or null if it's not a directory under one of the roots.
+    *
+    */
+   synchronized Listing get(String path) {
+      String dir = trimSeparator(new File(path).getAbsolutePath());
+      if (!isUnderRoot(dir)) {
+         return null;
+      }
+      Listing listing = listings.get(dir);
+      long now = System.currentTimeMillis();
+      boolean watched = listing != null && listing.watchKey != null;
+      if (listing != null && !listing.stale && (watched || now - listing.checkedAt < CHECK_MILLIS)) {
+         return listing;
+      }
+      File file = new File(dir);
+      if (listing != null && !listing.stale) {
+         // no events for it, check mtime (entries added, removed or renamed), then each entry (rewritten in place)
+         if (file.lastModified() == listing.dirModified) {
+            Listing current = listing.restat();
+            current.checkedAt = now;
+            if (current != listing) {
+               listings.put(dir, current);
+               updates.incrementAndGet();
+            }
+            return current;
+         }
+      }
+      if (!file.isDirectory()) {
+         if (listing != null) {
+            listings.remove(dir);
+            unwatch(listing);
+         }
+         return null;
+      }
+      // watched before the scan, so no change after it is missed (events wait for this lock), registered again
+      // on every rebuild, the old key may be dead (directory deleted and recreated, card remounted)
+      if (listing != null) {
+         unwatch(listing);
+      }
+      Object key = watcher != null ? watcher.register(file) : null;
+      listing = scan(file, dir, key, now);
+      listings.put(dir, listing);
+      builds.incrementAndGet();
+      return listing;
+   }
+
+   // one entry of a watched directory changed, look at just that entry again
+   public synchronized void changed(File dir, String name) {
+      String path = trimSeparator(dir.getAbsolutePath());
+      Listing listing = listings.get(path);
+      if (listing == null || listing.stale) {
+         return;
+      }
+      listings.put(path, listing.with(name, Entry.load(new File(dir, name))));
+      updates.incrementAndGet();
+   }
+
+   public synchronized void overflow(File dir) {
+      Listing listing = listings.get(trimSeparator(dir.getAbsolutePath()));
+      if (listing != null) {
+         listing.stale = true;
+      }
+   }
+
+   void close() {
+      if (watcher != null) {
+         watcher.close();
+      }
+   }
+
+   boolean isWatching() {
+      return watcher != null;
+   }
+
+   // full directory scans
+   long getBuilds() {
+      return builds.get();
+   }
+
+   // updates without a full scan, from events, or entries found changed
+   long getUpdates() {
+      return updates.get();
+   }
+
+   //
+   // priv helpers
+   //
+
+   private Listing scan(File file, String dir, Object watchKey, long now) {
+      long dirModified = file.lastModified();
+      String[] names = file.list();
+      if (names == null) {
+         names = new String[0];
+      }
+      Arrays.sort(names);
+      Entry[] entries = new Entry[names.length];
+      int count = 0;
+      for (String name : names) {
+         Entry entry = Entry.load(new File(file, name));
+         if (entry != null) {
+            entries[count++] = entry;
+         }
+      }
+      return new Listing(dir, count < entries.length ? Arrays.copyOf(entries, count) : entries, dirModified, watchKey, now);
+   }
+
+   private boolean isUnderRoot(String dir) {
+      // no way out of a root (.. or . segments)
+      String s = File.separator;
+      if (dir.contains(s + "..") || dir.contains(s + "." + s) || dir.endsWith(s + ".")) {
+         return false;
+      }
+      for (String root : roots) {
+         if (dir.equals(root) || dir.startsWith(root + File.separator)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private void unwatch(Listing listing) {
+      if (watcher != null) {
+         watcher.cancel(listing.watchKey);
+      }
+   }
+
+   private static String trimSeparator(String path) {
+      return path.length() > 1 && path.endsWith(File.separator) ? path.substring(0, path.length() - 1) : path;
+   }
+
+   /**
+    * A listed file (SupportedFileType) or subdirectory, immutable.
+    *
+    */
+   static final class Entry {
+
+      final String name;
+      final boolean isDirectory;
+      final long length;
+      final long lastModified;
+      final String etag; // same as the file's own (see FileInfoCache), null for directories
+
+      private Entry(String name, boolean isDirectory, long length, long lastModified, String etag) {
+         this.name = name;
+         this.isDirectory = isDirectory;
+         this.length = length;
+         this.lastModified = lastModified;
+         this.etag = etag;
+      }
+
+      // null if it's not something we list (gone, hidden, unsupported type, unreadable)
+      static Entry load(File file) {
+         String name = file.getName();
+         if (name.startsWith(".")) {
+            return null;
+         }
+         if (file.isDirectory()) {
+            return new Entry(name, true, 0, file.lastModified(), null);
+         }
+         if (SupportedFileType.getFromString(name) == null || !file.isFile() || !file.canRead()) {
+            return null;
+         }
+         long length = file.length();
+         long lastModified = file.lastModified();
+         return new Entry(name, false, length, lastModified, FileInfoCache.FileInfo.etag(file, lastModified, length));
+      }
+
+      // changes if anything listed about the entry changes
+      int hash() {
+         return (name.hashCode() * 31 + (int) (length ^ (length >>> 32))) * 31 + (int) (lastModified ^ (lastModified >>> 32));
+      }
+   }
+
+   /**
+    * Snapshot of one directory, entries sorted by name, immutable (but for the bookkeeping fields, guarded by the index).
+    *
+    */
+   static final class Listing {
+
+      final String path;
+      final Entry[] entries;
+      final long lastModified; // newest of directory and entries
+      final String etag; // weak, from what's listed (same listing, same tag, also across restarts)
+
+      private final long dirModified;
+      private final Object watchKey;
+      private final int hash; // xor of entry hashes, so one change updates it without a pass over all entries
+      private long checkedAt;
+      private boolean stale;
+
+      private Listing(String path, Entry[] entries, long dirModified, Object watchKey, long checkedAt) {
+         this(path, entries, dirModified, watchKey, checkedAt, hashOf(entries), newestOf(entries, dirModified));
+      }
+
+      private Listing(String path, Entry[] entries, long dirModified, Object watchKey, long checkedAt, int hash,
+               long lastModified) {
+         this.path = path;
+         this.entries = entries;
+         this.dirModified = dirModified;
+         this.watchKey = watchKey;
+         this.checkedAt = checkedAt;
+         this.hash = hash;
+         this.lastModified = lastModified;
+         this.etag = "W/\"" + Integer.toHexString(hash) + "-" + Integer.toHexString(entries.length) + "\"";
+      }
+
+      // copy with entry name replaced, added, or removed (entry null)
+      Listing with(String name, Entry entry) {
+         int i = search(name);
+         int h = hash;
+         Entry[] next;
+         if (i >= 0) {
+            h ^= entries[i].hash();
+            if (entry != null) {
+               next = entries.clone();
+               next[i] = entry;
+            } else {
+               next = new Entry[entries.length - 1];
+               System.arraycopy(entries, 0, next, 0, i);
+               System.arraycopy(entries, i + 1, next, i, entries.length - i - 1);
+            }
+         } else if (entry != null) {
+            int at = -i - 1;
+            next = new Entry[entries.length + 1];
+            System.arraycopy(entries, 0, next, 0, at);
+            next[at] = entry;
+            System.arraycopy(entries, at, next, at + 1, entries.length - at);
+         } else {
+            return this;
+         }
+         if (entry != null) {
+            h ^= entry.hash();
+         }
+         // directory mtime moves on add and remove, so Last-Modified moves too
+         long dirModified = new File(path).lastModified();
+         long newest = Math.max(Math.max(lastModified, dirModified), entry != null ? entry.lastModified : 0);
+         return new Listing(path, next, dirModified, watchKey, checkedAt, h, newest);
+      }
+
+      // copy with entries whose size or mtime changed loaded again (a stat each), this if none did
+      Listing restat() {
+         Entry[] next = null;
+         int count = 0;
+         for (int i = 0; i < entries.length; i++) {
+            Entry e = entries[i];
+            File f = new File(path, e.name);
+            Entry entry = e;
+            if (f.lastModified() != e.lastModified || (!e.isDirectory && f.length() != e.length)) {
+               if (next == null) {
+                  next = new Entry[entries.length];
+                  System.arraycopy(entries, 0, next, 0, i);
+                  count = i;
+               }
+               // (null if gone since, the directory's mtime catches that next time anyway)
+               entry = Entry.load(f);
+            }
+            if (next != null && entry != null) {
+               next[count++] = entry;
+            }
+         }
+         if (next == null) {
+            return this;
+         }
+         return new Listing(path, count < next.length ? Arrays.copyOf(next, count) : next, dirModified, watchKey,
+                  checkedAt);
+      }
+
+      /**
+       * Page of entries as JSON, offset and limit already clamped.
+       *
+       */
+      String toJson(int offset, int limit) {
+         int end = Math.min(entries.length, offset + limit);
+         StringBuilder sb = new StringBuilder(128 + (end - offset) * 120);
+         sb.append("{\"path\":");
+         jsonString(sb, path.endsWith(File.separator) ? path : path + File.separator);
+         sb.append(",\"total\":").append(entries.length).append(",\"offset\":").append(offset).append(",\"limit\":").append(
+                  limit).append(",\"entries\":[");
+         for (int i = offset; i < end; i++) {
+            Entry e = entries[i];
+            sb.append(i > offset ? ",{\"name\":" : "{\"name\":");
+            jsonString(sb, e.name);
+            if (e.isDirectory) {
+               sb.append(",\"type\":\"directory\",\"modified\":").append(e.lastModified).append("}");
+            } else {
+               sb.append(",\"type\":\"file\",\"size\":").append(e.length).append(",\"modified\":").append(e.lastModified)
+                        .append(",\"etag\":");
+               jsonString(sb, e.etag);
+               sb.append("}");
+            }
+         }
+         sb.append("]");
+         if (end < entries.length) {
+            sb.append(",\"next\":\"?offset=").append(end).append("&limit=").append(limit).append("\"");
+         }
+         return sb.append("}").toString();
+      }
+
+      /**
+       * Page of entries as an HTML page, links relative to the directory, offset and limit already clamped.
+       *
+       */
+      String toHtml(int offset, int limit) {
+         int end = Math.min(entries.length, offset + limit);
+         StringBuilder sb = new StringBuilder(256 + (end - offset) * 160);
+         sb.append("<!DOCTYPE html>\n<html><head><meta charset=\"utf-8\"><title>");
+         html(sb, path);
+         sb.append("</title></head><body><h1>");
+         html(sb, path);
+         sb.append("</h1>\n<table>\n<tr><th>Name</th><th>Size</th><th>Modified</th></tr>\n");
+         for (int i = offset; i < end; i++) {
+            Entry e = entries[i];
+            sb.append("<tr><td><a href=\"").append(urlSegment(e.name)).append(e.isDirectory ? "/?format=html\">" : "\">");
+            html(sb, e.name);
+            sb.append(e.isDirectory ? "/" : "").append("</a></td><td>").append(e.isDirectory ? "" : String.valueOf(e.length))
+                     .append("</td><td>").append(RequestProcessor.getDateString(e.lastModified)).append("</td></tr>\n");
+         }
+         sb.append("</table>\n<p>").append(entries.length == 0 ? 0 : offset + 1).append("-").append(end).append(" of ")
+                  .append(entries.length);
+         if (offset > 0) {
+            sb.append(" <a href=\"?format=html&amp;offset=").append(Math.max(0, offset - limit)).append("&amp;limit=")
+                     .append(limit).append("\">previous</a>");
+         }
+         if (end < entries.length) {
+            sb.append(" <a href=\"?format=html&amp;offset=").append(end).append("&amp;limit=").append(limit).append(
+                     "\">next</a>");
+         }
+         return sb.append("</p></body></html>\n").toString();
+      }
+
+      private int search(String name) {
+         int low = 0;
+         int high = entries.length - 1;
+         while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int c = entries[mid].name.compareTo(name);
+            if (c < 0) {
+               low = mid + 1;
+            } else if (c > 0) {
+               high = mid - 1;
+            } else {
+               return mid;
+            }
+         }
+         return -(low + 1);
+      }
+
+      private static int hashOf(Entry[] entries) {
+         int h = 0;
+         for (Entry e : entries) {
+            h ^= e.hash();
+         }
+         return h;
+      }
+
+      private static long newestOf(Entry[] entries, long dirModified) {
+         long newest = dirModified;
+         for (Entry e : entries) {
+            newest = Math.max(newest, e.lastModified);
+         }
+         return newest;
+      }
+
+      private static void jsonString(StringBuilder sb, String s) {
+         sb.append('"');
+         for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+               sb.append('\\').append(c);
+            } else if (c < 0x20) {
+               sb.append(String.format("\\u%04x", (int) c));
+            } else {
+               sb.append(c);
+            }
+         }
+         sb.append('"');
+      }
+
+      private static void html(StringBuilder sb, String s) {
+         for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch (c) {
+               case '<':
+                  sb.append("&lt;");
+                  break;
+               case '>':
+                  sb.append("&gt;");
+                  break;
+               case '&':
+                  sb.append("&amp;");
+                  break;
+               case '"':
+                  sb.append("&quot;");
+                  break;
+               default:
+                  sb.append(c);
+            }
+         }
+      }
+
+      private static String urlSegment(String name) {
+         try {
+            return URLEncoder.encode(name, "UTF-8").replace("+", "%20");
+         } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+   }
+}
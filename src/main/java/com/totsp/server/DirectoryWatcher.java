@@ -0,0 +1,193 @@
+package com.totsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * File system change events for watched directories, a WatchService (Java 7+, Android 8+) used by reflection,
+ * we still build for (and run on) old VMs, where create returns null and callers fall back to checking directory mtime.
+ *
+ * One daemon thread takes events and hands them to the Listener, name of the entry that was created, deleted
+ * or modified, or overflow (events were lost, directory must be rescanned). Not recursive, each directory is registered.
+ *
+ */
+final class DirectoryWatcher {
+
+   private static final Logger LOG = LoggerFactory.getLogger(DirectoryWatcher.class);
+
+   interface Listener {
+
+      // entry name (in dir) was created, deleted, or modified
+      void changed(File dir, String name);
+
+      // events for dir were lost (or dir is gone), whatever is known about it is stale
+      void overflow(File dir);
+   }
+
+   private final Listener listener;
+   private final Object watchService;
+   private final Object kinds; // WatchEvent.Kind[] { ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY }
+   private final Object overflowKind;
+   private final Map<Object, File> dirs = new HashMap<Object, File>(); // watch key to directory (guarded by itself)
+
+   // reflected API
+   private final Method toPath;
+   private final Method register;
+   private final Method take;
+   private final Method close;
+   private final Method pollEvents;
+   private final Method reset;
+   private final Method cancel;
+   private final Method kind;
+   private final Method context;
+
+   private volatile boolean running;
+
+   private DirectoryWatcher(Listener listener) throws Exception {
+      this.listener = listener;
+      Class<?> fileSystemClass = Class.forName("java.nio.file.FileSystem");
+      Class<?> watchServiceClass = Class.forName("java.nio.file.WatchService");
+      Class<?> watchKeyClass = Class.forName("java.nio.file.WatchKey");
+      Class<?> watchEventClass = Class.forName("java.nio.file.WatchEvent");
+      Class<?> kindClass = Class.forName("java.nio.file.WatchEvent$Kind");
+      Class<?> kindsClass = Class.forName("java.nio.file.StandardWatchEventKinds");
+      Class<?> pathClass = Class.forName("java.nio.file.Path");
+
+      Object fileSystem = Class.forName("java.nio.file.FileSystems").getMethod("getDefault").invoke(null);
+      this.toPath = File.class.getMethod("toPath");
+      this.register = pathClass.getMethod("register", watchServiceClass, Array.newInstance(kindClass, 0).getClass());
+      this.take = watchServiceClass.getMethod("take");
+      this.close = watchServiceClass.getMethod("close");
+      this.pollEvents = watchKeyClass.getMethod("pollEvents");
+      this.reset = watchKeyClass.getMethod("reset");
+      this.cancel = watchKeyClass.getMethod("cancel");
+      this.kind = watchEventClass.getMethod("kind");
+      this.context = watchEventClass.getMethod("context");
+
+      this.kinds = Array.newInstance(kindClass, 3);
+      Array.set(kinds, 0, kindsClass.getField("ENTRY_CREATE").get(null));
+      Array.set(kinds, 1, kindsClass.getField("ENTRY_DELETE").get(null));
+      Array.set(kinds, 2, kindsClass.getField("ENTRY_MODIFY").get(null));
+      this.overflowKind = kindsClass.getField("OVERFLOW").get(null);
+
+      this.watchService = fileSystemClass.getMethod("newWatchService").invoke(fileSystem);
+   }
+
+   /**
+    * Started watcher, or null if this VM has no WatchService (or it can't be created).
+    *
+    */
+   static DirectoryWatcher create(Listener listener) {
+      try {
+         DirectoryWatcher watcher = new DirectoryWatcher(listener);
+         watcher.start();
+         return watcher;
+      } catch (Exception e) {
+         LOG.info("no WatchService, directory changes are found by directory mtime");
+         return null;
+      }
+   }
+
+   /**
+    * Start watching dir, returns its key (for cancel), or null if it can't be watched.
+    *
+    */
+   Object register(File dir) {
+      try {
+         Object key = register.invoke(toPath.invoke(dir), watchService, kinds);
+         synchronized (dirs) {
+            dirs.put(key, dir);
+         }
+         return key;
+      } catch (Exception e) {
+         LOG.warn("could not watch directory:{} e:{}", dir, e);
+         return null;
+      }
+   }
+
+   void cancel(Object key) {
+      if (key == null) {
+         return;
+      }
+      synchronized (dirs) {
+         dirs.remove(key);
+      }
+      invokeQuietly(cancel, key);
+   }
+
+   void close() {
+      running = false;
+      invokeQuietly(close, watchService);
+   }
+
+   //
+   // priv helpers
+   //
+
+   private void start() {
+      running = true;
+      Thread t = new Thread("httpserver-dir-watch") {
+         @Override
+         public void run() {
+            watchLoop();
+         }
+      };
+      t.setDaemon(true);
+      t.start();
+   }
+
+   private void watchLoop() {
+      while (running) {
+         Object key;
+         try {
+            key = take.invoke(watchService);
+         } catch (Exception e) {
+            // closed (ClosedWatchServiceException), or interrupted
+            break;
+         }
+         File dir;
+         synchronized (dirs) {
+            dir = dirs.get(key);
+         }
+         try {
+            for (Object event : (List<?>) pollEvents.invoke(key)) {
+               if (dir == null) {
+                  continue;
+               }
+               if (kind.invoke(event) == overflowKind) {
+                  listener.overflow(dir);
+               } else {
+                  listener.changed(dir, String.valueOf(context.invoke(event)));
+               }
+            }
+            if (!(Boolean) reset.invoke(key) && dir != null) {
+               // no longer valid (directory deleted, or cancelled)
+               synchronized (dirs) {
+                  dirs.remove(key);
+               }
+               listener.overflow(dir);
+            }
+         } catch (InvocationTargetException e) {
+            LOG.warn("ERROR reading directory events e:{}", e.getCause());
+         } catch (Exception e) {
+            LOG.warn("ERROR reading directory events e:{}", e);
+         }
+      }
+   }
+
+   private static void invokeQuietly(Method method, Object target) {
+      try {
+         method.invoke(target);
+      } catch (Exception e) {
+         // already closed, or cancelled
+      }
+   }
+}
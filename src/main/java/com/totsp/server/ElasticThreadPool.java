@@ -0,0 +1,130 @@
+package com.totsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread pool that sizes itself from what it measures, queue depth, and how long tasks waited in the queue.
+ *
+ * Core size starts at minThreads. When tasks are waiting, and waits are over the target, core size grows (doubles,
+ * up to maxThreads). When the queue has been empty for a while, core size steps back down toward minThreads,
+ * and the extra threads time out once idle. Checked every ADJUST_INTERVAL_MILLIS by a small daemon tuner thread
+ * (a burst can otherwise sit in the queue with every thread busy streaming, and nothing submitting or completing).
+ *
+ */
+final class ElasticThreadPool extends ThreadPoolExecutor {
+
+   private static final Logger LOG = LoggerFactory.getLogger(ElasticThreadPool.class);
+
+   static final long TARGET_WAIT_MILLIS = 50;
+   static final long ADJUST_INTERVAL_MILLIS = 250;
+   static final long IDLE_THREAD_SECONDS = 30;
+
+   private final int minThreads;
+   private final int maxThreads;
+   private final long idleMillis;
+
+   // queue wait (submit to start) of tasks started since last adjust
+   private final AtomicLong waitedNanos = new AtomicLong();
+   private final AtomicLong started = new AtomicLong();
+   private long lastBusy = System.currentTimeMillis(); // guarded by this
+
+   private final ScheduledExecutorService tuner = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      public Thread newThread(Runnable r) {
+         Thread t = new Thread(r, "elastic-pool-tuner");
+         t.setDaemon(true);
+         return t;
+      }
+   });
+
+   ElasticThreadPool(final int minThreads, final int maxThreads) {
+      this(minThreads, maxThreads, TimeUnit.SECONDS.toMillis(IDLE_THREAD_SECONDS));
+   }
+
+   // idleMillis, how long the queue stays empty before each step down, and extra threads idle before they end
+   ElasticThreadPool(final int minThreads, final int maxThreads, final long idleMillis) {
+      // max pool size is the ceiling, core size is what gets adjusted (unbounded queue only grows past core via adjust)
+      super(minThreads, maxThreads, idleMillis, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>());
+      this.minThreads = minThreads;
+      this.maxThreads = maxThreads;
+      this.idleMillis = idleMillis;
+      tuner.scheduleWithFixedDelay(new Runnable() {
+         public void run() {
+            adjust();
+         }
+      }, ADJUST_INTERVAL_MILLIS, ADJUST_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+   }
+
+   @Override
+   public void execute(Runnable command) {
+      super.execute(new Timed(command));
+   }
+
+   @Override
+   protected void beforeExecute(Thread t, Runnable r) {
+      if (r instanceof Timed) {
+         waitedNanos.addAndGet(System.nanoTime() - ((Timed) r).queuedAt);
+         started.incrementAndGet();
+      }
+   }
+
+   @Override
+   protected void terminated() {
+      tuner.shutdown();
+   }
+
+   //
+   // priv helpers
+   //
+
+   // on tuner thread only
+   void adjust() {
+      long now = System.currentTimeMillis();
+      synchronized (this) {
+         long count = started.getAndSet(0);
+         long waited = waitedNanos.getAndSet(0);
+         long averageWaitMillis = count > 0 ? TimeUnit.NANOSECONDS.toMillis(waited / count) : 0;
+         int queued = getQueue().size();
+         int core = getCorePoolSize();
+
+         if (queued > 0) {
+            lastBusy = now;
+         }
+         if (queued > 0 && (averageWaitMillis > TARGET_WAIT_MILLIS || count == 0) && core < maxThreads) {
+            // backed up (waits too long, or nothing started at all), grow
+            int grown = Math.min(maxThreads, Math.max(core + 1, core * 2));
+            setCorePoolSize(grown);
+            LOG.debug("elastic pool grow, queued:{} averageWaitMillis:{} threads:{}", new Object[] { queued,
+                     averageWaitMillis, grown });
+         } else if (queued == 0 && core > minThreads && now - lastBusy > idleMillis) {
+            // quiet for a while, step down (idle threads over core time out)
+            setCorePoolSize(core - 1);
+            lastBusy = now;
+            LOG.debug("elastic pool shrink, threads:{}", core - 1);
+         }
+      }
+   }
+
+   // runnable that remembers when it was queued
+   private static final class Timed implements Runnable {
+
+      final Runnable task;
+      final long queuedAt = System.nanoTime();
+
+      Timed(Runnable task) {
+         this.task = task;
+      }
+
+      public void run() {
+         task.run();
+      }
+   }
+}
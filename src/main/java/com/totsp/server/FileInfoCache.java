@@ -0,0 +1,145 @@
+package com.totsp.server;
+
+import java.io.File;
+import java.net.URLConnection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded (LRU) cache of file metadata by request path, so the per request stat calls (isFile, canRead, length,
+ * lastModified) and the ETag and mime type work happen once per TTL, not several times on every request
+ * (players can send lots of Range requests for the same file).
+ *
+ * Entries expire after ttlMillis, so a changed file is picked up within that time (no WatchService on Android/Java 6,
+ * and it wouldn't cover arbitrary paths anyway). Missing files are cached too (also a stat each).
+ * A cache with maxEntries 0 doesn't cache, every get loads fresh.
+ *
+ */
+final class FileInfoCache {
+
+   static final int DEFAULT_MAX_ENTRIES = 256;
+   static final int DEFAULT_TTL_MILLIS = 2000;
+
+   private final int maxEntries;
+   private final long ttlNanos;
+   private final Map<String, FileInfo> entries;
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+
+   FileInfoCache() {
+      this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL_MILLIS);
+   }
+
+   FileInfoCache(final int maxEntries, final int ttlMillis) {
+      this.maxEntries = maxEntries;
+      this.ttlNanos = ttlMillis * 1000000L;
+      // access order, eldest is least recently used (guarded by itself)
+      this.entries = new LinkedHashMap<String, FileInfo>(16, 0.75f, true) {
+         private static final long serialVersionUID = 1L;
+
+         @Override
+         protected boolean removeEldestEntry(Map.Entry<String, FileInfo> eldest) {
+            return size() > FileInfoCache.this.maxEntries;
+         }
+      };
+   }
+
+   /**
+    * Metadata for path, from cache if loaded less than TTL ago, otherwise loaded (and cached).
+    *
+    */
+   FileInfo get(String path) {
+      long now = System.nanoTime();
+      if (maxEntries > 0) {
+         FileInfo info;
+         synchronized (entries) {
+            info = entries.get(path);
+         }
+         if (info != null && now - info.loadedAt < ttlNanos) {
+            hits.incrementAndGet();
+            return info;
+         }
+      }
+
+      // load outside the lock, two threads may both load the same path, that's fine (same result)
+      misses.incrementAndGet();
+      FileInfo info = new FileInfo(new File(path), now);
+      if (maxEntries > 0) {
+         synchronized (entries) {
+            entries.put(path, info);
+         }
+      }
+      return info;
+   }
+
+   void invalidate(String path) {
+      synchronized (entries) {
+         entries.remove(path);
+      }
+   }
+
+   void clear() {
+      synchronized (entries) {
+         entries.clear();
+      }
+   }
+
+   int size() {
+      synchronized (entries) {
+         return entries.size();
+      }
+   }
+
+   long getHits() {
+      return hits.get();
+   }
+
+   long getMisses() {
+      return misses.get();
+   }
+
+   /**
+    * Snapshot of a file's metadata, immutable.
+    *
+    */
+   static final class FileInfo {
+
+      final File file;
+      final boolean isFile;
+      final boolean canRead;
+      final long length;
+      final long lastModified;
+      final String lastModifiedDate;
+      final String etag;
+      final String mimeType;
+      private final long loadedAt;
+
+      FileInfo(final File file, final long loadedAt) {
+         this.file = file;
+         this.loadedAt = loadedAt;
+         this.isFile = file.isFile();
+         this.canRead = isFile && file.canRead();
+         this.length = isFile ? file.length() : 0;
+         this.lastModified = isFile ? file.lastModified() : 0;
+         this.lastModifiedDate = isFile ? RequestProcessor.getDateString(lastModified) : null;
+         this.etag = isFile ? etag(file, lastModified, length) : null;
+         this.mimeType = isFile ? getMimeType(file) : null;
+      }
+
+      // quoted (strong) entity tag, per spec, clients send it back as is in If-None-Match and If-Range
+      static String etag(File file, long lastModified, long length) {
+         return "\"" + Integer.toHexString((file.getAbsolutePath() + lastModified + "" + length).hashCode()) + "\"";
+      }
+
+      private static String getMimeType(File file) {
+         String mimeType = URLConnection.guessContentTypeFromName(file.getName());
+         // change borked "m4v" file extension to mp4 mime - what's up with this?
+         if (mimeType != null && mimeType.endsWith("m4v")) {
+            mimeType = "video/mp4";
+         }
+         return mimeType;
+      }
+   }
+}
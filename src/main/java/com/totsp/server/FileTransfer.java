@@ -0,0 +1,36 @@
+package com.totsp.server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Zero-copy file region transfer, FileChannel.transferTo (sendfile where the platform has it), long offsets throughout.
+ * To a TlsChannel the region goes through memory (it has to be encrypted).
+ *
+ */
+final class FileTransfer {
+
+   private FileTransfer() {
+   }
+
+   /**
+    * Transfer up to count bytes starting at position, returns bytes transferred.
+    * 
+    * With a blocking target this keeps going until count is done (or the file ends), with a non-blocking target 
+    * it returns early as soon as the target can't take more (caller resumes on next write readiness).
+    * 
+    */
+   static long transfer(FileChannel source, long position, long count, WritableByteChannel target) throws IOException {
+      long transferred = 0;
+      while (transferred < count) {
+         long n = target instanceof TlsChannel ? ((TlsChannel) target).transferFrom(source, position + transferred,
+                  count - transferred) : source.transferTo(position + transferred, count - transferred, target);
+         if (n <= 0) {
+            break;
+         }
+         transferred += n;
+      }
+      return transferred;
+   }
+}
@@ -1,32 +1,16 @@
 package com.totsp.server;
 
-import com.totsp.server.enums.Status;
-import com.totsp.server.enums.SupportedFileType;
+import com.totsp.server.enums.Engine;
+import com.totsp.server.enums.Execution;
+import com.totsp.server.enums.OverflowPolicy;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.SocketException;
-import java.net.URLConnection;
-import java.net.URLDecoder;
-import java.text.SimpleDateFormat;
-import java.util.ArrayList;
-import java.util.Date;
-import java.util.List;
-import java.util.TimeZone;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+
+import javax.net.ssl.SSLContext;
 
 /**
  * HTTP server for serving content FROM an Android device (supports very limited GET only). 
@@ -48,6 +32,11 @@ import java.util.regex.Pattern;
  * 
  * (Supports partial content, HTTP 206, for streaming.)
  * 
+ * Connections are served by the selected Engine, BLOCKING (thread per connection, the default), 
+ * or NIO (non-blocking, a few event loop threads serve many concurrent streams). 
+ * BLOCKING runs connections per the selected Execution, FIXED pool (the default), ELASTIC pool, or VIRTUAL threads, 
+ * NIO runs request processing (callbacks, compression, listings) that way, off its event loops. 
+ * 
  * 
  * @author ccollins
  *
@@ -55,34 +44,24 @@ import java.util.regex.Pattern;
 public class HTTPServer {
 
    private static final String DEFAULT_USER_AGENT = "AndroidHTTPServer";
-   private static final SimpleDateFormat INET_DFMT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z");
-   static {
-      INET_DFMT.setTimeZone(TimeZone.getTimeZone("GMT"));
-   }
 
    private static final Logger LOG = LoggerFactory.getLogger(HTTPServer.class);
 
-   private ExecutorService executor;
+   private final RequestProcessor processor;
+   private ServerEngine serverEngine;
+   private Engine engine = Engine.BLOCKING;
+   private Execution execution = Execution.FIXED;
    private String userAgent;
    private int port;
    private int numThreads;
-   
-   /** 
-    * Used only to inform server creator of what request input has been received (first line) for TEXT requests only.
-    * It's safe to ignore this callback and use null if you don't care about external notification of text requests.
-    *  
-    */
-   private TextRequestCallback callback;
-
-   private boolean debug;
 
    /**
     * Create HTTPServer.
     * 
     * @param userAgent
     * @param port
-    * @param numThreads
-    * @param callback
+    * @param numThreads (pool size for BLOCKING engine, number of event loops, and of request workers, for NIO engine)
+    * @param callback used only to inform server creator of what request input has been received (first line) for TEXT requests only
     */
    public HTTPServer(String userAgent, int port, int numThreads, TextRequestCallback callback) {
 
@@ -101,437 +80,506 @@ public class HTTPServer {
       this.userAgent = userAgent;
       this.port = port;
       this.numThreads = numThreads;
-      
-      this.callback = callback;
+
+      // it's safe to ignore the callback and use null if you don't care about external notification of text requests
+      this.processor = new RequestProcessor(userAgent, callback);
 
       LOG.info("ANDROID HTTP server created, userAgent:" + userAgent + " port:" + port + " numThreads:" + numThreads);
    }
 
    public void setDebug(boolean debug) {
-      this.debug = debug;
+      processor.setDebug(debug);
    }
 
-   // params passed to start, so we can specify them in interface
-   public void start() {
+   /**
+    * Configure HTTP/1.1 persistent connections (default 5 second idle timeout, 100 requests per connection).
+    * 
+    * @param idleTimeoutMillis how long a connection may wait for its next request (0 turns keep-alive off, every response closes)
+    * @param maxRequests max requests served on one connection before it is closed
+    */
+   public void setKeepAlive(int idleTimeoutMillis, int maxRequests) {
+      if (idleTimeoutMillis < 0 || maxRequests < 1) {
+         throw new IllegalArgumentException("keep-alive settings invalid");
+      }
+      processor.setKeepAlive(idleTimeoutMillis, maxRequests);
+   }
 
-      if (executor != null) {
-         shutdownExecutor();
+   /**
+    * How long a client has to send a whole request header (default 10 seconds), from connecting for the first request,
+    * from its first byte for the next ones on a persistent connection. A client that connects and sends nothing,
+    * or trickles a header in, is closed, so it doesn't keep a thread, buffer or admission slot.
+    * 
+    * @param timeoutMillis
+    */
+   public void setHeaderTimeout(int timeoutMillis) {
+      if (timeoutMillis < 1) {
+         throw new IllegalArgumentException("header timeout invalid");
       }
+      processor.setHeaderTimeout(timeoutMillis);
+   }
 
-      executor = Executors.newFixedThreadPool(numThreads);
+   /**
+    * Configure HTTP pipelining depth, how many requests on one persistent connection may be read and answered 
+    * ahead of the client reading responses (responses always go out in request order, default 8).
+    * 
+    * @param maxPipelinedRequests
+    */
+   public void setMaxPipelinedRequests(int maxPipelinedRequests) {
+      if (maxPipelinedRequests < 1) {
+         throw new IllegalArgumentException("maxPipelinedRequests invalid");
+      }
+      processor.setMaxPipelinedRequests(maxPipelinedRequests);
+   }
 
+   /**
+    * Turn on cleartext HTTP/2 (h2c), BLOCKING engine (default off). Clients that know the server speaks it
+    * (prior knowledge), or ask to switch (Upgrade: h2c), get one connection carrying many requests at once,
+    * responses sent in turns (flow controlled per stream), so small files aren't stuck behind a big one.
+    * The connection's thread reads, requests are processed (and responses sent) on HTTP/2 workers, numThreads 
+    * of them per Execution. Other clients (and the NIO engine) stay on HTTP/1.1.
+    * 
+    * @param maxConcurrentStreams requests one connection may have in flight (0 turns HTTP/2 off)
+    */
+   public void setHttp2(int maxConcurrentStreams) {
+      if (maxConcurrentStreams < 0) {
+         throw new IllegalArgumentException("maxConcurrentStreams invalid");
+      }
+      processor.setHttp2MaxStreams(maxConcurrentStreams);
+   }
+
+   /**
+    * Serve HTTPS (default off, plain HTTP), with the key and certificate in keyStore, PKCS12 (.p12, .pfx), BKS (.bks)
+    * or the VM's default type (.jks). Works with either engine (HTTP/2 stays cleartext only). Takes effect for new
+    * connections.
+    * 
+    * @param keyStore (null turns TLS off)
+    * @param password of the store, and of the key
+    */
+   public void setTls(File keyStore, String password) {
+      if (keyStore == null) {
+         processor.setTls(null);
+         return;
+      }
       try {
-         final ServerSocket serverSocket = new ServerSocket(port);
-
-         LOG.info("ANDROID HTTP server started, addr:" + serverSocket.getInetAddress());
-
-         // submit stuff to executor off of current thread (exec will handle each as a thread, but we don't want to block callers that just use "start" here) 
-         new Thread() {
-            @Override
-            public void run() {
-               try {
-                  while (!executor.isShutdown()) {
-                     executor.submit(new RequestHandler(debug, userAgent, serverSocket.accept(), callback));
-                  }
-               } catch (SocketException e) {
-                  LOG.error("ERROR running server executor:" + e.getMessage(), e);
-               } catch (IOException e) {
-                  LOG.error("ERROR running server executor:" + e.getMessage(), e);
-               }
-            }
-         }.start();
+         setTls(Tls.createContext(keyStore, password));
+      } catch (Exception e) {
+         throw new IllegalArgumentException("could not load key store " + keyStore + ": " + e.getMessage(), e);
+      }
+   }
 
-      } catch (IOException e) {
-         LOG.error("ERROR creating server socket:" + e.getMessage(), e);
+   /**
+    * Serve HTTPS with a context set up by the caller (its own key managers, protocols, provider).
+    * 
+    * @param context (null turns TLS off)
+    */
+   public void setTls(SSLContext context) {
+      processor.setTls(context != null ? new Tls(context) : null);
+   }
+
+   /**
+    * Configure TLS session resumption (default 1024 sessions, 24 hours), a client reconnecting within timeoutSeconds
+    * resumes its session, no key exchange or certificate, a round trip less. Stateless session tickets are used too
+    * where the VM supports them. Call after setTls (IllegalStateException before).
+    * 
+    * @param cacheSize sessions kept (0 is no limit)
+    * @param timeoutSeconds how long a session can be resumed
+    */
+   public void setTlsSessions(int cacheSize, int timeoutSeconds) {
+      Tls tls = processor.getTls();
+      if (tls == null) {
+         throw new IllegalStateException("TLS not set");
+      }
+      if (cacheSize < 0 || timeoutSeconds < 0) {
+         throw new IllegalArgumentException("TLS session settings invalid");
       }
+      tls.setSessions(cacheSize, timeoutSeconds);
    }
 
-   public void stop() {
-      shutdownExecutor();
-      LOG.info("ANDROID HTTPD server stopped");
+   /**
+    * Configure TLS record sizing (default 64KB), a connection's first smallRecordBytes (and first after it was idle
+    * a second) go in small records, one TCP segment each, so the client can decrypt the first bytes of a response
+    * as they arrive, after that records are full size (16KB), less overhead for bulk media. Call after setTls
+    * (IllegalStateException before).
+    * 
+    * @param smallRecordBytes (0 is full size records always)
+    */
+   public void setTlsRecordSizing(int smallRecordBytes) {
+      Tls tls = processor.getTls();
+      if (tls == null) {
+         throw new IllegalStateException("TLS not set");
+      }
+      if (smallRecordBytes < 0) {
+         throw new IllegalArgumentException("TLS record sizing invalid");
+      }
+      tls.setSmallRecordBytes(smallRecordBytes);
    }
 
-   //
-   // priv
-   //
+   /**
+    * Configure I/O buffers (default 4KB, 16KB, 4MB), small on phones, larger on relays serving many big files.
+    * Request, response and file block buffers come from a pool and are reused, steady state serving allocates
+    * next to nothing.
+    * 
+    * @param ioBufferSize request buffer a connection starts with, and response buffer (BLOCKING engine)
+    * @param maxHeaderSize largest request header accepted, request buffers grow up to this
+    * @param maxPooledBytes free buffers kept for reuse, past what each thread keeps (0 pools nothing)
+    */
+   public void setBuffers(int ioBufferSize, int maxHeaderSize, long maxPooledBytes) {
+      if (ioBufferSize < 256 || maxHeaderSize < ioBufferSize || maxPooledBytes < 0) {
+         throw new IllegalArgumentException("buffer settings invalid");
+      }
+      processor.setBufferSizes(ioBufferSize, maxHeaderSize);
+      processor.getBuffers().setMaxPooledBytes(maxPooledBytes);
+   }
 
-   private void shutdownExecutor() {
-      executor.shutdown();
-      try {
-         executor.awaitTermination(5, TimeUnit.SECONDS);
-      } catch (InterruptedException e) {
-         LOG.error("ERROR stopping server:" + e.getMessage(), e);
-      }
-      executor.shutdownNow();
-   }
-
-   //
-   // internal handler class (for each socket.accept)
-   //
-   
-   private static final String ANDROID_BUILD_MODEL = android.os.Build.MODEL;
-   private static final String ANDROID_BUILD_VERSION = android.os.Build.VERSION.RELEASE;
-
-   private static final class RequestHandler implements Runnable {
-
-      private static final int BUFFER_SIZE = 4096; // small, yeah, we run this on phones and stuff
-      
-      private static final Logger LOG = LoggerFactory.getLogger(RequestHandler.class);
-
-      private final boolean debug;
-      private final String userAgent;
-      private final Socket socket;
-      private final TextRequestCallback callback;
-
-      RequestHandler(final boolean debug, final String userAgent, final Socket socket, final TextRequestCallback callback) throws SocketException {
-         this.debug = debug;
-         this.userAgent = userAgent;
-         this.socket = socket;
-         this.callback = callback;
-      }
-
-      public void run() {
-         long start = System.currentTimeMillis();
-         try {
-            LOG.debug(userAgent + " server handler start - " + start);
-
-            // NOTE HTTP request ends at double newline (each in form of CRLF)
-            BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-
-            // parse lines
-            List<String> lines = new ArrayList<String>();
-            String line = null;
-            while ((line = in.readLine()) != null) {
-               if (line.trim().equals("")) {
-                  break;
-               }
-               lines.add(line);
-            }
-
-            if (debug) {
-               for (String s : lines) {
-                  LOG.debug("   *** REQUEST LINE: " + s);
-               }
-            }
-
-            // user first line to determine request type and handle accordingly
-            String request = lines.get(0).trim();
-            Matcher get = Pattern.compile("GET /?(\\S*).*").matcher(request);
-            if (get.matches()) {
-               request = get.group(1);
-
-               if (request.equals("")) {
-                  // if request empty, just respond server info
-                  createTextResponse(userAgent + " (AndroidModel:" + ANDROID_BUILD_MODEL + " AndroidVersion:"
-                           + ANDROID_BUILD_VERSION + ")", Status.OK);
-               } else if (request.endsWith("/")) {
-                  // if request for directory, just respond with server info (no dir index here)
-                  createTextResponse(userAgent + " (AndroidModel:" + ANDROID_BUILD_MODEL + " AndroidVersion:"
-                           + ANDROID_BUILD_VERSION + ")", Status.OK);
-               } else {
-
-                  request = URLDecoder.decode(request, "UTF-8");
-                  
-                  SupportedFileType sft = SupportedFileType.getFromString(request);
-                  
-                  // if queryString, just handle as text
-                  if (request.startsWith("?")) {
-                     handleNonFileRequestAsText(request);
-                     if (debug) {
-                        LOG.debug(userAgent + " received request with queryString, handling as text and returning ACK only");
-                     }
-                  } else if (sft != null) {
-                     if (debug) {
-                        LOG.debug(userAgent + " serving FILE request, SupportedFileType:" + sft);
-                     }
-                     handleFileRequest(request, lines);
-                  } else {
-                     handleNonFileRequestAsText(request);
-                     if (debug) {
-                        LOG.debug(userAgent + " received non file request, handling as text and returning ACK only");
-                     }
-                  }
-               }
-            } else {
-               LOG.warn("client made request that was not allowed");
-               // don't support anything but GET, return 405
-               createTextResponse("not allowed", Status.NOT_ALLOWED);
-            }
-
-            // close socket
-            socket.close();
-
-            LOG.debug(userAgent + " server handler stop, duration:" + (System.currentTimeMillis() - start));
-         } catch (IOException e) {
-            LOG.error("ERROR I/O exception", e);
-            createTextResponse("ERROR handling request: " + e.getMessage(), Status.ERROR);
-         }
+   /**
+    * Track pooled buffers (default off, costs an allocation per buffer handed out), any collected without being given
+    * back is logged (with where it was taken) and counted in metrics.
+    * 
+    * @param enabled
+    */
+   public void setBufferLeakDetection(boolean enabled) {
+      processor.getBuffers().setLeakDetection(enabled);
+   }
+
+   /**
+    * Configure the file metadata cache (size, mtime, ETag and mime type per path, default 256 entries, 2 seconds).
+    * A changed file is seen by clients within ttlMillis.
+    * 
+    * @param maxEntries max paths cached, least recently used are dropped (0 turns caching off, stat on every request)
+    * @param ttlMillis how long cached metadata is trusted before the file is checked again
+    */
+   public void setFileInfoCache(int maxEntries, int ttlMillis) {
+      if (maxEntries < 0 || ttlMillis < 0) {
+         throw new IllegalArgumentException("file info cache settings invalid");
       }
+      processor.setFileInfoCache(new FileInfoCache(maxEntries, ttlMillis));
+   }
 
-      //
-      // request handlers
-      //   
-      
-      private void handleNonFileRequestAsText(String request) {
-         // so that non-file requests can be used as just an external HTTP messaging system (with no meaningful response), callback is fired
-         // NOTE may need to sync on this, multiple runnable/threads may get here at the same time, but only one callback (though this is fast)
-         callback.onRequest(request);
-         createTextResponse("ACK", Status.OK);         
+   /**
+    * Configure the hot content cache, files requested repeatedly are memory mapped and served (whole or ranges)
+    * from memory (default off). Cached files are checked against length and mtime, see setFileInfoCache.
+    * 
+    * @param maxBytes total size of files kept mapped, least recently used are dropped (0 turns the cache off)
+    * @param maxFileBytes largest single file that is cached
+    */
+   public void setContentCache(long maxBytes, long maxFileBytes) {
+      if (maxBytes < 0 || maxFileBytes < 0) {
+         throw new IllegalArgumentException("content cache settings invalid");
       }
+      processor.setContentCache(maxBytes > 0 ? new ContentCache(maxBytes, maxFileBytes) : null);
+   }
 
-      private void handleFileRequest(String request, List<String> lines) {
-         // make sure it's a file, and make sure we can read it
-         File file = new File(request);
+   /**
+    * Turn gzip/deflate Content-Encoding on or off (default on), for text content (TXT files, bigger text responses)
+    * when the client sends Accept-Encoding. Media (JPG, MP4, etc) is already compressed and is always sent as is,
+    * as are ranges.
+    * 
+    * @param enabled
+    */
+   public void setCompression(boolean enabled) {
+      processor.setCompression(enabled);
+   }
 
-         if (!file.isFile()) {
-            createTextResponse("resource not a file", Status.NOT_ALLOWED);
-            LOG.error("resource is not a file, or is not readable");
-            return;
-         }
+   /**
+    * Configure the precompressed cache, text files up to maxFileBytes are compressed once and the compressed bytes
+    * are kept (per ETag) for repeat requests, bigger files are compressed as they're sent (chunked). 
+    * Default 4MB total, 1MB per file.
+    * 
+    * @param maxBytes total size of compressed variants kept, least recently used are dropped (0 turns the cache off, all streamed)
+    * @param maxFileBytes largest single file that is compressed ahead
+    */
+   public void setCompressionCache(long maxBytes, long maxFileBytes) {
+      if (maxBytes < 0 || maxFileBytes < 0) {
+         throw new IllegalArgumentException("compression cache settings invalid");
+      }
+      processor.setCompressedCache(maxBytes > 0 ? new CompressedCache(maxBytes, maxFileBytes) : null);
+   }
 
-         if (!file.canRead()) {
-            createTextResponse("resource not readable", Status.NOT_ALLOWED);
-            LOG.error("resource is not a file, or is not readable");
-            return;
-         }
+   /**
+    * Read ahead for Range streaming (default off), once a file is being read in successive ranges (a player walking
+    * through a video) the next window is read into memory in the background, so the next range starts without waiting
+    * on storage. A range anywhere else (seek) drops what was read ahead for that file.
+    * 
+    * @param maxBytes memory for windows read ahead, all files together (0 turns read ahead off)
+    * @param maxWindowBytes most read ahead of any one file (windows are about the size of the last range)
+    */
+   public void setReadAhead(long maxBytes, int maxWindowBytes) {
+      if (maxBytes < 0 || maxWindowBytes < 0) {
+         throw new IllegalArgumentException("read ahead settings invalid");
+      }
+      ReadAhead previous = processor.getReadAhead();
+      processor.setReadAhead(maxBytes > 0 ? new ReadAhead(maxBytes, maxWindowBytes, processor.getBuffers()) : null);
+      if (previous != null) {
+         previous.close();
+      }
+   }
 
-         if (debug) {
-            LOG.debug("   file request, serving it up via path:" + file.getAbsolutePath());
-         }
-         try {
-            createBinaryResponse(file, lines);
-         } catch (Exception e) {
-            LOG.error("ERROR creating response (normal if client cancels connection) e:" + e.getMessage());
-         }
+   /**
+    * Share reads of files many clients stream at once (default off), while two or more responses send the same file
+    * (same ETag) it's read a block at a time, once, into memory all of them send from. Streams too far behind to share
+    * read the file themselves, as when streaming alone.
+    * 
+    * @param maxBytes memory for shared blocks, all files together (0 turns shared reads off)
+    */
+   public void setSharedReads(long maxBytes) {
+      if (maxBytes < 0) {
+         throw new IllegalArgumentException("shared reads settings invalid");
       }
+      processor.setSharedReads(maxBytes > 0 ? new SharedReads(maxBytes, processor.getBuffers()) : null);
+   }
 
-      //
-      // response handlers
-      //
-
-      private void createTextResponse(final String text, Status status) {
-         try {
-            StringBuilder sb = new StringBuilder();
-            sb.append("HTTP/1.1 " + status.getDesc() + "\r\n");
-            sb.append("Server: " + userAgent + "\r\n");
-            sb.append("Content-Type: text/plain; charset=utf-8\r\n");
-            sb.append("Accept-Ranges: bytes\r\n");
-            sb.append("Date:" + getDateString(new Date()) + "\r\n");
-            sb.append("\r\n");
-            sb.append(text);
-            sb.append("\r\n\r\n");
-
-            byte[] headerBytes = sb.toString().getBytes();
-            OutputStream out = socket.getOutputStream();
-            out.write(headerBytes, 0, headerBytes.length);
-            out.flush();
-            out.close();
-         } catch (IOException e) {
-            LOG.error("ERROR I/O exception", e);
-         }
+   /**
+    * Configure admission control, limits past which the server answers 503 Service Unavailable (with Retry-After)
+    * right away, instead of letting work pile up (0 is no limit, the default for all).
+    * 
+    * @param maxConnections max open connections (both engines)
+    * @param maxQueuedConnections max accepted connections waiting for a thread (BLOCKING engine, FIXED or ELASTIC)
+    * @param maxFileStreams max file responses being sent at once
+    */
+   public void setAdmissionLimits(int maxConnections, int maxQueuedConnections, int maxFileStreams) {
+      if (maxConnections < 0 || maxQueuedConnections < 0 || maxFileStreams < 0) {
+         throw new IllegalArgumentException("admission limits invalid");
       }
+      processor.getAdmission().setLimits(maxConnections, maxQueuedConnections, maxFileStreams);
+   }
 
-      private void createBinaryResponse(File source, List<String> requestLines) throws Exception {
-
-         // binary needs all the request lines to check if "range" is present
-
-         // determine if request contains a "range" or not 
-         // Support HTTP 1.1 "Partial Content" -- http://www.w3.org/Protocols/rfc2616/rfc2616-sec10.html#sec10.2.7
-         boolean rangePresent = false;
-         boolean rangeValid = false;
-         boolean rangeEndAbsent = false;
-         boolean keepAliveHeaderPresent = false;
-
-         long rangeStart = 0;
-         long rangeEnd = 0;
-         String rangeString = null;
-         // check ALL request lines for Range
-         for (String line : requestLines) {
-            if (line.startsWith("Range") || line.startsWith("range")) {
-               rangePresent = true;
-               if (line.contains("bytes")) {
-                  rangeValid = true;
-                  if (line.trim().endsWith("-")) {
-                     // client sent bytes=0- or bytes=X-
-                     rangeEndAbsent = true;
-                  }
-                  rangeString = line.substring(line.indexOf("bytes=") + 6, line.length());
-                  try {
-                     rangeStart = Long.valueOf(rangeString.substring(0, rangeString.indexOf("-")));
-                     if (!rangeString.endsWith("-")) {
-                        rangeEnd =
-                                 Long.valueOf(rangeString.substring(rangeString.indexOf("-") + 1, rangeString.length()));
-                     }
-                  } catch (NumberFormatException e) {
-                     LOG.error("ERROR getting partial content range", e);
-                     rangeValid = false;
-                  }
-               }
-               break;
-            }
-            if (!keepAliveHeaderPresent && line.contains("Connection: keep-alive")
-                     || line.contains("Connection: Keep-Alive")) {
-               keepAliveHeaderPresent = true;
-            }
-         }
+   /**
+    * Seconds clients are told to wait (Retry-After) when rejected by admission control (default 1).
+    * 
+    * @param seconds
+    */
+   public void setRetryAfter(int seconds) {
+      if (seconds < 0) {
+         throw new IllegalArgumentException("retry after invalid");
+      }
+      processor.getAdmission().setRetryAfter(seconds);
+   }
 
-         if (rangeEndAbsent) {
-            // client sent "bytes=0-"
-            // http://www.w3.org/Protocols/rfc2616/rfc2616-sec14.html#sec14.35
-            // "If the last-byte-pos value is absent, or if the value is greater than or equal to the current length of the entity-body, last-byte-pos is taken to be equal to one less than the current length of the entity- body in bytes."
-            rangeEnd = source.length() - 1;
-         }
+   // connections turned away with 503 since created (over maxConnections or maxQueuedConnections)
+   public long getRejectedConnections() {
+      return processor.getAdmission().getRejectedConnections();
+   }
 
-         long rangeSize = rangeEnd - rangeStart + 1;
+   // file requests turned away with 503 since created (over maxFileStreams)
+   public long getRejectedFileStreams() {
+      return processor.getAdmission().getRejectedFileStreams();
+   }
 
-         if ((rangeEnd < rangeStart) || (rangeSize < 1)) {
-            rangeValid = false;
-         }
+   /**
+    * Shape file responses to bandwidth limits (0 is no limit, the default for both), each file response being sent
+    * gets a fair (weighted) share of the total, so one big download doesn't starve the other streams. Responses that
+    * aren't sending (stalled client) have no share, the others get it.
+    * 
+    * @param maxBytesPerSecond all file responses together
+    * @param maxConnectionBytesPerSecond any one connection (all its responses, HTTP/2 streams together)
+    * @param rangeWeight share of a Range (206, playback) response, relative to a whole file (bulk) download's 1
+    */
+   public void setBandwidthLimits(long maxBytesPerSecond, long maxConnectionBytesPerSecond, int rangeWeight) {
+      if (maxBytesPerSecond < 0 || maxConnectionBytesPerSecond < 0 || rangeWeight < 1) {
+         throw new IllegalArgumentException("bandwidth limits invalid");
+      }
+      processor.getShaper().setLimits(maxBytesPerSecond, maxConnectionBytesPerSecond, rangeWeight);
+   }
 
-         if (rangePresent && rangeValid) {
-            if (debug) {
-               LOG.debug("      transfer standard via ranged request, range present and valid (Partial-Content)");
-            }
-
-            // HEADER           
-            StringBuilder sb = new StringBuilder();
-            sb.append("HTTP/1.1 206 Partial Content\r\n");
-            sb.append("Server: AndroidHTTPServer\r\n");
-            sb.append("Accept-Ranges: bytes\r\n");
-            sb.append("Content-Type: " + getMimeType(source) + "\r\n");
-            sb.append("Date: " + getDateString(new Date()) + "\r\n");
-            sb.append("ETag: " + getETag(source) + "\r\n");
-            sb.append("Content-Range: bytes " + rangeStart + "-" + rangeEnd + "/" + source.length() + "\r\n");
-            sb.append("Content-Length: " + rangeSize + "\r\n");
-            sb.append("Connection: close\r\n");
-            sb.append("\r\n");
-
-            if (debug) {
-               LOG.debug("      *** RESPONSE:\n" + sb.toString());
-            }
-
-            byte[] headerBytes = sb.toString().getBytes();
-            OutputStream dest = socket.getOutputStream();
-            dest.write(headerBytes, 0, headerBytes.length);
-            dest.flush();
-
-            // BODY           
-            int iRangeStart = 0;
-            int iRangeSize = 0;
-            if (rangeStart < Integer.MAX_VALUE) {
-               iRangeStart = (int) rangeStart;
-            } else {
-               throw new RuntimeException("ERROR: content rangeStart > Integer.MAX_VALUE");
-            }
-            if (rangeSize < Integer.MAX_VALUE) {
-               iRangeSize = (int) rangeSize;
-            } else {
-               throw new RuntimeException("ERROR: content rangeSize > Integer.MAX_VALUE");
-            }
-
-            final int iiRangeSize = iRangeSize;
-            FileInputStream fis = new FileInputStream(source) {
-               public int available() throws IOException {
-                  return iiRangeSize;
-               }
-            };
-            // skip to range start in stream
-            fis.skip(iRangeStart);
-            if (fis != null) {
-               int pending = fis.available(); // this is to support partial content
-               byte[] buff = new byte[BUFFER_SIZE];
-               while (pending > 0) {
-                  int read = fis.read(buff, 0, ((pending > BUFFER_SIZE) ? BUFFER_SIZE : pending));
-                  if (read <= 0) {
-                     break;
-                  }
-                  dest.write(buff, 0, read);
-                  pending -= read;
-               }
-            }
-            dest.flush();
-            dest.close();
-            if (fis != null) {
-               fis.close();
-            }
-
-            // TODO investigate NIO and memory mapped file (also keep file map ref around for next request?)
-            // (look at Guava Files.map which returns MappedByteBuffer, ByteBuffer.get, etc)
-            // (also potentitally keep the last served file array around, in case re-use?)            
-
-            // old way (did not work with Samsung Player)
-            /*
-            byte[] serveFileBytes = new byte[iRangeSize];
-            ByteStreams.read(Files.newInputStreamSupplier(source).getInput(), serveFileBytes, iRangeStart, iRangeSize);
-            dest.write(serveFileBytes);
-            dest.flush();
-            */
-         } else if (rangePresent && !rangeValid) {
-            createTextResponse("range supplied is invalid", Status.RANGE_INVALID);
-         } else {
-            if (debug) {
-               LOG.debug("      transfer standard file in one shot, range not present (200)");
-            }
-
-            // HEADER         
-            StringBuilder sb = new StringBuilder();
-            sb.append("HTTP/1.1 200 OK\r\n");
-            sb.append("Server: AndroidHTTPServer\r\n");
-            sb.append("Accept-Ranges: bytes\r\n");
-            sb.append("Content-Type: " + getMimeType(source) + "\r\n");
-            sb.append("Content-Length: " + source.length() + "\r\n");
-            sb.append("Date: " + getDateString(new Date()) + "\r\n");
-            sb.append("ETag: " + getETag(source) + "\r\n");
-            sb.append("Connection: close\r\n");
-            sb.append("\r\n");
-
-            if (debug) {
-               LOG.debug("      *** RESPONSE:\n" + sb.toString());
-            }
-
-            byte[] headerBytes = sb.toString().getBytes();
-            OutputStream dest = socket.getOutputStream();
-            dest.write(headerBytes, 0, headerBytes.length);
-            dest.flush();
-
-            // BODY
-            FileInputStream fis = new FileInputStream(source);
-            byte[] data = new byte[4 * BUFFER_SIZE];
-            for (int read; (read = fis.read(data)) > -1;) {
-               dest.write(data, 0, read);
-            }
-            dest.flush();
-            dest.close();
-
-            try {
-               fis.close();
-            } catch (IOException e) {
-               LOG.error("Error closing fis", e);
-            }
+   /**
+    * Deliver TEXT requests to the callback asynchronously, queued (in order) and handed to the callback in batches 
+    * on one dispatch thread, so the ACK doesn't wait for the callback (default off, callback runs on the request thread).
+    * If the callback is a BatchTextRequestCallback it gets each batch as a list, otherwise onRequest per request.
+    * Changed while running, requests already queued are delivered first.
+    * BLOCK waits on the thread processing the request, a pool thread (BLOCKING engine) or a worker (NIO engine, the
+    * event loops hand requests to workers), never an NIO event loop, which gets COALESCE instead, so a full queue
+    * doesn't stall the other connections on that loop.
+    * 
+    * @param capacity requests that can be queued (rounded up to a power of 2, 0 turns async callbacks off)
+    * @param overflowPolicy what to do when the queue is full (DROP, BLOCK, never on an NIO event loop, or COALESCE)
+    */
+   public void setAsyncCallbacks(int capacity, OverflowPolicy overflowPolicy) {
+      if (capacity < 0 || (capacity > 0 && overflowPolicy == null)) {
+         throw new IllegalArgumentException("async callback settings invalid");
+      }
+      CallbackDispatcher previous = processor.getCallbackDispatcher();
+      processor.setCallbackDispatcher(null);
+      if (previous != null) {
+         previous.stop();
+      }
+      TextRequestCallback callback = processor.getCallback();
+      if (capacity > 0 && callback != null) {
+         CallbackDispatcher dispatcher = new CallbackDispatcher(callback, capacity, overflowPolicy);
+         if (serverEngine != null) {
+            dispatcher.start();
          }
+         processor.setCallbackDispatcher(dispatcher);
       }
+   }
 
-      //
-      // priv helpers
-      //
+   // TEXT requests not delivered to the callback since created (async callbacks, DROP, or queue full when stopping)
+   public long getDroppedCallbacks() {
+      CallbackDispatcher dispatcher = processor.getCallbackDispatcher();
+      return dispatcher != null ? dispatcher.getDropped() : 0;
+   }
 
-      private String getMimeType(File file) {
-         String mimeType = URLConnection.guessContentTypeFromName(file.getName());
-         // change borked "m4v" file extension to mp4 mime - what's up with this?
-         if (mimeType != null && mimeType.endsWith("m4v")) {
-            mimeType = "video/mp4";
+   /**
+    * Write an access log, a line per response (Common Log Format, plus microseconds taken), to file, rotated 
+    * (file.1, file.2, ...) at maxFileBytes. Requests only fill a preallocated record, a background thread writes them 
+    * in batches, records that don't fit (writer behind) are dropped and counted. Default off.
+    * 
+    * @param file log file, appended to (null turns the access log off)
+    * @param maxFileBytes size at which the file is rotated
+    * @param maxFiles old (rotated) files kept
+    */
+   public void setAccessLog(File file, long maxFileBytes, int maxFiles) {
+      if (file != null && (maxFileBytes < 1 || maxFiles < 0)) {
+         throw new IllegalArgumentException("access log settings invalid");
+      }
+      AccessLog previous = processor.getAccessLog();
+      processor.setAccessLog(null);
+      if (previous != null) {
+         previous.stop();
+      }
+      if (file != null) {
+         AccessLog log = new AccessLog(file, AccessLog.DEFAULT_CAPACITY, maxFileBytes, maxFiles);
+         if (serverEngine != null) {
+            log.start();
          }
-         return mimeType;
+         processor.setAccessLog(log);
       }
+   }
 
-      private String getDateString(Date date) {
-         synchronized (INET_DFMT) {
-            return INET_DFMT.format(date);
-         }
+   // access log records dropped since set (requests came faster than the log could be written)
+   public long getDroppedAccessLogRecords() {
+      AccessLog log = processor.getAccessLog();
+      return log != null ? log.getDropped() : 0;
+   }
+
+   /**
+    * Serve directory listings (default off) for directories under roots, a request ending in / gets a JSON listing
+    * of the directory's SupportedFileType files and subdirectories (name, size, mtime, ETag), or HTML with 
+    * ?format=html, a page at a time (?offset=0&limit=100, limit at most 1000). Listings are kept in memory, 
+    * built on first request and updated from file system events (WatchService, when the VM has one, otherwise 
+    * rescanned when the directory's mtime changes, and entries checked again, at most once a second), and support 
+    * conditional GET (ETag, Last-Modified). 
+    * Directories outside the roots still just get server info.
+    * 
+    * @param roots directories (and everything under them) that may be listed (none, or null, turns listings off)
+    */
+   public void setDirectoryIndex(File... roots) {
+      DirectoryIndex previous = processor.getDirectoryIndex();
+      processor.setDirectoryIndex(roots != null && roots.length > 0 ? new DirectoryIndex(roots,
+               DirectoryIndex.DEFAULT_MAX_LISTINGS, true) : null);
+      if (previous != null) {
+         previous.close();
+      }
+   }
+
+   /**
+    * Snapshot of server metrics (connections, requests by kind and status, bytes served, latency percentiles,
+    * cache hit rates), counted since the server was created.
+    * 
+    * @return Metrics
+    */
+   public Metrics getMetrics() {
+      return processor.snapshotMetrics();
+   }
+
+   // null if read ahead is off
+   ReadAhead getReadAhead() {
+      return processor.getReadAhead();
+   }
+
+   /**
+    * Serve metrics on a reserved path, JSON, or Prometheus text with ?format=prometheus (default off).
+    * The path is checked before anything else, so it hides any file or text request of the same name.
+    * 
+    * @param path for example "/metrics" (null turns the endpoint off)
+    */
+   public void setMetricsPath(String path) {
+      if (path != null && (path.length() == 0 || path.equals("/"))) {
+         throw new IllegalArgumentException("metrics path invalid");
+      }
+      processor.setMetricsPath(path == null ? null : path.startsWith("/") ? path.substring(1) : path);
+   }
+
+   /**
+    * Select the I/O engine, takes effect on next start (default is BLOCKING).
+    * 
+    * @param engine
+    */
+   public void setEngine(Engine engine) {
+      if (engine == null) {
+         throw new IllegalArgumentException("engine must not be null");
+      }
+      this.engine = engine;
+   }
+
+   public Engine getEngine() {
+      return engine;
+   }
+
+   /**
+    * Select how the BLOCKING engine runs connections, takes effect on next start (default is FIXED, numThreads threads).
+    * ELASTIC grows from numThreads up to 8 x numThreads while connections wait, VIRTUAL uses a virtual thread 
+    * per connection when the JVM has them (FIXED otherwise). The NIO engine processes requests this way 
+    * (a worker per request, I/O stays on its event loops).
+    * 
+    * @param execution
+    */
+   public void setExecution(Execution execution) {
+      if (execution == null) {
+         throw new IllegalArgumentException("execution must not be null");
+      }
+      this.execution = execution;
+   }
+
+   public Execution getExecution() {
+      return execution;
+   }
+
+   // params passed to start, so we can specify them in interface
+   public void start() {
+
+      if (serverEngine != null) {
+         serverEngine.stop();
+      }
+
+      if (engine == Engine.NIO) {
+         serverEngine = new NioEngine(processor, port, numThreads, execution);
+      } else {
+         serverEngine = new BlockingEngine(processor, port, numThreads, execution);
       }
 
-      private String getETag(File f) {
-         return Integer.toHexString((f.getAbsolutePath() + f.lastModified() + "" + f.length()).hashCode());
+      CallbackDispatcher dispatcher = processor.getCallbackDispatcher();
+      if (dispatcher != null) {
+         dispatcher.start();
       }
+      AccessLog accessLog = processor.getAccessLog();
+      if (accessLog != null) {
+         accessLog.start();
+      }
+
+      processor.setEngine(serverEngine);
+
+      try {
+         serverEngine.start();
+      } catch (IOException e) {
+         LOG.error("ERROR creating server socket:" + e.getMessage(), e);
+      }
+   }
+
+   public void stop() {
+      if (serverEngine != null) {
+         serverEngine.stop();
+         serverEngine = null;
+         processor.setEngine(null);
+      }
+      // after the engine, so requests already queued still reach the callback
+      CallbackDispatcher dispatcher = processor.getCallbackDispatcher();
+      if (dispatcher != null) {
+         dispatcher.stop();
+      }
+      AccessLog accessLog = processor.getAccessLog();
+      if (accessLog != null) {
+         accessLog.stop();
+      }
+      LOG.info("ANDROID HTTPD server stopped");
    }
 }
@@ -6,6 +6,12 @@ import android.os.Binder;
 import android.os.IBinder;
 import android.util.Log;
 
+import com.totsp.server.enums.Engine;
+import com.totsp.server.enums.Execution;
+import com.totsp.server.enums.OverflowPolicy;
+
+import java.io.File;
+
 
 /**
  * Android components instantiate and control the HTTP server via binding to this service.
@@ -98,12 +104,34 @@ public class HTTPServerService extends Service {
    //
 
    public void startServer(final String userAgent, final int port, final int numThreads, final TextRequestCallback callback) {
+      startServer(userAgent, port, numThreads, callback, Engine.BLOCKING);
+   }
+
+   public void startServer(final String userAgent, final int port, final int numThreads,
+            final TextRequestCallback callback, final Engine engine) {
+      startServer(userAgent, port, numThreads, callback, engine, Execution.FIXED);
+   }
+
+   public void startServer(final String userAgent, final int port, final int numThreads,
+            final TextRequestCallback callback, final Engine engine, final Execution execution) {
+      startServer(userAgent, port, numThreads, callback, engine, execution, null, null);
+   }
+
+   // HTTPS from the first connection, nothing is ever served in plaintext on the port (keyStore null, plain HTTP)
+   public void startServer(final String userAgent, final int port, final int numThreads,
+            final TextRequestCallback callback, final Engine engine, final Execution execution, final File keyStore,
+            final String password) {
 
       if (started) {
          throw new IllegalStateException("Error, server is already started");
       }
 
       server = new HTTPServer(userAgent, port, numThreads, callback);
+      server.setEngine(engine);
+      server.setExecution(execution);
+      if (keyStore != null) {
+         server.setTls(keyStore, password);
+      }
       server.start();
       started = true;
    }
@@ -126,4 +154,157 @@ public class HTTPServerService extends Service {
          server.setDebug(debug);
       }
    }
+
+   public void setKeepAlive(int idleTimeoutMillis, int maxRequests) {
+      if (started) {
+         server.setKeepAlive(idleTimeoutMillis, maxRequests);
+      }
+   }
+
+   public void setMaxPipelinedRequests(int maxPipelinedRequests) {
+      if (started) {
+         server.setMaxPipelinedRequests(maxPipelinedRequests);
+      }
+   }
+
+   public void setHeaderTimeout(int timeoutMillis) {
+      if (started) {
+         server.setHeaderTimeout(timeoutMillis);
+      }
+   }
+
+   public void setHttp2(int maxConcurrentStreams) {
+      if (started) {
+         server.setHttp2(maxConcurrentStreams);
+      }
+   }
+
+   // switches a running server over for new connections, start it with a keyStore to never accept plaintext
+   public void setTls(File keyStore, String password) {
+      if (started) {
+         server.setTls(keyStore, password);
+      }
+   }
+
+   public void setTlsSessions(int cacheSize, int timeoutSeconds) {
+      if (started) {
+         server.setTlsSessions(cacheSize, timeoutSeconds);
+      }
+   }
+
+   public void setTlsRecordSizing(int smallRecordBytes) {
+      if (started) {
+         server.setTlsRecordSizing(smallRecordBytes);
+      }
+   }
+
+   public void setBuffers(int ioBufferSize, int maxHeaderSize, long maxPooledBytes) {
+      if (started) {
+         server.setBuffers(ioBufferSize, maxHeaderSize, maxPooledBytes);
+      }
+   }
+
+   public void setBufferLeakDetection(boolean enabled) {
+      if (started) {
+         server.setBufferLeakDetection(enabled);
+      }
+   }
+
+   public void setFileInfoCache(int maxEntries, int ttlMillis) {
+      if (started) {
+         server.setFileInfoCache(maxEntries, ttlMillis);
+      }
+   }
+
+   public void setContentCache(long maxBytes, long maxFileBytes) {
+      if (started) {
+         server.setContentCache(maxBytes, maxFileBytes);
+      }
+   }
+
+   public void setCompression(boolean enabled) {
+      if (started) {
+         server.setCompression(enabled);
+      }
+   }
+
+   public void setCompressionCache(long maxBytes, long maxFileBytes) {
+      if (started) {
+         server.setCompressionCache(maxBytes, maxFileBytes);
+      }
+   }
+
+   public void setReadAhead(long maxBytes, int maxWindowBytes) {
+      if (started) {
+         server.setReadAhead(maxBytes, maxWindowBytes);
+      }
+   }
+
+   public void setSharedReads(long maxBytes) {
+      if (started) {
+         server.setSharedReads(maxBytes);
+      }
+   }
+
+   public void setAdmissionLimits(int maxConnections, int maxQueuedConnections, int maxFileStreams) {
+      if (started) {
+         server.setAdmissionLimits(maxConnections, maxQueuedConnections, maxFileStreams);
+      }
+   }
+
+   public void setRetryAfter(int seconds) {
+      if (started) {
+         server.setRetryAfter(seconds);
+      }
+   }
+
+   // 0 if server is not started
+   public long getRejectedConnections() {
+      return started ? server.getRejectedConnections() : 0;
+   }
+
+   // 0 if server is not started
+   public long getRejectedFileStreams() {
+      return started ? server.getRejectedFileStreams() : 0;
+   }
+
+   public void setBandwidthLimits(long maxBytesPerSecond, long maxConnectionBytesPerSecond, int rangeWeight) {
+      if (started) {
+         server.setBandwidthLimits(maxBytesPerSecond, maxConnectionBytesPerSecond, rangeWeight);
+      }
+   }
+
+   public void setAsyncCallbacks(int capacity, OverflowPolicy overflowPolicy) {
+      if (started) {
+         server.setAsyncCallbacks(capacity, overflowPolicy);
+      }
+   }
+
+   // 0 if server is not started
+   public long getDroppedCallbacks() {
+      return started ? server.getDroppedCallbacks() : 0;
+   }
+
+   public void setAccessLog(File file, long maxFileBytes, int maxFiles) {
+      if (started) {
+         server.setAccessLog(file, maxFileBytes, maxFiles);
+      }
+   }
+
+   public void setDirectoryIndex(File... roots) {
+      if (started) {
+         server.setDirectoryIndex(roots);
+      }
+   }
+
+   public void setMetricsPath(String path) {
+      if (started) {
+         server.setMetricsPath(path);
+      }
+   }
+
+   // null if server is not started
+   public Metrics getMetrics() {
+      return started ? server.getMetrics() : null;
+   }
 }
@@ -0,0 +1,237 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import java.nio.ByteBuffer;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Writes response headers as bytes, from pre-encoded fragments (status lines, header names, fixed lines),
+ * no StringBuilder, no charset encoding, no date formatting per response (Date line is cached, refreshed once a second).
+ *
+ * One writer per thread (see get), reused for every response on that thread. Headers are written into a buffer from the
+ * pool, that the response takes as its head (toHead, no copy), and gives back once written (Response.done).
+ *
+ */
+final class HeaderWriter {
+
+   static final byte[] CRLF = ascii("\r\n");
+   static final byte[] ACCEPT_RANGES = ascii("Accept-Ranges: bytes\r\n");
+   static final byte[] CONNECTION_KEEP_ALIVE = ascii("Connection: keep-alive\r\n");
+   static final byte[] CONNECTION_CLOSE = ascii("Connection: close\r\n");
+   static final byte[] TEXT_PLAIN = ascii("Content-Type: text/plain; charset=utf-8\r\n");
+   static final byte[] TRANSFER_ENCODING_CHUNKED = ascii("Transfer-Encoding: chunked\r\n");
+   static final byte[] VARY_ACCEPT_ENCODING = ascii("Vary: Accept-Encoding\r\n");
+   static final byte[] CACHE_CONTROL_NO_CACHE = ascii("Cache-Control: no-cache\r\n");
+
+   static final byte[] CONTENT_TYPE = ascii("Content-Type: ");
+   static final byte[] CONTENT_LENGTH = ascii("Content-Length: ");
+   static final byte[] CONTENT_ENCODING = ascii("Content-Encoding: ");
+   static final byte[] CONTENT_RANGE = ascii("Content-Range: bytes ");
+   static final byte[] ETAG = ascii("ETag: ");
+   static final byte[] LAST_MODIFIED = ascii("Last-Modified: ");
+   static final byte[] KEEP_ALIVE = ascii("Keep-Alive: timeout=");
+
+   private static final Map<Status, byte[]> STATUS_LINES = new EnumMap<Status, byte[]>(Status.class);
+   static {
+      for (Status status : Status.values()) {
+         STATUS_LINES.put(status, ascii("HTTP/1.1 " + status.getDesc() + "\r\n"));
+      }
+   }
+
+   private static final ThreadLocal<HeaderWriter> WRITERS = new ThreadLocal<HeaderWriter>() {
+      @Override
+      protected HeaderWriter initialValue() {
+         return new HeaderWriter();
+      }
+   };
+
+   private static volatile CachedDate cachedDate = new CachedDate(System.currentTimeMillis());
+
+   private BufferPool pool; // null, buffers are allocated (and left to GC)
+   private ByteBuffer buffer; // null once handed over (toHead), until the next get
+   private byte[] buf;
+   private int count;
+
+   private HeaderWriter() {
+   }
+
+   /**
+    * This thread's writer, empty, ready for a new header block, buffers are allocated.
+    *
+    */
+   static HeaderWriter get() {
+      return get(null);
+   }
+
+   /**
+    * This thread's writer, empty, ready for a new header block, written into a buffer from pool.
+    *
+    */
+   static HeaderWriter get(BufferPool pool) {
+      HeaderWriter writer = WRITERS.get();
+      if (writer.buffer != null && writer.pool != pool) {
+         writer.release();
+      }
+      writer.pool = pool;
+      if (writer.buffer == null) {
+         writer.buffer = writer.acquire(BufferPool.MIN_SIZE);
+         writer.buf = writer.buffer.array();
+      }
+      writer.count = 0;
+      return writer;
+   }
+
+   /**
+    * Bytes of a header line (or any fixed ASCII), for callers that keep their own pre-encoded lines.
+    *
+    */
+   static byte[] ascii(String s) {
+      byte[] b = new byte[s.length()];
+      for (int i = 0; i < b.length; i++) {
+         b[i] = (byte) s.charAt(i);
+      }
+      return b;
+   }
+
+   HeaderWriter status(Status status) {
+      return append(STATUS_LINES.get(status));
+   }
+
+   // "Date: ..." line for the current second
+   HeaderWriter date() {
+      long now = System.currentTimeMillis();
+      CachedDate date = cachedDate;
+      if (now - date.second >= 1000 || now < date.second) {
+         // racing threads may each format it, same result, last one wins
+         date = new CachedDate(now);
+         cachedDate = date;
+      }
+      return append(date.line);
+   }
+
+   HeaderWriter header(byte[] name, String value) {
+      return append(name).append(value).append(CRLF);
+   }
+
+   HeaderWriter header(byte[] name, long value) {
+      return append(name).append(value).append(CRLF);
+   }
+
+   HeaderWriter append(byte[] b) {
+      ensure(b.length);
+      System.arraycopy(b, 0, buf, count, b.length);
+      count += b.length;
+      return this;
+   }
+
+   // header values are ASCII (anything else is truncated to a byte, ISO-8859-1, as HTTP allows)
+   HeaderWriter append(String s) {
+      int length = s.length();
+      ensure(length);
+      for (int i = 0; i < length; i++) {
+         buf[count++] = (byte) s.charAt(i);
+      }
+      return this;
+   }
+
+   HeaderWriter append(long n) {
+      if (n < 0) {
+         ensure(1);
+         buf[count++] = '-';
+         n = -n;
+      }
+      int digits = 1;
+      for (long p = n; p >= 10; p /= 10) {
+         digits++;
+      }
+      ensure(digits);
+      for (int i = count + digits - 1; i >= count; i--) {
+         buf[i] = (byte) ('0' + n % 10);
+         n /= 10;
+      }
+      count += digits;
+      return this;
+   }
+
+   int length() {
+      return count;
+   }
+
+   /**
+    * Hand the header block over, no copy, the buffer (heap, position 0, limit at the end) now belongs to the caller,
+    * who gives it back to pool (Response does, in done). This writer takes another one on its next get.
+    *
+    */
+   ByteBuffer toHead() {
+      ByteBuffer head = buffer;
+      head.clear();
+      head.limit(count);
+      buffer = null;
+      buf = null;
+      count = 0;
+      return head;
+   }
+
+   // pool toHead's buffer goes back to (null, not pooled)
+   BufferPool pool() {
+      return pool;
+   }
+
+   // copy, for a header block that isn't a response head (multipart part headers, in the body)
+   byte[] toByteArray() {
+      byte[] b = new byte[count];
+      System.arraycopy(buf, 0, b, 0, count);
+      return b;
+   }
+
+   // for debug logging
+   @Override
+   public String toString() {
+      char[] c = new char[count];
+      for (int i = 0; i < count; i++) {
+         c[i] = (char) (buf[i] & 0xff);
+      }
+      return new String(c);
+   }
+
+   //
+   // priv helpers
+   //
+
+   private void ensure(int more) {
+      if (count + more > buf.length) {
+         ByteBuffer bigger = acquire(Math.max(buf.length * 2, count + more));
+         System.arraycopy(buf, 0, bigger.array(), 0, count);
+         int written = count;
+         release();
+         buffer = bigger;
+         buf = bigger.array();
+         count = written;
+      }
+   }
+
+   private ByteBuffer acquire(int size) {
+      return pool != null ? pool.acquire(size, false) : ByteBuffer.allocate(size);
+   }
+
+   private void release() {
+      if (pool != null) {
+         pool.release(buffer);
+      }
+      buffer = null;
+      buf = null;
+   }
+
+   private static final class CachedDate {
+
+      final long second;
+      final byte[] line;
+
+      CachedDate(long now) {
+         this.second = now - now % 1000;
+         this.line = ascii("Date: " + RequestProcessor.getDateString(second) + "\r\n");
+      }
+   }
+}
@@ -0,0 +1,440 @@
+package com.totsp.server;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HPACK (RFC 7541), header compression for HTTP/2, see Http2Connection.
+ *
+ * Decoder keeps the dynamic table the client's encoder fills, and decodes Huffman coded strings (browsers, curl,
+ * nghttp2 code almost everything). Encoder never adds to the dynamic table, headers are literals (names indexed from
+ * the static table when it has them, :status fully indexed for the common codes), so it keeps no state, and any
+ * header block can go out on any stream in any order. Response headers are few and mostly differ per response anyway.
+ *
+ */
+final class Hpack {
+
+   static final int DEFAULT_TABLE_SIZE = 4096;
+
+   private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   private static final int ENTRY_OVERHEAD = 32;
+
+   // index 1 to 61, RFC 7541 Appendix A
+   private static final String[][] STATIC_TABLE = {
+      { ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" }, { ":path", "/index.html" },
+      { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" }, { ":status", "204" }, { ":status", "206" },
+      { ":status", "304" }, { ":status", "400" }, { ":status", "404" }, { ":status", "500" },
+      { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" }, { "accept-language", "" },
+      { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" }, { "age", "" },
+      { "allow", "" }, { "authorization", "" }, { "cache-control", "" }, { "content-disposition", "" },
+      { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" }, { "content-location", "" },
+      { "content-range", "" }, { "content-type", "" }, { "cookie", "" }, { "date", "" }, { "etag", "" },
+      { "expect", "" }, { "expires", "" }, { "from", "" }, { "host", "" }, { "if-match", "" },
+      { "if-modified-since", "" }, { "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" },
+      { "last-modified", "" }, { "link", "" }, { "location", "" }, { "max-forwards", "" },
+      { "proxy-authenticate", "" }, { "proxy-authorization", "" }, { "range", "" }, { "referer", "" },
+      { "refresh", "" }, { "retry-after", "" }, { "server", "" }, { "set-cookie", "" },
+      { "strict-transport-security", "" }, { "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" },
+      { "via", "" }, { "www-authenticate", "" } };
+
+   // code (right aligned) and length in bits of each symbol, 256 is EOS, RFC 7541 Appendix B
+   private static final int[] HUFFMAN_CODES = {
+      0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+      0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+      0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+      0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+      0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+      0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+      0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+      0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+      0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+      0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+      0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+      0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+      0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+      0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+      0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+      0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+      0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+      0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+      0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+      0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+      0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+      0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+      0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+      0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+      0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+      0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+      0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+      0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+      0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+      0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+      0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+      0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+      0x3fffffff };
+   private static final byte[] HUFFMAN_LENGTHS = {
+      13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28,
+      28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+      6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6,
+      5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+      13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7,
+      7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+      15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5,
+      6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+      20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23,
+      24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+      22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23,
+      21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+      26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25,
+      19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+      20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23,
+      26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+      30 };
+
+   // decode tree, node n has children at 2n (bit 0) and 2n + 1 (bit 1), a child is a node index,
+   // or -(symbol + 1) for a leaf (0 is "no child", the root is never a child)
+   private static final int[] HUFFMAN_TREE = new int[2 * 2 * HUFFMAN_CODES.length];
+   static {
+      int nodes = 1;
+      for (int symbol = 0; symbol < HUFFMAN_CODES.length; symbol++) {
+         int node = 0;
+         for (int bit = HUFFMAN_LENGTHS[symbol] - 1; bit > 0; bit--) {
+            int slot = 2 * node + ((HUFFMAN_CODES[symbol] >>> bit) & 1);
+            if (HUFFMAN_TREE[slot] == 0) {
+               HUFFMAN_TREE[slot] = nodes++;
+            }
+            node = HUFFMAN_TREE[slot];
+         }
+         HUFFMAN_TREE[2 * node + (HUFFMAN_CODES[symbol] & 1)] = -(symbol + 1);
+      }
+   }
+
+   // first static index of each name, for literals with an indexed name
+   private static final Map<String, Integer> STATIC_NAMES = new HashMap<String, Integer>();
+   static {
+      for (int i = STATIC_TABLE.length - 1; i >= 0; i--) {
+         STATIC_NAMES.put(STATIC_TABLE[i][0], i + 1);
+      }
+   }
+
+   private Hpack() {
+   }
+
+   /**
+    * Decodes header blocks of one connection (in the order received, the dynamic table carries over).
+    *
+    */
+   static final class Decoder {
+
+      private final int maxTableSize; // what we allow (SETTINGS_HEADER_TABLE_SIZE, default)
+      private int tableSize; // current max, as last set by the client (at most maxTableSize)
+      private int size; // of entries in the table
+
+      // dynamic table, ring, newest entry at head (index 62), oldest at head + count - 1
+      private String[] names = new String[16];
+      private String[] values = new String[16];
+      private int[] sizes = new int[16];
+      private int head;
+      private int count;
+
+      Decoder() {
+         this(DEFAULT_TABLE_SIZE);
+      }
+
+      Decoder(final int maxTableSize) {
+         this.maxTableSize = maxTableSize;
+         this.tableSize = maxTableSize;
+      }
+
+      /**
+       * Decode block, adds name and value of each header to headers, in order (names lower case as sent, values UTF-8).
+       *
+       */
+      void decode(byte[] b, int start, int end, List<String> headers) throws IOException {
+         int[] pos = { start };
+         boolean first = true;
+         while (pos[0] < end) {
+            int op = b[pos[0]] & 0xff;
+            if ((op & 0x80) != 0) {
+               // indexed
+               int index = readInt(b, pos, end, 7);
+               headers.add(name(index));
+               headers.add(value(index));
+            } else if ((op & 0xe0) == 0x20) {
+               // table size update, only at the start of a block
+               int max = readInt(b, pos, end, 5);
+               if (!first || max > maxTableSize) {
+                  throw new IOException("hpack invalid table size update " + max);
+               }
+               tableSize = max;
+               evict(max);
+               continue;
+            } else {
+               // literal, with incremental indexing (01), without (0000), never indexed (0001)
+               boolean indexing = (op & 0xc0) == 0x40;
+               int index = readInt(b, pos, end, indexing ? 6 : 4);
+               String name = index == 0 ? readString(b, pos, end, ISO_8859_1) : name(index);
+               // octets as sent, a char each, so the table is sized as the client's encoder sizes it
+               String octets = readString(b, pos, end, ISO_8859_1);
+               String value = utf8(octets);
+               headers.add(name);
+               headers.add(value);
+               if (indexing) {
+                  add(name, value, name.length() + octets.length() + ENTRY_OVERHEAD);
+               }
+            }
+            first = false;
+         }
+      }
+
+      // priv helpers
+
+      private String name(int index) throws IOException {
+         return index <= STATIC_TABLE.length ? STATIC_TABLE[entry(index)][0] : names[dynamic(index)];
+      }
+
+      private String value(int index) throws IOException {
+         return index <= STATIC_TABLE.length ? STATIC_TABLE[entry(index)][1] : values[dynamic(index)];
+      }
+
+      private int entry(int index) throws IOException {
+         if (index < 1) {
+            throw new IOException("hpack invalid index " + index);
+         }
+         return index - 1;
+      }
+
+      private int dynamic(int index) throws IOException {
+         int i = index - STATIC_TABLE.length - 1;
+         if (i >= count) {
+            throw new IOException("hpack invalid index " + index);
+         }
+         return (head + i) % names.length;
+      }
+
+      // entrySize in octets as sent (a value that isn't valid UTF-8 decodes to more, or fewer)
+      private void add(String name, String value, int entrySize) {
+         if (entrySize > tableSize) {
+            // too big for the table, empties it
+            evict(tableSize);
+            return;
+         }
+         evict(tableSize - entrySize);
+         if (count == names.length) {
+            grow();
+         }
+         head = (head - 1 + names.length) % names.length;
+         names[head] = name;
+         values[head] = value;
+         sizes[head] = entrySize;
+         count++;
+         size += entrySize;
+      }
+
+      // drop oldest entries until size is at most max
+      private void evict(int max) {
+         max = Math.min(max, tableSize);
+         while (size > max && count > 0) {
+            int oldest = (head + count - 1) % names.length;
+            size -= sizes[oldest];
+            names[oldest] = null;
+            values[oldest] = null;
+            count--;
+         }
+      }
+
+      private void grow() {
+         String[] n = new String[names.length * 2];
+         String[] v = new String[names.length * 2];
+         int[] s = new int[names.length * 2];
+         for (int i = 0; i < count; i++) {
+            int from = (head + i) % names.length;
+            n[i] = names[from];
+            v[i] = values[from];
+            s[i] = sizes[from];
+         }
+         names = n;
+         values = v;
+         sizes = s;
+         head = 0;
+      }
+   }
+
+   /**
+    * Encodes response header blocks (no dynamic table, see class comment), reused, one block at a time.
+    *
+    */
+   static final class Encoder {
+
+      private byte[] buf = new byte[256];
+      private int count;
+
+      Encoder reset() {
+         count = 0;
+         return this;
+      }
+
+      // ":status" pseudo header, 3 digit code
+      Encoder status(String code) {
+         for (int i = 7; i < 14; i++) {
+            if (STATIC_TABLE[i][1].equals(code)) {
+               writeInt(0x80, 7, i + 1);
+               return this;
+            }
+         }
+         writeInt(0x00, 4, 8);
+         writeString(code);
+         return this;
+      }
+
+      // name must be lower case, literal without indexing
+      Encoder header(String name, String value) {
+         Integer index = STATIC_NAMES.get(name);
+         if (index != null) {
+            writeInt(0x00, 4, index);
+         } else {
+            writeInt(0x00, 4, 0);
+            writeString(name);
+         }
+         writeString(value);
+         return this;
+      }
+
+      byte[] array() {
+         return buf;
+      }
+
+      int length() {
+         return count;
+      }
+
+      // priv helpers
+
+      // plain octets (no Huffman), header values are ASCII (ISO-8859-1, as HTTP/1.1 heads are written)
+      private void writeString(String s) {
+         writeInt(0x00, 7, s.length());
+         ensure(s.length());
+         for (int i = 0; i < s.length(); i++) {
+            buf[count++] = (byte) s.charAt(i);
+         }
+      }
+
+      private void writeInt(int flags, int prefixBits, int value) {
+         ensure(6);
+         int max = (1 << prefixBits) - 1;
+         if (value < max) {
+            buf[count++] = (byte) (flags | value);
+            return;
+         }
+         buf[count++] = (byte) (flags | max);
+         value -= max;
+         while (value >= 0x80) {
+            buf[count++] = (byte) ((value & 0x7f) | 0x80);
+            value >>>= 7;
+         }
+         buf[count++] = (byte) value;
+      }
+
+      private void ensure(int more) {
+         if (count + more > buf.length) {
+            byte[] bigger = new byte[Math.max(buf.length * 2, count + more)];
+            System.arraycopy(buf, 0, bigger, 0, count);
+            buf = bigger;
+         }
+      }
+   }
+
+   //
+   // priv helpers
+   //
+
+   // prefixed integer at pos[0] (advanced past it)
+   static int readInt(byte[] b, int[] pos, int end, int prefixBits) throws IOException {
+      int max = (1 << prefixBits) - 1;
+      int value = b[pos[0]++] & max;
+      if (value < max) {
+         return value;
+      }
+      for (int shift = 0; shift <= 21; shift += 7) {
+         if (pos[0] >= end) {
+            break;
+         }
+         int next = b[pos[0]++] & 0xff;
+         value += (next & 0x7f) << shift;
+         if ((next & 0x80) == 0) {
+            return value;
+         }
+      }
+      throw new IOException("hpack invalid integer");
+   }
+
+   // string literal at pos[0] (advanced past it), plain or Huffman coded
+   static String readString(byte[] b, int[] pos, int end, Charset charset) throws IOException {
+      if (pos[0] >= end) {
+         throw new IOException("hpack truncated string");
+      }
+      boolean huffman = (b[pos[0]] & 0x80) != 0;
+      int length = readInt(b, pos, end, 7);
+      if (length > end - pos[0]) {
+         throw new IOException("hpack truncated string");
+      }
+      int start = pos[0];
+      pos[0] += length;
+      if (!huffman) {
+         return new String(b, start, length, charset);
+      }
+      return new String(huffmanDecode(b, start, start + length), charset);
+   }
+
+   // octets (ISO-8859-1, a char each) decoded as UTF-8, the same String if all ASCII
+   static String utf8(String octets) {
+      for (int i = 0; i < octets.length(); i++) {
+         if (octets.charAt(i) >= 0x80) {
+            return new String(octets.getBytes(ISO_8859_1), UTF_8);
+         }
+      }
+      return octets;
+   }
+
+   static byte[] huffmanDecode(byte[] b, int start, int end) throws IOException {
+      // decoded is at most 8/5 of coded (shortest code is 5 bits)
+      byte[] out = new byte[(end - start) * 8 / 5 + 1];
+      int n = 0;
+      int node = 0;
+      int depth = 0; // bits since last symbol
+      boolean ones = true; // those bits were all 1 (padding is the start of EOS)
+      for (int i = start; i < end; i++) {
+         for (int bit = 7; bit >= 0; bit--) {
+            int one = (b[i] >>> bit) & 1;
+            int child = HUFFMAN_TREE[2 * node + one];
+            depth++;
+            ones &= one == 1;
+            if (child < 0) {
+               int symbol = -child - 1;
+               if (symbol == 256) {
+                  throw new IOException("hpack EOS in string");
+               }
+               out[n++] = (byte) symbol;
+               node = 0;
+               depth = 0;
+               ones = true;
+            } else if (child == 0) {
+               throw new IOException("hpack invalid Huffman code");
+            } else {
+               node = child;
+            }
+         }
+      }
+      if (depth > 7 || !ones) {
+         throw new IOException("hpack invalid Huffman padding");
+      }
+      byte[] decoded = new byte[n];
+      System.arraycopy(out, 0, decoded, 0, n);
+      return decoded;
+   }
+}
@@ -0,0 +1,1187 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Cleartext HTTP/2 (h2c, RFC 7540) on a BLOCKING engine connection, for clients that load many small files at once
+ * (a grid of thumbnails) over one connection, none of them stuck behind a big one. RequestHandler hands the
+ * connection over on the client's connection preface (prior knowledge), or on an HTTP/1.1 request with
+ * "Upgrade: h2c" (answered 101, and then as stream 1).
+ *
+ * Each request (HEADERS, HPACK) is processed by the RequestProcessor like any other (same routing, file and text
+ * rules, admission, metrics, access log), its response headers go out right away, and its body is sent in DATA frames
+ * taking turns with every other stream that has something to send, room in its flow control window (and the
+ * connection's), and its bandwidth share. File regions go from the file channel straight to the socket (or from a
+ * shared block), in memory bodies from their buffer.
+ *
+ * The connection's own pool thread only reads frames (requests, WINDOW_UPDATE, RST_STREAM, SETTINGS, PING) as they
+ * arrive, so a slow stream never holds up the others' flow control. Each request is processed on one of the engine's
+ * HTTP/2 workers (per Execution), and one sender at a time, also a worker task, sends while any stream can,
+ * and ends when they all wait on the client. Priorities are ignored (round robin), no server push, request bodies
+ * are discarded. Streamed compression (chunked) isn't used, precompressed variants still are.
+ *
+ */
+final class Http2Connection {
+
+   private static final Logger LOG = LoggerFactory.getLogger(Http2Connection.class);
+
+   static final int DEFAULT_WINDOW = 65535;
+   static final int DEFAULT_MAX_FRAME = 16384;
+
+   private static final byte[] PREFACE = HeaderWriter.ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n");
+   private static final int PREFACE_REST = 6; // "SM\r\n\r\n", after what RequestBuffer read as a request
+   private static final byte[] SWITCHING_PROTOCOLS = HeaderWriter
+            .ascii("HTTP/1.1 101 Switching Protocols\r\nConnection: Upgrade\r\nUpgrade: h2c\r\n\r\n");
+
+   private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+   private static final int FRAME_HEADER = 9;
+   private static final int MAX_SEND_FRAME = 1024 * 1024; // largest DATA frame we send, whatever the client allows
+   private static final int IDLE_POLL_MILLIS = 250;
+   private static final int FRAME_TIMEOUT_MILLIS = 30000; // rest of a frame once it started
+
+   // frame types
+   private static final int DATA = 0x0;
+   private static final int HEADERS = 0x1;
+   private static final int PRIORITY = 0x2;
+   private static final int RST_STREAM = 0x3;
+   private static final int SETTINGS = 0x4;
+   private static final int PUSH_PROMISE = 0x5;
+   private static final int PING = 0x6;
+   private static final int GOAWAY = 0x7;
+   private static final int WINDOW_UPDATE = 0x8;
+   private static final int CONTINUATION = 0x9;
+
+   // flags
+   private static final int END_STREAM = 0x1;
+   private static final int ACK = 0x1;
+   private static final int END_HEADERS = 0x4;
+   private static final int PADDED = 0x8;
+   private static final int PRIORITY_FLAG = 0x20;
+
+   // settings
+   private static final int SETTINGS_ENABLE_PUSH = 0x2;
+   private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+   private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+   private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+   private static final int SETTINGS_MAX_HEADER_LIST_SIZE = 0x6;
+
+   // error codes
+   private static final int NO_ERROR = 0x0;
+   private static final int PROTOCOL_ERROR = 0x1;
+   private static final int INTERNAL_ERROR = 0x2;
+   private static final int FLOW_CONTROL_ERROR = 0x3;
+   private static final int FRAME_SIZE_ERROR = 0x6;
+   private static final int REFUSED_STREAM = 0x7;
+   private static final int COMPRESSION_ERROR = 0x9;
+   private static final int ENHANCE_YOUR_CALM = 0xb;
+
+   private final RequestProcessor processor;
+   private final Socket socket;
+   private final InputStream in;
+   private final OutputStream out; // guarded by itself, a frame (or a whole header block) at a time
+   private final WritableByteChannel target; // file regions and direct buffers go straight here (out flushed first)
+   private final BlockingEngine engine;
+   private final int maxStreams;
+   private final BandwidthShaper.Connection shaping; // per connection limit, all streams together
+
+   // writing, guarded by out
+   private final byte[] frameHeader = new byte[FRAME_HEADER];
+   private final Hpack.Encoder encoder = new Hpack.Encoder();
+
+   // reading, this (pool) thread only
+   private final Hpack.Decoder decoder = new Hpack.Decoder();
+   private final List<String> headerList = new ArrayList<String>();
+   private final byte[] header = new byte[FRAME_HEADER];
+   private byte[] payload;
+   private byte[] buffered; // read before the switch, ahead of the socket
+   private int bufferedPos;
+   private byte[] block = new byte[1024]; // header block being put together (HEADERS, CONTINUATION)
+   private int blockLength;
+   private int blockStream; // 0 unless a block is waiting for CONTINUATION
+   private long lastFrameAt = System.currentTimeMillis();
+
+   // all guarded by this
+   private final Map<Integer, Stream> streams = new HashMap<Integer, Stream>(); // responses not yet done, by id
+   private final List<Stream> sending = new ArrayList<Stream>(); // with body left to send, in turn order
+   private int turn; // index in sending of the next stream to send
+   private int lastStreamId; // highest stream the client opened
+   private long window = DEFAULT_WINDOW; // connection send window
+   private int initialWindow = DEFAULT_WINDOW; // client's SETTINGS_INITIAL_WINDOW_SIZE
+   private int maxFrame = DEFAULT_MAX_FRAME; // client's SETTINGS_MAX_FRAME_SIZE
+   private boolean failed; // connection error, stop sending
+   private boolean closed; // connection is done, anything still opened is given up
+   private long changes; // bumped whenever the sender may have something new to do
+   private int starting; // streams opened, being processed on workers (not yet in streams)
+   private boolean sendRunning; // a sender task is running (or about to)
+
+   private final Runnable sender = new Runnable() {
+      public void run() {
+         send();
+      }
+   };
+
+   Http2Connection(final RequestProcessor processor, final Socket socket, final InputStream in, final OutputStream out,
+            final BlockingEngine engine) {
+      this.processor = processor;
+      this.socket = socket;
+      this.in = in;
+      this.out = out;
+      this.target = socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+      this.engine = engine;
+      this.maxStreams = processor.getHttp2MaxStreams();
+      this.shaping = processor.getShaper().connection();
+   }
+
+   // client connection preface (prior knowledge), RequestBuffer reads its first part as a "PRI *" request
+   static boolean isPreface(Request request) {
+      return "PRI".equals(request.getMethod()) && "*".equals(request.getTarget()) && request.getVersion() == Request.HTTP_2;
+   }
+
+   // HTTP/1.1 request asking to switch to h2c (with settings, and no body)
+   static boolean isUpgrade(Request request) {
+      String upgrade = request.getHeader(Request.UPGRADE);
+      return upgrade != null && hasToken(upgrade, "h2c") && request.getHeader(Request.HTTP2_SETTINGS) != null
+               && request.getVersion() == Request.HTTP_1_1 && request.getContentLength() == 0
+               && request.getHeader(Request.TRANSFER_ENCODING) == null;
+   }
+
+   /**
+    * Run the connection until it's done, caller closes the socket after. leftover is what was read past the
+    * preface's request line (prior knowledge), or past the upgrade request (upgrade not null, answered as stream 1).
+    *
+    */
+   void serve(byte[] leftover, Request upgrade) throws IOException {
+      buffered = leftover;
+      try {
+         if (upgrade != null) {
+            byte[] settings = decodeBase64Url(upgrade.getHeader(Request.HTTP2_SETTINGS));
+            synchronized (out) {
+               out.write(SWITCHING_PROTOCOLS);
+            }
+            writeSettings();
+            // as if received in a SETTINGS frame, the 101 acknowledges them
+            if (settings == null || settings.length % 6 != 0) {
+               throw connectionError(PROTOCOL_ERROR, "invalid HTTP2-Settings");
+            }
+            applySettings(settings, 0, settings.length);
+            // answered over HTTP/2 (never chunked)
+            String target = upgrade.getTarget();
+            upgrade.setRequestLine(upgrade.getMethod(), target != null ? "/" + target : null, Request.HTTP_2);
+            synchronized (this) {
+               lastStreamId = 1;
+               starting++;
+            }
+            processLater(1, upgrade);
+            readPreface(PREFACE.length);
+         } else {
+            readPreface(PREFACE_REST);
+            writeSettings();
+         }
+      } catch (IOException e) {
+         close();
+         throw e;
+      }
+
+      try {
+         readLoop();
+         awaitSent();
+      } finally {
+         close();
+      }
+   }
+
+   // no more frames, wait for streams still being processed, and the sender, to be done (or the connection to fail)
+   private synchronized void awaitSent() {
+      while (!failed && (starting > 0 || sendRunning)) {
+         try {
+            wait();
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+         }
+      }
+   }
+
+   //
+   // sending (a worker, one at a time)
+   //
+
+   // sender task, until nothing can go out (every stream waits on the client's window, or is done)
+   private void send() {
+      try {
+         sendLoop();
+      } catch (IOException e) {
+         LOG.debug("HTTP/2 connection done sending e:{}", e.getMessage());
+         synchronized (this) {
+            failed = true;
+            sendRunning = false;
+            changed();
+         }
+      } catch (RuntimeException e) {
+         LOG.error("ERROR sending HTTP/2 connection e:" + e, e);
+         synchronized (this) {
+            failed = true;
+            sendRunning = false;
+            changed();
+         }
+      }
+   }
+
+   // start a sender if there's something to send and none is running, caller doesn't hold this
+   private void kick() {
+      boolean start;
+      synchronized (this) {
+         start = claimSender();
+      }
+      if (start) {
+         startSender();
+      }
+   }
+
+   // caller holds this, true if caller must startSender
+   private boolean claimSender() {
+      if (sendRunning || failed || sending.isEmpty()) {
+         return false;
+      }
+      sendRunning = true;
+      return true;
+   }
+
+   private void startSender() {
+      try {
+         engine.executeWorker(sender);
+      } catch (RejectedExecutionException e) {
+         // stopping
+         synchronized (this) {
+            failed = true;
+            sendRunning = false;
+            changed();
+         }
+      }
+   }
+
+   private void sendLoop() throws IOException {
+      List<Stream> cancelled = new ArrayList<Stream>();
+      while (true) {
+         Stream stream = null;
+         int length = 0;
+         long waitNanos = 0;
+         long seen;
+         synchronized (this) {
+            seen = changes;
+            if (failed || sending.isEmpty()) {
+               sendRunning = false;
+               changed();
+               return;
+            }
+            long now = System.nanoTime();
+            waitNanos = Long.MAX_VALUE;
+            for (int tried = 0, count = sending.size(); tried < count && stream == null; tried++) {
+               if (turn >= sending.size()) {
+                  turn = 0;
+               }
+               Stream s = sending.get(turn);
+               if (s.cancelled) {
+                  sending.remove(turn);
+                  cancelled.add(s);
+                  continue;
+               }
+               turn++;
+               long allowed = Math.min(Math.min(window, s.window), Math.min(maxFrame, MAX_SEND_FRAME));
+               if (allowed <= 0) {
+                  // waits on WINDOW_UPDATE
+                  continue;
+               }
+               int n = (int) Math.min(allowed, s.available());
+               if (s.shaped != null) {
+                  int granted = (int) s.shaped.take(n, now);
+                  if (granted == 0) {
+                     waitNanos = Math.min(waitNanos, s.shaped.delayNanos(n, now));
+                     continue;
+                  }
+                  n = granted;
+               }
+               window -= n;
+               s.window -= n;
+               stream = s;
+               length = n;
+            }
+         }
+         for (Stream s : cancelled) {
+            finish(s, false);
+         }
+         cancelled.clear();
+
+         if (stream != null) {
+            sendData(stream, length);
+            continue;
+         }
+         // nothing can go out now, send what's buffered, and wait for a bandwidth share (or end, the reader starts
+         // a sender again when a WINDOW_UPDATE, or a new stream, gives it something to do)
+         synchronized (out) {
+            out.flush();
+         }
+         synchronized (this) {
+            if (changes == seen && !failed) {
+               if (waitNanos == Long.MAX_VALUE) {
+                  sendRunning = false;
+                  changed();
+                  return;
+               }
+               try {
+                  wait(Math.max(1, waitNanos / 1000000));
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  sendRunning = false;
+                  changed();
+                  return;
+               }
+            }
+         }
+      }
+   }
+
+   private void sendData(Stream stream, int length) throws IOException {
+      boolean last = stream.remaining == length;
+      synchronized (out) {
+         writeFrameHeader(length, DATA, last ? END_STREAM : 0, stream.id);
+         stream.write(length);
+      }
+      stream.remaining -= length;
+      stream.written += FRAME_HEADER + length;
+      if (last) {
+         finish(stream, true);
+      }
+   }
+
+   // every stream not done is given up, nothing more is sent
+   private void close() {
+      List<Stream> open;
+      synchronized (this) {
+         closed = true;
+         failed = true;
+         open = new ArrayList<Stream>(streams.values());
+         notifyAll();
+      }
+      for (Stream stream : open) {
+         finish(stream, false);
+      }
+   }
+
+   // once per stream, whoever gets there first
+   private void finish(Stream stream, boolean complete) {
+      synchronized (this) {
+         if (stream.finished) {
+            return;
+         }
+         stream.finished = true;
+         streams.remove(stream.id);
+         sending.remove(stream);
+      }
+      if (stream.shaped != null) {
+         stream.shaped.close();
+      }
+      stream.closeFile();
+      processor.responseDone(stream.response, socket.getInetAddress(), stream.written, complete);
+      stream.response.done();
+   }
+
+   //
+   // reading (this thread)
+   //
+
+   private void readLoop() {
+      BufferPool buffers = processor.getBuffers();
+      ByteBuffer pooled = buffers.acquire(DEFAULT_MAX_FRAME, false);
+      payload = pooled.array();
+      try {
+         while (readFrame()) {
+            // (a WINDOW_UPDATE or SETTINGS may let streams send again)
+            kick();
+         }
+      } catch (IOException e) {
+         LOG.debug("HTTP/2 connection done reading e:{}", e.getMessage());
+      } finally {
+         buffers.release(pooled);
+      }
+   }
+
+   // false once no more frames will be read (client closed, sent GOAWAY, or connection idle)
+   private boolean readFrame() throws IOException {
+      int first = awaitFrame();
+      if (first < 0) {
+         return false;
+      }
+      header[0] = (byte) first;
+      readFully(header, 1, FRAME_HEADER - 1);
+      int length = ((header[0] & 0xff) << 16) | ((header[1] & 0xff) << 8) | (header[2] & 0xff);
+      int type = header[3] & 0xff;
+      int flags = header[4] & 0xff;
+      int id = readInt31(header, 5);
+      if (length > DEFAULT_MAX_FRAME) {
+         throw connectionError(FRAME_SIZE_ERROR, "frame too large " + length);
+      }
+      readFully(payload, 0, length);
+      lastFrameAt = System.currentTimeMillis();
+      if (blockStream != 0 && type != CONTINUATION) {
+         throw connectionError(PROTOCOL_ERROR, "expected CONTINUATION");
+      }
+
+      switch (type) {
+         case DATA:
+            onData(id, flags, length);
+            break;
+         case HEADERS:
+            onHeaders(id, flags, length);
+            break;
+         case CONTINUATION:
+            if (id == 0 || id != blockStream) {
+               throw connectionError(PROTOCOL_ERROR, "unexpected CONTINUATION");
+            }
+            appendBlock(0, length, (flags & END_HEADERS) != 0);
+            break;
+         case PRIORITY:
+            // ignored, round robin
+            if (length != 5) {
+               throw connectionError(FRAME_SIZE_ERROR, "PRIORITY size " + length);
+            }
+            break;
+         case RST_STREAM:
+            if (id == 0 || length != 4) {
+               throw connectionError(length != 4 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "invalid RST_STREAM");
+            }
+            synchronized (this) {
+               Stream stream = streams.get(id);
+               if (stream != null) {
+                  stream.cancelled = true;
+                  changed();
+               }
+            }
+            break;
+         case SETTINGS:
+            if (id != 0) {
+               throw connectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+            }
+            if ((flags & ACK) != 0) {
+               if (length != 0) {
+                  throw connectionError(FRAME_SIZE_ERROR, "SETTINGS ACK with payload");
+               }
+               break;
+            }
+            if (length % 6 != 0) {
+               throw connectionError(FRAME_SIZE_ERROR, "SETTINGS size " + length);
+            }
+            applySettings(payload, 0, length);
+            synchronized (out) {
+               writeFrameHeader(0, SETTINGS, ACK, 0);
+               out.flush();
+            }
+            break;
+         case PING:
+            if (id != 0 || length != 8) {
+               throw connectionError(length != 8 ? FRAME_SIZE_ERROR : PROTOCOL_ERROR, "invalid PING");
+            }
+            if ((flags & ACK) == 0) {
+               synchronized (out) {
+                  writeFrameHeader(8, PING, ACK, 0);
+                  out.write(payload, 0, 8);
+                  out.flush();
+               }
+            }
+            break;
+         case GOAWAY:
+            // client is leaving, finish what's in flight
+            return false;
+         case WINDOW_UPDATE:
+            onWindowUpdate(id, length);
+            break;
+         case PUSH_PROMISE:
+            throw connectionError(PROTOCOL_ERROR, "PUSH_PROMISE from client");
+         default:
+            // unknown types are ignored
+            break;
+      }
+      return true;
+   }
+
+   private void onData(int id, int flags, int length) throws IOException {
+      if (id == 0) {
+         throw connectionError(PROTOCOL_ERROR, "DATA on stream 0");
+      }
+      // request bodies are discarded, give the window back so the client isn't stuck sending it
+      if (length > 0) {
+         boolean open;
+         synchronized (this) {
+            open = streams.containsKey(id);
+         }
+         synchronized (out) {
+            writeWindowUpdate(0, length);
+            if (open && (flags & END_STREAM) == 0) {
+               writeWindowUpdate(id, length);
+            }
+            out.flush();
+         }
+      }
+   }
+
+   private void onHeaders(int id, int flags, int length) throws IOException {
+      if (id == 0 || (id & 1) == 0) {
+         throw connectionError(PROTOCOL_ERROR, "HEADERS on stream " + id);
+      }
+      int start = 0;
+      int end = length;
+      if ((flags & PADDED) != 0) {
+         if (length < 1) {
+            throw connectionError(PROTOCOL_ERROR, "invalid padding");
+         }
+         start = 1;
+         end -= payload[0] & 0xff;
+      }
+      if ((flags & PRIORITY_FLAG) != 0) {
+         start += 5;
+      }
+      if (start > end) {
+         throw connectionError(PROTOCOL_ERROR, "invalid HEADERS");
+      }
+      blockStream = id;
+      blockLength = 0;
+      appendBlock(start, end, (flags & END_HEADERS) != 0);
+   }
+
+   private void appendBlock(int start, int end, boolean endHeaders) throws IOException {
+      int length = end - start;
+      if (blockLength + length > processor.getMaxHeaderSize()) {
+         throw connectionError(ENHANCE_YOUR_CALM, "request header too large");
+      }
+      if (blockLength + length > block.length) {
+         byte[] bigger = new byte[Math.max(block.length * 2, blockLength + length)];
+         System.arraycopy(block, 0, bigger, 0, blockLength);
+         block = bigger;
+      }
+      System.arraycopy(payload, start, block, blockLength, length);
+      blockLength += length;
+      if (endHeaders) {
+         int id = blockStream;
+         blockStream = 0;
+         onRequest(id);
+      }
+   }
+
+   // header block complete
+   private void onRequest(int id) throws IOException {
+      headerList.clear();
+      try {
+         // always decoded, even if the stream is refused, the table must follow the client's
+         decoder.decode(block, 0, blockLength, headerList);
+      } catch (IOException e) {
+         throw connectionError(COMPRESSION_ERROR, e.getMessage());
+      }
+      boolean refused;
+      synchronized (this) {
+         if (id <= lastStreamId) {
+            // trailers (or a stream already done), nothing to answer
+            return;
+         }
+         lastStreamId = id;
+         refused = streams.size() + starting >= maxStreams;
+         if (!refused) {
+            starting++;
+         }
+      }
+      if (refused) {
+         resetStream(id, REFUSED_STREAM);
+         return;
+      }
+
+      // (a Request each, processed on a worker while the next frames are read)
+      Request request = new Request();
+      String method = null;
+      String path = null;
+      for (int i = 0; i < headerList.size(); i += 2) {
+         String name = headerList.get(i);
+         String value = headerList.get(i + 1);
+         if (name.equals(":method")) {
+            method = value;
+         } else if (name.equals(":path")) {
+            path = value;
+         } else if (!name.startsWith(":")) {
+            request.setHeader(name, value);
+         }
+      }
+      if (method == null || path == null) {
+         synchronized (this) {
+            starting--;
+            changed();
+         }
+         resetStream(id, PROTOCOL_ERROR);
+         return;
+      }
+      request.setRequestLine(method, path, Request.HTTP_2);
+      processLater(id, request);
+   }
+
+   private void onWindowUpdate(int id, int length) throws IOException {
+      if (length != 4) {
+         throw connectionError(FRAME_SIZE_ERROR, "WINDOW_UPDATE size " + length);
+      }
+      int increment = readInt31(payload, 0);
+      int error = NO_ERROR;
+      synchronized (this) {
+         if (id == 0) {
+            if (increment == 0 || window + increment > Integer.MAX_VALUE) {
+               error = increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR;
+            } else {
+               window += increment;
+               changed();
+            }
+         } else {
+            Stream stream = streams.get(id);
+            if (stream != null) {
+               if (increment == 0 || stream.window + increment > Integer.MAX_VALUE) {
+                  stream.cancelled = true;
+                  changed();
+                  error = increment == 0 ? PROTOCOL_ERROR : FLOW_CONTROL_ERROR;
+               } else {
+                  stream.window += increment;
+                  changed();
+               }
+            }
+         }
+      }
+      if (error != NO_ERROR) {
+         if (id == 0) {
+            throw connectionError(error, "invalid connection WINDOW_UPDATE");
+         }
+         resetStream(id, error);
+      }
+   }
+
+   // from a SETTINGS frame (or the HTTP2-Settings header)
+   private void applySettings(byte[] b, int start, int end) throws IOException {
+      synchronized (this) {
+         for (int i = start; i < end; i += 6) {
+            int setting = ((b[i] & 0xff) << 8) | (b[i + 1] & 0xff);
+            long value = readInt32(b, i + 2);
+            switch (setting) {
+               case SETTINGS_ENABLE_PUSH:
+                  if (value > 1) {
+                     throw connectionError(PROTOCOL_ERROR, "invalid ENABLE_PUSH");
+                  }
+                  break;
+               case SETTINGS_INITIAL_WINDOW_SIZE:
+                  if (value > Integer.MAX_VALUE) {
+                     throw connectionError(FLOW_CONTROL_ERROR, "invalid INITIAL_WINDOW_SIZE");
+                  }
+                  // applies to every open stream, as a change
+                  long delta = value - initialWindow;
+                  initialWindow = (int) value;
+                  for (Stream stream : streams.values()) {
+                     stream.window += delta;
+                  }
+                  break;
+               case SETTINGS_MAX_FRAME_SIZE:
+                  if (value < DEFAULT_MAX_FRAME || value > 0xffffff) {
+                     throw connectionError(PROTOCOL_ERROR, "invalid MAX_FRAME_SIZE");
+                  }
+                  maxFrame = (int) value;
+                  break;
+               default:
+                  // header table size (our encoder never uses the table), and anything else
+                  break;
+            }
+         }
+         changed();
+      }
+   }
+
+   private void readPreface(int length) throws IOException {
+      byte[] preface = new byte[length];
+      readFully(preface, 0, length);
+      for (int i = 0; i < length; i++) {
+         if (preface[i] != PREFACE[PREFACE.length - length + i]) {
+            throw new IOException("invalid HTTP/2 connection preface");
+         }
+      }
+   }
+
+   // first byte of the next frame, or -1 if the connection is done (client closed, or idle)
+   private int awaitFrame() throws IOException {
+      if (buffered != null && bufferedPos < buffered.length) {
+         return buffered[bufferedPos++] & 0xff;
+      }
+      int timeout = processor.getKeepAliveTimeout();
+      socket.setSoTimeout(IDLE_POLL_MILLIS);
+      while (true) {
+         try {
+            int first = in.read();
+            socket.setSoTimeout(FRAME_TIMEOUT_MILLIS);
+            return first;
+         } catch (SocketTimeoutException e) {
+            boolean idle;
+            synchronized (this) {
+               if (failed) {
+                  // sending failed, nothing more will go out
+                  return -1;
+               }
+               idle = streams.isEmpty() && starting == 0;
+            }
+            // idle too long, or other connections are waiting for a pool thread (idle connection gives its thread up)
+            if (idle && (System.currentTimeMillis() - lastFrameAt >= timeout || engine.hasWaitingConnections())) {
+               LOG.debug("{} HTTP/2 connection idle, closing", processor.getUserAgent());
+               synchronized (out) {
+                  writeGoAway(NO_ERROR);
+                  out.flush();
+               }
+               return -1;
+            }
+         }
+      }
+   }
+
+   private void readFully(byte[] b, int off, int len) throws IOException {
+      if (buffered != null && bufferedPos < buffered.length) {
+         int n = Math.min(len, buffered.length - bufferedPos);
+         System.arraycopy(buffered, bufferedPos, b, off, n);
+         bufferedPos += n;
+         off += n;
+         len -= n;
+      }
+      while (len > 0) {
+         int n = in.read(b, off, len);
+         if (n < 0) {
+            throw new EOFException("connection closed mid frame");
+         }
+         off += n;
+         len -= n;
+      }
+   }
+
+   //
+   // streams
+   //
+
+   // stream counted in starting, processed on a worker
+   private void processLater(final int id, final Request request) throws IOException {
+      try {
+         engine.executeWorker(new Runnable() {
+            public void run() {
+               process(id, request);
+            }
+         });
+      } catch (RejectedExecutionException e) {
+         // stopping
+         synchronized (this) {
+            starting--;
+            changed();
+         }
+         resetStream(id, REFUSED_STREAM);
+      }
+   }
+
+   // on a worker, once it's in streams (or given up) it's no longer starting
+   private void process(int id, Request request) {
+      try {
+         startStream(id, request);
+      } catch (IOException e) {
+         LOG.debug("HTTP/2 connection done sending e:{}", e.getMessage());
+         synchronized (this) {
+            failed = true;
+         }
+      } catch (RuntimeException e) {
+         LOG.error("ERROR handling HTTP/2 stream " + id + " e:" + e, e);
+         try {
+            resetStream(id, INTERNAL_ERROR);
+         } catch (IOException ignored) {
+            // connection going away
+         }
+      } finally {
+         boolean start;
+         synchronized (this) {
+            starting--;
+            start = claimSender();
+            changed();
+         }
+         if (start) {
+            startSender();
+         }
+      }
+   }
+
+   // process request, send response headers, body goes in turns
+   private void startStream(int id, Request request) throws IOException {
+      long received = System.nanoTime();
+      Response response;
+      try {
+         response = processor.process(request, 1);
+      } catch (IOException e) {
+         LOG.error("ERROR I/O exception", e);
+         response = processor.createTextResponse("ERROR handling request: " + e.getMessage(), Status.ERROR);
+      }
+      response.answers(request, received);
+      processor.getMetrics().responseStarted(received);
+
+      Stream stream = new Stream(id, response, shaping.open(response));
+      boolean gone;
+      synchronized (this) {
+         gone = closed;
+         if (!gone) {
+            stream.window = initialWindow;
+            streams.put(id, stream);
+         }
+      }
+      if (gone) {
+         finish(stream, false);
+         return;
+      }
+      synchronized (out) {
+         stream.written += writeHeaders(stream, stream.remaining == 0);
+         out.flush();
+      }
+      if (stream.remaining == 0) {
+         finish(stream, true);
+         return;
+      }
+      synchronized (this) {
+         if (!stream.finished) {
+            sending.add(stream);
+         }
+      }
+   }
+
+   private void resetStream(int id, int error) throws IOException {
+      synchronized (out) {
+         writeFrameHeader(4, RST_STREAM, 0, id);
+         writeInt32(error);
+         out.flush();
+      }
+   }
+
+   // caller holds this
+   private void changed() {
+      changes++;
+      notifyAll();
+   }
+
+   /**
+    * One request and its response, body sent a frame at a time, from its segments in order.
+    *
+    */
+   private final class Stream {
+
+      private final int id;
+      private final Response response;
+      private final BandwidthShaper.Stream shaped; // null, not shaped
+
+      // guarded by the connection
+      private long window;
+      private boolean cancelled; // reset by the client (or its window overflowed)
+      private boolean finished;
+
+      // sender only
+      private long remaining; // body bytes not yet sent
+      private long written; // frame bytes sent, for metrics and the access log
+      private int segment; // index of next body segment
+      private ByteBuffer data; // current in memory segment, what's left of it
+      private long filePosition; // current file region, what's left of it
+      private long fileRemaining;
+      private FileChannel file;
+
+      Stream(final int id, final Response response, final BandwidthShaper.Stream shaped) {
+         this.id = id;
+         this.response = response;
+         this.shaped = shaped;
+         for (Response.Segment s : response.body) {
+            remaining += s.length;
+         }
+      }
+
+      // bytes that can go in one frame from the current segment (moving on to the next one if it's done)
+      long available() throws IOException {
+         while ((data == null || !data.hasRemaining()) && fileRemaining == 0) {
+            Response.Segment next = response.body[segment++];
+            data = null;
+            if (!next.isFileRegion()) {
+               data = next.data();
+            } else if (next.isCompressed()) {
+               // streamed compression is only ever chosen for HTTP/1.1
+               throw new IOException("compressed region over HTTP/2");
+            } else {
+               filePosition = next.offset;
+               fileRemaining = next.length;
+            }
+         }
+         if (data != null && data.hasRemaining()) {
+            return data.remaining();
+         }
+         if (response.shared != null) {
+            // a block at a time, from memory if another stream of the file read it
+            return Math.min(fileRemaining, SharedReads.blockEnd(filePosition) - filePosition);
+         }
+         return fileRemaining;
+      }
+
+      // caller holds out, and wrote the frame header
+      void write(int length) throws IOException {
+         if (data != null && data.hasRemaining()) {
+            ByteBuffer piece = data.duplicate();
+            piece.limit(piece.position() + length);
+            data.position(data.position() + length);
+            writeData(piece);
+            return;
+         }
+         SharedReads.Block block = response.shared != null ? response.shared.acquire(filePosition, false) : null;
+         if (block != null) {
+            try {
+               writeData(block.slice(filePosition, length));
+            } finally {
+               block.release();
+            }
+         } else {
+            if (file == null) {
+               file = new RandomAccessFile(response.file, "r").getChannel();
+            }
+            out.flush();
+            if (FileTransfer.transfer(file, filePosition, length, target) < length) {
+               throw new IOException("file ended early, frame of " + length + " bytes at " + filePosition);
+            }
+         }
+         filePosition += length;
+         fileRemaining -= length;
+      }
+
+      void closeFile() {
+         if (file != null) {
+            try {
+               file.close();
+            } catch (IOException e) {
+               LOG.error("Error closing file channel", e);
+            }
+            file = null;
+         }
+      }
+   }
+
+   //
+   // frame writers, caller holds out
+   //
+
+   private void writeData(ByteBuffer data) throws IOException {
+      if (data.hasArray()) {
+         out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+         return;
+      }
+      // mapped (cached) content, or a shared block, straight to socket
+      out.flush();
+      while (data.hasRemaining()) {
+         target.write(data);
+      }
+   }
+
+   // response head (HTTP/1.1, as the processor writes it) as an HPACK block, returns bytes written
+   private int writeHeaders(Stream stream, boolean endStream) throws IOException {
+      encodeHead(stream.response.head);
+      int length = encoder.length();
+      int max;
+      synchronized (this) {
+         max = maxFrame;
+      }
+      int sent = 0;
+      int frames = 0;
+      do {
+         int n = Math.min(max, length - sent);
+         boolean end = sent + n == length;
+         int flags = (end ? END_HEADERS : 0) | (frames == 0 && endStream ? END_STREAM : 0);
+         writeFrameHeader(n, frames == 0 ? HEADERS : CONTINUATION, flags, stream.id);
+         out.write(encoder.array(), sent, n);
+         sent += n;
+         frames++;
+      } while (sent < length);
+      return length + frames * FRAME_HEADER;
+   }
+
+   // status line and header lines, minus what only means something to an HTTP/1.1 connection
+   private void encodeHead(ByteBuffer headBuffer) {
+      encoder.reset();
+      byte[] head = headBuffer.array();
+      int length = headBuffer.limit();
+      int end = lineEnd(head, 0, length);
+      // "HTTP/1.1 200 OK"
+      encoder.status(new String(head, 9, 3, ISO_8859_1));
+      int start = end + 2;
+      while (start < length && (end = lineEnd(head, start, length)) > start) {
+         int colon = start;
+         while (colon < end && head[colon] != ':') {
+            colon++;
+         }
+         char[] name = new char[colon - start];
+         for (int i = 0; i < name.length; i++) {
+            char c = (char) (head[start + i] & 0xff);
+            name[i] = c >= 'A' && c <= 'Z' ? (char) (c + 'a' - 'A') : c;
+         }
+         String lower = new String(name);
+         if (!isConnectionHeader(lower) && colon < end) {
+            int valueStart = colon + 1;
+            while (valueStart < end && head[valueStart] == ' ') {
+               valueStart++;
+            }
+            encoder.header(lower, new String(head, valueStart, end - valueStart, ISO_8859_1));
+         }
+         start = end + 2;
+      }
+   }
+
+   private void writeSettings() throws IOException {
+      synchronized (out) {
+         writeFrameHeader(18, SETTINGS, 0, 0);
+         writeSetting(SETTINGS_MAX_CONCURRENT_STREAMS, maxStreams);
+         writeSetting(SETTINGS_INITIAL_WINDOW_SIZE, DEFAULT_WINDOW);
+         writeSetting(SETTINGS_MAX_HEADER_LIST_SIZE, processor.getMaxHeaderSize());
+         out.flush();
+      }
+   }
+
+   private void writeSetting(int setting, int value) throws IOException {
+      out.write(setting >>> 8);
+      out.write(setting);
+      writeInt32(value);
+   }
+
+   private void writeWindowUpdate(int id, int increment) throws IOException {
+      writeFrameHeader(4, WINDOW_UPDATE, 0, id);
+      writeInt32(increment);
+   }
+
+   private void writeGoAway(int error) throws IOException {
+      int last;
+      synchronized (this) {
+         last = lastStreamId;
+      }
+      writeFrameHeader(8, GOAWAY, 0, 0);
+      writeInt32(last);
+      writeInt32(error);
+   }
+
+   private void writeFrameHeader(int length, int type, int flags, int id) throws IOException {
+      frameHeader[0] = (byte) (length >>> 16);
+      frameHeader[1] = (byte) (length >>> 8);
+      frameHeader[2] = (byte) length;
+      frameHeader[3] = (byte) type;
+      frameHeader[4] = (byte) flags;
+      frameHeader[5] = (byte) (id >>> 24);
+      frameHeader[6] = (byte) (id >>> 16);
+      frameHeader[7] = (byte) (id >>> 8);
+      frameHeader[8] = (byte) id;
+      out.write(frameHeader, 0, FRAME_HEADER);
+   }
+
+   private void writeInt32(int value) throws IOException {
+      out.write(value >>> 24);
+      out.write(value >>> 16);
+      out.write(value >>> 8);
+      out.write(value);
+   }
+
+   //
+   // priv helpers
+   //
+
+   // GOAWAY with error (best effort), stops sending, returns exception for caller to throw
+   private IOException connectionError(int error, String message) {
+      synchronized (this) {
+         failed = true;
+         changed();
+      }
+      try {
+         synchronized (out) {
+            writeGoAway(error);
+            out.flush();
+         }
+      } catch (IOException e) {
+         // going away anyway
+      }
+      return new IOException("HTTP/2 connection error " + error + ": " + message);
+   }
+
+   private static boolean isConnectionHeader(String name) {
+      return name.equals("connection") || name.equals("keep-alive") || name.equals("transfer-encoding")
+               || name.equals("upgrade") || name.equals("proxy-connection");
+   }
+
+   private static int lineEnd(byte[] b, int start, int length) {
+      for (int i = start; i < length - 1; i++) {
+         if (b[i] == '\r' && b[i + 1] == '\n') {
+            return i;
+         }
+      }
+      return length;
+   }
+
+   private static boolean hasToken(String value, String token) {
+      for (String part : value.split(",")) {
+         if (part.trim().equalsIgnoreCase(token)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   private static int readInt31(byte[] b, int at) {
+      return (int) (readInt32(b, at) & 0x7fffffffL);
+   }
+
+   private static long readInt32(byte[] b, int at) {
+      return ((long) (b[at] & 0xff) << 24) | ((b[at + 1] & 0xff) << 16) | ((b[at + 2] & 0xff) << 8) | (b[at + 3] & 0xff);
+   }
+
+   // base64url, padding optional, null if invalid
+   static byte[] decodeBase64Url(String s) {
+      int length = s.length();
+      while (length > 0 && s.charAt(length - 1) == '=') {
+         length--;
+      }
+      if (length % 4 == 1) {
+         return null;
+      }
+      byte[] out = new byte[length * 3 / 4];
+      int bits = 0;
+      int count = 0;
+      int n = 0;
+      for (int i = 0; i < length; i++) {
+         char c = s.charAt(i);
+         int v = c >= 'A' && c <= 'Z' ? c - 'A' : c >= 'a' && c <= 'z' ? c - 'a' + 26 : c >= '0' && c <= '9' ? c - '0'
+                  + 52 : c == '-' ? 62 : c == '_' ? 63 : -1;
+         if (v < 0) {
+            return null;
+         }
+         bits = (bits << 6) | v;
+         count += 6;
+         if (count >= 8) {
+            count -= 8;
+            out[n++] = (byte) (bits >>> count);
+         }
+      }
+      return out;
+   }
+}
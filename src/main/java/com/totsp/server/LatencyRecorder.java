@@ -0,0 +1,93 @@
+package com.totsp.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Concurrent latency histogram (microseconds), HDR style, log buckets with 64 linear steps each (under 2% error),
+ * fixed size, recording is an index computation and one atomic increment, no locks, no allocation.
+ * Readers take a snapshot (see Metrics), which may be a few records behind, never torn per bucket.
+ *
+ */
+final class LatencyRecorder {
+
+   // values under 128 are exact, above that 64 buckets per power of 2, up to 2^40 micros (12 days)
+   private static final int EXACT = 128;
+   private static final int STEPS = 64;
+   private static final int MAX_EXPONENT = 40;
+   static final int BUCKETS = EXACT + (MAX_EXPONENT - 7) * STEPS;
+
+   private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+   private final AtomicLong max = new AtomicLong();
+   private final AtomicLong sum = new AtomicLong();
+
+   void recordNanos(long nanos) {
+      long micros = Math.max(0, nanos / 1000);
+      counts.incrementAndGet(index(micros));
+      sum.addAndGet(micros);
+      long m = max.get();
+      while (micros > m && !max.compareAndSet(m, micros)) {
+         m = max.get();
+      }
+   }
+
+   // copy of bucket counts, then max, then sum
+   long[] snapshot() {
+      long[] copy = new long[BUCKETS + 2];
+      for (int i = 0; i < BUCKETS; i++) {
+         copy[i] = counts.get(i);
+      }
+      copy[BUCKETS] = max.get();
+      copy[BUCKETS + 1] = sum.get();
+      return copy;
+   }
+
+   /**
+    * Value at percentile (0 to 100) of a snapshot, upper bound of its bucket (capped at max), 0 if empty.
+    *
+    */
+   static long percentile(long[] snapshot, double percentile) {
+      long total = count(snapshot);
+      if (total == 0) {
+         return 0;
+      }
+      long max = snapshot[BUCKETS];
+      long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+      long seen = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         seen += snapshot[i];
+         if (seen >= rank) {
+            return Math.min(max, upperBound(i));
+         }
+      }
+      return max;
+   }
+
+   static long count(long[] snapshot) {
+      long total = 0;
+      for (int i = 0; i < BUCKETS; i++) {
+         total += snapshot[i];
+      }
+      return total;
+   }
+
+   // bucket of a value (micros)
+   static int index(long v) {
+      if (v < EXACT) {
+         return (int) v;
+      }
+      int exponent = Math.min(63 - Long.numberOfLeadingZeros(v), MAX_EXPONENT - 1);
+      int step = (int) Math.min(STEPS - 1, (v >> (exponent - 6)) - STEPS);
+      return EXACT + (exponent - 7) * STEPS + step;
+   }
+
+   // largest value in a bucket
+   static long upperBound(int index) {
+      if (index < EXACT) {
+         return index;
+      }
+      int exponent = (index - EXACT) / STEPS + 7;
+      int step = (index - EXACT) % STEPS;
+      return ((long) (STEPS + step + 1) << (exponent - 6)) - 1;
+   }
+}
@@ -0,0 +1,482 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Point in time snapshot of server metrics, connections, requests (by kind and by Status), bytes served,
+ * latency percentiles (time to first byte, and total), and cache hit rates. Immutable, get one from
+ * HTTPServer.getMetrics (or HTTPServerService.getMetrics), or from the metrics path if one is set (JSON, or Prometheus text).
+ *
+ * Counts are since the server was created, requests are counted once their response is completely written
+ * (responses the client went away from are counted as aborted). Latencies are in microseconds.
+ *
+ */
+public final class Metrics {
+
+   private final long timestamp;
+   private final long uptimeMillis;
+   private final int activeConnections;
+   private final int queuedConnections;
+   private final int activeFileStreams;
+   private final long rejectedConnections;
+   private final long rejectedFileStreams;
+   private final long textRequests;
+   private final long fileRequests;
+   private final long rangeRequests;
+   private final long errorRequests;
+   private final long abortedRequests;
+   private final Map<Status, Long> byStatus;
+   private final long bytesServed;
+   private final Latency firstByte;
+   private final Latency total;
+   private final Cache fileInfoCache;
+   private final Cache contentCache;
+   private final Cache compressedCache;
+   private final Cache readAhead;
+   private final Cache sharedReads;
+   private final long buffersInUse;
+   private final long buffersAcquired;
+   private final long buffersAllocated;
+   private final long pooledBufferBytes;
+   private final long bufferLeaks;
+   private final long tlsHandshakes;
+   private final long tlsResumed;
+   private final long tlsFailed;
+   private final long droppedCallbacks;
+
+   private Metrics(RequestProcessor processor, ServerEngine engine) {
+      ServerMetrics metrics = processor.getMetrics();
+      AdmissionControl admission = processor.getAdmission();
+      timestamp = System.currentTimeMillis();
+      uptimeMillis = timestamp - metrics.getStartedAt();
+      activeConnections = admission.getConnections();
+      queuedConnections = engine != null ? engine.getQueuedConnections() : 0;
+      activeFileStreams = admission.getFileStreams();
+      rejectedConnections = admission.getRejectedConnections();
+      rejectedFileStreams = admission.getRejectedFileStreams();
+      textRequests = metrics.getByKind(ServerMetrics.TEXT);
+      fileRequests = metrics.getByKind(ServerMetrics.FILE);
+      rangeRequests = metrics.getByKind(ServerMetrics.RANGE);
+      errorRequests = metrics.getByKind(ServerMetrics.ERROR);
+      abortedRequests = metrics.getAborted();
+      Map<Status, Long> statuses = new EnumMap<Status, Long>(Status.class);
+      for (Status status : Status.values()) {
+         statuses.put(status, metrics.getByStatus(status));
+      }
+      byStatus = Collections.unmodifiableMap(statuses);
+      bytesServed = metrics.getBytesServed();
+      firstByte = new Latency(metrics.getFirstByte().snapshot());
+      total = new Latency(metrics.getTotal().snapshot());
+
+      FileInfoCache info = processor.getFileInfoCache();
+      fileInfoCache = new Cache(info.getHits(), info.getMisses());
+      ContentCache content = processor.getContentCache();
+      contentCache = content != null ? new Cache(content.getHits(), content.getMisses()) : new Cache(0, 0);
+      CompressedCache compressed = processor.getCompressedCache();
+      compressedCache = compressed != null ? new Cache(compressed.getHits(), compressed.getMisses()) : new Cache(0, 0);
+      ReadAhead ahead = processor.getReadAhead();
+      readAhead = ahead != null ? new Cache(ahead.getHits(), ahead.getMisses()) : new Cache(0, 0);
+      SharedReads shared = processor.getSharedReads();
+      sharedReads = shared != null ? new Cache(shared.getHits(), shared.getMisses()) : new Cache(0, 0);
+      BufferPool buffers = processor.getBuffers();
+      buffersInUse = buffers.getInUse();
+      buffersAcquired = buffers.getAcquired();
+      buffersAllocated = buffers.getAllocated();
+      pooledBufferBytes = buffers.getPooledBytes();
+      bufferLeaks = buffers.getLeaks();
+      Tls tls = processor.getTls();
+      tlsHandshakes = tls != null ? tls.getHandshakes() : 0;
+      tlsResumed = tls != null ? tls.getResumed() : 0;
+      tlsFailed = tls != null ? tls.getFailed() : 0;
+      CallbackDispatcher dispatcher = processor.getCallbackDispatcher();
+      droppedCallbacks = dispatcher != null ? dispatcher.getDropped() : 0;
+   }
+
+   // engine is null when the server is not running
+   static Metrics snapshot(RequestProcessor processor, ServerEngine engine) {
+      return new Metrics(processor, engine);
+   }
+
+   public long getTimestamp() {
+      return timestamp;
+   }
+
+   public long getUptimeMillis() {
+      return uptimeMillis;
+   }
+
+   public int getActiveConnections() {
+      return activeConnections;
+   }
+
+   // accepted, waiting for a thread (BLOCKING engine, FIXED or ELASTIC), or to be picked up by an event loop (NIO)
+   public int getQueuedConnections() {
+      return queuedConnections;
+   }
+
+   public int getActiveFileStreams() {
+      return activeFileStreams;
+   }
+
+   public long getRejectedConnections() {
+      return rejectedConnections;
+   }
+
+   public long getRejectedFileStreams() {
+      return rejectedFileStreams;
+   }
+
+   public long getRequests() {
+      return textRequests + fileRequests + rangeRequests + errorRequests;
+   }
+
+   // 200 text responses (ACK, server info, metrics)
+   public long getTextRequests() {
+      return textRequests;
+   }
+
+   // 200 whole file, or 304 not modified
+   public long getFileRequests() {
+      return fileRequests;
+   }
+
+   // 206 partial content
+   public long getRangeRequests() {
+      return rangeRequests;
+   }
+
+   // 4xx and 5xx (including 503 load shedding)
+   public long getErrorRequests() {
+      return errorRequests;
+   }
+
+   // responses not completely written (client went away)
+   public long getAbortedRequests() {
+      return abortedRequests;
+   }
+
+   public Map<Status, Long> getRequestsByStatus() {
+      return byStatus;
+   }
+
+   // bytes written to clients, headers included (compressed bytes for compressed responses)
+   public long getBytesServed() {
+      return bytesServed;
+   }
+
+   // request read to response head starting out
+   public Latency getFirstByteLatency() {
+      return firstByte;
+   }
+
+   // request read to last byte of response written
+   public Latency getTotalLatency() {
+      return total;
+   }
+
+   public Cache getFileInfoCache() {
+      return fileInfoCache;
+   }
+
+   public Cache getContentCache() {
+      return contentCache;
+   }
+
+   public Cache getCompressedCache() {
+      return compressedCache;
+   }
+
+   // single range requests served from memory read ahead (hits), or from the file (misses)
+   public Cache getReadAhead() {
+      return readAhead;
+   }
+
+   // blocks sent from another stream's read of the same file (hits), or read from storage for all of them (misses)
+   public Cache getSharedReads() {
+      return sharedReads;
+   }
+
+   // pooled buffers handed out and not yet given back
+   public long getBuffersInUse() {
+      return buffersInUse;
+   }
+
+   public long getBuffersAcquired() {
+      return buffersAcquired;
+   }
+
+   // buffers handed out that had to be allocated, the rest were reused
+   public long getBuffersAllocated() {
+      return buffersAllocated;
+   }
+
+   // free buffers, in the shared pool and kept by threads
+   public long getPooledBufferBytes() {
+      return pooledBufferBytes;
+   }
+
+   // buffers collected without being given back (counted only with leak detection on)
+   public long getBufferLeaks() {
+      return bufferLeaks;
+   }
+
+   // TLS handshakes completed, full and resumed
+   public long getTlsHandshakes() {
+      return tlsHandshakes;
+   }
+
+   // TLS handshakes that resumed an earlier session (no key exchange, no certificate)
+   public long getTlsResumed() {
+      return tlsResumed;
+   }
+
+   public long getTlsFailed() {
+      return tlsFailed;
+   }
+
+   public long getDroppedCallbacks() {
+      return droppedCallbacks;
+   }
+
+   /**
+    * As a JSON object, latencies in microseconds.
+    *
+    */
+   public String toJson() {
+      StringBuilder sb = new StringBuilder(1024);
+      sb.append("{\"timestamp\":").append(timestamp);
+      sb.append(",\"uptimeMillis\":").append(uptimeMillis);
+      sb.append(",\"connections\":{\"active\":").append(activeConnections).append(",\"queued\":").append(queuedConnections)
+               .append(",\"rejected\":").append(rejectedConnections).append("}");
+      sb.append(",\"fileStreams\":{\"active\":").append(activeFileStreams).append(",\"rejected\":").append(
+               rejectedFileStreams).append("}");
+      sb.append(",\"requests\":{\"total\":").append(getRequests()).append(",\"text\":").append(textRequests).append(
+               ",\"file\":").append(fileRequests).append(",\"range\":").append(rangeRequests).append(",\"error\":").append(
+               errorRequests).append(",\"aborted\":").append(abortedRequests).append("}");
+      sb.append(",\"status\":{");
+      boolean first = true;
+      for (Map.Entry<Status, Long> entry : byStatus.entrySet()) {
+         sb.append(first ? "" : ",").append("\"").append(code(entry.getKey())).append("\":").append(entry.getValue());
+         first = false;
+      }
+      sb.append("}");
+      sb.append(",\"bytesServed\":").append(bytesServed);
+      sb.append(",\"latencyMicros\":{\"firstByte\":");
+      firstByte.appendJson(sb);
+      sb.append(",\"total\":");
+      total.appendJson(sb);
+      sb.append("}");
+      sb.append(",\"caches\":{\"fileInfo\":");
+      fileInfoCache.appendJson(sb);
+      sb.append(",\"content\":");
+      contentCache.appendJson(sb);
+      sb.append(",\"compressed\":");
+      compressedCache.appendJson(sb);
+      sb.append(",\"readAhead\":");
+      readAhead.appendJson(sb);
+      sb.append(",\"sharedReads\":");
+      sharedReads.appendJson(sb);
+      sb.append("}");
+      sb.append(",\"buffers\":{\"inUse\":").append(buffersInUse).append(",\"acquired\":").append(buffersAcquired)
+               .append(",\"allocated\":").append(buffersAllocated).append(",\"pooledBytes\":").append(
+                        pooledBufferBytes).append(",\"leaks\":").append(bufferLeaks).append("}");
+      sb.append(",\"tls\":{\"handshakes\":").append(tlsHandshakes).append(",\"resumed\":").append(tlsResumed).append(
+               ",\"failed\":").append(tlsFailed).append("}");
+      sb.append(",\"droppedCallbacks\":").append(droppedCallbacks);
+      return sb.append("}").toString();
+   }
+
+   /**
+    * As Prometheus text exposition format (counters, gauges, and latency summaries in seconds).
+    *
+    */
+   public String toPrometheus() {
+      StringBuilder sb = new StringBuilder(2048);
+      gauge(sb, "httpserver_connections_active", "Open connections", activeConnections);
+      gauge(sb, "httpserver_connections_queued", "Accepted connections waiting to be served", queuedConnections);
+      counter(sb, "httpserver_connections_rejected_total", "Connections rejected by admission control", rejectedConnections);
+      gauge(sb, "httpserver_file_streams_active", "File responses being sent", activeFileStreams);
+      counter(sb, "httpserver_file_streams_rejected_total", "File requests rejected by admission control",
+               rejectedFileStreams);
+
+      sb.append("# HELP httpserver_requests_total Requests completed, by kind\n# TYPE httpserver_requests_total counter\n");
+      sb.append("httpserver_requests_total{kind=\"text\"} ").append(textRequests).append("\n");
+      sb.append("httpserver_requests_total{kind=\"file\"} ").append(fileRequests).append("\n");
+      sb.append("httpserver_requests_total{kind=\"range\"} ").append(rangeRequests).append("\n");
+      sb.append("httpserver_requests_total{kind=\"error\"} ").append(errorRequests).append("\n");
+      counter(sb, "httpserver_requests_aborted_total", "Responses not completely written", abortedRequests);
+
+      sb.append("# HELP httpserver_responses_total Responses completed, by status\n# TYPE httpserver_responses_total counter\n");
+      for (Map.Entry<Status, Long> entry : byStatus.entrySet()) {
+         sb.append("httpserver_responses_total{status=\"").append(code(entry.getKey())).append("\"} ").append(
+                  entry.getValue()).append("\n");
+      }
+      counter(sb, "httpserver_bytes_served_total", "Bytes written to clients", bytesServed);
+
+      firstByte.appendPrometheus(sb, "httpserver_first_byte_seconds", "Request read to response start");
+      total.appendPrometheus(sb, "httpserver_response_seconds", "Request read to response written");
+
+      sb.append("# HELP httpserver_cache_hits_total Cache hits\n# TYPE httpserver_cache_hits_total counter\n");
+      cacheLine(sb, "httpserver_cache_hits_total", "file_info", fileInfoCache.hits);
+      cacheLine(sb, "httpserver_cache_hits_total", "content", contentCache.hits);
+      cacheLine(sb, "httpserver_cache_hits_total", "compressed", compressedCache.hits);
+      cacheLine(sb, "httpserver_cache_hits_total", "read_ahead", readAhead.hits);
+      cacheLine(sb, "httpserver_cache_hits_total", "shared_reads", sharedReads.hits);
+      sb.append("# HELP httpserver_cache_misses_total Cache misses\n# TYPE httpserver_cache_misses_total counter\n");
+      cacheLine(sb, "httpserver_cache_misses_total", "file_info", fileInfoCache.misses);
+      cacheLine(sb, "httpserver_cache_misses_total", "content", contentCache.misses);
+      cacheLine(sb, "httpserver_cache_misses_total", "compressed", compressedCache.misses);
+      cacheLine(sb, "httpserver_cache_misses_total", "read_ahead", readAhead.misses);
+      cacheLine(sb, "httpserver_cache_misses_total", "shared_reads", sharedReads.misses);
+
+      gauge(sb, "httpserver_buffers_in_use", "Pooled buffers handed out and not yet given back", buffersInUse);
+      counter(sb, "httpserver_buffers_acquired_total", "Buffers handed out by the pool", buffersAcquired);
+      counter(sb, "httpserver_buffers_allocated_total", "Buffers the pool had to allocate", buffersAllocated);
+      gauge(sb, "httpserver_buffer_pool_bytes", "Free buffers in the shared pool", pooledBufferBytes);
+      counter(sb, "httpserver_buffer_leaks_total", "Buffers collected without being given back", bufferLeaks);
+      counter(sb, "httpserver_tls_handshakes_total", "TLS handshakes completed", tlsHandshakes);
+      counter(sb, "httpserver_tls_resumed_total", "TLS handshakes that resumed a session", tlsResumed);
+      counter(sb, "httpserver_tls_failed_total", "TLS handshakes that failed", tlsFailed);
+      counter(sb, "httpserver_callbacks_dropped_total", "Text requests not delivered to the callback", droppedCallbacks);
+      return sb.toString();
+   }
+
+   @Override
+   public String toString() {
+      return toJson();
+   }
+
+   /**
+    * Latency percentiles, in microseconds, bucket upper bounds (under 2% over the true value).
+    *
+    */
+   public static final class Latency {
+
+      private final long count;
+      private final long p50;
+      private final long p90;
+      private final long p99;
+      private final long p999;
+      private final long max;
+      private final long sum;
+
+      private Latency(long[] snapshot) {
+         count = LatencyRecorder.count(snapshot);
+         p50 = LatencyRecorder.percentile(snapshot, 50);
+         p90 = LatencyRecorder.percentile(snapshot, 90);
+         p99 = LatencyRecorder.percentile(snapshot, 99);
+         p999 = LatencyRecorder.percentile(snapshot, 99.9);
+         max = snapshot[LatencyRecorder.BUCKETS];
+         sum = snapshot[LatencyRecorder.BUCKETS + 1];
+      }
+
+      public long getCount() {
+         return count;
+      }
+
+      public long getP50() {
+         return p50;
+      }
+
+      public long getP90() {
+         return p90;
+      }
+
+      public long getP99() {
+         return p99;
+      }
+
+      public long getP999() {
+         return p999;
+      }
+
+      public long getMax() {
+         return max;
+      }
+
+      public long getMean() {
+         return count > 0 ? sum / count : 0;
+      }
+
+      private void appendJson(StringBuilder sb) {
+         sb.append("{\"count\":").append(count).append(",\"p50\":").append(p50).append(",\"p90\":").append(p90).append(
+                  ",\"p99\":").append(p99).append(",\"p999\":").append(p999).append(",\"max\":").append(max).append(
+                  ",\"mean\":").append(getMean()).append("}");
+      }
+
+      private void appendPrometheus(StringBuilder sb, String name, String help) {
+         sb.append("# HELP ").append(name).append(" ").append(help).append("\n# TYPE ").append(name).append(" summary\n");
+         quantile(sb, name, "0.5", p50);
+         quantile(sb, name, "0.9", p90);
+         quantile(sb, name, "0.99", p99);
+         quantile(sb, name, "0.999", p999);
+         sb.append(name).append("_sum ").append(sum / 1000000.0).append("\n");
+         sb.append(name).append("_count ").append(count).append("\n");
+      }
+
+      private static void quantile(StringBuilder sb, String name, String quantile, long micros) {
+         sb.append(name).append("{quantile=\"").append(quantile).append("\"} ").append(micros / 1000000.0).append("\n");
+      }
+   }
+
+   /**
+    * Cache hits and misses (all 0 if the cache is off).
+    *
+    */
+   public static final class Cache {
+
+      private final long hits;
+      private final long misses;
+
+      private Cache(long hits, long misses) {
+         this.hits = hits;
+         this.misses = misses;
+      }
+
+      public long getHits() {
+         return hits;
+      }
+
+      public long getMisses() {
+         return misses;
+      }
+
+      // 0 to 1, 0 if never used
+      public double getHitRate() {
+         long lookups = hits + misses;
+         return lookups > 0 ? (double) hits / lookups : 0;
+      }
+
+      private void appendJson(StringBuilder sb) {
+         sb.append("{\"hits\":").append(hits).append(",\"misses\":").append(misses).append(",\"hitRate\":").append(
+                  getHitRate()).append("}");
+      }
+   }
+
+   //
+   // priv helpers
+   //
+
+   // "200" of "200 OK"
+   private static String code(Status status) {
+      return status.getDesc().substring(0, 3);
+   }
+
+   private static void gauge(StringBuilder sb, String name, String help, long value) {
+      sb.append("# HELP ").append(name).append(" ").append(help).append("\n# TYPE ").append(name).append(" gauge\n");
+      sb.append(name).append(" ").append(value).append("\n");
+   }
+
+   private static void counter(StringBuilder sb, String name, String help, long value) {
+      sb.append("# HELP ").append(name).append(" ").append(help).append("\n# TYPE ").append(name).append(" counter\n");
+      sb.append(name).append(" ").append(value).append("\n");
+   }
+
+   private static void cacheLine(StringBuilder sb, String name, String cache, long value) {
+      sb.append(name).append("{cache=\"").append(cache).append("\"} ").append(value).append("\n");
+   }
+}
@@ -0,0 +1,882 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Execution;
+import com.totsp.server.enums.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Non-blocking engine, a small set of event loop threads each with its own Selector.
+ *
+ * The first loop also accepts, and hands new channels out round robin. Reads and writes never block, so one slow client
+ * streaming a big file only costs a buffer, not a thread (hundreds of concurrent streams on a couple of threads).
+ * Requests are processed on workers (per Execution), so a slow callback, a compressed body or a directory listing
+ * never holds up the loop, a connection processes one at a time and its responses still go out in order.
+ * With TLS set, connections read and write through a TlsChannel (non-blocking too).
+ *
+ */
+final class NioEngine implements ServerEngine {
+
+   private static final int IDLE_CHECK_MILLIS = 1000;
+
+   private static final Logger LOG = LoggerFactory.getLogger(NioEngine.class);
+
+   private final RequestProcessor processor;
+   private final int port;
+   private final int numLoops;
+   private final Execution execution;
+
+   private ServerSocketChannel serverChannel;
+   private EventLoop[] loops;
+   private ExecutorService workers;
+   private boolean workerPerTask; // workers are threads per request (virtual), their buffer caches go when they end
+   private volatile boolean running;
+
+   // loop run by the current thread, null on any other thread
+   private static final ThreadLocal<EventLoop> CURRENT_LOOP = new ThreadLocal<EventLoop>();
+
+   NioEngine(final RequestProcessor processor, final int port, final int numLoops, final Execution execution) {
+      this.processor = processor;
+      this.port = port;
+      this.numLoops = Math.max(1, numLoops);
+      this.execution = execution;
+   }
+
+   // true on an event loop thread (must never block)
+   static boolean isLoopThread() {
+      return CURRENT_LOOP.get() != null;
+   }
+
+   public void start() throws IOException {
+      workers = BlockingEngine.createExecutor(execution, numLoops);
+      workerPerTask = !(workers instanceof ThreadPoolExecutor);
+
+      serverChannel = ServerSocketChannel.open();
+      serverChannel.socket().setReuseAddress(true);
+      serverChannel.socket().bind(new InetSocketAddress(port));
+      serverChannel.configureBlocking(false);
+
+      loops = new EventLoop[numLoops];
+      for (int i = 0; i < numLoops; i++) {
+         loops[i] = new EventLoop(Selector.open());
+      }
+      serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+
+      running = true;
+      for (int i = 0; i < numLoops; i++) {
+         Thread t = new Thread(loops[i], "httpserver-nio-" + i);
+         t.setDaemon(true);
+         loops[i].thread = t;
+         t.start();
+      }
+
+      LOG.info("ANDROID HTTP server started (NIO engine, " + execution + " workers), addr:"
+               + serverChannel.socket().getInetAddress() + " loops:" + numLoops);
+   }
+
+   // connections accepted, not yet picked up by their event loop (usually none)
+   public int getQueuedConnections() {
+      EventLoop[] l = loops;
+      int queued = 0;
+      if (l != null) {
+         for (EventLoop loop : l) {
+            queued += loop.pending.size();
+         }
+      }
+      return queued;
+   }
+
+   public void stop() {
+      if (!running) {
+         return;
+      }
+      running = false;
+      for (EventLoop loop : loops) {
+         loop.selector.wakeup();
+      }
+      for (EventLoop loop : loops) {
+         try {
+            loop.thread.join(5000);
+         } catch (InterruptedException e) {
+            LOG.error("ERROR stopping server:" + e.getMessage(), e);
+         }
+      }
+      try {
+         serverChannel.close();
+      } catch (IOException e) {
+         LOG.error("ERROR closing server channel:" + e.getMessage(), e);
+      }
+      // connections are closed, anything still processing is given up on when it completes
+      workers.shutdown();
+      try {
+         workers.awaitTermination(5, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         LOG.error("ERROR stopping server:" + e.getMessage(), e);
+      }
+      workers.shutdownNow();
+      // (loops are gone) responses of requests that finished processing after their loop stopped
+      for (EventLoop loop : loops) {
+         Connection connection;
+         while ((connection = loop.processed.poll()) != null) {
+            connection.discardProcessed();
+         }
+      }
+   }
+
+   //
+   // event loop
+   //
+
+   private final class EventLoop implements Runnable {
+
+      private final Selector selector;
+      private final Queue<Connection> pending = new ConcurrentLinkedQueue<Connection>();
+      private final Queue<Connection> processed = new ConcurrentLinkedQueue<Connection>(); // workers done with a request
+      private final List<Connection> throttled = new ArrayList<Connection>(); // over bandwidth share, waiting to resume
+      private final List<Connection> buffered = new ArrayList<Connection>(); // TLS input waiting, socket won't tell
+      private Thread thread;
+      private int next; // round robin, only used by accepting loop
+
+      EventLoop(Selector selector) {
+         this.selector = selector;
+      }
+
+      void register(Connection connection) {
+         pending.add(connection);
+         // (also wakeup when called from this loop, so next select doesn't block before registering)
+         selector.wakeup();
+      }
+
+      // worker finished processing connection's request (any thread)
+      void processed(Connection connection) {
+         processed.add(connection);
+         selector.wakeup();
+      }
+
+      // connection stopped writing until its resumeAt (loop thread only)
+      void throttle(Connection connection) {
+         throttled.add(connection);
+      }
+
+      // connection has decrypted input (or whole records) buffered, read it again next time round (loop thread only)
+      void readAgain(Connection connection) {
+         if (!connection.readAgain) {
+            connection.readAgain = true;
+            buffered.add(connection);
+         }
+      }
+
+      public void run() {
+         CURRENT_LOOP.set(this);
+         long lastIdleCheck = System.currentTimeMillis();
+         while (running) {
+            try {
+               if (buffered.isEmpty() && processed.isEmpty()) {
+                  selector.select(selectTimeout());
+               } else {
+                  selector.selectNow();
+               }
+               registerPending();
+               completeProcessed();
+
+               Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+               while (it.hasNext()) {
+                  SelectionKey key = it.next();
+                  it.remove();
+                  handleKey(key);
+               }
+               resumeThrottled();
+               readBuffered();
+
+               long now = System.currentTimeMillis();
+               if (now - lastIdleCheck >= IDLE_CHECK_MILLIS) {
+                  closeIdle(now);
+                  lastIdleCheck = now;
+               }
+            } catch (IOException e) {
+               LOG.error("ERROR in event loop:" + e.getMessage(), e);
+            } catch (RuntimeException e) {
+               // (not from any one connection, those are closed where they fail) keep serving the others
+               LOG.error("ERROR in event loop:" + e.getMessage(), e);
+            }
+         }
+         closeAll();
+      }
+
+      // millis to the next throttled connection due to resume, at most IDLE_CHECK_MILLIS (never 0, that's forever)
+      private long selectTimeout() {
+         long timeout = IDLE_CHECK_MILLIS;
+         if (!throttled.isEmpty()) {
+            long now = System.nanoTime();
+            for (Connection connection : throttled) {
+               timeout = Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(connection.resumeAt - now + 999999));
+            }
+         }
+         return Math.max(1, timeout);
+      }
+
+      private void resumeThrottled() {
+         if (throttled.isEmpty()) {
+            return;
+         }
+         long now = System.nanoTime();
+         int i = 0;
+         while (i < throttled.size()) {
+            Connection connection = throttled.get(i);
+            if (connection.resumeAt - now > 0 && !connection.closed) {
+               i++;
+               continue;
+            }
+            // order doesn't matter, last takes its place (resuming may throttle again, that goes on the end)
+            throttled.set(i, throttled.get(throttled.size() - 1));
+            throttled.remove(throttled.size() - 1);
+            connection.resumeAt = 0;
+            if (connection.closed) {
+               continue;
+            }
+            try {
+               connection.onWritable();
+            } catch (CancelledKeyException e) {
+               connection.close();
+            } catch (IOException e) {
+               LOG.error("ERROR writing response (normal if client cancels connection) e:{}", e.getMessage());
+               connection.close();
+            } catch (RuntimeException e) {
+               failed(connection, e);
+            } catch (Error e) {
+               failed(connection, e);
+            }
+         }
+      }
+
+      // responses from workers, queued to write in order, and the connection's next request picked up
+      private void completeProcessed() {
+         Connection connection;
+         while ((connection = processed.poll()) != null) {
+            try {
+               connection.onProcessed();
+            } catch (CancelledKeyException e) {
+               connection.close();
+            } catch (IOException e) {
+               LOG.error("ERROR writing response (normal if client cancels connection) e:{}", e.getMessage());
+               connection.close();
+            } catch (RuntimeException e) {
+               failed(connection, e);
+            } catch (Error e) {
+               failed(connection, e);
+            }
+         }
+      }
+
+      private void readBuffered() {
+         if (buffered.isEmpty()) {
+            return;
+         }
+         Connection[] ready = buffered.toArray(new Connection[buffered.size()]);
+         buffered.clear();
+         for (Connection connection : ready) {
+            connection.readAgain = false;
+            if (connection.closed) {
+               continue;
+            }
+            try {
+               connection.onReadable();
+            } catch (CancelledKeyException e) {
+               connection.close();
+            } catch (IOException e) {
+               LOG.error("ERROR writing response (normal if client cancels connection) e:{}", e.getMessage());
+               connection.close();
+            } catch (RuntimeException e) {
+               failed(connection, e);
+            } catch (Error e) {
+               failed(connection, e);
+            }
+         }
+      }
+
+      // connections waiting too long for a request header, or for their next request (persistent)
+      private void closeIdle(long now) {
+         int keepAliveTimeout = processor.getKeepAliveTimeout();
+         int headerTimeout = processor.getHeaderTimeout();
+         for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+               Connection connection = (Connection) key.attachment();
+               if (connection.isTimedOut(now, keepAliveTimeout, headerTimeout)) {
+                  LOG.debug("{} connection idle, or request header too slow, closing", processor.getUserAgent());
+                  connection.close();
+               }
+            }
+         }
+      }
+
+      private void handleKey(SelectionKey key) {
+         if (key.isValid() && key.isAcceptable()) {
+            accept();
+            return;
+         }
+         Connection connection = (Connection) key.attachment();
+         try {
+            if (key.isValid() && key.isReadable()) {
+               connection.onReadable();
+            }
+            if (key.isValid() && key.isWritable()) {
+               connection.onWritable();
+            }
+         } catch (CancelledKeyException e) {
+            connection.close();
+         } catch (IOException e) {
+            LOG.error("ERROR writing response (normal if client cancels connection) e:{}", e.getMessage());
+            connection.close();
+         } catch (RuntimeException e) {
+            failed(connection, e);
+         } catch (Error e) {
+            failed(connection, e);
+         }
+      }
+
+      // unexpected failure handling one connection (a bug, a throwing callback, InternalError from a mapped file
+      // truncated under us), only that connection is closed, the loop carries on with the others
+      private void failed(Connection connection, Throwable t) {
+         LOG.error("ERROR handling connection, closing it e:" + t, t);
+         connection.close();
+      }
+
+      private void accept() {
+         try {
+            SocketChannel channel;
+            while ((channel = serverChannel.accept()) != null) {
+               channel.configureBlocking(false);
+               // responses go out whole (head, then body), Nagle would only hold the tail back for the client's delayed ACK
+               channel.socket().setTcpNoDelay(true);
+               // over limits, still read the request, and answer 503 (closing with unread input would reset, not 503)
+               boolean admitted = processor.getAdmission().tryAcquireConnection(0);
+               if (!admitted) {
+                  LOG.warn("too many connections, rejecting connection (503)");
+               }
+               loops[next++ % loops.length].register(new Connection(channel, admitted));
+            }
+         } catch (IOException e) {
+            LOG.error("ERROR accepting connection:" + e.getMessage(), e);
+         }
+      }
+
+      private void registerPending() {
+         Connection connection;
+         while ((connection = pending.poll()) != null) {
+            try {
+               connection.key = connection.channel.register(selector, SelectionKey.OP_READ, connection);
+               connection.loop = this;
+               connection.requests = processor.createRequestBuffer();
+               Tls tls = processor.getTls();
+               if (tls != null) {
+                  // (encryption buffers from the pool too, on this thread)
+                  connection.tls = new TlsChannel(tls, connection.channel, processor.getBuffers());
+                  connection.io = connection.tls;
+               }
+            } catch (ClosedChannelException e) {
+               LOG.warn("channel closed before it could be registered");
+               connection.close();
+            } catch (IOException e) {
+               LOG.warn("could not set up connection e:{}", e.getMessage());
+               connection.close();
+            }
+         }
+      }
+
+      private void closeAll() {
+         Connection connection;
+         while ((connection = pending.poll()) != null) {
+            connection.close();
+         }
+         while ((connection = processed.poll()) != null) {
+            connection.close();
+            connection.discardProcessed();
+         }
+         for (SelectionKey key : selector.keys()) {
+            if (key.attachment() instanceof Connection) {
+               ((Connection) key.attachment()).close();
+            }
+         }
+         try {
+            selector.close();
+         } catch (IOException e) {
+            LOG.error("ERROR closing selector:" + e.getMessage(), e);
+         }
+      }
+   }
+
+   //
+   // per connection state
+   //
+
+   private final class Connection {
+
+      private final SocketChannel channel;
+      private ByteChannel io; // channel, or (TLS) the TlsChannel over it
+      private TlsChannel tls; // null, plain HTTP
+      private boolean readAgain; // queued to read buffered TLS input
+      private final InetAddress remote;
+      private final boolean admitted; // false if over admission limits, every request gets 503
+      private final long start = System.currentTimeMillis();
+      private SelectionKey key;
+      private EventLoop loop;
+      private long lastActivity = start;
+      private long headerStart = start; // current request header may arrive from, connecting, first byte, or last response
+      private int requestNumber;
+
+      // pipelined requests are processed as they arrive, responses queue up and go out in order
+      private RequestBuffer requests; // from the pool, once registered (on the loop's thread, that releases it)
+      private final Queue<Response> responses = new ArrayDeque<Response>();
+      private boolean processing; // a worker has the current request (valid until the next one is parsed)
+      private Request request;
+      private long received;
+      private volatile Response result; // processed by the worker, picked up by the loop
+      private volatile Throwable failure; // or what it threw
+      private boolean closeAfterQueued; // no more requests will be read, close once queued responses are out
+      private boolean closed;
+
+      // response currently being written
+      private Response response;
+      private ByteBuffer out;
+      private int segment; // index of next body segment to queue
+      private FileChannel fileChannel;
+      private long filePosition;
+      private long fileRemaining;
+      private ChunkedCompressor compressor; // current segment is compressed as it's sent
+      private SharedReads.Block block; // shared block being sent from (null, region is read from the file)
+      private long written; // bytes of current response sent so far
+      private BandwidthShaper.Stream stream; // body paced to its bandwidth share (null, not shaped)
+      private long resumeAt; // System.nanoTime writing resumes, 0 unless throttled
+      private final BandwidthShaper.Connection shaping; // per connection limit, for all its responses
+
+      Connection(SocketChannel channel, boolean admitted) {
+         this.channel = channel;
+         this.io = channel;
+         this.admitted = admitted;
+         this.remote = channel.socket().getInetAddress();
+         this.shaping = processor.getShaper().connection();
+      }
+
+      // nothing being written, and waiting on the client too long, between requests on a persistent connection,
+      // or for a request header (never sent one, or sending a partial one)
+      boolean isTimedOut(long now, int keepAliveTimeout, int headerTimeout) {
+         if (closed || inFlight() > 0) {
+            return false;
+         }
+         if (requestNumber > 0 && requests.isEmpty()) {
+            return now - lastActivity > keepAliveTimeout;
+         }
+         // (measured from when the header started, a byte at a time doesn't keep it open)
+         return now - headerStart > headerTimeout;
+      }
+
+      void onReadable() throws IOException {
+         boolean waiting = requestNumber > 0 && requests.isEmpty();
+         if (requests.read(io) < 0) {
+            // client is done sending, finish any responses still queued
+            closeAfterQueued = true;
+         } else {
+            lastActivity = System.currentTimeMillis();
+            if (waiting) {
+               // first bytes of next request on a persistent connection
+               headerStart = lastActivity;
+            }
+            processBuffered();
+         }
+         onWritable();
+      }
+
+      void onWritable() throws IOException {
+         if (tls != null && !tls.flush()) {
+            // encrypted bytes (or handshake messages) still waiting for the socket
+            updateInterest();
+            return;
+         }
+         if (resumeAt != 0) {
+            // throttled, loop resumes writing
+            updateInterest();
+            return;
+         }
+         while (true) {
+            if (response == null) {
+               response = responses.poll();
+               if (response == null) {
+                  break;
+               }
+               out = response.head.duplicate();
+               segment = 0;
+               written = 0;
+               processor.getMetrics().responseStarted(response.received);
+               stream = shaping.open(response);
+            }
+            if (!writeCurrent()) {
+               // socket buffer full, wait for OP_WRITE (or throttled)
+               updateInterest();
+               return;
+            }
+
+            boolean keepAlive = response.keepAlive;
+            closeFile();
+            closeStream();
+            processor.responseDone(response, remote, written, true);
+            response.done();
+            response = null;
+            out = null;
+            lastActivity = System.currentTimeMillis();
+            headerStart = lastActivity;
+            if (!keepAlive) {
+               closeAfterQueued = true;
+               continue;
+            }
+            // room in queue again, pick up any requests that were waiting in the buffer
+            processBuffered();
+         }
+         if (closeAfterQueued && !processing && (tls == null || tls.flush())) {
+            close();
+            return;
+         }
+         updateInterest();
+      }
+
+      // hand the next complete buffered request to a worker, up to the pipeline depth, one at a time
+      // (over admission limits it's answered 503 right here, that costs nothing)
+      private void processBuffered() throws IOException {
+         while (!processing && !closeAfterQueued && inFlight() < processor.getMaxPipelinedRequests()) {
+            Request next = requests.next();
+            if (next == null) {
+               break;
+            }
+            requestNumber++;
+            long now = System.nanoTime();
+            headerStart = System.currentTimeMillis();
+            if (!admitted) {
+               queue(Response.bytes(Status.SERVICE_UNAVAILABLE, processor.getAdmission().getRejectResponse(), null,
+                        false), next, now);
+               continue;
+            }
+            request = next;
+            received = now;
+            processing = true;
+            try {
+               workers.execute(new Runnable() {
+                  public void run() {
+                     process();
+                  }
+               });
+            } catch (RejectedExecutionException e) {
+               // stopping, no more requests, close once anything queued is out
+               processing = false;
+               request = null;
+               closeAfterQueued = true;
+            }
+         }
+      }
+
+      // on a worker, the loop takes it from here
+      private void process() {
+         try {
+            result = processor.process(request, requestNumber);
+         } catch (IOException e) {
+            LOG.error("ERROR I/O exception", e);
+            result = processor.createTextResponse("ERROR handling request: " + e.getMessage(), Status.ERROR);
+         } catch (RuntimeException e) {
+            failure = e;
+         } catch (Error e) {
+            failure = e;
+         } finally {
+            if (workerPerTask) {
+               processor.getBuffers().releaseThreadCache();
+            }
+            loop.processed(this);
+         }
+      }
+
+      // back on the loop, queue the worker's response and carry on with the connection
+      void onProcessed() throws IOException {
+         if (closed) {
+            discardProcessed();
+            return;
+         }
+         Response r = result;
+         Throwable t = failure;
+         result = null;
+         failure = null;
+         processing = false;
+         if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+         } else if (t != null) {
+            throw (Error) t;
+         }
+         queue(r, request, received);
+         request = null;
+         processBuffered();
+         onWritable();
+      }
+
+      // worker's response for a connection that is closed, only its resources are given back
+      void discardProcessed() {
+         Response r = result;
+         result = null;
+         failure = null;
+         processing = false;
+         if (r != null) {
+            r.done();
+         }
+      }
+
+      private void queue(Response r, Request answered, long receivedAt) {
+         r.answers(answered, receivedAt);
+         responses.add(r);
+         if (!r.keepAlive) {
+            closeAfterQueued = true;
+         }
+      }
+
+      // requests read and not yet answered in full, processing or queued to write
+      private int inFlight() {
+         return queued() + (processing ? 1 : 0);
+      }
+
+      private int queued() {
+         return responses.size() + (response != null ? 1 : 0);
+      }
+
+      // read while there is room for more pipelined requests, write while there is something to write
+      private void updateInterest() {
+         int ops = 0;
+         if (!closeAfterQueued && inFlight() < processor.getMaxPipelinedRequests()) {
+            ops |= SelectionKey.OP_READ;
+         }
+         if ((queued() > 0 && resumeAt == 0) || (tls != null && tls.hasPendingOutput())) {
+            ops |= SelectionKey.OP_WRITE;
+         }
+         key.interestOps(ops);
+         if ((ops & SelectionKey.OP_READ) != 0 && tls != null && tls.hasBufferedInput()) {
+            loop.readAgain(this);
+         }
+      }
+
+      // write as much of current response as the socket will take, true if it's all out
+      private boolean writeCurrent() throws IOException {
+         while (true) {
+            if (out != null && out.hasRemaining()) {
+               int allowed = (int) allowance(out.remaining());
+               if (allowed == 0) {
+                  return false;
+               }
+               int limit = out.limit();
+               out.limit(out.position() + allowed);
+               int sent = io.write(out);
+               out.limit(limit);
+               unused(allowed - sent);
+               written += sent;
+               if (out.hasRemaining()) {
+                  if (sent < allowed) {
+                     return false;
+                  }
+                  // took all that was allowed, more may be (or throttles)
+                  continue;
+               }
+            }
+            if (fileChannel != null && fileRemaining > 0 && !writeFileRegion()) {
+               return false;
+            }
+            if (compressor != null) {
+               // next chunk, compressed only once the socket took the previous one
+               out = compressor.next();
+               if (out != null) {
+                  continue;
+               }
+               endCompressor();
+            }
+            if (!nextOut()) {
+               return true;
+            }
+         }
+      }
+
+      // queue up next body segment of response to write, bytes, or file region
+      private boolean nextOut() throws IOException {
+         if (segment >= response.body.length) {
+            return false;
+         }
+         Response.Segment next = response.body[segment++];
+         if (!next.isFileRegion()) {
+            out = next.data();
+         } else {
+            if (fileChannel == null) {
+               fileChannel = new RandomAccessFile(response.file, "r").getChannel();
+            }
+            if (next.isCompressed()) {
+               compressor = new ChunkedCompressor(processor.getBuffers(), fileChannel, next.offset, next.length,
+                        next.encoding);
+            } else {
+               filePosition = next.offset;
+               fileRemaining = next.length;
+            }
+         }
+         return true;
+      }
+
+      // zero-copy from file straight to socket, false if socket can't take more yet (wait for OP_WRITE), or throttled
+      private boolean writeFileRegion() throws IOException {
+         SharedReads.Stream shared = response.shared;
+         while (fileRemaining > 0) {
+            long wanted = fileRemaining;
+            if (shared != null) {
+               // a block at a time, from memory if another stream of the file read it (or will, for all of them)
+               wanted = Math.min(wanted, SharedReads.blockEnd(filePosition) - filePosition);
+            }
+            long allowed = allowance(wanted);
+            if (allowed == 0) {
+               return false;
+            }
+            if (shared != null && block == null) {
+               // (never waits for another stream's read, reads the file instead)
+               block = shared.acquire(filePosition, false);
+            }
+            long sent;
+            if (block != null) {
+               sent = io.write(block.slice(filePosition, allowed));
+            } else {
+               sent = FileTransfer.transfer(fileChannel, filePosition, allowed, io);
+            }
+            unused(allowed - sent);
+            filePosition += sent;
+            fileRemaining -= sent;
+            written += sent;
+            if (block != null && (filePosition >= block.end() || fileRemaining == 0)) {
+               releaseBlock();
+            }
+            if (sent < allowed) {
+               if (filePosition >= fileChannel.size()) {
+                  throw new IOException("file ended early, " + fileRemaining + " bytes short");
+               }
+               return false;
+            }
+         }
+         return true;
+      }
+
+      // body bytes that may go now (all wanted if not shaped, head never is), 0 if throttled (loop resumes us)
+      private long allowance(long wanted) {
+         if (stream == null || segment == 0) {
+            return wanted;
+         }
+         long now = System.nanoTime();
+         long delay = stream.delayNanos(wanted, now);
+         if (delay > 0) {
+            resumeAt = now + delay;
+            loop.throttle(this);
+            return 0;
+         }
+         return stream.take(wanted, now);
+      }
+
+      // allowed but not taken by the socket
+      private void unused(long n) {
+         if (n > 0 && stream != null && segment > 0) {
+            stream.giveBack(n);
+         }
+      }
+
+      private void closeStream() {
+         if (stream != null) {
+            stream.close();
+            stream = null;
+         }
+      }
+
+      private void endCompressor() {
+         if (compressor != null) {
+            compressor.end();
+            compressor = null;
+         }
+      }
+
+      private void releaseBlock() {
+         if (block != null) {
+            block.release();
+            block = null;
+         }
+      }
+
+      private void closeFile() {
+         endCompressor();
+         releaseBlock();
+         try {
+            if (fileChannel != null) {
+               fileChannel.close();
+            }
+         } catch (IOException e) {
+            LOG.error("Error closing file channel", e);
+         }
+         fileChannel = null;
+      }
+
+      void close() {
+         if (closed) {
+            return;
+         }
+         closed = true;
+         if (admitted) {
+            processor.getAdmission().releaseConnection();
+         }
+         if (key != null) {
+            key.cancel();
+         }
+         closeFile();
+         closeStream();
+         if (requests != null) {
+            requests.release();
+         }
+         if (tls != null) {
+            tls.close();
+         }
+         try {
+            channel.close();
+         } catch (IOException e) {
+            LOG.error("Error closing channel", e);
+         }
+         if (requestNumber > 0 && LOG.isDebugEnabled()) {
+            LOG.debug("{} server handler stop, requests:{} duration:{}", new Object[] { processor.getUserAgent(),
+                     requestNumber, System.currentTimeMillis() - start });
+         }
+         // give back file streams of anything not written
+         if (response != null) {
+            processor.responseDone(response, remote, written, false);
+            response.done();
+         }
+         for (Response r : responses) {
+            r.done();
+         }
+         responses.clear();
+         response = null;
+      }
+   }
+}
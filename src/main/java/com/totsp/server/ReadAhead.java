@@ -0,0 +1,393 @@
+package com.totsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Read-ahead for Range streaming, players walk a file in successive ranges (bytes=0-1048575, bytes=1048576-...),
+ * and on slow storage (SD card) each one starts with a stall while the first blocks are read.
+ *
+ * Range requests are tracked per file (recent files, by ETag). Once a range starts where the one before ended
+ * (or a little past it, forward strides), the next window (about the size of the last range) is read into memory
+ * by a background thread, and the next range is served from it, the rest of it (if any) still from the file.
+ * A range that arrives while its window is still being read waits for it (briefly, where the caller may block).
+ * A range anywhere else is a seek, the window is dropped (and its read cancelled). Windows are pooled buffers, given
+ * back once dropped and no longer sent, and use at most maxBytes, past that nothing more is read ahead until some are.
+ *
+ */
+final class ReadAhead {
+
+   private static final Logger LOG = LoggerFactory.getLogger(ReadAhead.class);
+
+   static final long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+   static final int DEFAULT_MAX_WINDOW = 1024 * 1024;
+   static final int MIN_WINDOW = 64 * 1024;
+
+   private static final int MAX_FILES = 32; // files tracked
+   private static final int MAX_QUEUED = 16; // windows waiting to be read
+   private static final int READ_CHUNK = 64 * 1024; // windows are read this much at a time (cancel is checked between)
+   private static final long AWAIT_MILLIS = 200; // most a range waits for its window to be read
+
+   private final long maxBytes;
+   private final int maxWindow;
+   private final BufferPool buffers;
+
+   // by path, access order, eldest (least recently streamed) dropped (guarded by itself)
+   private final Map<String, Tracker> trackers = new LinkedHashMap<String, Tracker>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, Tracker> eldest) {
+         if (size() > MAX_FILES) {
+            eldest.getValue().drop();
+            return true;
+         }
+         return false;
+      }
+   };
+   private final BlockingQueue<Window> queue = new ArrayBlockingQueue<Window>(MAX_QUEUED);
+   private final AtomicLong usedBytes = new AtomicLong();
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong cancelled = new AtomicLong();
+   private final AtomicLong read = new AtomicLong();
+
+   private final Thread thread;
+   private volatile boolean running = true;
+
+   ReadAhead(final long maxBytes, final int maxWindow, final BufferPool buffers) {
+      this.maxBytes = maxBytes;
+      this.maxWindow = Math.max(MIN_WINDOW, maxWindow);
+      this.buffers = buffers;
+      thread = new Thread("httpserver-read-ahead") {
+         @Override
+         public void run() {
+            readLoop();
+         }
+      };
+      thread.setDaemon(true);
+      thread.start();
+   }
+
+   /**
+    * Range start (offset) and length of file about to be served. Returns the start of it from memory (read ahead,
+    * as much of it as the window holds), or null if it wasn't read ahead (caller serves it from the file). If not
+    * null caller must release it once sent. wait, if the window for it is still being read, wait for it (otherwise
+    * null right away). Tracks the access, and queues the next window if the file is being read sequentially.
+    *
+    */
+   Hit get(FileInfoCache.FileInfo info, long start, long length, boolean wait) {
+      Hit hit = null;
+      Window pending = null;
+      Tracker tracker;
+      boolean sequential;
+      synchronized (trackers) {
+         String path = info.file.getPath();
+         tracker = trackers.get(path);
+         if (tracker == null || !tracker.etag.equals(info.etag)) {
+            if (tracker != null) {
+               tracker.drop();
+            }
+            tracker = new Tracker(info.etag);
+            trackers.put(path, tracker);
+         }
+         long expected = tracker.expected;
+         sequential = expected >= 0 && start >= expected && start - expected <= maxWindow;
+         Window window = tracker.window;
+         if (window != null && !window.isCancelled() && window.contains(start)) {
+            hit = window.hit(start, length);
+            if (hit == null && wait) {
+               pending = window;
+            }
+         } else if (window != null && !sequential) {
+            // seek, what was read ahead won't be used
+            tracker.drop();
+            cancelled.incrementAndGet();
+         }
+         tracker.expected = start + length;
+      }
+      if (pending != null) {
+         // read is under way, reading the range from the file again wouldn't be quicker
+         pending.await();
+         hit = pending.hit(start, length);
+      }
+      if (hit != null) {
+         hits.incrementAndGet();
+      } else {
+         misses.incrementAndGet();
+      }
+      if (sequential || hit != null) {
+         queueNext(info, tracker, start + length, length);
+      }
+      return hit;
+   }
+
+   void close() {
+      running = false;
+      thread.interrupt();
+      synchronized (trackers) {
+         for (Tracker tracker : trackers.values()) {
+            tracker.drop();
+         }
+         trackers.clear();
+      }
+   }
+
+   // ranges served (at least in part) from memory
+   long getHits() {
+      return hits.get();
+   }
+
+   long getMisses() {
+      return misses.get();
+   }
+
+   // windows dropped on a seek
+   long getCancelled() {
+      return cancelled.get();
+   }
+
+   // windows read into memory
+   long getRead() {
+      return read.get();
+   }
+
+   // held by windows being read, or read and not yet dropped (or still being sent)
+   long getUsedBytes() {
+      return usedBytes.get();
+   }
+
+   //
+   // priv helpers
+   //
+
+   private boolean reserve(long bytes) {
+      while (true) {
+         long used = usedBytes.get();
+         if (used + bytes > maxBytes) {
+            return false;
+         }
+         if (usedBytes.compareAndSet(used, used + bytes)) {
+            return true;
+         }
+      }
+   }
+
+   // next window, from offset, unless the one there already covers it (windows that don't are replaced)
+   private void queueNext(FileInfoCache.FileInfo info, Tracker tracker, long offset, long length) {
+      Window next = null;
+      synchronized (trackers) {
+         if (trackers.get(info.file.getPath()) != tracker) {
+            // dropped, or replaced by a newer version of the file, while waiting
+            return;
+         }
+         long windowEnd = Math.min(info.length, offset + Math.min(Math.max(length, MIN_WINDOW), maxWindow));
+         Window window = tracker.window;
+         boolean covered = window != null && !window.isCancelled() && window.start <= offset
+                  && window.end >= Math.min(info.length, offset + length);
+         if (offset < windowEnd && !covered && reserve(windowEnd - offset)) {
+            tracker.drop();
+            next = new Window(info.file, offset, windowEnd);
+            tracker.window = next;
+         }
+      }
+      if (next != null && !queue.offer(next)) {
+         // reader is behind, skip this one
+         next.cancel();
+      }
+   }
+
+   private void readLoop() {
+      while (running) {
+         Window window;
+         try {
+            window = queue.take();
+         } catch (InterruptedException e) {
+            break;
+         }
+         window.read();
+      }
+      Window window;
+      while ((window = queue.poll()) != null) {
+         window.cancel();
+      }
+   }
+
+   /**
+    * Access to one file (one version of it, by ETag), where the next range is expected to start,
+    * and the window read ahead for it.
+    *
+    */
+   private static final class Tracker {
+
+      private final String etag;
+      private long expected = -1;
+      private Window window;
+
+      Tracker(final String etag) {
+         this.etag = etag;
+      }
+
+      void drop() {
+         if (window != null) {
+            window.cancel();
+            window = null;
+         }
+      }
+   }
+
+   /**
+    * Start of a range, from a window, holds the window's buffer until released.
+    *
+    */
+   final class Hit {
+
+      final ByteBuffer data; // read only, independent of other hits
+      private final Window window;
+      private final AtomicBoolean released = new AtomicBoolean();
+
+      private Hit(final Window window, final ByteBuffer data) {
+         this.window = window;
+         this.data = data;
+      }
+
+      // sent (or given up on), safe to call more than once
+      void release() {
+         if (released.compareAndSet(false, true)) {
+            window.unref();
+         }
+      }
+   }
+
+   /**
+    * Region of a file (start inclusive, end exclusive) read into memory, data is null until it's all read.
+    * Referenced by its tracker (until dropped), the read, and each hit, the buffer goes back to the pool (and its
+    * size to the budget) with the last of them.
+    *
+    */
+   private final class Window {
+
+      private final File file;
+      private final long start;
+      private final long end;
+      private final AtomicBoolean cancelled = new AtomicBoolean();
+      private final AtomicInteger refs = new AtomicInteger(1);
+      private final CountDownLatch done = new CountDownLatch(1); // read, failed, or cancelled
+      private ByteBuffer buffer; // pooled, written by the read (before data is set)
+      private volatile ByteBuffer data;
+
+      Window(final File file, final long start, final long end) {
+         this.file = file;
+         this.start = start;
+         this.end = end;
+      }
+
+      boolean contains(long offset) {
+         return offset >= start && offset < end;
+      }
+
+      boolean isCancelled() {
+         return cancelled.get();
+      }
+
+      // start of range at offset (read only slice), null if not read (yet), or dropped
+      Hit hit(long offset, long length) {
+         if (data == null || isCancelled() || !ref()) {
+            return null;
+         }
+         return new Hit(this, ContentCache.slice(data, offset - start, Math.min(length, end - offset)));
+      }
+
+      // dropped by its tracker (or never queued), read stops, hits already handed out stay valid
+      void cancel() {
+         if (cancelled.compareAndSet(false, true)) {
+            done.countDown();
+            unref();
+         }
+      }
+
+      void await() {
+         try {
+            done.await(AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         }
+      }
+
+      // false once the last reference is gone
+      boolean ref() {
+         while (true) {
+            int n = refs.get();
+            if (n == 0) {
+               return false;
+            }
+            if (refs.compareAndSet(n, n + 1)) {
+               return true;
+            }
+         }
+      }
+
+      void unref() {
+         if (refs.decrementAndGet() == 0) {
+            buffers.release(buffer);
+            buffer = null;
+            usedBytes.addAndGet(-(end - start));
+         }
+      }
+
+      void read() {
+         if (isCancelled() || !ref()) {
+            return;
+         }
+         int size = (int) (end - start);
+         RandomAccessFile in = null;
+         try {
+            buffer = buffers.acquire(size, true);
+            in = new RandomAccessFile(file, "r");
+            FileChannel channel = in.getChannel();
+            while (buffer.position() < size && !isCancelled()) {
+               buffer.limit(Math.min(size, buffer.position() + READ_CHUNK));
+               if (channel.read(buffer, start + buffer.position()) < 0) {
+                  break;
+               }
+            }
+            if (buffer.position() < size) {
+               // cancelled, or file got shorter
+               cancel();
+               return;
+            }
+            buffer.flip();
+            data = buffer.asReadOnlyBuffer();
+            read.incrementAndGet();
+         } catch (IOException e) {
+            LOG.warn("could not read ahead file:{} e:{}", file, e.getMessage());
+            cancel();
+         } finally {
+            if (in != null) {
+               try {
+                  in.close();
+               } catch (IOException e) {
+                  LOG.error("Error closing file", e);
+               }
+            }
+            done.countDown();
+            unref();
+         }
+      }
+   }
+}
@@ -0,0 +1,228 @@
+package com.totsp.server;
+
+import java.nio.charset.Charset;
+import java.util.Locale;
+
+/**
+ * Parsed request header, request line parts, and values of only the headers the server uses (others are skipped,
+ * never turned into Strings). Filled in line by line by RequestBuffer straight from its bytes, one instance per
+ * connection, reset for each request, so it's only valid until the next request is read.
+ *
+ */
+final class Request {
+
+   static final String GET = "GET";
+   static final String HEAD = "HEAD";
+   static final String HTTP_1_0 = "HTTP/1.0";
+   static final String HTTP_1_1 = "HTTP/1.1";
+   static final String HTTP_2 = "HTTP/2.0";
+
+   // headers we care about, index for getHeader
+   static final int CONNECTION = 0;
+   static final int CONTENT_LENGTH = 1;
+   static final int TRANSFER_ENCODING = 2;
+   static final int RANGE = 3;
+   static final int IF_RANGE = 4;
+   static final int IF_NONE_MATCH = 5;
+   static final int IF_MODIFIED_SINCE = 6;
+   static final int ACCEPT_ENCODING = 7;
+   static final int UPGRADE = 8;
+   static final int HTTP2_SETTINGS = 9;
+
+   private static final String[] HEADER_NAMES = { "Connection", "Content-Length", "Transfer-Encoding", "Range",
+            "If-Range", "If-None-Match", "If-Modified-Since", "Accept-Encoding", "Upgrade", "HTTP2-Settings" };
+   private static final byte[][] HEADER_NAMES_LOWER = new byte[HEADER_NAMES.length][];
+   static {
+      for (int i = 0; i < HEADER_NAMES.length; i++) {
+         HEADER_NAMES_LOWER[i] = HEADER_NAMES[i].toLowerCase(Locale.US).getBytes();
+      }
+   }
+
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   private String method;
+   private String target;
+   private String version;
+   private final String[] headers = new String[HEADER_NAMES.length];
+
+   void reset() {
+      method = null;
+      target = null;
+      version = null;
+      for (int i = 0; i < headers.length; i++) {
+         headers[i] = null;
+      }
+   }
+
+   // GET or HEAD (same instances, compare with ==), otherwise whatever client sent
+   String getMethod() {
+      return method;
+   }
+
+   // request target without the leading slash, including any querystring (still URL encoded), null if none was sent
+   String getTarget() {
+      return target;
+   }
+
+   // HTTP_1_0, HTTP_1_1 or HTTP_2 (same instances), otherwise whatever client sent, empty if none
+   String getVersion() {
+      return version;
+   }
+
+   // value of first header with that name (index constant), trimmed, or null if not sent
+   String getHeader(int header) {
+      return headers[header];
+   }
+
+   // length of request body (if any) that has to be skipped before next request on a persistent connection
+   long getContentLength() {
+      String value = headers[CONTENT_LENGTH];
+      if (value == null) {
+         return 0;
+      }
+      try {
+         return Math.max(0, Long.parseLong(value));
+      } catch (NumberFormatException e) {
+         return 0;
+      }
+   }
+
+   /**
+    * Parse request line, bytes start to end (without CRLF), "METHOD /target VERSION".
+    *
+    */
+   void parseRequestLine(byte[] b, int start, int end) {
+      start = skipSpace(b, start, end);
+      end = trimEnd(b, start, end);
+
+      int methodEnd = indexOf(b, ' ', start, end);
+      method = matches(b, start, methodEnd, GET) ? GET : (matches(b, start, methodEnd, HEAD) ? HEAD : new String(b, start,
+               methodEnd - start, UTF_8));
+      if (methodEnd == end) {
+         return;
+      }
+
+      int targetStart = methodEnd + 1;
+      if (targetStart < end && b[targetStart] == '/') {
+         targetStart++;
+      }
+      int targetEnd = targetStart;
+      while (targetEnd < end && b[targetEnd] != ' ' && b[targetEnd] != '\t') {
+         targetEnd++;
+      }
+      target = new String(b, targetStart, targetEnd - targetStart, UTF_8);
+
+      int versionStart = skipSpace(b, targetEnd, end);
+      version = matches(b, versionStart, end, HTTP_1_1) ? HTTP_1_1 : (matches(b, versionStart, end, HTTP_1_0) ? HTTP_1_0
+               : (matches(b, versionStart, end, HTTP_2) ? HTTP_2 : new String(b, versionStart, end - versionStart, UTF_8)));
+   }
+
+   /**
+    * Set request line parts (HTTP/2 :method and :path pseudo headers), path as sent, with its leading slash.
+    *
+    */
+   void setRequestLine(String method, String path, String version) {
+      this.method = GET.equals(method) ? GET : (HEAD.equals(method) ? HEAD : method);
+      this.target = path != null && path.startsWith("/") ? path.substring(1) : path;
+      this.version = version;
+   }
+
+   /**
+    * Set header by name (any case, HTTP/2 sends them lower case), keeps value only if it's a header we use.
+    *
+    */
+   void setHeader(String name, String value) {
+      for (int i = 0; i < HEADER_NAMES.length; i++) {
+         if (headers[i] == null && HEADER_NAMES[i].equalsIgnoreCase(name)) {
+            headers[i] = value.trim();
+            return;
+         }
+      }
+   }
+
+   /**
+    * Parse header line, bytes start to end (without CRLF), "Name: value", keeps value only if it's a header we use.
+    *
+    */
+   void parseHeaderLine(byte[] b, int start, int end) {
+      int colon = indexOf(b, ':', start, end);
+      if (colon == end) {
+         return;
+      }
+      for (int i = 0; i < HEADER_NAMES_LOWER.length; i++) {
+         if (headers[i] == null && equalsIgnoreCase(b, start, colon, HEADER_NAMES_LOWER[i])) {
+            int valueStart = skipSpace(b, colon + 1, end);
+            headers[i] = new String(b, valueStart, trimEnd(b, valueStart, end) - valueStart, UTF_8);
+            return;
+         }
+      }
+   }
+
+   @Override
+   public String toString() {
+      StringBuilder sb = new StringBuilder();
+      sb.append(method + " /" + (target != null ? target : "") + " " + version);
+      for (int i = 0; i < headers.length; i++) {
+         if (headers[i] != null) {
+            sb.append("\n" + HEADER_NAMES[i] + ": " + headers[i]);
+         }
+      }
+      return sb.toString();
+   }
+
+   //
+   // priv helpers
+   //
+
+   private static int indexOf(byte[] b, char c, int start, int end) {
+      for (int i = start; i < end; i++) {
+         if (b[i] == c) {
+            return i;
+         }
+      }
+      return end;
+   }
+
+   private static int skipSpace(byte[] b, int start, int end) {
+      while (start < end && (b[start] == ' ' || b[start] == '\t')) {
+         start++;
+      }
+      return start;
+   }
+
+   private static int trimEnd(byte[] b, int start, int end) {
+      while (end > start && (b[end - 1] == ' ' || b[end - 1] == '\t')) {
+         end--;
+      }
+      return end;
+   }
+
+   private static boolean matches(byte[] b, int start, int end, String s) {
+      if (end - start != s.length()) {
+         return false;
+      }
+      for (int i = 0; i < s.length(); i++) {
+         if (b[start + i] != s.charAt(i)) {
+            return false;
+         }
+      }
+      return true;
+   }
+
+   // lower is already lower case (ASCII)
+   private static boolean equalsIgnoreCase(byte[] b, int start, int end, byte[] lower) {
+      if (end - start != lower.length) {
+         return false;
+      }
+      for (int i = 0; i < lower.length; i++) {
+         int c = b[start + i];
+         if (c >= 'A' && c <= 'Z') {
+            c += 'a' - 'A';
+         }
+         if (c != lower[i]) {
+            return false;
+         }
+      }
+      return true;
+   }
+}
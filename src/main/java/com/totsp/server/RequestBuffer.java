@@ -0,0 +1,196 @@
+package com.totsp.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Per connection input buffer, keeps bytes across requests so pipelined requests (sent before the previous response)
+ * aren't lost, and hands out one complete request header at a time. Used by both engines.
+ *
+ * Parsing is incremental, each line is parsed (into the connection's Request) as soon as its end arrives,
+ * bytes are never rescanned, and only the headers the server uses become Strings.
+ *
+ */
+final class RequestBuffer {
+
+   static final int BUFFER_SIZE = 4096; // small, yeah, we run this on phones and stuff
+   static final int MAX_HEADER_SIZE = 4 * BUFFER_SIZE;
+   static final int MAX_HEADER_LINES = 100;
+
+   private final BufferPool pool; // null, buffers are allocated (and left to GC)
+   private final int maxHeaderSize;
+   private ByteBuffer buffer; // always in "write" mode, position is number of bytes buffered
+   private long skipRemaining; // request body bytes still to discard
+
+   // parse state of current request header
+   private final Request request = new Request();
+   private int scanned; // bytes already looked at for line ends
+   private int lineStart; // start of line not yet complete
+   private int lines; // lines parsed so far
+
+   RequestBuffer() {
+      this(BUFFER_SIZE, MAX_HEADER_SIZE);
+   }
+
+   RequestBuffer(int initialSize, int maxHeaderSize) {
+      this(null, initialSize, maxHeaderSize);
+   }
+
+   /**
+    * Buffers (heap, requests are parsed as arrays) from pool, release must be called once the connection is done.
+    *
+    */
+   RequestBuffer(BufferPool pool, int initialSize, int maxHeaderSize) {
+      this.pool = pool;
+      this.maxHeaderSize = maxHeaderSize;
+      this.buffer = allocate(initialSize);
+   }
+
+   /**
+    * Read what is available from a (non-blocking) channel, returns bytes read, or -1 at end of stream.
+    *
+    */
+   int read(ReadableByteChannel channel) throws IOException {
+      ensureSpace();
+      return channel.read(buffer);
+   }
+
+   /**
+    * Read from a (blocking) stream, returns bytes read, or -1 at end of stream.
+    *
+    */
+   int read(InputStream in) throws IOException {
+      ensureSpace();
+      int read = in.read(buffer.array(), buffer.position(), buffer.remaining());
+      if (read > 0) {
+         buffer.position(buffer.position() + read);
+      }
+      return read;
+   }
+
+   boolean isEmpty() {
+      return buffer.position() == 0;
+   }
+
+   /**
+    * Next complete request header, or null if not all here yet (returned Request is reused, valid until next call).
+    * Any request body (by Content-Length) is consumed and dropped, so the next request starts in the right place.
+    *
+    */
+   Request next() throws IOException {
+      if (skipRemaining > 0) {
+         skipRemaining -= consume((int) Math.min(skipRemaining, buffer.position()));
+         if (skipRemaining > 0) {
+            return null;
+         }
+      }
+
+      if (scanned == 0) {
+         // tolerate stray CRLF between requests
+         int blank = 0;
+         while (blank < buffer.position() && (buffer.get(blank) == '\r' || buffer.get(blank) == '\n')) {
+            blank++;
+         }
+         consume(blank);
+      }
+
+      byte[] b = buffer.array();
+      int limit = buffer.position();
+      for (; scanned < limit; scanned++) {
+         if (b[scanned] != '\n') {
+            continue;
+         }
+         int lineEnd = (scanned > lineStart && b[scanned - 1] == '\r') ? scanned - 1 : scanned;
+         if (lineEnd == lineStart) {
+            // blank line, end of header
+            int end = scanned + 1;
+            scanned = 0;
+            lineStart = 0;
+            lines = 0;
+            consume(end);
+            skipRemaining = request.getContentLength();
+            skipRemaining -= consume((int) Math.min(skipRemaining, buffer.position()));
+            return request;
+         }
+         if (++lines > MAX_HEADER_LINES) {
+            throw new IOException("too many request header lines");
+         }
+         if (lines == 1) {
+            request.reset();
+            request.parseRequestLine(b, lineStart, lineEnd);
+         } else {
+            request.parseHeaderLine(b, lineStart, lineEnd);
+         }
+         lineStart = scanned + 1;
+      }
+
+      if (!buffer.hasRemaining() && buffer.capacity() >= maxHeaderSize) {
+         throw new IOException("request header too large");
+      }
+      return null;
+   }
+
+   /**
+    * Bytes buffered past the last request returned by next (connection is switching protocols), buffer is left empty.
+    *
+    */
+   byte[] drain() {
+      byte[] rest = new byte[buffer.position()];
+      buffer.flip();
+      buffer.get(rest);
+      buffer.clear();
+      scanned = 0;
+      lineStart = 0;
+      lines = 0;
+      return rest;
+   }
+
+   /**
+    * Buffer goes back to the pool (if any), nothing may be read after.
+    *
+    */
+   void release() {
+      if (pool != null && buffer != null) {
+         pool.release(buffer);
+      }
+      buffer = null;
+   }
+
+   //
+   // priv helpers
+   //
+
+   private ByteBuffer allocate(int size) {
+      if (pool == null) {
+         return ByteBuffer.allocate(size);
+      }
+      // pooled buffers can be bigger than asked for, use all of it
+      ByteBuffer b = pool.acquire(size, false);
+      b.limit(b.capacity());
+      return b;
+   }
+
+   private void ensureSpace() {
+      if (!buffer.hasRemaining() && buffer.capacity() < maxHeaderSize) {
+         ByteBuffer bigger = allocate(Math.min(buffer.capacity() * 2, maxHeaderSize));
+         buffer.flip();
+         bigger.put(buffer);
+         if (pool != null) {
+            pool.release(buffer);
+         }
+         buffer = bigger;
+      }
+   }
+
+   // drop n bytes from front of buffer
+   private int consume(int n) {
+      if (n > 0) {
+         buffer.flip();
+         buffer.position(n);
+         buffer.compact();
+      }
+      return n;
+   }
+}
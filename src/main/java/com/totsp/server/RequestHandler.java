@@ -0,0 +1,322 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import javax.net.ssl.SSLException;
+
+/**
+ * Handler for each socket.accept with the BLOCKING engine, reads requests, and writes responses, on a pool thread.
+ * Loops on the connection while responses are keep-alive (persistent connection, HTTP/1.1 default),
+ * pipelined requests are answered in order, batched up to the configured depth. With TLS set, all of it goes through
+ * a TlsChannel.
+ *
+ */
+final class RequestHandler implements Runnable {
+
+   private static final Logger LOG = LoggerFactory.getLogger(RequestHandler.class);
+
+   private static final int IDLE_POLL_MILLIS = 250;
+
+   private final RequestProcessor processor;
+   private final Socket socket;
+   private final BlockingEngine engine;
+   private WritableByteChannel target; // file regions and mapped content go straight here (TLS, encrypted on the way)
+   private final BandwidthShaper.Connection shaping; // per connection limit, for all its responses
+
+   RequestHandler(final RequestProcessor processor, final Socket socket, final BlockingEngine engine) {
+      this.processor = processor;
+      this.socket = socket;
+      this.engine = engine;
+      this.shaping = processor.getShaper().connection();
+   }
+
+   public void run() {
+      long start = System.currentTimeMillis();
+      String userAgent = processor.getUserAgent();
+      LOG.debug("{} server handler start - {}", userAgent, start);
+      int requestNumber = 0;
+      RequestBuffer requests = null;
+      TlsChannel tls = null;
+      try {
+         // responses go out whole (head, then body), Nagle would only hold the tail back for the client's delayed ACK
+         socket.setTcpNoDelay(true);
+         // a client that connects and sends nothing (or trickles a header in) doesn't keep the thread
+         int headerTimeout = processor.getHeaderTimeout();
+         long headerDeadline = start + headerTimeout;
+         socket.setSoTimeout(headerTimeout);
+         // one buffer for the life of the connection, it may hold the next (pipelined) request(s)
+         requests = processor.createRequestBuffer();
+         Tls config = processor.getTls();
+         if (config != null) {
+            // handshake runs on the first read
+            tls = new TlsChannel(config, socket.getChannel(), processor.getBuffers());
+         }
+         InputStream in = tls != null ? Channels.newInputStream(tls) : socket.getInputStream();
+         // responses to pipelined requests are batched, and go out in order when no more requests are waiting
+         OutputStream out = new BufferedOutputStream(tls != null ? Channels.newOutputStream(tls) : socket
+                  .getOutputStream(), processor.getIoBufferSize());
+         target = tls != null ? tls : socket.getChannel() != null ? socket.getChannel() : Channels.newChannel(out);
+         int unflushed = 0;
+
+         boolean keepAlive = true;
+         while (keepAlive) {
+            Request request = requests.next();
+            if (request == null) {
+               // no complete request buffered, send what we have before waiting on the client
+               if (unflushed > 0) {
+                  out.flush();
+                  unflushed = 0;
+               }
+               if (requestNumber > 0 && requests.isEmpty()) {
+                  if (!awaitNextRequest(in, requests)) {
+                     break;
+                  }
+                  headerDeadline = System.currentTimeMillis() + headerTimeout;
+               } else if (System.currentTimeMillis() >= headerDeadline) {
+                  LOG.debug("{} request header too slow, closing", userAgent);
+                  break;
+               } else if (requests.read(in) < 0) {
+                  // client closed connection (normal end of persistent connection)
+                  break;
+               }
+               continue;
+            }
+            if (tls == null && processor.getHttp2MaxStreams() > 0 && (Http2Connection.isPreface(request)
+                     || Http2Connection.isUpgrade(request))) {
+               // rest of the connection is HTTP/2, prior knowledge, or upgraded (this request is stream 1)
+               out.flush();
+               unflushed = 0;
+               new Http2Connection(processor, socket, in, out, engine).serve(requests.drain(),
+                        Http2Connection.isPreface(request) ? null : request);
+               break;
+            }
+            requestNumber++;
+            long received = System.nanoTime();
+
+            Response response = null;
+            try {
+               response = processor.process(request, requestNumber);
+            } catch (IOException e) {
+               LOG.error("ERROR I/O exception", e);
+               response = processor.createTextResponse("ERROR handling request: " + e.getMessage(), Status.ERROR);
+            }
+            response.answers(request, received);
+
+            if (!writeResponse(response, out)) {
+               // client went away, nothing more to send
+               unflushed = 0;
+               break;
+            }
+            keepAlive = response.keepAlive;
+            // any (pipelined) request after it starts now
+            headerDeadline = System.currentTimeMillis() + headerTimeout;
+            if (++unflushed >= processor.getMaxPipelinedRequests()) {
+               out.flush();
+               unflushed = 0;
+            }
+         }
+         if (unflushed > 0) {
+            out.flush();
+         }
+      } catch (SocketTimeoutException e) {
+         LOG.debug("{} timed out reading request, closing", userAgent);
+      } catch (SSLException e) {
+         // (counted in metrics) client isn't speaking TLS, or we have no protocol or cipher suite in common
+         LOG.debug("{} TLS failed, closing e:{}", userAgent, e.getMessage());
+      } catch (IOException e) {
+         LOG.error("ERROR I/O exception", e);
+      } finally {
+         if (requests != null) {
+            requests.release();
+         }
+         if (tls != null) {
+            tls.close();
+         }
+         // this thread may not serve another connection (virtual, elastic), its free buffers go to the shared pool
+         processor.getBuffers().releaseThreadCache();
+         // close socket
+         try {
+            socket.close();
+         } catch (IOException e) {
+            LOG.error("ERROR closing socket", e);
+         }
+         processor.getAdmission().releaseConnection();
+      }
+      if (LOG.isDebugEnabled()) {
+         LOG.debug("{} server handler stop, requests:{} duration:{}", new Object[] { userAgent, requestNumber,
+                  System.currentTimeMillis() - start });
+      }
+   }
+
+   //
+   // request readers
+   //
+
+   // wait for next request on persistent connection, false if idle too long, or closed,
+   // or if other connections are waiting for a pool thread (idle connection gives its thread up)
+   private boolean awaitNextRequest(InputStream in, RequestBuffer requests) throws IOException {
+      int timeout = processor.getKeepAliveTimeout();
+      long deadline = System.currentTimeMillis() + timeout;
+      socket.setSoTimeout(Math.min(timeout, IDLE_POLL_MILLIS));
+      while (true) {
+         try {
+            if (requests.read(in) < 0) {
+               return false;
+            }
+            socket.setSoTimeout(processor.getHeaderTimeout());
+            return true;
+         } catch (SocketTimeoutException e) {
+            if (System.currentTimeMillis() >= deadline || engine.hasWaitingConnections()) {
+               LOG.debug("{} persistent connection idle, closing", processor.getUserAgent());
+               return false;
+            }
+         }
+      }
+   }
+
+   //
+   // response writers
+   //
+
+   // true if the whole response was written (or buffered, caller flushes)
+   private boolean writeResponse(Response response, OutputStream out) {
+      ServerMetrics metrics = processor.getMetrics();
+      metrics.responseStarted(response.received);
+      // body paced to its share of the bandwidth limits (null, not shaped)
+      BandwidthShaper.Stream stream = shaping.open(response);
+      FileChannel source = null;
+      long bytes = 0;
+      boolean complete = false;
+      try {
+         out.write(response.head.array(), 0, response.head.limit());
+         bytes += response.head.limit();
+         for (Response.Segment segment : response.body) {
+            if (!segment.isFileRegion()) {
+               bytes += writeData(segment.data(), out, stream);
+               continue;
+            }
+            if (source == null) {
+               source = new RandomAccessFile(response.file, "r").getChannel();
+            }
+            if (segment.isCompressed()) {
+               bytes += writeCompressedRegion(source, segment, out, stream);
+            } else {
+               bytes += writeFileRegion(source, segment, out, stream, response.shared);
+            }
+         }
+         complete = true;
+         return true;
+      } catch (Exception e) {
+         LOG.error("ERROR creating response (normal if client cancels connection) e:{}", e.getMessage());
+         return false;
+      } finally {
+         if (stream != null) {
+            stream.close();
+         }
+         processor.responseDone(response, socket.getInetAddress(), bytes, complete);
+         response.done();
+         if (source != null) {
+            try {
+               source.close();
+            } catch (IOException e) {
+               LOG.error("Error closing file channel", e);
+            }
+         }
+      }
+   }
+
+   // bytes written
+   private int writeData(ByteBuffer data, OutputStream dest, BandwidthShaper.Stream stream) throws IOException {
+      int length = data.remaining();
+      if (data.hasArray()) {
+         int offset = data.arrayOffset() + data.position();
+         for (int sent = 0; sent < length;) {
+            int n = stream != null ? (int) stream.acquire(length - sent) : length - sent;
+            dest.write(data.array(), offset + sent, n);
+            sent += n;
+         }
+         return length;
+      }
+      // mapped (cached) content, straight to socket, no copy to heap
+      dest.flush();
+      int limit = data.limit(); // (data is a duplicate, its limit is ours to move)
+      while (data.hasRemaining()) {
+         if (stream != null) {
+            data.limit(data.position() + (int) stream.acquire(limit - data.position()));
+         }
+         while (data.hasRemaining()) {
+            target.write(data);
+         }
+         data.limit(limit);
+      }
+      return length;
+   }
+
+   // compressed a chunk at a time, through the buffered stream (chunks are small, heap)
+   private long writeCompressedRegion(FileChannel source, Response.Segment segment, OutputStream dest,
+            BandwidthShaper.Stream stream) throws IOException {
+      ChunkedCompressor compressor = new ChunkedCompressor(processor.getBuffers(), source, segment.offset, segment.length,
+               segment.encoding);
+      long written = 0;
+      try {
+         for (ByteBuffer chunk; (chunk = compressor.next()) != null;) {
+            written += writeData(chunk, dest, stream);
+         }
+         return written;
+      } finally {
+         compressor.end();
+      }
+   }
+
+   private long writeFileRegion(FileChannel source, Response.Segment segment, OutputStream dest,
+            BandwidthShaper.Stream stream, SharedReads.Stream shared) throws IOException {
+      // anything before is already out, region goes straight from file to socket (no heap copy), positional so no skip needed
+      dest.flush();
+      long sent = 0;
+      while (sent < segment.length) {
+         long position = segment.offset + sent;
+         long n = segment.length - sent;
+         if (shared != null) {
+            // a block at a time, from memory if another stream of the file read it (or will, for all of them)
+            n = Math.min(n, SharedReads.blockEnd(position) - position);
+         }
+         if (stream != null) {
+            n = stream.acquire(n);
+         }
+         SharedReads.Block block = shared != null ? shared.acquire(position, true) : null;
+         long transferred;
+         if (block != null) {
+            try {
+               transferred = writeData(block.slice(position, n), dest, null);
+            } finally {
+               block.release();
+            }
+         } else {
+            transferred = FileTransfer.transfer(source, position, n, target);
+         }
+         sent += transferred;
+         if (transferred < n) {
+            break;
+         }
+      }
+      if (sent < segment.length) {
+         throw new IOException("file ended early, sent " + sent + " of " + segment.length + " bytes");
+      }
+      return sent;
+   }
+}
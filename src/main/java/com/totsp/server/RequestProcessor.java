@@ -0,0 +1,907 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+import com.totsp.server.enums.SupportedFileType;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.net.URLDecoder;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+import java.util.TimeZone;
+
+/**
+ * Turns a parsed Request into a Response, shared by all engines (engines only deal with reading and writing bytes).
+ *
+ * Same rules as always: empty request or directory gets server info, querystring or unknown extension is TEXT
+ * (callback and ACK), known SupportedFileType is MEDIA (200 or 206 partial content, or 304 for conditional GET).
+ * HEAD gets the same headers as GET, with no body. Text content (TXT files, bigger text responses) is gzip or deflate
+ * encoded when the client accepts it, see Compression.
+ *
+ */
+final class RequestProcessor {
+
+   private static final SimpleDateFormat INET_DFMT = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss z", Locale.US);
+   static {
+      INET_DFMT.setTimeZone(TimeZone.getTimeZone("GMT"));
+   }
+
+   private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+   private static final String ANDROID_BUILD_MODEL = android.os.Build.MODEL;
+   private static final String ANDROID_BUILD_VERSION = android.os.Build.VERSION.RELEASE;
+
+   static final int DEFAULT_KEEP_ALIVE_TIMEOUT = 5000;
+   static final int DEFAULT_HEADER_TIMEOUT = 10000;
+   static final int DEFAULT_MAX_KEEP_ALIVE_REQUESTS = 100;
+   static final int DEFAULT_MAX_PIPELINED_REQUESTS = 8;
+   static final int DEFAULT_LISTING_LIMIT = 100;
+   static final int MAX_LISTING_LIMIT = 1000;
+
+   private static final Logger LOG = LoggerFactory.getLogger(RequestProcessor.class);
+
+   private final String userAgent;
+   private final byte[] serverHeader; // "Server: userAgent" line, encoded once
+   private final TextRequestCallback callback;
+   private volatile boolean debug;
+   private volatile int keepAliveTimeout = DEFAULT_KEEP_ALIVE_TIMEOUT;
+   private volatile int maxKeepAliveRequests = DEFAULT_MAX_KEEP_ALIVE_REQUESTS;
+   private volatile int headerTimeout = DEFAULT_HEADER_TIMEOUT;
+   private volatile int maxPipelinedRequests = DEFAULT_MAX_PIPELINED_REQUESTS;
+   private volatile FileInfoCache fileInfoCache = new FileInfoCache();
+   private volatile ContentCache contentCache; // off unless configured
+   private volatile ReadAhead readAhead; // null, ranges are always read when sent
+   private volatile SharedReads sharedReads; // null, every stream reads the file itself
+   private final AdmissionControl admission = new AdmissionControl();
+   private final BandwidthShaper shaper = new BandwidthShaper();
+   private final BufferPool buffers = new BufferPool();
+   private volatile int ioBufferSize = RequestBuffer.BUFFER_SIZE; // request buffer to start with, and response buffer
+   private volatile int maxHeaderSize = RequestBuffer.MAX_HEADER_SIZE;
+   private volatile int http2MaxStreams; // 0, HTTP/2 off (connections stay HTTP/1.1)
+   private volatile Tls tls; // null, plain HTTP
+   private final ServerMetrics metrics = new ServerMetrics();
+   private volatile ServerEngine engine; // running engine, for metrics (queued connections)
+   private volatile String metricsPath; // null, no metrics endpoint (target form, no leading slash)
+   private volatile AccessLog accessLog; // null, no access log
+   private volatile DirectoryIndex directoryIndex; // null, no directory listings
+   private volatile CallbackDispatcher dispatcher; // null, callback runs on the request thread
+   private volatile boolean compression = true;
+   private volatile CompressedCache compressedCache = new CompressedCache(); // null, compressed files are all streamed
+
+   RequestProcessor(final String userAgent, final TextRequestCallback callback) {
+      this.userAgent = userAgent;
+      this.serverHeader = HeaderWriter.ascii("Server: " + userAgent + "\r\n");
+      this.callback = callback;
+   }
+
+   void setDebug(boolean debug) {
+      this.debug = debug;
+   }
+
+   boolean isDebug() {
+      return debug;
+   }
+
+   String getUserAgent() {
+      return userAgent;
+   }
+
+   void setKeepAlive(int timeoutMillis, int maxRequests) {
+      this.keepAliveTimeout = timeoutMillis;
+      this.maxKeepAliveRequests = maxRequests;
+   }
+
+   // idle time allowed between requests on a persistent connection (0 means keep-alive is off)
+   int getKeepAliveTimeout() {
+      return keepAliveTimeout;
+   }
+
+   void setHeaderTimeout(int timeoutMillis) {
+      this.headerTimeout = timeoutMillis;
+   }
+
+   // time allowed for a whole request header, from connecting (first request) or from its first byte
+   int getHeaderTimeout() {
+      return headerTimeout;
+   }
+
+   void setMaxPipelinedRequests(int maxPipelinedRequests) {
+      this.maxPipelinedRequests = maxPipelinedRequests;
+   }
+
+   // max requests read ahead of the response being written on one connection
+   int getMaxPipelinedRequests() {
+      return maxPipelinedRequests;
+   }
+
+   void setFileInfoCache(FileInfoCache fileInfoCache) {
+      this.fileInfoCache = fileInfoCache;
+   }
+
+   FileInfoCache getFileInfoCache() {
+      return fileInfoCache;
+   }
+
+   AdmissionControl getAdmission() {
+      return admission;
+   }
+
+   BandwidthShaper getShaper() {
+      return shaper;
+   }
+
+   BufferPool getBuffers() {
+      return buffers;
+   }
+
+   void setBufferSizes(int ioBufferSize, int maxHeaderSize) {
+      this.ioBufferSize = ioBufferSize;
+      this.maxHeaderSize = maxHeaderSize;
+   }
+
+   int getIoBufferSize() {
+      return ioBufferSize;
+   }
+
+   int getMaxHeaderSize() {
+      return maxHeaderSize;
+   }
+
+   // 0 turns HTTP/2 off
+   void setHttp2MaxStreams(int http2MaxStreams) {
+      this.http2MaxStreams = http2MaxStreams;
+   }
+
+   int getHttp2MaxStreams() {
+      return http2MaxStreams;
+   }
+
+   void setTls(Tls tls) {
+      this.tls = tls;
+   }
+
+   Tls getTls() {
+      return tls;
+   }
+
+   // for a new connection, from the pool (caller releases it when the connection closes)
+   RequestBuffer createRequestBuffer() {
+      return new RequestBuffer(buffers, ioBufferSize, maxHeaderSize);
+   }
+
+   ServerMetrics getMetrics() {
+      return metrics;
+   }
+
+   void setEngine(ServerEngine engine) {
+      this.engine = engine;
+   }
+
+   Metrics snapshotMetrics() {
+      return Metrics.snapshot(this, engine);
+   }
+
+   // null turns the access log off
+   void setAccessLog(AccessLog accessLog) {
+      this.accessLog = accessLog;
+   }
+
+   AccessLog getAccessLog() {
+      return accessLog;
+   }
+
+   /**
+    * Engines call this once per response, when it's written (complete), or abandoned, with bytes actually sent
+    * and the client address (may be null), for metrics and the access log. Never blocks, never allocates.
+    *
+    */
+   void responseDone(Response response, InetAddress remote, long bytes, boolean complete) {
+      metrics.responseDone(response, bytes, complete);
+      AccessLog log = accessLog;
+      if (log != null) {
+         log.log(response, remote, bytes, complete);
+      }
+   }
+
+   // null turns directory listings off
+   void setDirectoryIndex(DirectoryIndex directoryIndex) {
+      this.directoryIndex = directoryIndex;
+   }
+
+   DirectoryIndex getDirectoryIndex() {
+      return directoryIndex;
+   }
+
+   // null turns the metrics endpoint off
+   void setMetricsPath(String metricsPath) {
+      this.metricsPath = metricsPath;
+   }
+
+   // null turns content cache off
+   void setContentCache(ContentCache contentCache) {
+      this.contentCache = contentCache;
+   }
+
+   ContentCache getContentCache() {
+      return contentCache;
+   }
+
+   // null turns read-ahead off
+   void setReadAhead(ReadAhead readAhead) {
+      this.readAhead = readAhead;
+   }
+
+   ReadAhead getReadAhead() {
+      return readAhead;
+   }
+
+   // null turns shared reads off
+   void setSharedReads(SharedReads sharedReads) {
+      this.sharedReads = sharedReads;
+   }
+
+   SharedReads getSharedReads() {
+      return sharedReads;
+   }
+
+   void setCompression(boolean compression) {
+      this.compression = compression;
+   }
+
+   // null turns precompressed variants off
+   void setCompressedCache(CompressedCache compressedCache) {
+      this.compressedCache = compressedCache;
+   }
+
+   CompressedCache getCompressedCache() {
+      return compressedCache;
+   }
+
+   TextRequestCallback getCallback() {
+      return callback;
+   }
+
+   // null turns async callbacks off
+   void setCallbackDispatcher(CallbackDispatcher dispatcher) {
+      this.dispatcher = dispatcher;
+   }
+
+   CallbackDispatcher getCallbackDispatcher() {
+      return dispatcher;
+   }
+
+   /**
+    * Create response for the request, requestNumber is count of requests so far on this connection (1 based), 
+    * used to cap requests per persistent connection.
+    * 
+    */
+   Response process(Request request, int requestNumber) throws IOException {
+
+      if (debug) {
+         LOG.debug("   *** REQUEST: {}", request);
+      }
+
+      // use method to determine request type and handle accordingly
+      boolean keepAlive = isKeepAlive(request, requestNumber);
+      String method = request.getMethod();
+      if ((method == Request.GET || method == Request.HEAD) && request.getTarget() != null) {
+         // HEAD is handled exactly like GET (same headers), just never sends the body
+         boolean head = method == Request.HEAD;
+         Response response = route(request.getTarget(), request, head, keepAlive);
+         return head ? response.withoutBody() : response;
+      } else {
+         LOG.warn("client made request that was not allowed");
+         // don't support anything but GET and HEAD, return 405
+         return createTextResponse("not allowed", Status.NOT_ALLOWED, keepAlive, "Allow: GET, HEAD\r\n");
+      }
+   }
+
+   private Response route(String request, Request parsed, boolean head, boolean keepAlive) throws IOException {
+
+      String encoding = acceptedEncoding(parsed);
+      String metrics = metricsPath;
+      if (metrics != null && request.startsWith(metrics)
+               && (request.length() == metrics.length() || request.charAt(metrics.length()) == '?')) {
+         // reserved path, checked first, so it can't be mistaken for a file or text request
+         return createMetricsResponse(request.indexOf("format=prometheus", metrics.length()) > 0, keepAlive, encoding);
+      }
+      Response listing = directoryIndex != null ? handleDirectoryRequest(request, parsed, keepAlive, encoding) : null;
+      if (listing != null) {
+         return listing;
+      } else if (request.equals("")) {
+         // if request empty, just respond server info
+         return createTextResponse(userAgent + " (AndroidModel:" + ANDROID_BUILD_MODEL + " AndroidVersion:"
+                  + ANDROID_BUILD_VERSION + ")", Status.OK, keepAlive, null, encoding);
+      } else if (request.endsWith("/")) {
+         // if request for directory (not under a directory index root), just respond with server info
+         return createTextResponse(userAgent + " (AndroidModel:" + ANDROID_BUILD_MODEL + " AndroidVersion:"
+                  + ANDROID_BUILD_VERSION + ")", Status.OK, keepAlive, null, encoding);
+      } else {
+
+         request = URLDecoder.decode(request, "UTF-8");
+
+         SupportedFileType sft = SupportedFileType.getFromString(request);
+
+         // if queryString, just handle as text
+         if (request.startsWith("?")) {
+            if (debug) {
+               LOG.debug("{} received request with queryString, handling as text and returning ACK only", userAgent);
+            }
+            return handleNonFileRequestAsText(request, head, keepAlive, encoding);
+         } else if (sft != null) {
+            if (debug) {
+               LOG.debug("{} serving FILE request, SupportedFileType:{}", userAgent, sft);
+            }
+            return handleFileRequest(request, parsed, head, keepAlive);
+         } else {
+            if (debug) {
+               LOG.debug("{} received non file request, handling as text and returning ACK only", userAgent);
+            }
+            return handleNonFileRequestAsText(request, head, keepAlive, encoding);
+         }
+      }
+   }
+
+   //
+   // request handlers
+   //
+
+   private Response handleNonFileRequestAsText(String request, boolean head, boolean keepAlive, String encoding) {
+      // so that non-file requests can be used as just an external HTTP messaging system (with no meaningful response), callback is fired
+      // multiple threads may get here at the same time, with a dispatcher the callback is queued and runs (in order) on its thread,
+      // otherwise it runs here, and the ACK waits for it
+      // (HEAD is only a probe, no callback)
+      if (callback != null && !head) {
+         CallbackDispatcher d = dispatcher;
+         if (d != null) {
+            d.dispatch(request);
+         } else {
+            callback.onRequest(request);
+         }
+      }
+      return createTextResponse("ACK", Status.OK, keepAlive, null, encoding);
+   }
+
+   // listing of a directory under a directory index root (path ends with /), null if it's not one
+   private Response handleDirectoryRequest(String request, Request parsed, boolean keepAlive, String encoding)
+            throws IOException {
+      int q = request.indexOf('?');
+      String path = q >= 0 ? request.substring(0, q) : request;
+      if (!path.endsWith("/")) {
+         return null;
+      }
+      DirectoryIndex.Listing listing = directoryIndex.get(URLDecoder.decode(path, "UTF-8"));
+      if (listing == null) {
+         return null;
+      }
+      String query = q >= 0 ? request.substring(q + 1) : "";
+      boolean html = "html".equals(queryParam(query, "format"));
+      int offset = Math.max(0, parseInt(queryParam(query, "offset"), 0));
+      int limit = Math.max(1, Math.min(MAX_LISTING_LIMIT, parseInt(queryParam(query, "limit"), DEFAULT_LISTING_LIMIT)));
+      offset = Math.min(offset, listing.entries.length);
+      if (debug) {
+         LOG.debug("   directory listing:{} entries:{} offset:{}", new Object[] { listing.path, listing.entries.length, offset });
+      }
+
+      // conditional GET, tag and date of the whole listing (any change, any page), encoded variant has its own tag
+      String etag = encoding != null ? Compression.variantTag(listing.etag, encoding) : listing.etag;
+      String lastModifiedDate = getDateString(listing.lastModified);
+      if (isNotModified(parsed, etag, listing.lastModified)) {
+         return createNotModifiedResponse(etag, lastModifiedDate, true, keepAlive);
+      }
+
+      byte[] body = (html ? listing.toHtml(offset, limit) : listing.toJson(offset, limit)).getBytes(UTF_8);
+      boolean compress = encoding != null && body.length >= Compression.MIN_BYTES;
+      if (compress) {
+         body = Compression.compress(body, encoding);
+      }
+
+      HeaderWriter headers = HeaderWriter.get(buffers);
+      headers.status(Status.OK).append(serverHeader);
+      headers.header(HeaderWriter.CONTENT_TYPE, html ? "text/html; charset=utf-8" : "application/json");
+      headers.append(HeaderWriter.CACHE_CONTROL_NO_CACHE).date();
+      headers.header(HeaderWriter.ETAG, etag);
+      headers.header(HeaderWriter.LAST_MODIFIED, lastModifiedDate);
+      if (compress) {
+         headers.header(HeaderWriter.CONTENT_ENCODING, encoding);
+      }
+      headers.append(HeaderWriter.VARY_ACCEPT_ENCODING);
+      headers.header(HeaderWriter.CONTENT_LENGTH, body.length);
+      appendConnection(headers, keepAlive);
+      headers.append(HeaderWriter.CRLF);
+
+      return Response.bytes(Status.OK, headers, body, keepAlive);
+   }
+
+   private Response handleFileRequest(String request, Request parsed, boolean head, boolean keepAlive) {
+      // make sure it's a file, and make sure we can read it (metadata cached, not a stat per check)
+      FileInfoCache.FileInfo file = fileInfoCache.get(request);
+
+      if (!file.isFile) {
+         LOG.error("resource is not a file, or is not readable");
+         return createTextResponse("resource not a file", Status.NOT_ALLOWED, keepAlive);
+      }
+
+      if (!file.canRead) {
+         LOG.error("resource is not a file, or is not readable");
+         return createTextResponse("resource not readable", Status.NOT_ALLOWED, keepAlive);
+      }
+
+      if (debug) {
+         LOG.debug("   file request, serving it up via path:{}", file.file);
+      }
+      // over the limit, answered before any work on the file (mapping, read ahead), with the pre-encoded 503
+      if (!head && !admission.tryAcquireFileStream()) {
+         LOG.warn("too many file streams, rejecting request (503)");
+         return Response.bytes(Status.SERVICE_UNAVAILABLE, keepAlive ? admission.getBusyResponse() : admission
+                  .getRejectResponse(), null, keepAlive);
+      }
+      boolean streaming = false;
+      try {
+         Response response = createBinaryResponse(file, parsed, head, keepAlive);
+         if (head || response.file == null) {
+            // nothing streamed from the file (HEAD, 304, 416)
+            return response;
+         }
+         Response admitted = response.withFileStream(admission);
+         streaming = true;
+         SharedReads reads = sharedReads;
+         if (reads != null && admitted.hasFileRegion()) {
+            admitted.shared = reads.open(file);
+         }
+         return admitted;
+      } finally {
+         if (!head && !streaming) {
+            // nothing streamed from the file after all (304, 416), or failed
+            admission.releaseFileStream();
+         }
+      }
+   }
+
+   //
+   // response creators
+   //
+
+   // used by engines for errors outside of normal processing (always closes)
+   Response createTextResponse(final String text, Status status) {
+      return createTextResponse(text, status, false);
+   }
+
+   private Response createTextResponse(final String text, Status status, boolean keepAlive) {
+      return createTextResponse(text, status, keepAlive, null);
+   }
+
+   private Response createTextResponse(final String text, Status status, boolean keepAlive, String extraHeaders) {
+      return createTextResponse(text, status, keepAlive, extraHeaders, null);
+   }
+
+   // encoding is what client accepts (null for identity), only used if body is big enough to gain from it
+   private Response createTextResponse(final String text, Status status, boolean keepAlive, String extraHeaders,
+            String encoding) {
+      byte[] body = (text + "\r\n\r\n").getBytes(UTF_8);
+      boolean compress = encoding != null && body.length >= Compression.MIN_BYTES;
+      if (compress) {
+         body = Compression.compress(body, encoding);
+      }
+
+      HeaderWriter headers = HeaderWriter.get(buffers);
+      headers.status(status).append(serverHeader).append(HeaderWriter.TEXT_PLAIN).append(HeaderWriter.ACCEPT_RANGES).date();
+      if (compress) {
+         headers.header(HeaderWriter.CONTENT_ENCODING, encoding).append(HeaderWriter.VARY_ACCEPT_ENCODING);
+      }
+      if (extraHeaders != null) {
+         headers.append(extraHeaders);
+      }
+      headers.header(HeaderWriter.CONTENT_LENGTH, body.length);
+      appendConnection(headers, keepAlive);
+      headers.append(HeaderWriter.CRLF);
+
+      return Response.bytes(status, headers, body, keepAlive);
+   }
+
+   // head, headers only, nothing is read, mapped or compressed for it
+   private Response createBinaryResponse(FileInfoCache.FileInfo source, Request request, boolean head,
+            boolean keepAlive) {
+
+      // binary needs the request headers to check if "range" is present
+
+      // text is compressed if client accepts it, whole file only (ranges are always of the file as is),
+      // streaming it compressed needs chunked (HTTP/1.1), precompressed has a length
+      boolean compressible = compression && Compression.isCompressible(source.mimeType);
+      String encoding = null;
+      if (compressible && source.length >= Compression.MIN_BYTES && request.getHeader(Request.RANGE) == null) {
+         encoding = acceptedEncoding(request);
+         CompressedCache compressed = compressedCache;
+         // (HEAD has a length only if the variant is cached already)
+         if (encoding != null && request.getVersion() != Request.HTTP_1_1 && (compressed == null
+                  || (head ? compressed.peek(source, encoding) == null : !compressed.fits(source)))) {
+            encoding = null;
+         }
+      }
+
+      // conditional GET, client already has this version -- https://tools.ietf.org/html/rfc7232
+      // (encoded variant has its own ETag)
+      String etag = encoding != null ? Compression.variantTag(source.etag, encoding) : source.etag;
+      long lastModified = source.lastModified;
+      if (isNotModified(request, etag, lastModified)) {
+         if (debug) {
+            LOG.debug("      client copy is current, not modified (304)");
+         }
+         return createNotModifiedResponse(etag, source.lastModifiedDate, compressible, keepAlive);
+      }
+      if (encoding != null) {
+         if (debug) {
+            LOG.debug("      transfer whole file compressed, encoding:{}", encoding);
+         }
+         return createCompressedResponse(source, encoding, etag, head, keepAlive);
+      }
+
+      // determine if request contains a "range" or not
+      // Support HTTP 1.1 "Partial Content" -- https://tools.ietf.org/html/rfc7233
+      // (single, suffix, and multiple ranges, a syntactically invalid Range header is ignored, per spec)
+      long length = source.length;
+      List<ByteRange> ranges = null;
+      String rangeHeader = request.getHeader(Request.RANGE);
+      if (rangeHeader != null && !isIfRangeCurrent(request, source.etag, lastModified)) {
+         // If-Range says client has a different version, so send whole file
+         rangeHeader = null;
+      }
+      if (rangeHeader != null) {
+         ranges = ByteRange.parse(rangeHeader, length);
+         if (ranges == null) {
+            LOG.warn("ignoring invalid range header:{}", rangeHeader);
+         }
+      }
+
+      // hot files are served from memory (mapped), slices of it for ranges, otherwise straight from the file
+      ContentCache cache = contentCache;
+      ByteBuffer content = cache != null && !head && (ranges == null || !ranges.isEmpty()) ? cache.get(source)
+               : null;
+
+      if (ranges != null && ranges.isEmpty()) {
+         return createTextResponse("range supplied is invalid", Status.RANGE_INVALID, keepAlive, "Content-Range: bytes */"
+                  + length + "\r\n");
+      } else if (ranges != null && ranges.size() == 1) {
+         ByteRange range = ranges.get(0);
+         if (debug) {
+            LOG.debug("      transfer standard via ranged request, range present and valid (Partial-Content)");
+         }
+
+         // HEADER
+         HeaderWriter headers = HeaderWriter.get(buffers);
+         headers.status(Status.PARTIAL_OK).append(serverHeader).append(HeaderWriter.ACCEPT_RANGES);
+         appendContentType(headers, source.mimeType);
+         headers.date();
+         headers.header(HeaderWriter.ETAG, etag);
+         headers.header(HeaderWriter.LAST_MODIFIED, source.lastModifiedDate);
+         appendContentRange(headers, range, length);
+         headers.header(HeaderWriter.CONTENT_LENGTH, range.length());
+         appendConnection(headers, keepAlive);
+         headers.append(HeaderWriter.CRLF);
+
+         if (debug) {
+            LOG.debug("      *** RESPONSE:\n{}", headers);
+         }
+
+         return rangeResponse(headers, source, content, range, head, keepAlive);
+      } else if (ranges != null) {
+         if (debug) {
+            LOG.debug("      transfer multiple ranges as multipart/byteranges (Partial-Content), ranges:{}", ranges.size());
+         }
+         return createMultipartResponse(source, content, ranges, keepAlive);
+      } else {
+         if (debug) {
+            LOG.debug("      transfer standard file in one shot, range not present (200)");
+         }
+
+         // HEADER
+         HeaderWriter headers = HeaderWriter.get(buffers);
+         headers.status(Status.OK).append(serverHeader).append(HeaderWriter.ACCEPT_RANGES);
+         appendContentType(headers, source.mimeType);
+         if (compressible) {
+            headers.append(HeaderWriter.VARY_ACCEPT_ENCODING);
+         }
+         headers.header(HeaderWriter.CONTENT_LENGTH, length);
+         headers.date();
+         headers.header(HeaderWriter.ETAG, etag);
+         headers.header(HeaderWriter.LAST_MODIFIED, source.lastModifiedDate);
+         appendConnection(headers, keepAlive);
+         headers.append(HeaderWriter.CRLF);
+
+         if (debug) {
+            LOG.debug("      *** RESPONSE:\n{}", headers);
+         }
+
+         return Response.segments(Status.OK, headers, source.file,
+                  new Response.Segment[] { region(content, 0, length) }, keepAlive);
+      }
+   }
+
+   // body is part header, file region, part header, file region, ..., closing boundary (streamed, never buffered)
+   private Response createMultipartResponse(FileInfoCache.FileInfo source, ByteBuffer content, List<ByteRange> ranges,
+            boolean keepAlive) {
+      long length = source.length;
+      String mimeType = source.mimeType;
+      String boundary = "httpserver_" + Long.toHexString(System.nanoTime()) + Integer.toHexString(ranges.hashCode());
+
+      Response.Segment[] body = new Response.Segment[ranges.size() * 2 + 1];
+      long contentLength = 0;
+      for (int i = 0; i < ranges.size(); i++) {
+         ByteRange range = ranges.get(i);
+         HeaderWriter part = HeaderWriter.get(buffers);
+         if (i > 0) {
+            part.append(HeaderWriter.CRLF);
+         }
+         part.append("--").append(boundary).append(HeaderWriter.CRLF);
+         appendContentType(part, mimeType);
+         appendContentRange(part, range, length);
+         part.append(HeaderWriter.CRLF);
+         body[i * 2] = new Response.Segment(part.toByteArray());
+         body[i * 2 + 1] = region(content, range.start, range.length());
+         contentLength += body[i * 2].length + range.length();
+      }
+      body[body.length - 1] = new Response.Segment(HeaderWriter.ascii("\r\n--" + boundary + "--\r\n"));
+      contentLength += body[body.length - 1].length;
+
+      // HEADER
+      HeaderWriter headers = HeaderWriter.get(buffers);
+      headers.status(Status.PARTIAL_OK).append(serverHeader).append(HeaderWriter.ACCEPT_RANGES);
+      headers.append(HeaderWriter.CONTENT_TYPE).append("multipart/byteranges; boundary=").append(boundary).append(
+               HeaderWriter.CRLF);
+      headers.date();
+      headers.header(HeaderWriter.ETAG, source.etag);
+      headers.header(HeaderWriter.LAST_MODIFIED, source.lastModifiedDate);
+      headers.header(HeaderWriter.CONTENT_LENGTH, contentLength);
+      appendConnection(headers, keepAlive);
+      headers.append(HeaderWriter.CRLF);
+
+      if (debug) {
+         LOG.debug("      *** RESPONSE:\n{}", headers);
+      }
+
+      return Response.segments(Status.PARTIAL_OK, headers, source.file, body, keepAlive);
+   }
+
+   // precompressed (cached) if it fits, otherwise compressed as it's sent, chunked
+   // (HEAD, cached length if there is one, never compressed just for it)
+   private Response createCompressedResponse(FileInfoCache.FileInfo source, String encoding, String etag, boolean head,
+            boolean keepAlive) {
+      CompressedCache cache = compressedCache;
+      byte[] compressed = cache == null ? null : head ? cache.peek(source, encoding) : cache.get(source, encoding);
+
+      // HEADER
+      HeaderWriter headers = HeaderWriter.get(buffers);
+      headers.status(Status.OK).append(serverHeader).append(HeaderWriter.ACCEPT_RANGES);
+      appendContentType(headers, source.mimeType);
+      headers.header(HeaderWriter.CONTENT_ENCODING, encoding).append(HeaderWriter.VARY_ACCEPT_ENCODING);
+      if (compressed != null) {
+         headers.header(HeaderWriter.CONTENT_LENGTH, compressed.length);
+      } else {
+         headers.append(HeaderWriter.TRANSFER_ENCODING_CHUNKED);
+      }
+      headers.date();
+      headers.header(HeaderWriter.ETAG, etag);
+      headers.header(HeaderWriter.LAST_MODIFIED, source.lastModifiedDate);
+      appendConnection(headers, keepAlive);
+      headers.append(HeaderWriter.CRLF);
+
+      if (debug) {
+         LOG.debug("      *** RESPONSE:\n{}", headers);
+      }
+
+      Response.Segment body = compressed != null ? new Response.Segment(compressed) : new Response.Segment(0, source.length,
+               encoding);
+      return Response.segments(Status.OK, headers, source.file, new Response.Segment[] { body }, keepAlive);
+   }
+
+   // JSON by default, Prometheus text format if asked (?format=prometheus), never cached by clients
+   private Response createMetricsResponse(boolean prometheus, boolean keepAlive, String encoding) {
+      Metrics snapshot = snapshotMetrics();
+      byte[] body = (prometheus ? snapshot.toPrometheus() : snapshot.toJson()).getBytes(UTF_8);
+      boolean compress = encoding != null && body.length >= Compression.MIN_BYTES;
+      if (compress) {
+         body = Compression.compress(body, encoding);
+      }
+
+      HeaderWriter headers = HeaderWriter.get(buffers);
+      headers.status(Status.OK).append(serverHeader);
+      headers.header(HeaderWriter.CONTENT_TYPE, prometheus ? "text/plain; version=0.0.4; charset=utf-8" : "application/json");
+      headers.append(HeaderWriter.CACHE_CONTROL_NO_CACHE).date();
+      if (compress) {
+         headers.header(HeaderWriter.CONTENT_ENCODING, encoding).append(HeaderWriter.VARY_ACCEPT_ENCODING);
+      }
+      headers.header(HeaderWriter.CONTENT_LENGTH, body.length);
+      appendConnection(headers, keepAlive);
+      headers.append(HeaderWriter.CRLF);
+
+      return Response.bytes(Status.OK, headers, body, keepAlive);
+   }
+
+   // no body, ever, so framing is fine for keep-alive without a Content-Length
+   private Response createNotModifiedResponse(String etag, String lastModifiedDate, boolean vary, boolean keepAlive) {
+      HeaderWriter headers = HeaderWriter.get(buffers);
+      headers.status(Status.NOT_MODIFIED).append(serverHeader).date();
+      if (vary) {
+         headers.append(HeaderWriter.VARY_ACCEPT_ENCODING);
+      }
+      headers.header(HeaderWriter.ETAG, etag);
+      headers.header(HeaderWriter.LAST_MODIFIED, lastModifiedDate);
+      appendConnection(headers, keepAlive);
+      headers.append(HeaderWriter.CRLF);
+
+      return Response.bytes(Status.NOT_MODIFIED, headers, null, keepAlive);
+   }
+
+   //
+   // priv helpers
+   //
+
+   // body segment for part of the file, slice of cached content if there is any, otherwise region read from file
+   private static Response.Segment region(ByteBuffer content, long offset, long length) {
+      if (content != null) {
+         return new Response.Segment(ContentCache.slice(content, offset, length));
+      }
+      return new Response.Segment(offset, length);
+   }
+
+   // single range, body from cached content, or read ahead (sequential ranges) and the rest (if any) from the file
+   private Response rangeResponse(HeaderWriter headers, FileInfoCache.FileInfo source, ByteBuffer content,
+            ByteRange range, boolean head, boolean keepAlive) {
+      ReadAhead ahead = readAhead;
+      // (event loops don't wait for a window still being read)
+      ReadAhead.Hit hit = content == null && ahead != null && !head ? ahead.get(source, range.start, range.length(),
+               !(engine instanceof NioEngine)) : null;
+      if (hit == null) {
+         return Response.segments(Status.PARTIAL_OK, headers, source.file, new Response.Segment[] { region(content,
+                  range.start, range.length()) }, keepAlive);
+      }
+      int n = hit.data.remaining();
+      Response.Segment[] body = n == range.length() ? new Response.Segment[] { new Response.Segment(hit.data) }
+               : new Response.Segment[] { new Response.Segment(hit.data),
+                        new Response.Segment(range.start + n, range.length() - n) };
+      Response response = Response.segments(Status.PARTIAL_OK, headers, source.file, body, keepAlive);
+      response.readAhead = hit;
+      return response;
+   }
+
+   // If-None-Match wins if present (weak comparison), otherwise If-Modified-Since (second granularity)
+   private boolean isNotModified(Request request, String etag, long lastModified) {
+      String ifNoneMatch = request.getHeader(Request.IF_NONE_MATCH);
+      if (ifNoneMatch != null) {
+         if (ifNoneMatch.trim().equals("*")) {
+            return true;
+         }
+         for (String candidate : ifNoneMatch.split(",")) {
+            if (opaqueTag(candidate).equals(opaqueTag(etag))) {
+               return true;
+            }
+         }
+         return false;
+      }
+      String ifModifiedSince = request.getHeader(Request.IF_MODIFIED_SINCE);
+      if (ifModifiedSince != null) {
+         long since = parseDate(ifModifiedSince);
+         return since >= 0 && lastModified / 1000 <= since / 1000;
+      }
+      return false;
+   }
+
+   // true if no If-Range, or If-Range matches current version (strong etag, or exact date)
+   private boolean isIfRangeCurrent(Request request, String etag, long lastModified) {
+      String ifRange = request.getHeader(Request.IF_RANGE);
+      if (ifRange == null) {
+         return true;
+      }
+      if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+         return ifRange.equals(etag);
+      }
+      long date = parseDate(ifRange);
+      return date >= 0 && date / 1000 == lastModified / 1000;
+   }
+
+   // etag without weak prefix (W/), for weak comparison
+   private static String opaqueTag(String tag) {
+      String t = tag.trim();
+      return t.startsWith("W/") ? t.substring(2) : t;
+   }
+
+   // HTTP date in millis, or -1 if it can't be parsed
+   private long parseDate(String date) {
+      try {
+         synchronized (INET_DFMT) {
+            return INET_DFMT.parse(date.trim()).getTime();
+         }
+      } catch (ParseException e) {
+         return -1;
+      }
+   }
+
+   // value of name=value in querystring (no leading ?), URL decoded, null if not there
+   private static String queryParam(String query, String name) throws IOException {
+      for (String pair : query.split("&")) {
+         int eq = pair.indexOf('=');
+         if (eq > 0 && pair.substring(0, eq).equals(name)) {
+            return URLDecoder.decode(pair.substring(eq + 1), "UTF-8");
+         }
+      }
+      return null;
+   }
+
+   private static int parseInt(String value, int defaultValue) {
+      if (value == null) {
+         return defaultValue;
+      }
+      try {
+         return Integer.parseInt(value.trim());
+      } catch (NumberFormatException e) {
+         return defaultValue;
+      }
+   }
+
+   // encoding to use for content that can be compressed, null for identity (or compression off)
+   private String acceptedEncoding(Request request) {
+      return compression ? Compression.negotiate(request.getHeader(Request.ACCEPT_ENCODING)) : null;
+   }
+
+   // HTTP/1.1 is persistent unless client says close, HTTP/1.0 only if client asks for keep-alive,
+   // HTTP/2 always (a stream ending never ends the connection)
+   private boolean isKeepAlive(Request request, int requestNumber) {
+      if (request.getVersion() == Request.HTTP_2) {
+         return true;
+      }
+      if (keepAliveTimeout <= 0 || requestNumber >= maxKeepAliveRequests) {
+         return false;
+      }
+      String connection = request.getHeader(Request.CONNECTION);
+      if (connection != null && connection.equalsIgnoreCase("close")) {
+         return false;
+      }
+      if (request.getHeader(Request.TRANSFER_ENCODING) != null) {
+         // don't support chunked request bodies, can't find next request, so close after this one
+         return false;
+      }
+      if (request.getVersion() == Request.HTTP_1_1) {
+         return true;
+      }
+      return connection != null && connection.equalsIgnoreCase("keep-alive");
+   }
+
+   private void appendConnection(HeaderWriter headers, boolean keepAlive) {
+      if (keepAlive) {
+         headers.append(HeaderWriter.CONNECTION_KEEP_ALIVE);
+         headers.header(HeaderWriter.KEEP_ALIVE, Math.max(1, keepAliveTimeout / 1000));
+      } else {
+         headers.append(HeaderWriter.CONNECTION_CLOSE);
+      }
+   }
+
+   // unknown type gets no Content-Type at all (client sniffs), not "null"
+   private static void appendContentType(HeaderWriter headers, String mimeType) {
+      if (mimeType != null) {
+         headers.header(HeaderWriter.CONTENT_TYPE, mimeType);
+      }
+   }
+
+   private static void appendContentRange(HeaderWriter headers, ByteRange range, long length) {
+      headers.append(HeaderWriter.CONTENT_RANGE).append(range.start).append("-").append(range.end).append("/").append(
+               length).append(HeaderWriter.CRLF);
+   }
+
+   private static String getDateString(Date date) {
+      synchronized (INET_DFMT) {
+         return INET_DFMT.format(date);
+      }
+   }
+
+   static String getDateString(long millis) {
+      return getDateString(new Date(millis));
+   }
+}
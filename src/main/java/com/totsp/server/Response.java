@@ -0,0 +1,181 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * A response created by RequestProcessor, independent of how it is written to the client (each engine writes it).
+ *
+ * Always has a header block (head, written by a HeaderWriter into a pooled buffer, or pre-encoded), and then a body
+ * made of segments, each either in memory bytes (or a slice of cached content, see ContentCache), or a region of the response file (a plain file response is one region, multipart/byteranges alternates part headers and regions).
+ * Framed by Content-Length, except a compressed region (compressed as it's sent, see ChunkedCompressor), which is chunked.
+ * keepAlive says whether the connection stays open for the next request.
+ * Engines call done once it's written (or abandoned), to give back what it holds (head buffer, file stream, shared reads,
+ * read ahead).
+ * file is set for any file response, also when its body is in memory (cached, precompressed).
+ *
+ */
+final class Response {
+
+   private static final Segment[] NO_BODY = new Segment[0];
+
+   private static final AtomicIntegerFieldUpdater<Response> RELEASED = AtomicIntegerFieldUpdater.newUpdater(
+            Response.class, "released");
+
+   final Status status;
+   final ByteBuffer head; // heap, bytes 0 to limit of its array, never moved (engines write from a duplicate)
+   final File file;
+   final Segment[] body;
+   final boolean keepAlive;
+
+   // what it answers, set by the engine (for metrics and the access log)
+   long received; // System.nanoTime when the request was read
+   String method;
+   String target;
+   String version;
+
+   // regions of file sent from blocks shared with other streams of it, closed by done (null if not shared)
+   SharedReads.Stream shared;
+
+   // window the body starts from (read ahead), released by done (null if none)
+   ReadAhead.Hit readAhead;
+
+   // head buffer came from it (null, not pooled), and file stream admitted for this response (null, none),
+   // each given back once by done
+   private final BufferPool headPool;
+   private final AdmissionControl admission;
+   private volatile int released;
+
+   private Response(Status status, ByteBuffer head, BufferPool headPool, File file, Segment[] body, boolean keepAlive,
+            AdmissionControl admission) {
+      this.status = status;
+      this.head = head;
+      this.headPool = headPool;
+      this.file = file;
+      this.body = body;
+      this.keepAlive = keepAlive;
+      this.admission = admission;
+   }
+
+   // pre-encoded head
+   static Response bytes(Status status, byte[] head, byte[] body, boolean keepAlive) {
+      return new Response(status, ByteBuffer.wrap(head), null, null, body(body), keepAlive, null);
+   }
+
+   // head taken from headers (toHead)
+   static Response bytes(Status status, HeaderWriter headers, byte[] body, boolean keepAlive) {
+      return new Response(status, headers.toHead(), headers.pool(), null, body(body), keepAlive, null);
+   }
+
+   static Response segments(Status status, byte[] head, File file, Segment[] body, boolean keepAlive) {
+      return new Response(status, ByteBuffer.wrap(head), null, file, body, keepAlive, null);
+   }
+
+   static Response segments(Status status, HeaderWriter headers, File file, Segment[] body, boolean keepAlive) {
+      return new Response(status, headers.toHead(), headers.pool(), file, body, keepAlive, null);
+   }
+
+   // same response headers (HEAD), Content-Length still describes what GET would send (only the copy is done)
+   Response withoutBody() {
+      return new Response(status, head, headPool, file, NO_BODY, keepAlive, null);
+   }
+
+   // same response, holding a file stream acquired from admission (only the copy is done)
+   Response withFileStream(AdmissionControl admission) {
+      Response response = new Response(status, head, headPool, file, body, keepAlive, admission);
+      response.readAhead = readAhead;
+      return response;
+   }
+
+   // any of the body is sent straight from the file (not compressed)
+   boolean hasFileRegion() {
+      for (Segment segment : body) {
+         if (segment.isFileRegion() && !segment.isCompressed()) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   // request is only valid until the next one is read, keep what we need (references, no copies)
+   void answers(Request request, long received) {
+      this.received = received;
+      this.method = request.getMethod();
+      this.target = request.getTarget();
+      this.version = request.getVersion();
+   }
+
+   // written, or given up on, safe to call more than once
+   void done() {
+      if ((headPool != null || admission != null) && RELEASED.compareAndSet(this, 0, 1)) {
+         if (headPool != null) {
+            // (often written on another thread than the one that wrote the head)
+            headPool.releaseShared(head);
+         }
+         if (admission != null) {
+            admission.releaseFileStream();
+         }
+      }
+      if (shared != null) {
+         shared.close();
+      }
+      if (readAhead != null) {
+         readAhead.release();
+      }
+   }
+
+   private static Segment[] body(byte[] bytes) {
+      return bytes == null ? NO_BODY : new Segment[] { new Segment(bytes) };
+   }
+
+   /**
+    * One piece of a response body, in memory data, or a region (offset and length) of the response file,
+    * sent as is, or compressed (encoding) in chunks.
+    *
+    */
+   static final class Segment {
+
+      private final ByteBuffer data; // never read directly, may be shared (cached content)
+      final long offset;
+      final long length;
+      final String encoding; // null unless region is compressed as it's sent
+
+      Segment(byte[] bytes) {
+         this(ByteBuffer.wrap(bytes));
+      }
+
+      Segment(ByteBuffer data) {
+         this.data = data;
+         this.offset = 0;
+         this.length = data.remaining();
+         this.encoding = null;
+      }
+
+      Segment(long offset, long length) {
+         this(offset, length, null);
+      }
+
+      Segment(long offset, long length, String encoding) {
+         this.data = null;
+         this.offset = offset;
+         this.length = length;
+         this.encoding = encoding;
+      }
+
+      boolean isFileRegion() {
+         return data == null;
+      }
+
+      boolean isCompressed() {
+         return encoding != null;
+      }
+
+      // in memory data, own position and limit for each write
+      ByteBuffer data() {
+         return data.duplicate();
+      }
+   }
+}
@@ -0,0 +1,17 @@
+package com.totsp.server;
+
+import java.io.IOException;
+
+/**
+ * Accepts connections and serves them using a RequestProcessor (see Engine enum for the available implementations).
+ *
+ */
+interface ServerEngine {
+
+   void start() throws IOException;
+
+   void stop();
+
+   // accepted connections waiting to be served (for a thread, BLOCKING, or to be registered, NIO)
+   int getQueuedConnections();
+}
@@ -0,0 +1,88 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Live counters and latency histograms, recorded by the engines as responses go out (see Metrics for a snapshot).
+ *
+ * Recording is a few atomic increments into fixed arrays, no locks and no allocation, so it stays on for every request.
+ * Time to first byte is from the request being read (parsed) to its response starting out, total is to the last byte.
+ *
+ */
+final class ServerMetrics {
+
+   // request kinds, by response
+   static final int TEXT = 0;
+   static final int FILE = 1; // whole file (200), or not modified (304)
+   static final int RANGE = 2; // partial content (206)
+   static final int ERROR = 3; // 4xx and 5xx
+   static final int KINDS = 4;
+
+   private final long startedAt = System.currentTimeMillis();
+   private final AtomicLongArray byStatus = new AtomicLongArray(Status.values().length);
+   private final AtomicLongArray byKind = new AtomicLongArray(KINDS);
+   private final AtomicLong bytesServed = new AtomicLong();
+   private final AtomicLong aborted = new AtomicLong();
+   private final LatencyRecorder firstByte = new LatencyRecorder();
+   private final LatencyRecorder total = new LatencyRecorder();
+
+   // response head about to be written, received is System.nanoTime when its request was read
+   void responseStarted(long received) {
+      firstByte.recordNanos(System.nanoTime() - received);
+   }
+
+   // response written (complete false if client went away first), bytes actually sent, head included
+   void responseDone(Response response, long bytes, boolean complete) {
+      bytesServed.addAndGet(bytes);
+      if (!complete) {
+         aborted.incrementAndGet();
+         return;
+      }
+      total.recordNanos(System.nanoTime() - response.received);
+      byStatus.incrementAndGet(response.status.ordinal());
+      byKind.incrementAndGet(kind(response));
+   }
+
+   static int kind(Response response) {
+      Status status = response.status;
+      if (status == Status.PARTIAL_OK) {
+         return RANGE;
+      } else if (status == Status.NOT_MODIFIED || (status == Status.OK && response.file != null)) {
+         return FILE;
+      } else if (status == Status.OK) {
+         return TEXT;
+      }
+      return ERROR;
+   }
+
+   long getStartedAt() {
+      return startedAt;
+   }
+
+   long getByStatus(Status status) {
+      return byStatus.get(status.ordinal());
+   }
+
+   long getByKind(int kind) {
+      return byKind.get(kind);
+   }
+
+   long getBytesServed() {
+      return bytesServed.get();
+   }
+
+   long getAborted() {
+      return aborted.get();
+   }
+
+   LatencyRecorder getFirstByte() {
+      return firstByte;
+   }
+
+   LatencyRecorder getTotal() {
+      return total;
+   }
+}
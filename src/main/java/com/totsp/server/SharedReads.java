@@ -0,0 +1,338 @@
+package com.totsp.server;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single-flight reads for many clients streaming the same file (a screening, 5-20 devices playing the same clip at
+ * nearly the same offset), so storage reads scale with distinct content, not with viewers.
+ *
+ * While two or more responses stream the same file (same path and ETag), its regions are sent a block at a time,
+ * and each block is read from storage once, by whichever stream gets to it first, into a reference counted buffer
+ * that every stream of the file sends from. A stream that wants a block another one is still reading waits for it
+ * (BLOCKING engine), or doesn't (NIO, an event loop never waits). A stream too far behind, whose block is gone and
+ * can't be read again within maxBytes, reads the file directly (zero-copy, as when streaming alone).
+ *
+ * Blocks are kept while referenced, and after that until their memory is needed (least recently used first),
+ * all of a file's go once its last stream is done. Block buffers are direct (read from the file, written to sockets,
+ * never copied through the heap), from the server's pool, and go back to it once no stream references them.
+ *
+ */
+final class SharedReads {
+
+   private static final Logger LOG = LoggerFactory.getLogger(SharedReads.class);
+
+   static final int BLOCK_SIZE = 256 * 1024;
+   static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+
+   private static final long WAIT_MILLIS = 1000; // most a blocking stream waits on another stream's read
+
+   private final long maxBytes;
+   private final BufferPool pool;
+
+   // all guarded by this
+   private final Map<String, FileReads> files = new HashMap<String, FileReads>(); // by path and ETag
+   private final Map<Block, Block> lru = new LinkedHashMap<Block, Block>(16, 0.75f, true); // blocks kept, access order
+   private long usedBytes; // held by blocks, kept or still referenced
+
+   private final AtomicLong hits = new AtomicLong();
+   private final AtomicLong misses = new AtomicLong();
+   private final AtomicLong direct = new AtomicLong();
+
+   SharedReads(final long maxBytes, final BufferPool pool) {
+      this.maxBytes = maxBytes;
+      this.pool = pool;
+   }
+
+   /**
+    * Stream of a response about to send regions of file, caller must close it when the response is done.
+    *
+    */
+   synchronized Stream open(FileInfoCache.FileInfo info) {
+      String key = info.file.getPath() + "\n" + info.etag;
+      FileReads file = files.get(key);
+      if (file == null) {
+         file = new FileReads(key, info.file, info.length);
+         files.put(key, file);
+      }
+      file.streams++;
+      return new Stream(file);
+   }
+
+   // first offset past the block that offset is in, streams send up to here from one block
+   static long blockEnd(long offset) {
+      return (offset / BLOCK_SIZE + 1) * BLOCK_SIZE;
+   }
+
+   // blocks sent from memory read by another stream
+   long getHits() {
+      return hits.get();
+   }
+
+   // blocks read from storage (once for all streams of the file)
+   long getMisses() {
+      return misses.get();
+   }
+
+   // blocks a stream read directly, while others were sharing (too far behind, or over maxBytes)
+   long getDirect() {
+      return direct.get();
+   }
+
+   synchronized long getUsedBytes() {
+      return usedBytes;
+   }
+
+   //
+   // priv helpers
+   //
+
+   private Block acquire(FileReads file, long offset, boolean wait) {
+      long index = offset / BLOCK_SIZE;
+      Block block;
+      boolean leader = false;
+      synchronized (this) {
+         block = file.blocks.get(index);
+         if (block != null) {
+            lru.get(block);
+            block.refs++;
+         } else if (file.streams < 2) {
+            // streaming alone, straight from the file
+            return null;
+         } else {
+            int size = (int) Math.min(BLOCK_SIZE, file.length - index * BLOCK_SIZE);
+            if (size <= 0 || !makeRoom(size)) {
+               direct.incrementAndGet();
+               return null;
+            }
+            block = new Block(file, index, size);
+            block.refs = 2; // kept, and ours
+            usedBytes += size;
+            file.blocks.put(index, block);
+            lru.put(block, block);
+            leader = true;
+         }
+      }
+      if (leader) {
+         // read outside the lock, others wait on the block
+         misses.incrementAndGet();
+         block.read();
+      } else if (block.await(wait)) {
+         hits.incrementAndGet();
+      }
+      if (block.data == null) {
+         release(block);
+         direct.incrementAndGet();
+         return null;
+      }
+      return block;
+   }
+
+   // caller holds lock, drop least recently used blocks not referenced by any stream until size fits
+   private boolean makeRoom(int size) {
+      Iterator<Block> it = lru.keySet().iterator();
+      while (usedBytes + size > maxBytes && it.hasNext()) {
+         Block block = it.next();
+         if (block.refs == 1) {
+            it.remove();
+            block.file.blocks.remove(block.index);
+            unref(block);
+         }
+      }
+      return usedBytes + size <= maxBytes;
+   }
+
+   private synchronized void release(Block block) {
+      unref(block);
+   }
+
+   // caller holds lock
+   private void unref(Block block) {
+      if (--block.refs == 0) {
+         usedBytes -= block.size;
+         block.data = null;
+         // no stream holds a slice of it any more
+         pool.release(block.buffer);
+         block.buffer = null;
+      }
+   }
+
+   // caller holds lock
+   private void drop(Block block) {
+      if (lru.remove(block) != null) {
+         block.file.blocks.remove(block.index);
+         unref(block);
+      }
+   }
+
+   /**
+    * One response's view of a shared file.
+    *
+    */
+   final class Stream {
+
+      private final FileReads file;
+      private boolean closed; // guarded by SharedReads.this
+
+      private Stream(final FileReads file) {
+         this.file = file;
+      }
+
+      /**
+       * Block holding offset, shared with the file's other streams, or null if caller should read the file itself.
+       * If not null caller must release it once sent. wait, if another stream is reading the block, wait for it
+       * (otherwise null right away).
+       *
+       */
+      Block acquire(long offset, boolean wait) {
+         return SharedReads.this.acquire(file, offset, wait);
+      }
+
+      // safe to call more than once
+      void close() {
+         synchronized (SharedReads.this) {
+            if (closed) {
+               return;
+            }
+            closed = true;
+            if (--file.streams == 0) {
+               files.remove(file.key);
+               for (Block block : file.blocks.values().toArray(new Block[file.blocks.size()])) {
+                  drop(block);
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Streams of one file (one version of it), and its blocks.
+    *
+    */
+   private static final class FileReads {
+
+      private final String key;
+      private final File file;
+      private final long length;
+      private final Map<Long, Block> blocks = new HashMap<Long, Block>();
+      private int streams;
+
+      FileReads(final String key, final File file, final long length) {
+         this.key = key;
+         this.file = file;
+         this.length = length;
+      }
+   }
+
+   /**
+    * BLOCK_SIZE of a file (less at the end), read once. refs counts streams using it, plus one while it's kept.
+    *
+    */
+   final class Block {
+
+      private final FileReads file;
+      private final long index;
+      private final long start;
+      private final int size;
+      private int refs; // guarded by SharedReads.this
+      private ByteBuffer buffer; // from the pool, given back once refs gets to 0 (guarded by SharedReads.this)
+      private volatile ByteBuffer data; // null until read (and once released)
+      private volatile boolean failed;
+
+      private Block(final FileReads file, final long index, final int size) {
+         this.file = file;
+         this.index = index;
+         this.start = index * BLOCK_SIZE;
+         this.size = size;
+      }
+
+      // from offset, up to length (or the end of the block), independent of other slices
+      ByteBuffer slice(long offset, long length) {
+         return ContentCache.slice(data, offset - start, Math.min(length, start + size - offset));
+      }
+
+      // first offset past this block
+      long end() {
+         return start + size;
+      }
+
+      void release() {
+         SharedReads.this.release(this);
+      }
+
+      private void read() {
+         ByteBuffer buffer = pool.acquire(size, true);
+         synchronized (SharedReads.this) {
+            this.buffer = buffer;
+         }
+         RandomAccessFile in = null;
+         try {
+            in = new RandomAccessFile(file.file, "r");
+            FileChannel channel = in.getChannel();
+            while (buffer.hasRemaining()) {
+               if (channel.read(buffer, start + buffer.position()) < 0) {
+                  break;
+               }
+            }
+            if (!buffer.hasRemaining()) {
+               buffer.flip();
+               data = buffer.asReadOnlyBuffer();
+            }
+         } catch (IOException e) {
+            LOG.warn("could not read shared block of file:{} e:{}", file.file, e.getMessage());
+         } finally {
+            if (in != null) {
+               try {
+                  in.close();
+               } catch (IOException e) {
+                  LOG.error("Error closing file", e);
+               }
+            }
+         }
+         if (data == null) {
+            // file got shorter (or unreadable), nobody gets this block
+            failed = true;
+            synchronized (SharedReads.this) {
+               drop(this);
+            }
+         }
+         synchronized (this) {
+            notifyAll();
+         }
+      }
+
+      // true once read, false if it failed, or it's still being read and wait is false (or it took too long)
+      private boolean await(boolean wait) {
+         if (data != null || failed || !wait) {
+            return data != null;
+         }
+         long deadline = System.currentTimeMillis() + WAIT_MILLIS;
+         synchronized (this) {
+            while (data == null && !failed) {
+               long remaining = deadline - System.currentTimeMillis();
+               if (remaining <= 0) {
+                  break;
+               }
+               try {
+                  wait(remaining);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+                  break;
+               }
+            }
+         }
+         return data != null;
+      }
+   }
+}
@@ -0,0 +1,115 @@
+package com.totsp.server;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSessionContext;
+
+/**
+ * TLS for a server, its SSLContext (key and certificate), session resumption, record sizing, and handshake counts.
+ * Each connection gets a TlsChannel (an SSLEngine of this context), with either engine.
+ *
+ * Sessions are cached server side (by session ID, and as PSKs for TLS 1.3), so a client coming back (a new
+ * connection for the next file) skips the full handshake, its key exchange and certificate. Where the VM supports
+ * stateless session tickets (Java 13+, Conscrypt on Android) they're used too, nothing is kept for them.
+ *
+ */
+final class Tls {
+
+   static final int DEFAULT_SESSION_CACHE_SIZE = 1024;
+   static final int DEFAULT_SESSION_TIMEOUT_SECONDS = 24 * 60 * 60;
+   static final int DEFAULT_SMALL_RECORD_BYTES = 64 * 1024;
+
+   private final SSLContext context;
+   private volatile int smallRecordBytes = DEFAULT_SMALL_RECORD_BYTES;
+
+   private final AtomicLong handshakes = new AtomicLong();
+   private final AtomicLong resumed = new AtomicLong();
+   private final AtomicLong failed = new AtomicLong();
+
+   Tls(final SSLContext context) {
+      this.context = context;
+      setSessions(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECONDS);
+   }
+
+   /**
+    * Context with the key (and certificate chain) in keyStore, PKCS12 (.p12, .pfx), BKS (.bks, Android),
+    * or the VM's default keystore type (.jks, anything else). The key's password is the store's.
+    *
+    */
+   static SSLContext createContext(File keyStore, String password) throws IOException, GeneralSecurityException {
+      String name = keyStore.getName().toLowerCase(Locale.US);
+      String type = name.endsWith(".p12") || name.endsWith(".pfx") ? "PKCS12" : name.endsWith(".bks") ? "BKS"
+               : KeyStore.getDefaultType();
+      KeyStore store = KeyStore.getInstance(type);
+      char[] secret = password != null ? password.toCharArray() : null;
+      InputStream in = new FileInputStream(keyStore);
+      try {
+         store.load(in, secret);
+      } finally {
+         in.close();
+      }
+      KeyManagerFactory keys = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+      keys.init(store, secret);
+      SSLContext context = SSLContext.getInstance("TLS");
+      context.init(keys.getKeyManagers(), null, null);
+      return context;
+   }
+
+   // sessions kept for resumption (0 is no limit), and for how long
+   void setSessions(int cacheSize, int timeoutSeconds) {
+      SSLSessionContext sessions = context.getServerSessionContext();
+      sessions.setSessionCacheSize(cacheSize);
+      sessions.setSessionTimeout(timeoutSeconds);
+   }
+
+   // bytes sent in small records when a connection starts (or resumes after being idle), 0 is full records always
+   void setSmallRecordBytes(int smallRecordBytes) {
+      this.smallRecordBytes = smallRecordBytes;
+   }
+
+   int getSmallRecordBytes() {
+      return smallRecordBytes;
+   }
+
+   SSLEngine createEngine() {
+      SSLEngine engine = context.createSSLEngine();
+      engine.setUseClientMode(false);
+      return engine;
+   }
+
+   void handshakeDone(boolean wasResumed) {
+      handshakes.incrementAndGet();
+      if (wasResumed) {
+         resumed.incrementAndGet();
+      }
+   }
+
+   void handshakeFailed() {
+      failed.incrementAndGet();
+   }
+
+   // completed, full and resumed
+   long getHandshakes() {
+      return handshakes.get();
+   }
+
+   // completed by resuming a session (no key exchange, no certificate)
+   long getResumed() {
+      return resumed.get();
+   }
+
+   // failed, bad or no TLS from the client (plain HTTP to the TLS port), or no common protocol or cipher suite
+   long getFailed() {
+      return failed.get();
+   }
+}
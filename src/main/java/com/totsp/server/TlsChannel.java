@@ -0,0 +1,348 @@
+package com.totsp.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLEngineResult.Status;
+import javax.net.ssl.SSLException;
+
+/**
+ * One TLS connection, plaintext in and out, over a SocketChannel, blocking (BLOCKING engine, RequestHandler reads
+ * and writes it through streams) or not (NIO engine, read and write return 0 when the socket can't go on, flush and
+ * hasBufferedInput tell the event loop what it waits for). The handshake runs as the first reads need it.
+ *
+ * Records start small (one TCP segment each, so the client can decrypt the response head and first bytes as they
+ * arrive, before the congestion window opens), and after smallRecordBytes are full size (16KB, fewer records and
+ * less overhead for bulk media). A connection idle for a second starts small again.
+ *
+ * Encrypted buffers are from the server's pool (direct out, sent to the socket without a copy), and go back on close.
+ * File regions go through memory (no sendfile, bytes have to be encrypted).
+ *
+ */
+final class TlsChannel implements ByteChannel {
+
+   static final int SMALL_RECORD = 1400; // payload, plus record overhead, fits one segment (1460 byte MSS)
+   static final int MAX_RECORD = 16384;
+
+   private static final long IDLE_RESET_NANOS = TimeUnit.SECONDS.toNanos(1);
+   private static final int RECORD_HEADER = 5;
+   private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+   private final Tls tls;
+   private final SSLEngine engine;
+   private final SocketChannel channel;
+   private final ReadableByteChannel source; // channel, or (blocking) the socket's stream, so SO_TIMEOUT applies
+   private final BufferPool pool;
+   private final int packetSize;
+   private final long createdAt = System.currentTimeMillis();
+
+   // all in "write" mode, position is number of bytes held
+   private ByteBuffer netIn; // received, not yet decrypted (heap)
+   private ByteBuffer appIn; // decrypted, not yet read (heap)
+   private ByteBuffer netOut; // encrypted, not yet sent (direct)
+   private ByteBuffer fileOut; // file bytes to encrypt, once a file region is sent (direct)
+
+   private boolean handshaken;
+   private boolean inputDone; // end of stream, or close_notify
+   private boolean closed;
+   private long smallLeft; // bytes still to go in small records
+   private long lastWrite = System.nanoTime();
+
+   TlsChannel(final Tls tls, final SocketChannel channel, final BufferPool pool) throws IOException {
+      this.tls = tls;
+      this.engine = tls.createEngine();
+      this.channel = channel;
+      this.source = channel.isBlocking() ? Channels.newChannel(channel.socket().getInputStream()) : channel;
+      this.pool = pool;
+      this.packetSize = engine.getSession().getPacketBufferSize();
+      this.smallLeft = tls.getSmallRecordBytes();
+      netIn = acquire(packetSize, false);
+      appIn = acquire(engine.getSession().getApplicationBufferSize(), false);
+      netOut = acquire(packetSize, true);
+   }
+
+   /**
+    * Decrypted bytes into dst, returns bytes read, 0 if more has to arrive first (non-blocking, or handshake output
+    * still waiting, see flush), or -1 at end of stream.
+    *
+    */
+   public int read(ByteBuffer dst) throws IOException {
+      if (appIn.position() == 0) {
+         int n = unwrap();
+         if (n <= 0) {
+            return n;
+         }
+      }
+      appIn.flip();
+      int n = Math.min(appIn.remaining(), dst.remaining());
+      int limit = appIn.limit();
+      appIn.limit(appIn.position() + n);
+      dst.put(appIn);
+      appIn.limit(limit);
+      appIn.compact();
+      return n;
+   }
+
+   /**
+    * Encrypt from src, returns bytes taken. Blocking, all of it is sent. Non-blocking, what's encrypted but
+    * doesn't fit the socket yet is kept (and goes first next time, or on flush), and once that's too much nothing
+    * more is taken (returns 0, wait for the socket to be writable).
+    *
+    */
+   public int write(ByteBuffer src) throws IOException {
+      int taken = 0;
+      while (src.hasRemaining()) {
+         // records collect in netOut until it's full, then go out together
+         if ((engine.getHandshakeStatus() != HandshakeStatus.NOT_HANDSHAKING && !flush())
+                  || (netOut.remaining() < packetSize && !send())) {
+            break;
+         }
+         int limit = src.limit();
+         src.limit(src.position() + Math.min(src.remaining(), recordSize()));
+         SSLEngineResult result;
+         try {
+            result = wrap(src);
+         } finally {
+            src.limit(limit);
+         }
+         if (result.getStatus() == Status.CLOSED) {
+            throw new SSLException("TLS connection closed");
+         }
+         int n = result.bytesConsumed();
+         if (n == 0) {
+            // a handshake message due first (renegotiation, key update), needs input
+            if (engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP && unwrap() > 0) {
+               continue;
+            }
+            break;
+         }
+         taken += n;
+         smallLeft -= n;
+      }
+      // best effort, the rest goes on the next write or flush
+      send();
+      return taken;
+   }
+
+   /**
+    * Up to count bytes of file from position, encrypted and sent (as write), returns bytes taken.
+    *
+    */
+   long transferFrom(FileChannel file, long position, long count) throws IOException {
+      if (fileOut == null) {
+         fileOut = acquire(2 * MAX_RECORD, true);
+      }
+      fileOut.clear();
+      if (count < fileOut.remaining()) {
+         fileOut.limit((int) count);
+      }
+      int n = file.read(fileOut, position);
+      if (n <= 0) {
+         return 0;
+      }
+      fileOut.flip();
+      // (what the socket doesn't take now is read again next time)
+      return write(fileOut);
+   }
+
+   /**
+    * Send what's encrypted and waiting, and any handshake messages due, true once all of it is out.
+    *
+    */
+   boolean flush() throws IOException {
+      while (true) {
+         if (!send()) {
+            return false;
+         }
+         HandshakeStatus status = engine.getHandshakeStatus();
+         if (status == HandshakeStatus.NEED_TASK) {
+            // key exchange and certificate work, on this thread (a few ms, once per full handshake)
+            for (Runnable task; (task = engine.getDelegatedTask()) != null;) {
+               task.run();
+            }
+         } else if (status == HandshakeStatus.NEED_WRAP) {
+            SSLEngineResult result = wrap(EMPTY);
+            if (result.getStatus() == Status.CLOSED && result.bytesProduced() == 0) {
+               return true;
+            }
+         } else {
+            return true;
+         }
+      }
+   }
+
+   // encrypted bytes waiting for the socket (NIO waits for it to be writable)
+   boolean hasPendingOutput() {
+      return netOut.position() > 0;
+   }
+
+   // a read would return data without the socket being readable (NIO won't be told, the loop reads again itself)
+   boolean hasBufferedInput() {
+      if (appIn.position() > 0) {
+         return true;
+      }
+      if (inputDone || netIn.position() < RECORD_HEADER) {
+         return false;
+      }
+      int length = ((netIn.get(3) & 0xff) << 8) | (netIn.get(4) & 0xff);
+      return netIn.position() >= RECORD_HEADER + length;
+   }
+
+   public boolean isOpen() {
+      return !closed;
+   }
+
+   /**
+    * Send close_notify (as far as the socket takes it now), and give buffers back. Caller closes the socket.
+    *
+    */
+   public void close() {
+      if (closed) {
+         return;
+      }
+      closed = true;
+      try {
+         engine.closeOutbound();
+         if (send() && netOut.remaining() >= packetSize) {
+            engine.wrap(EMPTY, netOut);
+            send();
+         }
+      } catch (IOException e) {
+         // going away anyway
+      }
+      pool.release(netIn);
+      pool.release(appIn);
+      pool.release(netOut);
+      pool.release(fileOut);
+      netIn = null;
+      appIn = null;
+      netOut = null;
+      fileOut = null;
+   }
+
+   //
+   // priv helpers
+   //
+
+   // decrypt into appIn (empty), running the handshake as it goes, returns bytes in appIn, 0 if more has to arrive
+   // (or handshake output still waiting), -1 at end of stream
+   private int unwrap() throws IOException {
+      while (!inputDone) {
+         if (!flush()) {
+            return 0;
+         }
+         SSLEngineResult result;
+         netIn.flip();
+         try {
+            result = engine.unwrap(netIn, appIn);
+         } catch (SSLException e) {
+            failed();
+            throw e;
+         } finally {
+            netIn.compact();
+         }
+         finished(result);
+         switch (result.getStatus()) {
+            case OK:
+               if (appIn.position() > 0) {
+                  return appIn.position();
+               }
+               // handshake message, or empty record
+               break;
+            case BUFFER_UNDERFLOW:
+               if (!netIn.hasRemaining()) {
+                  throw new SSLException("TLS record too large");
+               }
+               int n = source.read(netIn);
+               if (n < 0) {
+                  inputDone = true;
+                  if (!handshaken) {
+                     failed();
+                  }
+               } else if (n == 0) {
+                  return 0;
+               }
+               break;
+            case CLOSED:
+               // close_notify, ours goes out on close
+               inputDone = true;
+               break;
+            default:
+               // appIn is empty, and holds a record
+               throw new SSLException("TLS buffer overflow");
+         }
+      }
+      return appIn.position() > 0 ? appIn.position() : -1;
+   }
+
+   // caller makes sure netOut has room for a record
+   private SSLEngineResult wrap(ByteBuffer src) throws IOException {
+      SSLEngineResult result;
+      try {
+         result = engine.wrap(src, netOut);
+      } catch (SSLException e) {
+         failed();
+         throw e;
+      }
+      finished(result);
+      return result;
+   }
+
+   // write what's encrypted, true once netOut is empty
+   private boolean send() throws IOException {
+      if (netOut.position() == 0) {
+         return true;
+      }
+      netOut.flip();
+      try {
+         while (netOut.hasRemaining() && channel.write(netOut) > 0) {
+            // blocking, writes it all, non-blocking, until the socket is full
+         }
+      } finally {
+         netOut.compact();
+      }
+      return netOut.position() == 0;
+   }
+
+   // small records first, full ones after smallRecordBytes, small again after being idle
+   private int recordSize() {
+      long now = System.nanoTime();
+      if (now - lastWrite > IDLE_RESET_NANOS) {
+         // idle, the congestion window has likely closed up again
+         smallLeft = tls.getSmallRecordBytes();
+      }
+      lastWrite = now;
+      return smallLeft > 0 ? SMALL_RECORD : MAX_RECORD;
+   }
+
+   private void finished(SSLEngineResult result) {
+      if (result.getHandshakeStatus() == HandshakeStatus.FINISHED && !handshaken) {
+         handshaken = true;
+         // a resumed session was made by an earlier connection's handshake
+         tls.handshakeDone(engine.getSession().getCreationTime() < createdAt);
+      }
+   }
+
+   private void failed() {
+      if (!handshaken) {
+         handshaken = true;
+         tls.handshakeFailed();
+      }
+   }
+
+   // whole buffer, as big as the pool's class is
+   private ByteBuffer acquire(int size, boolean isDirect) {
+      ByteBuffer buffer = pool.acquire(size, isDirect);
+      buffer.clear();
+      return buffer;
+   }
+}
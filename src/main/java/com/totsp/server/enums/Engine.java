@@ -0,0 +1,13 @@
+package com.totsp.server.enums;
+
+/**
+ * I/O engine used by HTTPServer to accept and serve connections.
+ *
+ * BLOCKING is the original model, one pooled thread per connection (each thread blocks on socket I/O).
+ * NIO uses a small set of event loop threads with non-blocking channels, so slow clients don't hold a thread
+ * (requests are processed on workers, so a slow callback doesn't hold up a loop either).
+ *
+ */
+public enum Engine {
+   BLOCKING, NIO;
+}
@@ -0,0 +1,14 @@
+package com.totsp.server.enums;
+
+/**
+ * How the BLOCKING engine runs connections, and the NIO engine processes requests (its I/O stays on the event loops).
+ *
+ * FIXED is the original, numThreads pooled threads, extra connections wait in the queue.
+ * ELASTIC starts at numThreads, adds threads while connections wait too long, and drops them again when idle.
+ * VIRTUAL is a virtual thread per connection (needs a JVM with virtual threads, Java 21+, otherwise falls back to FIXED),
+ * for desktop relays with thousands of streams.
+ *
+ */
+public enum Execution {
+   FIXED, ELASTIC, VIRTUAL;
+}
@@ -0,0 +1,13 @@
+package com.totsp.server.enums;
+
+/**
+ * What asynchronous callback dispatch does with a text request when its buffer is full (consumer is behind).
+ *
+ * DROP discards the new request (counted). BLOCK makes the request thread wait for room (back pressure to clients),
+ * except an NIO event loop thread, which coalesces instead.
+ * COALESCE keeps only the newest overflowing request (delivered in its place in order), for "latest state" messages.
+ *
+ */
+public enum OverflowPolicy {
+   DROP, BLOCK, COALESCE;
+}
@@ -0,0 +1,126 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+public class AccessLogTest {
+
+   @Test
+   public void testLines() throws Exception {
+      File file = File.createTempFile("access", ".log");
+      try {
+         AccessLog log = new AccessLog(file);
+         log.start();
+         Assert.assertTrue(log.log(response(Status.OK, "GET", "some/file.jpg"), InetAddress.getByName("127.0.0.1"), 1234, true));
+         Assert.assertTrue(log.log(response(Status.PARTIAL_OK, "GET", "a \"quoted\"\ttarget"), null, 10, false));
+         log.stop();
+
+         List<String> lines = readLines(file);
+         Assert.assertEquals(2, lines.size());
+         Assert.assertTrue(lines.get(0), lines.get(0).matches(
+                  "127\\.0\\.0\\.1 - - \\[\\d\\d/\\w\\w\\w/\\d{4}:\\d\\d:\\d\\d:\\d\\d \\+0000\\] \"GET /some/file\\.jpg HTTP/1\\.1\" 200 1234 \\d+"));
+         Assert.assertTrue(lines.get(1), lines.get(1).startsWith("- - - ["));
+         Assert.assertTrue(lines.get(1), lines.get(1).contains("\"GET /a ?quoted??target HTTP/1.1\" 206 10 "));
+         Assert.assertTrue(lines.get(1), lines.get(1).endsWith(" aborted"));
+         Assert.assertEquals(2, log.getWritten());
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testLongTargetCut() throws Exception {
+      File file = File.createTempFile("access", ".log");
+      try {
+         AccessLog log = new AccessLog(file);
+         log.start();
+         StringBuilder target = new StringBuilder();
+         for (int i = 0; i < 1000; i++) {
+            target.append('x');
+         }
+         log.log(response(Status.OK, "GET", target.toString()), null, 1, true);
+         log.stop();
+         String line = readLines(file).get(0);
+         Assert.assertTrue(line, line.contains(" /" + target.substring(0, AccessLog.MAX_TARGET - 3) + "... HTTP/1.1\""));
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testFullRingDrops() throws Exception {
+      File file = File.createTempFile("access", ".log");
+      try {
+         // not started, nothing takes records out
+         AccessLog log = new AccessLog(file, 4, 1024, 1);
+         for (int i = 0; i < 4; i++) {
+            Assert.assertTrue(log.log(response(Status.OK, "GET", "x"), null, 1, true));
+         }
+         Assert.assertFalse(log.log(response(Status.OK, "GET", "x"), null, 1, true));
+         Assert.assertEquals(1, log.getDropped());
+         log.start();
+         log.stop();
+         Assert.assertEquals(4, readLines(file).size());
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testRotation() throws Exception {
+      File file = File.createTempFile("access", ".log");
+      File rotated = new File(file.getPath() + ".1");
+      File rotated2 = new File(file.getPath() + ".2");
+      try {
+         // a line is ~80 bytes, batches over 1000 bytes go to a new file, one old file kept
+         AccessLog log = new AccessLog(file, 16, 1000, 1);
+         for (int batch = 0; batch < 3; batch++) {
+            for (int i = 0; i < 15; i++) {
+               log.log(response(Status.OK, "GET", "batch" + batch), null, 1, true);
+            }
+            log.start();
+            log.stop();
+         }
+         Assert.assertTrue(rotated.exists());
+         Assert.assertFalse(rotated2.exists());
+         Assert.assertTrue(readLines(file).get(0).contains("/batch2 "));
+         Assert.assertTrue(readLines(rotated).get(0).contains("/batch1 "));
+      } finally {
+         file.delete();
+         rotated.delete();
+         rotated2.delete();
+      }
+   }
+
+   static List<String> readLines(File file) throws IOException {
+      List<String> lines = new ArrayList<String>();
+      BufferedReader reader = new BufferedReader(new FileReader(file));
+      try {
+         for (String line; (line = reader.readLine()) != null;) {
+            lines.add(line);
+         }
+      } finally {
+         reader.close();
+      }
+      return lines;
+   }
+
+   private static Response response(Status status, String method, String target) {
+      Response response = Response.bytes(status, new byte[0], null, true);
+      response.received = System.nanoTime();
+      response.method = method;
+      response.target = target;
+      response.version = Request.HTTP_1_1;
+      return response;
+   }
+}
@@ -0,0 +1,58 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class AdmissionControlTest {
+
+   @Test
+   public void testUnlimitedByDefault() {
+      AdmissionControl admission = new AdmissionControl();
+      for (int i = 0; i < 1000; i++) {
+         Assert.assertTrue(admission.tryAcquireConnection(i));
+         Assert.assertTrue(admission.tryAcquireFileStream());
+      }
+      Assert.assertEquals(0, admission.getRejectedConnections());
+   }
+
+   @Test
+   public void testConnectionLimits() {
+      AdmissionControl admission = new AdmissionControl();
+      admission.setLimits(2, 3, 0);
+      Assert.assertTrue(admission.tryAcquireConnection(0));
+      // queue full
+      Assert.assertFalse(admission.tryAcquireConnection(3));
+      Assert.assertTrue(admission.tryAcquireConnection(2));
+      // connections full
+      Assert.assertFalse(admission.tryAcquireConnection(0));
+      admission.releaseConnection();
+      Assert.assertTrue(admission.tryAcquireConnection(0));
+      Assert.assertEquals(2, admission.getConnections());
+      Assert.assertEquals(2, admission.getRejectedConnections());
+   }
+
+   @Test
+   public void testFileStreamReleasedOnce() {
+      AdmissionControl admission = new AdmissionControl();
+      admission.setLimits(0, 0, 1);
+      Assert.assertTrue(admission.tryAcquireFileStream());
+      Assert.assertFalse(admission.tryAcquireFileStream());
+      Response response = Response.bytes(Status.OK, new byte[0], null, true).withFileStream(admission);
+      response.done();
+      response.done();
+      Assert.assertEquals(0, admission.getFileStreams());
+      Assert.assertEquals(1, admission.getRejectedFileStreams());
+   }
+
+   @Test
+   public void testRejectResponse() throws Exception {
+      AdmissionControl admission = new AdmissionControl();
+      admission.setRetryAfter(7);
+      Assert.assertEquals("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 7\r\nContent-Length: 0\r\nConnection: close\r\n\r\n",
+               new String(admission.getRejectResponse(), "ISO-8859-1"));
+      Assert.assertEquals("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 7\r\nContent-Length: 0\r\nConnection: keep-alive\r\n\r\n",
+               new String(admission.getBusyResponse(), "ISO-8859-1"));
+   }
+}
@@ -0,0 +1,132 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+public class BandwidthShaperTest {
+
+   @Test
+   public void testNotShapedByDefault() {
+      BandwidthShaper shaper = new BandwidthShaper();
+      Assert.assertFalse(shaper.isEnabled());
+      Response response = Response.segments(Status.OK, new byte[0], new File("test.txt"),
+               new Response.Segment[] { new Response.Segment(0, 10) }, true);
+      BandwidthShaper.Connection connection = shaper.connection();
+      Assert.assertNull(connection.open(response));
+      shaper.setLimits(1000, 0, 1);
+      BandwidthShaper.Stream stream = connection.open(response);
+      Assert.assertNotNull(stream);
+      stream.close();
+      // text responses are never shaped
+      Assert.assertNull(connection.open(Response.bytes(Status.OK, new byte[0], null, true)));
+   }
+
+   @Test
+   public void testFairShare() {
+      BandwidthShaper shaper = new BandwidthShaper();
+      shaper.setLimits(120000, 0, 1);
+      BandwidthShaper.Stream a = shaper.connection(0).open(false, 0);
+      Assert.assertEquals(120000, a.rate(0));
+      BandwidthShaper.Stream b = shaper.connection(0).open(false, 0);
+      Assert.assertEquals(60000, a.rate(0));
+      Assert.assertEquals(60000, b.rate(0));
+      b.close();
+      b.close();
+      Assert.assertEquals(120000, a.rate(0));
+      Assert.assertEquals(1, shaper.getStreams());
+      a.close();
+   }
+
+   @Test
+   public void testRangePriority() {
+      BandwidthShaper shaper = new BandwidthShaper();
+      shaper.setLimits(120000, 100000, 3);
+      BandwidthShaper.Stream download = shaper.connection(0).open(false, 0);
+      BandwidthShaper.Stream playback = shaper.connection(0).open(true, 0);
+      Assert.assertEquals(30000, download.rate(0));
+      Assert.assertEquals(90000, playback.rate(0));
+      download.close();
+      // alone, capped by the per connection limit
+      Assert.assertEquals(100000, playback.rate(0));
+      playback.close();
+      Assert.assertEquals(0, shaper.getStreams());
+   }
+
+   @Test
+   public void testTokenBucket() {
+      BandwidthShaper shaper = new BandwidthShaper();
+      shaper.setLimits(0, 100000, 1);
+      BandwidthShaper.Stream stream = shaper.connection(0).open(false, 0);
+      // starts with a burst
+      Assert.assertEquals(BandwidthShaper.MIN_BURST, stream.take(1000000, 0));
+      Assert.assertEquals(0, stream.take(1000000, 0));
+      Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1) * BandwidthShaper.QUANTUM / 100,
+               stream.delayNanos(1000000, 0));
+      // wants little, waits little
+      Assert.assertEquals(TimeUnit.MILLISECONDS.toNanos(1), stream.delayNanos(100, 0));
+
+      long tenth = TimeUnit.MILLISECONDS.toNanos(100);
+      Assert.assertEquals(0, stream.delayNanos(1000000, tenth));
+      Assert.assertEquals(10000, stream.take(1000000, tenth));
+      stream.giveBack(500);
+      Assert.assertEquals(500, stream.take(1000000, tenth));
+      // idle for long only ever fills the burst
+      Assert.assertEquals(BandwidthShaper.MIN_BURST, stream.take(1000000, TimeUnit.SECONDS.toNanos(60)));
+      stream.close();
+   }
+
+   @Test
+   public void testStalledStreamLeavesItsShare() {
+      BandwidthShaper shaper = new BandwidthShaper();
+      shaper.setLimits(120000, 0, 1);
+      BandwidthShaper.Stream stalled = shaper.connection(0).open(false, 0);
+      BandwidthShaper.Stream active = shaper.connection(0).open(false, 0);
+      Assert.assertEquals(60000, active.rate(0));
+      stalled.take(1000000, 0);
+
+      // stalled client stops asking, the active one gets the whole limit
+      long later = BandwidthShaper.IDLE_NANOS * 2;
+      active.take(1000000, later);
+      Assert.assertFalse(stalled.isActive(later));
+      Assert.assertEquals(120000, active.rate(later));
+      long second = TimeUnit.SECONDS.toNanos(1);
+      long sent = 0;
+      for (long now = later + 1; now <= later + second; now += TimeUnit.MILLISECONDS.toNanos(10)) {
+         sent += active.take(1000000, now);
+      }
+      Assert.assertTrue("sent " + sent, sent > 110000 && sent <= 120000 + BandwidthShaper.MIN_BURST);
+
+      // asks again (waiting for bytes counts), back to half each
+      long resumed = later + second;
+      Assert.assertTrue(stalled.delayNanos(1000000, resumed) >= 0);
+      Assert.assertEquals(60000, active.rate(resumed));
+      stalled.close();
+      active.close();
+   }
+
+   @Test
+   public void testConnectionLimitSharedByItsStreams() {
+      BandwidthShaper shaper = new BandwidthShaper();
+      shaper.setLimits(0, 100000, 1);
+      BandwidthShaper.Connection connection = shaper.connection(0);
+      // multiplexed (HTTP/2), one bucket for both
+      BandwidthShaper.Stream a = connection.open(false, 0);
+      BandwidthShaper.Stream b = connection.open(false, 0);
+      Assert.assertEquals(BandwidthShaper.MIN_BURST, a.take(1000000, 0));
+      Assert.assertEquals(0, b.take(1000000, 0));
+      long tenth = TimeUnit.MILLISECONDS.toNanos(100);
+      Assert.assertEquals(10000, a.take(5000, tenth) + b.take(1000000, tenth));
+      // another connection has its own
+      BandwidthShaper.Stream other = shaper.connection(0).open(false, 0);
+      Assert.assertEquals(BandwidthShaper.MIN_BURST, other.take(1000000, tenth));
+      a.close();
+      b.close();
+      other.close();
+      Assert.assertEquals(0, shaper.getStreams());
+   }
+}
@@ -0,0 +1,143 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+public class BufferPoolTest {
+
+   @Test
+   public void testSizeClasses() {
+      Assert.assertEquals(0, BufferPool.sizeClass(1));
+      Assert.assertEquals(0, BufferPool.sizeClass(BufferPool.MIN_SIZE));
+      Assert.assertEquals(1, BufferPool.sizeClass(BufferPool.MIN_SIZE + 1));
+      Assert.assertEquals(2, BufferPool.sizeClass(4096));
+      Assert.assertEquals(10, BufferPool.sizeClass(BufferPool.MAX_SIZE));
+      Assert.assertEquals(-1, BufferPool.sizeClass(BufferPool.MAX_SIZE + 1));
+   }
+
+   @Test
+   public void testReuse() {
+      BufferPool pool = new BufferPool();
+      ByteBuffer heap = pool.acquire(3000, false);
+      Assert.assertFalse(heap.isDirect());
+      Assert.assertEquals(4096, heap.capacity());
+      Assert.assertEquals(3000, heap.limit());
+      heap.put((byte) 1);
+      pool.release(heap);
+      ByteBuffer again = pool.acquire(4000, false);
+      Assert.assertSame(heap, again);
+      Assert.assertEquals(0, again.position());
+      Assert.assertEquals(4000, again.limit());
+
+      ByteBuffer direct = pool.acquire(3000, true);
+      Assert.assertTrue(direct.isDirect());
+      Assert.assertNotSame(heap, direct);
+      pool.release(again);
+      pool.release(direct);
+      pool.release(null);
+      Assert.assertEquals(0, pool.getInUse());
+      Assert.assertEquals(3, pool.getAcquired());
+      Assert.assertEquals(2, pool.getAllocated());
+
+      // too big to pool, allocated to size every time
+      ByteBuffer big = pool.acquire(BufferPool.MAX_SIZE + 1, false);
+      Assert.assertEquals(BufferPool.MAX_SIZE + 1, big.capacity());
+      pool.release(big);
+      Assert.assertNotSame(big, pool.acquire(BufferPool.MAX_SIZE + 1, false));
+   }
+
+   @Test
+   public void testBounded() throws Exception {
+      final BufferPool pool = new BufferPool(2 * BufferPool.MAX_SIZE);
+      // one the thread keeps, one to the shared pool, the rest is over max, both count
+      final ByteBuffer[] buffers = new ByteBuffer[4];
+      Thread thread = new Thread() {
+         @Override
+         public void run() {
+            for (int i = 0; i < buffers.length; i++) {
+               buffers[i] = pool.acquire(BufferPool.MAX_SIZE, false);
+            }
+            for (ByteBuffer buffer : buffers) {
+               pool.release(buffer);
+            }
+         }
+      };
+      thread.start();
+      thread.join();
+      Assert.assertEquals(2 * BufferPool.MAX_SIZE, pool.getPooledBytes());
+      // another thread gets the shared one
+      ByteBuffer shared = pool.acquire(BufferPool.MAX_SIZE, false);
+      Assert.assertSame(buffers[1], shared);
+      Assert.assertEquals(BufferPool.MAX_SIZE, pool.getPooledBytes());
+      // what the ended thread kept stops counting once room is needed
+      ByteBuffer other = pool.acquire(BufferPool.MAX_SIZE, false);
+      pool.release(shared);
+      pool.release(other);
+      Assert.assertEquals(2 * BufferPool.MAX_SIZE, pool.getPooledBytes());
+      Assert.assertSame(shared, pool.acquire(BufferPool.MAX_SIZE, false));
+      Assert.assertSame(other, pool.acquire(BufferPool.MAX_SIZE, false));
+
+      BufferPool none = new BufferPool(0);
+      ByteBuffer buffer = none.acquire(100, true);
+      none.release(buffer);
+      Assert.assertNotSame(buffer, none.acquire(100, true));
+      Assert.assertEquals(2, none.getAllocated());
+   }
+
+   @Test
+   public void testThreadCachesBounded() throws Exception {
+      final BufferPool pool = new BufferPool(64 * 1024);
+      // 16 threads each keeping 16KB (its class's share) would be 256KB
+      Thread[] threads = new Thread[16];
+      for (int i = 0; i < threads.length; i++) {
+         threads[i] = new Thread() {
+            @Override
+            public void run() {
+               pool.release(pool.acquire(16 * 1024, true));
+            }
+         };
+         threads[i].start();
+         threads[i].join();
+      }
+      Assert.assertTrue(pool.getPooledBytes() <= 64 * 1024);
+   }
+
+   @Test
+   public void testThreadCacheReleased() throws Exception {
+      final BufferPool pool = new BufferPool();
+      final ByteBuffer[] kept = new ByteBuffer[1];
+      // a thread per connection, each ends after giving its buffers back
+      for (int i = 0; i < 8; i++) {
+         Thread thread = new Thread() {
+            @Override
+            public void run() {
+               kept[0] = pool.acquire(4096, true);
+               pool.release(kept[0]);
+               pool.releaseThreadCache();
+            }
+         };
+         thread.start();
+         thread.join();
+      }
+      // one buffer, reused by every thread after the first
+      Assert.assertEquals(1, pool.getAllocated());
+      Assert.assertEquals(4096, pool.getPooledBytes());
+      Assert.assertSame(kept[0], pool.acquire(4096, true));
+   }
+
+   @Test
+   public void testLeakDetection() throws Exception {
+      BufferPool pool = new BufferPool();
+      pool.setLeakDetection(true);
+      pool.release(pool.acquire(100, false));
+      pool.acquire(100, false); // never released
+      for (int i = 0; i < 100 && pool.getLeaks() == 0; i++) {
+         System.gc();
+         Thread.sleep(10);
+      }
+      Assert.assertEquals(1, pool.getLeaks());
+      Assert.assertEquals(1, pool.getInUse());
+   }
+}
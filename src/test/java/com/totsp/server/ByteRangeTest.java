@@ -0,0 +1,66 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.List;
+
+public class ByteRangeTest {
+
+   @Test
+   public void testSingleRanges() {
+      assertRanges(ByteRange.parse("bytes=0-99", 1000), 0, 99);
+      assertRanges(ByteRange.parse("bytes=500-", 1000), 500, 999);
+      assertRanges(ByteRange.parse("bytes=-100", 1000), 900, 999);
+      // end past entity length is clamped, suffix bigger than entity is whole entity
+      assertRanges(ByteRange.parse("bytes=900-5000", 1000), 900, 999);
+      assertRanges(ByteRange.parse("bytes=-5000", 1000), 0, 999);
+      assertRanges(ByteRange.parse("Bytes = 1-2", 1000), 1, 2);
+   }
+
+   @Test
+   public void testMultipleRangesCoalesced() {
+      assertRanges(ByteRange.parse("bytes=0-99,500-599", 1000), 0, 99, 500, 599);
+      // unordered, overlapping and adjacent
+      assertRanges(ByteRange.parse("bytes=500-599,0-99,100-199,550-650", 1000), 0, 199, 500, 650);
+      assertRanges(ByteRange.parse("bytes=0-99,,-100", 1000), 0, 99, 900, 999);
+   }
+
+   @Test
+   public void testLargeOffsets() {
+      assertRanges(ByteRange.parse("bytes=3000000000-", 3000000010L), 3000000000L, 3000000009L);
+   }
+
+   @Test
+   public void testUnsatisfiable() {
+      Assert.assertTrue(ByteRange.parse("bytes=1000-2000", 1000).isEmpty());
+      Assert.assertTrue(ByteRange.parse("bytes=-0", 1000).isEmpty());
+      // satisfiable ones survive
+      assertRanges(ByteRange.parse("bytes=1000-2000,0-0", 1000), 0, 0);
+   }
+
+   @Test
+   public void testInvalidIgnored() {
+      Assert.assertNull(ByteRange.parse("items=0-99", 1000));
+      Assert.assertNull(ByteRange.parse("bytes=abc-def", 1000));
+      Assert.assertNull(ByteRange.parse("bytes=99-0", 1000));
+      Assert.assertNull(ByteRange.parse("bytes=5", 1000));
+      Assert.assertNull(ByteRange.parse("bytes=--5", 1000));
+      Assert.assertNull(ByteRange.parse("bytes=", 1000));
+      Assert.assertNull(ByteRange.parse("bytes= , ,", 1000));
+      StringBuilder many = new StringBuilder("bytes=0-0");
+      for (int i = 1; i <= ByteRange.MAX_RANGES; i++) {
+         many.append("," + (i * 2) + "-" + (i * 2));
+      }
+      Assert.assertNull(ByteRange.parse(many.toString(), 1000));
+   }
+
+   private void assertRanges(List<ByteRange> ranges, long... startEnds) {
+      Assert.assertNotNull(ranges);
+      Assert.assertEquals(startEnds.length / 2, ranges.size());
+      for (int i = 0; i < ranges.size(); i++) {
+         Assert.assertEquals(startEnds[i * 2], ranges.get(i).start);
+         Assert.assertEquals(startEnds[i * 2 + 1], ranges.get(i).end);
+      }
+   }
+}
@@ -0,0 +1,234 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.OverflowPolicy;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class CallbackDispatcherTest {
+
+   @Test
+   public void testOrderPerProducer() throws Exception {
+      final int producers = 4;
+      final int perProducer = 5000;
+      final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+      final CountDownLatch all = new CountDownLatch(producers * perProducer);
+      final CallbackDispatcher dispatcher = new CallbackDispatcher(new TextRequestCallback() {
+         public void onRequest(String request) {
+            received.add(request);
+            all.countDown();
+         }
+      }, 64, OverflowPolicy.BLOCK);
+      dispatcher.start();
+
+      Thread[] threads = new Thread[producers];
+      for (int p = 0; p < producers; p++) {
+         final int producer = p;
+         threads[p] = new Thread() {
+            @Override
+            public void run() {
+               for (int i = 0; i < perProducer; i++) {
+                  dispatcher.dispatch(producer + ":" + i);
+               }
+            }
+         };
+         threads[p].start();
+      }
+      for (Thread t : threads) {
+         t.join();
+      }
+      Assert.assertTrue(all.await(10, TimeUnit.SECONDS));
+      dispatcher.stop();
+
+      int[] next = new int[producers];
+      for (String request : received) {
+         int producer = Integer.parseInt(request.substring(0, request.indexOf(':')));
+         Assert.assertEquals(next[producer]++, Integer.parseInt(request.substring(request.indexOf(':') + 1)));
+      }
+      Assert.assertEquals(0, dispatcher.getDropped());
+   }
+
+   @Test
+   public void testBatches() throws Exception {
+      final List<List<String>> batches = Collections.synchronizedList(new ArrayList<List<String>>());
+      final CountDownLatch blocked = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      CallbackDispatcher dispatcher = new CallbackDispatcher(new BatchTextRequestCallback() {
+         public void onRequest(String request) {
+            Assert.fail("batch callback gets onRequests");
+         }
+
+         public void onRequests(List<String> requests) {
+            batches.add(requests);
+            blocked.countDown();
+            await(release);
+         }
+      }, 128, OverflowPolicy.DROP);
+      dispatcher.start();
+
+      // first delivered alone, rest queue up behind the slow callback
+      dispatcher.dispatch("/0");
+      Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      for (int i = 1; i <= 100; i++) {
+         dispatcher.dispatch("/" + i);
+      }
+      release.countDown();
+      dispatcher.stop();
+
+      Assert.assertEquals(3, batches.size());
+      Assert.assertEquals(CallbackDispatcher.MAX_BATCH, batches.get(1).size());
+      Assert.assertEquals("/1", batches.get(1).get(0));
+      Assert.assertEquals("/100", batches.get(2).get(batches.get(2).size() - 1));
+   }
+
+   @Test
+   public void testDropWhenFull() throws Exception {
+      final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+      final CountDownLatch blocked = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      CallbackDispatcher dispatcher = new CallbackDispatcher(blockingCallback(received, blocked, release), 4, OverflowPolicy.DROP);
+      dispatcher.start();
+
+      dispatcher.dispatch("/0");
+      Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      for (int i = 1; i <= 6; i++) {
+         dispatcher.dispatch("/" + i);
+      }
+      release.countDown();
+      dispatcher.stop();
+
+      Assert.assertEquals(2, dispatcher.getDropped());
+      Assert.assertEquals(Arrays.asList("/0", "/1", "/2", "/3", "/4"), received);
+   }
+
+   @Test
+   public void testCoalesceKeepsNewest() throws Exception {
+      final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+      final CountDownLatch blocked = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      CallbackDispatcher dispatcher = new CallbackDispatcher(blockingCallback(received, blocked, release), 4,
+               OverflowPolicy.COALESCE);
+      dispatcher.start();
+
+      dispatcher.dispatch("/0");
+      Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      for (int i = 1; i <= 7; i++) {
+         dispatcher.dispatch("/" + i);
+      }
+      release.countDown();
+      dispatcher.stop();
+
+      // /5 and /6 replaced by /7, which keeps their place
+      Assert.assertEquals(Arrays.asList("/0", "/1", "/2", "/3", "/4", "/7"), received);
+      Assert.assertEquals(2, dispatcher.getCoalesced());
+      Assert.assertEquals(0, dispatcher.getDropped());
+   }
+
+   @Test
+   public void testBlockWaitsForRoom() throws Exception {
+      final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+      final CountDownLatch blocked = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      final CallbackDispatcher dispatcher = new CallbackDispatcher(blockingCallback(received, blocked, release), 2,
+               OverflowPolicy.BLOCK);
+      dispatcher.start();
+
+      dispatcher.dispatch("/0");
+      Assert.assertTrue(blocked.await(5, TimeUnit.SECONDS));
+      dispatcher.dispatch("/1");
+      dispatcher.dispatch("/2");
+      Thread producer = new Thread() {
+         @Override
+         public void run() {
+            dispatcher.dispatch("/3");
+         }
+      };
+      producer.start();
+      producer.join(200);
+      // full, producer waits
+      Assert.assertTrue(producer.isAlive());
+
+      release.countDown();
+      producer.join(5000);
+      Assert.assertFalse(producer.isAlive());
+      dispatcher.stop();
+      Assert.assertEquals(Arrays.asList("/0", "/1", "/2", "/3"), received);
+   }
+
+   @Test
+   public void testAsyncCallbackServer() throws Exception {
+      final CountDownLatch delivered = new CountDownLatch(1);
+      final CountDownLatch release = new CountDownLatch(1);
+      HTTPServer server = new HTTPServer("TestServer", 8127, 1, new TextRequestCallback() {
+         public void onRequest(String request) {
+            delivered.countDown();
+            await(release);
+         }
+      });
+      server.setAsyncCallbacks(16, OverflowPolicy.DROP);
+      server.start();
+      try {
+         // ACK doesn't wait for the (stuck) callback
+         long start = System.currentTimeMillis();
+         Assert.assertTrue(RawHttpClient.get("localhost", 8127, "/message", null).trim().endsWith("ACK"));
+         Assert.assertTrue(System.currentTimeMillis() - start < 5000);
+         Assert.assertTrue(delivered.await(5, TimeUnit.SECONDS));
+      } finally {
+         release.countDown();
+         server.stop();
+      }
+   }
+
+   @Test
+   public void testAsyncCallbacksChangedWhileRunning() throws Exception {
+      final CountDownLatch delivered = new CountDownLatch(2);
+      HTTPServer server = new HTTPServer("TestServer", 8127, 1, new TextRequestCallback() {
+         public void onRequest(String request) {
+            delivered.countDown();
+         }
+      });
+      server.setAsyncCallbacks(16, OverflowPolicy.DROP);
+      server.start();
+      try {
+         Assert.assertTrue(RawHttpClient.get("localhost", 8127, "/one", null).trim().endsWith("ACK"));
+         // new dispatcher takes over right away, nothing is left queued without a thread
+         server.setAsyncCallbacks(32, OverflowPolicy.DROP);
+         Assert.assertTrue(RawHttpClient.get("localhost", 8127, "/two", null).trim().endsWith("ACK"));
+         Assert.assertTrue(delivered.await(5, TimeUnit.SECONDS));
+         Assert.assertEquals(0, server.getDroppedCallbacks());
+      } finally {
+         server.stop();
+      }
+   }
+
+   //
+   // priv helpers
+   //
+
+   // records requests, the first one blocks until released
+   private static TextRequestCallback blockingCallback(final List<String> received, final CountDownLatch blocked,
+            final CountDownLatch release) {
+      return new TextRequestCallback() {
+         public void onRequest(String request) {
+            received.add(request);
+            blocked.countDown();
+            await(release);
+         }
+      };
+   }
+
+   private static void await(CountDownLatch latch) {
+      try {
+         latch.await(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+}
@@ -0,0 +1,135 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+public class CompressionTest {
+
+   @Test
+   public void testNegotiate() {
+      Assert.assertNull(Compression.negotiate(null));
+      Assert.assertNull(Compression.negotiate("identity"));
+      Assert.assertEquals("gzip", Compression.negotiate("gzip, deflate, br"));
+      Assert.assertEquals("deflate", Compression.negotiate("deflate"));
+      Assert.assertEquals("deflate", Compression.negotiate("gzip;q=0.5, deflate"));
+      Assert.assertEquals("deflate", Compression.negotiate("GZIP; q=0, deflate;q=0.1"));
+      Assert.assertNull(Compression.negotiate("gzip;q=0"));
+      Assert.assertEquals("gzip", Compression.negotiate("*"));
+      Assert.assertNull(Compression.negotiate("*;q=0"));
+   }
+
+   @Test
+   public void testCompressible() {
+      Assert.assertTrue(Compression.isCompressible("text/plain"));
+      Assert.assertTrue(Compression.isCompressible("application/json"));
+      Assert.assertFalse(Compression.isCompressible("image/jpeg"));
+      Assert.assertFalse(Compression.isCompressible("video/mp4"));
+      Assert.assertFalse(Compression.isCompressible(null));
+      Assert.assertEquals("\"abc-gzip\"", Compression.variantTag("\"abc\"", "gzip"));
+   }
+
+   @Test
+   public void testChunkedGzip() throws Exception {
+      File file = createTextFile(200000);
+      try {
+         byte[] expected = readAll(file);
+         Assert.assertArrayEquals(expected, inflate(compressChunked(file, 0, file.length(), "gzip"), "gzip"));
+         // region, deflate (zlib)
+         byte[] region = Arrays.copyOfRange(expected, 1000, 51000);
+         Assert.assertArrayEquals(region, inflate(compressChunked(file, 1000, 50000, "deflate"), "deflate"));
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testCompressedCache() throws Exception {
+      File file = createTextFile(20000);
+      try {
+         CompressedCache cache = new CompressedCache(1024 * 1024, 10000);
+         FileInfoCache.FileInfo info = new FileInfoCache.FileInfo(file, System.currentTimeMillis());
+         // too big to cache, streamed instead
+         Assert.assertFalse(cache.fits(info));
+         Assert.assertNull(cache.get(info, "gzip"));
+
+         cache = new CompressedCache(1024 * 1024, 1024 * 1024);
+         byte[] compressed = cache.get(info, "gzip");
+         Assert.assertArrayEquals(readAll(file), inflate(compressed, "gzip"));
+         Assert.assertSame(compressed, cache.get(info, "gzip"));
+         Assert.assertEquals(1, cache.getHits());
+         Assert.assertEquals(compressed.length, cache.getUsedBytes());
+      } finally {
+         file.delete();
+      }
+   }
+
+   //
+   // helpers (also used by server tests)
+   //
+
+   // text file with some repetition (like a log), .txt so it's served as text/plain
+   static File createTextFile(int size) throws IOException {
+      File file = File.createTempFile("compress", ".txt");
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+         StringBuilder sb = new StringBuilder();
+         for (int line = 0; sb.length() < size; line++) {
+            sb.append("2013-01-02 12:00:").append(line % 60).append(" INFO request ").append(line).append(" served\n");
+         }
+         out.write(sb.substring(0, size).getBytes("US-ASCII"));
+      } finally {
+         out.close();
+      }
+      return file;
+   }
+
+   static byte[] inflate(byte[] compressed, String encoding) throws IOException {
+      InputStream in = new ByteArrayInputStream(compressed);
+      in = "gzip".equals(encoding) ? new GZIPInputStream(in) : new InflaterInputStream(in);
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read; (read = in.read(buffer)) > -1;) {
+         out.write(buffer, 0, read);
+      }
+      return out.toByteArray();
+   }
+
+   static byte[] readAll(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         byte[] bytes = new byte[(int) raf.length()];
+         raf.readFully(bytes);
+         return bytes;
+      } finally {
+         raf.close();
+      }
+   }
+
+   private static byte[] compressChunked(File file, long offset, long length, String encoding) throws IOException {
+      FileChannel channel = new RandomAccessFile(file, "r").getChannel();
+      ChunkedCompressor compressor = new ChunkedCompressor(channel, offset, length, encoding);
+      try {
+         ByteArrayOutputStream chunked = new ByteArrayOutputStream();
+         for (ByteBuffer chunk; (chunk = compressor.next()) != null;) {
+            chunked.write(chunk.array(), chunk.arrayOffset() + chunk.position(), chunk.remaining());
+         }
+         return RawHttpClient.dechunk(chunked.toByteArray());
+      } finally {
+         compressor.end();
+         channel.close();
+      }
+   }
+}
@@ -0,0 +1,80 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+public class ContentCacheTest {
+
+   @Test
+   public void testCachedOnSecondRequest() {
+      FileInfoCache.FileInfo info = new FileInfoCache.FileInfo(new File("src/test/resources/test.txt"), 0);
+      ContentCache cache = new ContentCache(1024, 1024);
+      Assert.assertNull(cache.get(info));
+      ByteBuffer content = cache.get(info);
+      Assert.assertNotNull(content);
+      Assert.assertEquals(86, cache.getUsedBytes());
+      Assert.assertSame(content, cache.get(info));
+      Assert.assertEquals(1, cache.getHits());
+
+      ByteBuffer slice = ContentCache.slice(content, 4, 4);
+      byte[] what = new byte[4];
+      slice.get(what);
+      Assert.assertEquals("what", new String(what));
+      // slicing never moves the shared content
+      Assert.assertEquals(0, content.position());
+      Assert.assertEquals(86, content.remaining());
+   }
+
+   @Test
+   public void testByteBudget() throws Exception {
+      File a = tempFile(600);
+      File b = tempFile(600);
+      ContentCache cache = new ContentCache(1000, 1000);
+      Assert.assertNotNull(getTwice(cache, a));
+      Assert.assertNotNull(getTwice(cache, b));
+      // a dropped to make room for b
+      Assert.assertEquals(600, cache.getUsedBytes());
+
+      // too big to cache at all
+      File c = tempFile(1001);
+      Assert.assertNull(getTwice(cache, c));
+   }
+
+   @Test
+   public void testChangedFileRemapped() throws Exception {
+      File a = tempFile(10);
+      ContentCache cache = new ContentCache(1000, 1000);
+      Assert.assertNotNull(getTwice(cache, a));
+      writeFile(a, 20);
+      a.setLastModified(a.lastModified() + 5000);
+      FileInfoCache.FileInfo changed = new FileInfoCache.FileInfo(a, 0);
+      // old content dropped, remembered as a candidate again
+      Assert.assertNull(cache.get(changed));
+      Assert.assertEquals(0, cache.getUsedBytes());
+      Assert.assertEquals(20, cache.get(changed).remaining());
+   }
+
+   private ByteBuffer getTwice(ContentCache cache, File file) {
+      FileInfoCache.FileInfo info = new FileInfoCache.FileInfo(file, 0);
+      cache.get(info);
+      return cache.get(info);
+   }
+
+   private File tempFile(int length) throws IOException {
+      File file = File.createTempFile("content", ".txt");
+      file.deleteOnExit();
+      writeFile(file, length);
+      return file;
+   }
+
+   private void writeFile(File file, int length) throws IOException {
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(new byte[length]);
+      out.close();
+   }
+}
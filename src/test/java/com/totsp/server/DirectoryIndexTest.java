@@ -0,0 +1,191 @@
+package com.totsp.server;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+public class DirectoryIndexTest {
+
+   private File root;
+
+   @Before
+   public void setUp() throws Exception {
+      root = File.createTempFile("index", "");
+      root.delete();
+      root.mkdir();
+      touch(new File(root, "b.jpg"), 10);
+      touch(new File(root, "a.mp4"), 20);
+      touch(new File(root, "notes.xyz"), 5);
+      touch(new File(root, ".hidden.jpg"), 5);
+      new File(root, "sub").mkdir();
+   }
+
+   @After
+   public void tearDown() {
+      delete(root);
+   }
+
+   @Test
+   public void testListing() throws Exception {
+      DirectoryIndex index = new DirectoryIndex(new File[] { root }, 8, false);
+      DirectoryIndex.Listing listing = index.get(root.getAbsolutePath() + "/");
+      Assert.assertEquals(3, listing.entries.length);
+      Assert.assertEquals("a.mp4", listing.entries[0].name);
+      Assert.assertEquals(20, listing.entries[0].length);
+      Assert.assertEquals(FileInfoCache.FileInfo.etag(new File(root, "a.mp4"), listing.entries[0].lastModified, 20),
+               listing.entries[0].etag);
+      Assert.assertEquals("b.jpg", listing.entries[1].name);
+      Assert.assertTrue(listing.entries[2].isDirectory);
+
+      // cached, same snapshot
+      Assert.assertSame(listing, index.get(root.getAbsolutePath()));
+      Assert.assertEquals(1, index.getBuilds());
+
+      // not under root, or trying to get out of it
+      Assert.assertNull(index.get(root.getParent()));
+      Assert.assertNull(index.get(root.getAbsolutePath() + "/sub/../.."));
+      Assert.assertNull(index.get(root.getAbsolutePath() + "/missing/"));
+      index.close();
+   }
+
+   @Test
+   public void testPages() throws Exception {
+      DirectoryIndex index = new DirectoryIndex(new File[] { root }, 8, false);
+      DirectoryIndex.Listing listing = index.get(root.getAbsolutePath());
+      String json = listing.toJson(1, 1);
+      Assert.assertTrue(json, json.contains("\"total\":3,\"offset\":1,\"limit\":1,\"entries\":[{\"name\":\"b.jpg\",\"type\":\"file\",\"size\":10,"));
+      Assert.assertTrue(json, json.endsWith("],\"next\":\"?offset=2&limit=1\"}"));
+      Assert.assertFalse(listing.toJson(0, 100).contains("\"next\""));
+      String html = listing.toHtml(0, 2);
+      Assert.assertTrue(html, html.contains("<a href=\"a.mp4\">a.mp4</a>"));
+      Assert.assertTrue(html, html.contains("1-2 of 3 <a href=\"?format=html&amp;offset=2&amp;limit=2\">next</a>"));
+      index.close();
+   }
+
+   @Test
+   public void testIncrementalUpdate() throws Exception {
+      DirectoryIndex index = new DirectoryIndex(new File[] { root }, 8, false);
+      DirectoryIndex.Listing before = index.get(root.getAbsolutePath());
+
+      touch(new File(root, "c.png"), 30);
+      index.changed(root, "c.png");
+      new File(root, "b.jpg").delete();
+      index.changed(root, "b.jpg");
+      // unsupported type, ignored
+      touch(new File(root, "d.xyz"), 1);
+      index.changed(root, "d.xyz");
+
+      DirectoryIndex.Listing after = index.get(root.getAbsolutePath());
+      Assert.assertEquals(1, index.getBuilds());
+      Assert.assertEquals("a.mp4", after.entries[0].name);
+      Assert.assertEquals("c.png", after.entries[1].name);
+      Assert.assertEquals("sub", after.entries[2].name);
+      Assert.assertEquals(3, after.entries.length);
+      Assert.assertFalse(before.etag.equals(after.etag));
+
+      // same content as a fresh scan, same tag
+      DirectoryIndex fresh = new DirectoryIndex(new File[] { root }, 8, false);
+      Assert.assertEquals(fresh.get(root.getAbsolutePath()).etag, after.etag);
+
+      // events lost, rescanned on next get
+      index.overflow(root);
+      index.get(root.getAbsolutePath());
+      Assert.assertEquals(2, index.getBuilds());
+      index.close();
+      fresh.close();
+   }
+
+   @Test
+   public void testUnwatchedRewrittenInPlace() throws Exception {
+      DirectoryIndex index = new DirectoryIndex(new File[] { root }, 8, false);
+      DirectoryIndex.Listing before = index.get(root.getAbsolutePath());
+      long dirModified = root.lastModified();
+
+      // rewritten, same name, the directory's mtime doesn't move
+      File file = new File(root, "b.jpg");
+      touch(file, 15);
+      file.setLastModified(before.entries[1].lastModified + 5000);
+      root.setLastModified(dirModified);
+      Thread.sleep(DirectoryIndex.CHECK_MILLIS + 100);
+
+      DirectoryIndex.Listing after = index.get(root.getAbsolutePath());
+      Assert.assertEquals(15, after.entries[1].length);
+      Assert.assertEquals(FileInfoCache.FileInfo.etag(file, after.entries[1].lastModified, 15), after.entries[1].etag);
+      Assert.assertFalse(before.etag.equals(after.etag));
+      Assert.assertEquals(1, index.getBuilds());
+      Assert.assertEquals(1, index.getUpdates());
+      index.close();
+   }
+
+   @Test
+   public void testWatched() throws Exception {
+      DirectoryIndex index = new DirectoryIndex(new File[] { root }, 8, true);
+      if (!index.isWatching()) {
+         return; // no WatchService on this VM
+      }
+      Assert.assertEquals(3, index.get(root.getAbsolutePath()).entries.length);
+      touch(new File(root, "e.jpg"), 1);
+      DirectoryIndex.Listing listing = index.get(root.getAbsolutePath());
+      for (int i = 0; i < 500 && listing.entries.length < 4; i++) {
+         Thread.sleep(10);
+         listing = index.get(root.getAbsolutePath());
+      }
+      Assert.assertEquals(4, listing.entries.length);
+      Assert.assertEquals(1, index.getBuilds());
+      Assert.assertTrue(index.getUpdates() > 0);
+      index.close();
+   }
+
+   @Test
+   public void testWatchedAgainWhenRecreated() throws Exception {
+      DirectoryIndex index = new DirectoryIndex(new File[] { root }, 8, true);
+      if (!index.isWatching()) {
+         return; // no WatchService on this VM
+      }
+      File sub = new File(root, "sub");
+      Assert.assertEquals(0, index.get(sub.getAbsolutePath()).entries.length);
+      // its watch key is dead, the listing is rebuilt once the event says so
+      sub.delete();
+      sub.mkdir();
+      for (int i = 0; i < 500 && index.getBuilds() < 2; i++) {
+         Thread.sleep(10);
+         index.get(sub.getAbsolutePath());
+      }
+      Assert.assertEquals(2, index.getBuilds());
+
+      // and watched again, changes still come in as events
+      touch(new File(sub, "f.jpg"), 1);
+      DirectoryIndex.Listing listing = index.get(sub.getAbsolutePath());
+      for (int i = 0; i < 500 && listing.entries.length < 1; i++) {
+         Thread.sleep(10);
+         listing = index.get(sub.getAbsolutePath());
+      }
+      Assert.assertEquals(1, listing.entries.length);
+      Assert.assertEquals(2, index.getBuilds());
+      index.close();
+   }
+
+   static void touch(File file, int length) throws IOException {
+      FileOutputStream out = new FileOutputStream(file);
+      try {
+         out.write(new byte[length]);
+      } finally {
+         out.close();
+      }
+   }
+
+   static void delete(File file) {
+      File[] children = file.listFiles();
+      if (children != null) {
+         for (File child : children) {
+            delete(child);
+         }
+      }
+      file.delete();
+   }
+}
@@ -0,0 +1,104 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ElasticThreadPoolTest {
+
+   @Test
+   public void testGrowsWhileBackedUp() throws Exception {
+      ElasticThreadPool pool = new ElasticThreadPool(2, 8);
+      final CountDownLatch release = new CountDownLatch(1);
+      final CountDownLatch running = new CountDownLatch(6);
+      try {
+         // more long running tasks (streams) than threads, the rest wait in the queue until the pool grows
+         for (int i = 0; i < 6; i++) {
+            pool.execute(new Runnable() {
+               public void run() {
+                  running.countDown();
+                  try {
+                     release.await();
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                  }
+               }
+            });
+         }
+         Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+         Assert.assertTrue(pool.getCorePoolSize() >= 6);
+         Assert.assertTrue(pool.getCorePoolSize() <= 8);
+      } finally {
+         release.countDown();
+         pool.shutdown();
+         Assert.assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+      }
+   }
+
+   @Test
+   public void testShrinksToBaseWhenDrained() throws Exception {
+      ElasticThreadPool pool = new ElasticThreadPool(2, 8, 100);
+      final CountDownLatch release = new CountDownLatch(1);
+      final CountDownLatch running = new CountDownLatch(8);
+      try {
+         // saturate, every thread up to the max busy
+         for (int i = 0; i < 8; i++) {
+            pool.execute(new Runnable() {
+               public void run() {
+                  running.countDown();
+                  try {
+                     release.await();
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                  }
+               }
+            });
+         }
+         Assert.assertTrue(running.await(5, TimeUnit.SECONDS));
+         Assert.assertEquals(8, pool.getCorePoolSize());
+
+         // drained, steps back down to the configured base, one step per quiet period
+         release.countDown();
+         for (int i = 0; i < 200 && pool.getCorePoolSize() > 2; i++) {
+            Thread.sleep(50);
+         }
+         Assert.assertEquals(2, pool.getCorePoolSize());
+         for (int i = 0; i < 100 && pool.getPoolSize() > 2; i++) {
+            Thread.sleep(50);
+         }
+         Assert.assertEquals(2, pool.getPoolSize());
+      } finally {
+         release.countDown();
+         pool.shutdown();
+         Assert.assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+      }
+   }
+
+   @Test
+   public void testGrowsOnAverageWait() throws Exception {
+      ElasticThreadPool pool = new ElasticThreadPool(1, 4);
+      final CountDownLatch done = new CountDownLatch(60);
+      try {
+         // short tasks, some start in every adjust interval (not stuck), but each waited far over the target
+         for (int i = 0; i < 60; i++) {
+            pool.execute(new Runnable() {
+               public void run() {
+                  try {
+                     Thread.sleep(20);
+                  } catch (InterruptedException e) {
+                     Thread.currentThread().interrupt();
+                  }
+                  done.countDown();
+               }
+            });
+         }
+         Assert.assertTrue(done.await(5, TimeUnit.SECONDS));
+         Assert.assertTrue(pool.getCorePoolSize() > 1);
+      } finally {
+         pool.shutdown();
+         Assert.assertTrue(pool.awaitTermination(5, TimeUnit.SECONDS));
+      }
+   }
+}
@@ -0,0 +1,73 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+
+public class FileInfoCacheTest {
+
+   @Test
+   public void testHitsAndMisses() {
+      String path = new File("src/test/resources/test.txt").getAbsolutePath();
+      FileInfoCache cache = new FileInfoCache(4, 60000);
+      FileInfoCache.FileInfo first = cache.get(path);
+      FileInfoCache.FileInfo second = cache.get(path);
+      Assert.assertSame(first, second);
+      Assert.assertEquals(1, cache.getMisses());
+      Assert.assertEquals(1, cache.getHits());
+      Assert.assertTrue(first.isFile && first.canRead);
+      Assert.assertEquals(86, first.length);
+      Assert.assertEquals("text/plain", first.mimeType);
+      Assert.assertTrue(first.etag.startsWith("\"") && first.etag.endsWith("\""));
+   }
+
+   @Test
+   public void testMissingFile() {
+      FileInfoCache cache = new FileInfoCache(4, 60000);
+      FileInfoCache.FileInfo info = cache.get("/no/such/file.jpg");
+      Assert.assertFalse(info.isFile);
+      Assert.assertFalse(info.canRead);
+      Assert.assertNull(info.etag);
+      cache.get("/no/such/file.jpg");
+      Assert.assertEquals(1, cache.getHits());
+   }
+
+   @Test
+   public void testBoundedLeastRecentlyUsed() {
+      FileInfoCache cache = new FileInfoCache(2, 60000);
+      cache.get("/a.jpg");
+      cache.get("/b.jpg");
+      cache.get("/a.jpg");
+      cache.get("/c.jpg");
+      Assert.assertEquals(2, cache.size());
+      // b was least recently used, so it's gone, a is still there
+      cache.get("/a.jpg");
+      Assert.assertEquals(2, cache.getHits());
+      cache.get("/b.jpg");
+      Assert.assertEquals(4, cache.getMisses());
+   }
+
+   @Test
+   public void testExpiryPicksUpChange() throws Exception {
+      File file = File.createTempFile("fileinfo", ".txt");
+      file.deleteOnExit();
+      FileInfoCache cache = new FileInfoCache(4, 0);
+      Assert.assertEquals(0, cache.get(file.getAbsolutePath()).length);
+      FileOutputStream out = new FileOutputStream(file);
+      out.write(new byte[10]);
+      out.close();
+      Assert.assertEquals(10, cache.get(file.getAbsolutePath()).length);
+      Assert.assertEquals(2, cache.getMisses());
+   }
+
+   @Test
+   public void testDisabled() {
+      FileInfoCache cache = new FileInfoCache(0, 60000);
+      cache.get("/a.jpg");
+      cache.get("/a.jpg");
+      Assert.assertEquals(0, cache.size());
+      Assert.assertEquals(2, cache.getMisses());
+   }
+}
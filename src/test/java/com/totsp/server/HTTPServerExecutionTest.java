@@ -0,0 +1,56 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Execution;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+public class HTTPServerExecutionTest {
+
+   // NOTE: BLOCKING engine with each Execution, one thread to start with, more concurrent streams than that
+
+   @Test
+   public void testElastic() throws Exception {
+      serveConcurrently(Execution.ELASTIC, 8125);
+   }
+
+   @Test
+   public void testVirtual() throws Exception {
+      // virtual threads on Java 21+, falls back to FIXED otherwise, works either way
+      serveConcurrently(Execution.VIRTUAL, 8126);
+   }
+
+   private void serveConcurrently(Execution execution, final int port) throws Exception {
+      HTTPServer server = new HTTPServer("test-server", port, 1, null);
+      server.setExecution(execution);
+      server.start();
+      ExecutorService clients = Executors.newFixedThreadPool(8);
+      try {
+         final String host = InetAddress.getLocalHost().getHostAddress();
+         final File testFile = new File("src/test/resources/test.jpg");
+         List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+         for (int i = 0; i < 16; i++) {
+            results.add(clients.submit(new Callable<Integer>() {
+               public Integer call() throws Exception {
+                  return RawHttpClient.getBytes(host, port, "/" + testFile.getAbsolutePath(), null).length;
+               }
+            }));
+         }
+         for (Future<Integer> f : results) {
+            Assert.assertTrue(f.get() > testFile.length());
+         }
+      } finally {
+         clients.shutdown();
+         server.stop();
+      }
+   }
+}
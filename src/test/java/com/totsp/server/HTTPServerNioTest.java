@@ -0,0 +1,382 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Engine;
+import com.totsp.server.util.SimpleHttpClient;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+
+public class HTTPServerNioTest {
+
+   // NOTE: same sanity checks as HTTPServerTest, but with NIO engine (and only one event loop)
+
+   private static final HTTPServer SERVER = new HTTPServer("test-server", 8124, 1, null);
+   static {
+      SERVER.setEngine(Engine.NIO);
+      // hot files served from mapped content cache
+      SERVER.setContentCache(1024 * 1024, 512 * 1024);
+      SERVER.start();
+      SERVER.setDebug(true);
+   }
+
+   private String host;
+   private String serverUrl;
+
+   public HTTPServerNioTest() {
+      InetAddress addr = null;
+      try {
+         addr = InetAddress.getLocalHost();
+      } catch (IOException e) {
+         Assert.fail(e.getMessage());
+      }
+      this.host = addr.getHostAddress();
+      this.serverUrl = "http://" + host + ":" + 8124;
+   }
+
+   @AfterClass
+   public static void tearDown() {
+      SERVER.stop();
+   }
+
+   @Test
+   public void testRequestServerRoot() throws Exception {
+      String response = SimpleHttpClient.get(serverUrl);
+      Assert.assertEquals("test-server (AndroidModel:null AndroidVersion:null)", response);
+   }
+
+   @Test
+   public void testFileNotFound() throws Exception {
+      String response = SimpleHttpClient.get(serverUrl + "/file.jpg");
+      Assert.assertEquals("resource not a file", response);
+   }
+
+   @Test
+   public void testTextFile() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String response = SimpleHttpClient.get(serverUrl + "/" + testFile.getAbsolutePath());
+      Assert.assertEquals("say what you want about the tenets of national socialism, dude, at least it's an ethos", response);
+   }
+
+   @Test
+   public void testTextAndCallback() throws Exception {
+      String response = SimpleHttpClient.get(serverUrl + "/DISPLAY_MEDIA~foobar");
+      Assert.assertEquals("ACK", response);
+   }
+
+   @Test
+   public void testRangeRequest() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String response = RawHttpClient.get(host, 8124, "/" + testFile.getAbsolutePath(), "Range: bytes=4-7");
+      Assert.assertTrue(response.startsWith("HTTP/1.1 206 Partial Content"));
+      Assert.assertTrue(response.contains("Content-Range: bytes 4-7/86"));
+      Assert.assertTrue(response.endsWith("\r\n\r\nwhat"));
+   }
+
+   @Test
+   public void testCachedContentRanges() throws Exception {
+      // first request from disk, then mapped, same bytes either way
+      File testFile = new File("src/test/resources/test.txt");
+      String path = "/" + testFile.getAbsolutePath();
+      for (int i = 0; i < 3; i++) {
+         String response = RawHttpClient.get(host, 8124, path, "Range: bytes=-5,9-12");
+         Assert.assertTrue(response.startsWith("HTTP/1.1 206 Partial Content"));
+         Assert.assertTrue(response.contains("Content-Range: bytes 9-12/86\r\n\r\nyou "));
+         Assert.assertTrue(response.contains("Content-Range: bytes 81-85/86\r\n\r\nethos"));
+      }
+      String response = RawHttpClient.get(host, 8124, path, null);
+      Assert.assertTrue(response.endsWith("\r\n\r\nsay what you want about the tenets of national socialism, dude, at least it's an ethos"));
+   }
+
+   @Test
+   public void testConcurrentFileStreams() throws Exception {
+      // many concurrent full JPG transfers on a single event loop thread
+      final File testFile = new File("src/test/resources/test.jpg");
+      ExecutorService clients = Executors.newFixedThreadPool(16);
+      List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+      for (int i = 0; i < 32; i++) {
+         results.add(clients.submit(new Callable<Integer>() {
+            public Integer call() throws Exception {
+               return RawHttpClient.getBytes(host, 8124, "/" + testFile.getAbsolutePath(), null).length;
+            }
+         }));
+      }
+      for (Future<Integer> f : results) {
+         Assert.assertTrue(f.get() > testFile.length());
+      }
+      clients.shutdown();
+   }
+
+   @Test
+   public void testKeepAlive() throws Exception {
+      // two requests on one connection, second one asks to close
+      File testFile = new File("src/test/resources/test.txt");
+      String path = "/" + testFile.getAbsolutePath();
+      String response =
+               RawHttpClient.send(host, 8124, "GET " + path + " HTTP/1.1\r\n\r\n" + "GET " + path
+                        + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+      Assert.assertEquals(2, response.split("HTTP/1.1 200 OK").length - 1);
+      Assert.assertTrue(response.contains("Connection: keep-alive"));
+      Assert.assertTrue(response.contains("Connection: close"));
+      Assert.assertTrue(response.endsWith("at least it's an ethos"));
+   }
+
+   @Test
+   public void testFailedConnectionDoesNotStopLoop() throws Exception {
+      HTTPServer server = new HTTPServer("test-server", 8129, 1, new TextRequestCallback() {
+         public void onRequest(String request) {
+            if (request.contains("fail")) {
+               throw new IllegalStateException("callback failed");
+            }
+         }
+      });
+      server.setEngine(Engine.NIO);
+      server.start();
+      try {
+         // that connection is closed, unanswered, the loop goes on serving others
+         Assert.assertEquals("", RawHttpClient.get(host, 8129, "/fail", null));
+         Assert.assertTrue(RawHttpClient.get(host, 8129, "/message", null).trim().endsWith("ACK"));
+      } finally {
+         server.stop();
+      }
+   }
+
+   @Test
+   public void testSlowCallbackDoesNotStallLoop() throws Exception {
+      final CountDownLatch release = new CountDownLatch(1);
+      HTTPServer server = new HTTPServer("test-server", 8130, 2, new TextRequestCallback() {
+         public void onRequest(String request) {
+            if (request.contains("slow")) {
+               try {
+                  release.await(60, TimeUnit.SECONDS);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+         }
+      });
+      server.setEngine(Engine.NIO);
+      server.start();
+      Socket slow = new Socket(host, 8130);
+      try {
+         // connections go to the loops in turn, slow one on the first, next on the second, the last on the first again
+         slow.setSoTimeout(10000);
+         slow.getOutputStream().write("GET /slow HTTP/1.1\r\nConnection: close\r\n\r\n".getBytes("ISO-8859-1"));
+         Assert.assertTrue(RawHttpClient.get(host, 8130, "/", null).startsWith("HTTP/1.1 200 OK\r\n"));
+         // answered while the slow callback still holds its worker
+         Assert.assertTrue(RawHttpClient.get(host, 8130, "/", null).startsWith("HTTP/1.1 200 OK\r\n"));
+         Assert.assertEquals(1, release.getCount());
+         release.countDown();
+         Assert.assertTrue(new String(RawHttpClient.readAll(slow.getInputStream()), "ISO-8859-1").trim().endsWith("ACK"));
+      } finally {
+         release.countDown();
+         slow.close();
+         server.stop();
+      }
+   }
+
+   @Test
+   public void testSlowHeaderTimesOut() throws Exception {
+      SERVER.setHeaderTimeout(500);
+      Socket silent = new Socket(host, 8124);
+      Socket partial = new Socket(host, 8124);
+      try {
+         silent.setSoTimeout(10000);
+         partial.setSoTimeout(10000);
+         partial.getOutputStream().write("GET / HTTP/1.1\r\n".getBytes("ISO-8859-1"));
+         // both closed by the loop's idle check, nothing sent
+         Assert.assertEquals(-1, silent.getInputStream().read());
+         Assert.assertEquals(-1, partial.getInputStream().read());
+      } finally {
+         SERVER.setHeaderTimeout(RequestProcessor.DEFAULT_HEADER_TIMEOUT);
+         silent.close();
+         partial.close();
+      }
+   }
+
+   @Test
+   public void testPipelinedResponsesInOrder() throws Exception {
+      // more requests than the pipeline depth, all sent before reading anything
+      File testFile = new File("src/test/resources/test.txt");
+      StringBuilder requests = new StringBuilder();
+      for (int i = 0; i < 12; i++) {
+         requests.append("GET /" + testFile.getAbsolutePath() + " HTTP/1.1\r\n\r\n");
+         requests.append("GET /message" + i + " HTTP/1.1\r\n\r\n");
+      }
+      requests.append("GET / HTTP/1.1\r\nConnection: close\r\n\r\n");
+      // every response, in request order (read until the server closes, after the last)
+      List<String> responses = RawHttpClient.split(RawHttpClient.send(host, 8124, requests.toString()));
+      Assert.assertEquals(25, responses.size());
+      for (int i = 0; i < 24; i++) {
+         String response = responses.get(i);
+         Assert.assertTrue(response, response.startsWith("HTTP/1.1 200 OK\r\n"));
+         Assert.assertTrue(response, response.trim().endsWith(i % 2 == 0 ? "at least it's an ethos" : "ACK"));
+      }
+      Assert.assertTrue(responses.get(24).contains("Connection: close\r\n"));
+      Assert.assertTrue(responses.get(24).trim().endsWith("test-server (AndroidModel:null AndroidVersion:null)"));
+   }
+
+   @Test
+   public void testStreamedCompressedTextFile() throws Exception {
+      // over the precompressed file size (1MB default), compressed as it's sent, chunked
+      File textFile = CompressionTest.createTextFile(1500000);
+      try {
+         String path = "/" + textFile.getAbsolutePath();
+         byte[] response = RawHttpClient.getBytes(host, 8124, path, "Accept-Encoding: deflate");
+         String head = new String(response, 0, 600, "ISO-8859-1");
+         Assert.assertTrue(head.startsWith("HTTP/1.1 200 OK"));
+         Assert.assertTrue(head.contains("Content-Encoding: deflate\r\n"));
+         Assert.assertTrue(head.contains("Transfer-Encoding: chunked\r\n"));
+         Assert.assertFalse(head.contains("Content-Length"));
+         byte[] body = RawHttpClient.dechunk(RawHttpClient.body(response));
+         Assert.assertArrayEquals(CompressionTest.readAll(textFile), CompressionTest.inflate(body, "deflate"));
+
+         // HTTP/1.0 can't take chunked, gets it as is
+         String plain = RawHttpClient.send(host, 8124, "HEAD " + path + " HTTP/1.0\r\nAccept-Encoding: gzip\r\n\r\n");
+         Assert.assertTrue(plain.contains("Content-Length: 1500000\r\n"));
+         Assert.assertFalse(plain.contains("Content-Encoding"));
+      } finally {
+         textFile.delete();
+      }
+   }
+
+   @Test
+   public void testMetrics() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String path = "/" + testFile.getAbsolutePath();
+      Metrics before = SERVER.getMetrics();
+      RawHttpClient.get(host, 8124, path, "Range: bytes=0-2");
+      RawHttpClient.get(host, 8124, "/sometext", null);
+      // recorded once the loop is done with the response, client may see the last byte a moment before
+      Metrics after = SERVER.getMetrics();
+      for (int i = 0; i < 100 && after.getRequests() < before.getRequests() + 2; i++) {
+         Thread.sleep(10);
+         after = SERVER.getMetrics();
+      }
+      Assert.assertEquals(before.getRangeRequests() + 1, after.getRangeRequests());
+      Assert.assertEquals(before.getTextRequests() + 1, after.getTextRequests());
+      Assert.assertTrue(after.getBytesServed() > before.getBytesServed());
+      Assert.assertTrue(after.getFirstByteLatency().getCount() >= 2);
+   }
+
+   @Test
+   public void testBuffersReused() throws Exception {
+      Metrics before = SERVER.getMetrics();
+      for (int i = 0; i < 5; i++) {
+         RawHttpClient.get(host, 8124, "/sometext", null);
+         // given back once the loop sees the client close
+         for (int j = 0; j < 100 && SERVER.getMetrics().getBuffersInUse() > before.getBuffersInUse(); j++) {
+            Thread.sleep(10);
+         }
+      }
+      Metrics after = SERVER.getMetrics();
+      Assert.assertTrue(after.getBuffersAcquired() >= before.getBuffersAcquired() + 5);
+      Assert.assertTrue(after.getBuffersAllocated() <= before.getBuffersAllocated() + 1);
+      Assert.assertTrue(after.toJson(), after.toJson().contains(",\"buffers\":{\"inUse\":"));
+   }
+
+   @Test
+   public void testBandwidthLimit() throws Exception {
+      File textFile = CompressionTest.createTextFile(100000);
+      try {
+         SERVER.setBandwidthLimits(0, 200000, 1);
+         long start = System.nanoTime();
+         byte[] response = RawHttpClient.getBytes(host, 8124, "/" + textFile.getAbsolutePath(), null);
+         long millis = (System.nanoTime() - start) / 1000000;
+         Assert.assertEquals(100000, RawHttpClient.body(response).length);
+         // past the first burst, paced to 200KB/s
+         Assert.assertTrue("took " + millis + "ms", millis >= 300);
+      } finally {
+         SERVER.setBandwidthLimits(0, 0, 1);
+         textFile.delete();
+      }
+   }
+
+   @Test
+   public void testSharedReads() throws Exception {
+      // bigger than the content cache takes, and than socket buffers hold
+      File file = CompressionTest.createTextFile(8000000);
+      String path = "/" + file.getAbsolutePath();
+      Socket slow = new Socket();
+      slow.setReceiveBufferSize(4096);
+      slow.connect(new InetSocketAddress(host, 8124));
+      try {
+         SERVER.setSharedReads(4 * 1024 * 1024);
+         // one stream of the file stays open (client not reading), the next one shares its reads
+         slow.getOutputStream().write(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes("ISO-8859-1"));
+         Assert.assertTrue(slow.getInputStream().read(new byte[8192]) > 0);
+         long misses = SERVER.getMetrics().getSharedReads().getMisses();
+         byte[] response = RawHttpClient.getBytes(host, 8124, path, null);
+         Assert.assertArrayEquals(ReadAheadTest.read(file, 0, 8000000), RawHttpClient.body(response));
+         Assert.assertTrue(SERVER.getMetrics().getSharedReads().getMisses() > misses);
+      } finally {
+         slow.close();
+         SERVER.setSharedReads(0);
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testFileStreamLimitSheds() throws Exception {
+      // bigger than the content cache takes, and than socket buffers hold
+      File file = CompressionTest.createTextFile(8000000);
+      String path = "/" + file.getAbsolutePath();
+      Socket slow = new Socket();
+      slow.setReceiveBufferSize(4096);
+      slow.connect(new InetSocketAddress(host, 8124));
+      try {
+         SERVER.setAdmissionLimits(0, 0, 1);
+         // one stream of the file stays open (client not reading), the next file request is turned away
+         slow.getOutputStream().write(("GET " + path + " HTTP/1.1\r\n\r\n").getBytes("ISO-8859-1"));
+         Assert.assertTrue(slow.getInputStream().read(new byte[8192]) > 0);
+         long rejected = SERVER.getRejectedFileStreams();
+         String response = RawHttpClient.get(host, 8124, path, null);
+         Assert.assertEquals("HTTP/1.1 503 Service Unavailable\r\nRetry-After: 1\r\nContent-Length: 0\r\n"
+                  + "Connection: close\r\n\r\n", response);
+         Assert.assertEquals(rejected + 1, SERVER.getRejectedFileStreams());
+         // nothing streamed from the file, no stream needed
+         Assert.assertTrue(RawHttpClient.send(host, 8124, "HEAD " + path + " HTTP/1.0\r\n\r\n").startsWith(
+                  "HTTP/1.1 200 OK"));
+      } finally {
+         slow.close();
+         SERVER.setAdmissionLimits(0, 0, 0);
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testConnectionLimitSheds() throws Exception {
+      Socket held = new Socket(host, 8124);
+      try {
+         // one persistent connection, admitted and served
+         held.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+         InputStream in = held.getInputStream();
+         Assert.assertTrue(in.read(new byte[8192]) > 0);
+
+         SERVER.setAdmissionLimits(1, 0, 0);
+         long rejected = SERVER.getRejectedConnections();
+         String response = RawHttpClient.get(host, 8124, "/", null);
+         Assert.assertTrue(response.startsWith("HTTP/1.1 503 Service Unavailable"));
+         Assert.assertTrue(response.contains("Retry-After: 1\r\n"));
+         Assert.assertEquals(rejected + 1, SERVER.getRejectedConnections());
+      } finally {
+         SERVER.setAdmissionLimits(0, 0, 0);
+         held.close();
+      }
+   }
+}
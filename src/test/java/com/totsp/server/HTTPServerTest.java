@@ -9,7 +9,10 @@ import org.junit.Test;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
 import java.net.InetAddress;
+import java.net.Socket;
 
 public class HTTPServerTest {
 
@@ -28,6 +31,7 @@ public class HTTPServerTest {
       SERVER.setDebug(true);
    }
 
+   private String host;
    private String serverUrl;
 
    public HTTPServerTest() {
@@ -37,7 +41,8 @@ public class HTTPServerTest {
       } catch (IOException e) {
          Assert.fail(e.getMessage());
       }
-      this.serverUrl = "http://" + addr.getHostAddress() + ":" + 8123;
+      this.host = addr.getHostAddress();
+      this.serverUrl = "http://" + host + ":" + 8123;
    }
 
    @AfterClass
@@ -92,4 +97,351 @@ public class HTTPServerTest {
       String response = SimpleHttpClient.get(serverUrl + exampleQueryString);
       Assert.assertEquals("ACK", response);
    }
+
+   @Test
+   public void testRangeBeyondTwoGigabytes() throws Exception {
+      // sparse file, so this doesn't actually need 3GB of disk
+      File bigFile = File.createTempFile("httpserver-big", ".mp4");
+      bigFile.deleteOnExit();
+      RandomAccessFile raf = new RandomAccessFile(bigFile, "rw");
+      raf.setLength(3000000010L);
+      raf.seek(3000000000L);
+      raf.write("0123456789".getBytes("ISO-8859-1"));
+      raf.close();
+
+      String response =
+               RawHttpClient.get(host, 8123, "/" + bigFile.getAbsolutePath(), "Range: bytes=3000000002-3000000005");
+      Assert.assertTrue(response.startsWith("HTTP/1.1 206 Partial Content"));
+      Assert.assertTrue(response.contains("Content-Range: bytes 3000000002-3000000005/3000000010"));
+      Assert.assertTrue(response.endsWith("\r\n\r\n2345"));
+      bigFile.delete();
+   }
+
+   @Test
+   public void testKeepAlive() throws Exception {
+      // two requests on one connection, second one asks to close
+      File testFile = new File("src/test/resources/test.txt");
+      String path = "/" + testFile.getAbsolutePath();
+      String response =
+               RawHttpClient.send(host, 8123, "GET " + path + " HTTP/1.1\r\n\r\n" + "GET " + path
+                        + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+      Assert.assertEquals(2, response.split("HTTP/1.1 200 OK").length - 1);
+      Assert.assertTrue(response.contains("Connection: keep-alive"));
+      Assert.assertTrue(response.contains("Connection: close"));
+      Assert.assertTrue(response.endsWith("at least it's an ethos"));
+   }
+
+   @Test
+   public void testSilentClientTimesOut() throws Exception {
+      SERVER.setHeaderTimeout(500);
+      Socket silent = new Socket(host, 8123);
+      try {
+         silent.setSoTimeout(10000);
+         // only pool thread gives the connection up, and the next client is served
+         Assert.assertEquals(-1, silent.getInputStream().read());
+         Assert.assertEquals("ACK", SimpleHttpClient.get(serverUrl + "/DISPLAY_MEDIA~foobar"));
+      } finally {
+         SERVER.setHeaderTimeout(RequestProcessor.DEFAULT_HEADER_TIMEOUT);
+         silent.close();
+      }
+   }
+
+   @Test
+   public void testMultipleRanges() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      // overlapping first two coalesce, plus a suffix range
+      String response =
+               RawHttpClient.get(host, 8123, "/" + testFile.getAbsolutePath(), "Range: bytes=0-2,2-7,-5");
+      Assert.assertTrue(response.startsWith("HTTP/1.1 206 Partial Content"));
+      Assert.assertTrue(response.contains("Content-Type: multipart/byteranges; boundary="));
+      Assert.assertTrue(response.contains("Content-Range: bytes 0-7/86\r\n\r\nsay what\r\n"));
+      Assert.assertTrue(response.contains("Content-Range: bytes 81-85/86\r\n\r\nethos\r\n"));
+      String boundary = response.substring(response.indexOf("boundary=") + 9, response.indexOf("\r\n", response.indexOf("boundary=")));
+      Assert.assertTrue(response.endsWith("\r\n--" + boundary + "--\r\n"));
+      String body = response.substring(response.indexOf("\r\n\r\n") + 4);
+      String contentLength = response.substring(response.indexOf("Content-Length: ") + 16, response.indexOf("\r\n", response.indexOf("Content-Length: ")));
+      Assert.assertEquals(Integer.parseInt(contentLength), body.length());
+   }
+
+   @Test
+   public void testUnsatisfiableRange() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String response = RawHttpClient.get(host, 8123, "/" + testFile.getAbsolutePath(), "Range: bytes=500-600");
+      Assert.assertTrue(response.startsWith("HTTP/1.1 416 Requested Range Not Satisfiable"));
+      Assert.assertTrue(response.contains("Content-Range: bytes */86"));
+   }
+
+   @Test
+   public void testCompressedTextFile() throws Exception {
+      File textFile = CompressionTest.createTextFile(20000);
+      try {
+         String path = "/" + textFile.getAbsolutePath();
+         byte[] response = RawHttpClient.getBytes(host, 8123, path, "Accept-Encoding: gzip, deflate");
+         String head = new String(response, 0, 600, "ISO-8859-1");
+         Assert.assertTrue(head.startsWith("HTTP/1.1 200 OK"));
+         Assert.assertTrue(head.contains("Content-Encoding: gzip\r\nVary: Accept-Encoding\r\n"));
+         byte[] body = RawHttpClient.body(response);
+         // precompressed, has a length
+         Assert.assertTrue(head.contains("Content-Length: " + body.length + "\r\n"));
+         Assert.assertTrue(body.length < 20000 / 4);
+         Assert.assertArrayEquals(CompressionTest.readAll(textFile), CompressionTest.inflate(body, "gzip"));
+
+         // encoded variant has its own ETag, and it's what conditional GET checks
+         String etag = head.substring(head.indexOf("ETag: ") + 6, head.indexOf("\r\n", head.indexOf("ETag: ")));
+         Assert.assertTrue(etag.endsWith("-gzip\""));
+         String notModified = RawHttpClient.get(host, 8123, path, "Accept-Encoding: gzip\r\nIf-None-Match: " + etag);
+         Assert.assertTrue(notModified.startsWith("HTTP/1.1 304 Not Modified"));
+
+         // ranges, and clients that don't ask, get it as is
+         String range = RawHttpClient.get(host, 8123, path, "Accept-Encoding: gzip\r\nRange: bytes=0-9");
+         Assert.assertTrue(range.startsWith("HTTP/1.1 206 Partial Content"));
+         Assert.assertFalse(range.contains("Content-Encoding"));
+         String plain = RawHttpClient.get(host, 8123, path, null);
+         Assert.assertTrue(plain.contains("Content-Length: 20000\r\n"));
+         Assert.assertTrue(plain.contains("Vary: Accept-Encoding\r\n"));
+      } finally {
+         textFile.delete();
+      }
+   }
+
+   @Test
+   public void testMediaNotCompressed() throws Exception {
+      File testFile = new File("src/test/resources/test.jpg");
+      String response = RawHttpClient.send(host, 8123, "HEAD /" + testFile.getAbsolutePath()
+               + " HTTP/1.1\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n");
+      Assert.assertTrue(response.contains("Content-Length: 580205\r\n"));
+      Assert.assertFalse(response.contains("Content-Encoding"));
+   }
+
+   @Test
+   public void testHeadRequest() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String response =
+               RawHttpClient.send(host, 8123, "HEAD /" + testFile.getAbsolutePath()
+                        + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+      Assert.assertTrue(response.startsWith("HTTP/1.1 200 OK"));
+      Assert.assertTrue(response.contains("Content-Length: 86"));
+      Assert.assertTrue(response.endsWith("\r\n\r\n"));
+   }
+
+   @Test
+   public void testHeadReadsNothing() throws Exception {
+      File textFile = CompressionTest.createTextFile(20000);
+      SERVER.setContentCache(1024 * 1024, 512 * 1024);
+      try {
+         String path = "/" + textFile.getAbsolutePath();
+         Metrics before = SERVER.getMetrics();
+         String head = RawHttpClient.send(host, 8123, "HEAD " + path + " HTTP/1.1\r\nConnection: close\r\n\r\n");
+         Assert.assertTrue(head.contains("Content-Length: 20000\r\n"));
+         // not compressed just for headers, no length for it yet
+         String compressed = RawHttpClient.send(host, 8123, "HEAD " + path
+                  + " HTTP/1.1\r\nAccept-Encoding: gzip\r\nConnection: close\r\n\r\n");
+         Assert.assertTrue(compressed.contains("Content-Encoding: gzip\r\n"));
+         Assert.assertTrue(compressed.contains("Transfer-Encoding: chunked\r\n"));
+         Metrics after = SERVER.getMetrics();
+         Assert.assertEquals(before.getContentCache().getHits() + before.getContentCache().getMisses(),
+                  after.getContentCache().getHits() + after.getContentCache().getMisses());
+         Assert.assertEquals(before.getCompressedCache().getMisses(), after.getCompressedCache().getMisses());
+
+         // once a GET has it compressed, HEAD has the length
+         byte[] body = RawHttpClient.body(RawHttpClient.getBytes(host, 8123, path, "Accept-Encoding: gzip"));
+         compressed = RawHttpClient.send(host, 8123, "HEAD " + path
+                  + " HTTP/1.0\r\nAccept-Encoding: gzip\r\n\r\n");
+         Assert.assertTrue(compressed.contains("Content-Length: " + body.length + "\r\n"));
+      } finally {
+         SERVER.setContentCache(0, 0);
+         textFile.delete();
+      }
+   }
+
+   @Test
+   public void testConditionalGetNotModified() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String path = "/" + testFile.getAbsolutePath();
+      String response = RawHttpClient.get(host, 8123, path, null);
+      String etag = response.substring(response.indexOf("ETag: ") + 6, response.indexOf("\r\n", response.indexOf("ETag: ")));
+      String lastModified =
+               response.substring(response.indexOf("Last-Modified: ") + 15,
+                        response.indexOf("\r\n", response.indexOf("Last-Modified: ")));
+
+      String byETag = RawHttpClient.get(host, 8123, path, "If-None-Match: \"nope\", " + etag);
+      Assert.assertTrue(byETag.startsWith("HTTP/1.1 304 Not Modified"));
+      Assert.assertTrue(byETag.endsWith("\r\n\r\n"));
+
+      String byDate = RawHttpClient.get(host, 8123, path, "If-Modified-Since: " + lastModified);
+      Assert.assertTrue(byDate.startsWith("HTTP/1.1 304 Not Modified"));
+
+      // etag wins over date
+      String changed = RawHttpClient.get(host, 8123, path, "If-None-Match: \"nope\"\r\nIf-Modified-Since: " + lastModified);
+      Assert.assertTrue(changed.startsWith("HTTP/1.1 200 OK"));
+   }
+
+   @Test
+   public void testCachedContent() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String path = "/" + testFile.getAbsolutePath();
+      SERVER.setContentCache(1024 * 1024, 512 * 1024);
+      try {
+         for (int i = 0; i < 3; i++) {
+            String response = RawHttpClient.get(host, 8123, path, null);
+            Assert.assertTrue(response.endsWith("\r\n\r\nsay what you want about the tenets of national socialism, dude, at least it's an ethos"));
+            Assert.assertTrue(RawHttpClient.get(host, 8123, path, "Range: bytes=4-7").endsWith("\r\n\r\nwhat"));
+         }
+      } finally {
+         SERVER.setContentCache(0, 0);
+      }
+   }
+
+   @Test
+   public void testServerHeader() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String response = RawHttpClient.get(host, 8123, "/" + testFile.getAbsolutePath(), "Range: bytes=0-2");
+      Assert.assertTrue(response.startsWith("HTTP/1.1 206 Partial Content\r\nServer: test-server\r\n"));
+      Assert.assertTrue(response.contains("\r\nDate: "));
+   }
+
+   @Test
+   public void testMetrics() throws Exception {
+      File testFile = new File("src/test/resources/test.txt");
+      String path = "/" + testFile.getAbsolutePath();
+      Metrics before = SERVER.getMetrics();
+      RawHttpClient.get(host, 8123, path, null);
+      RawHttpClient.get(host, 8123, path, "Range: bytes=0-2");
+      Metrics after = SERVER.getMetrics();
+      Assert.assertEquals(before.getFileRequests() + 1, after.getFileRequests());
+      Assert.assertEquals(before.getRangeRequests() + 1, after.getRangeRequests());
+      Assert.assertTrue(after.getBytesServed() > before.getBytesServed());
+      Assert.assertTrue(after.getTotalLatency().getCount() >= 2);
+
+      // off by default, then served (JSON, or Prometheus text) on the reserved path
+      Assert.assertTrue(RawHttpClient.get(host, 8123, "/metrics", null).endsWith("ACK\r\n\r\n"));
+      SERVER.setMetricsPath("/metrics");
+      try {
+         String json = RawHttpClient.get(host, 8123, "/metrics", null);
+         Assert.assertTrue(json.startsWith("HTTP/1.1 200 OK"));
+         Assert.assertTrue(json.contains("Content-Type: application/json\r\n"));
+         Assert.assertTrue(json.contains("\r\n\r\n{\"timestamp\":"));
+         String prometheus = RawHttpClient.get(host, 8123, "/metrics?format=prometheus", null);
+         Assert.assertTrue(prometheus.contains("\nhttpserver_requests_total{kind=\"range\"} "));
+      } finally {
+         SERVER.setMetricsPath(null);
+      }
+   }
+
+   @Test
+   public void testBandwidthLimit() throws Exception {
+      File textFile = CompressionTest.createTextFile(100000);
+      try {
+         SERVER.setBandwidthLimits(0, 200000, 1);
+         long start = System.nanoTime();
+         byte[] response = RawHttpClient.getBytes(host, 8123, "/" + textFile.getAbsolutePath(), null);
+         long millis = (System.nanoTime() - start) / 1000000;
+         Assert.assertEquals(100000, RawHttpClient.body(response).length);
+         // past the first burst, paced to 200KB/s
+         Assert.assertTrue("took " + millis + "ms", millis >= 300);
+      } finally {
+         SERVER.setBandwidthLimits(0, 0, 1);
+         textFile.delete();
+      }
+   }
+
+   @Test
+   public void testReadAhead() throws Exception {
+      File textFile = CompressionTest.createTextFile(500000);
+      String path = "/" + textFile.getAbsolutePath();
+      try {
+         SERVER.setReadAhead(1024 * 1024, 64 * 1024);
+         RawHttpClient.get(host, 8123, path, "Range: bytes=0-99999");
+         RawHttpClient.get(host, 8123, path, "Range: bytes=100000-199999");
+         // window after those two is read in the background, then the next range starts from it (rest from the file)
+         ReadAheadTest.awaitRead(SERVER.getReadAhead(), 1);
+         long hits = SERVER.getMetrics().getReadAhead().getHits();
+         byte[] response = RawHttpClient.getBytes(host, 8123, path, "Range: bytes=200000-299999");
+         Assert.assertArrayEquals(ReadAheadTest.read(textFile, 200000, 100000), RawHttpClient.body(response));
+         Assert.assertEquals(hits + 1, SERVER.getMetrics().getReadAhead().getHits());
+      } finally {
+         SERVER.setReadAhead(0, 0);
+         textFile.delete();
+      }
+   }
+
+   @Test
+   public void testAccessLog() throws Exception {
+      File log = File.createTempFile("access", ".log");
+      try {
+         SERVER.setAccessLog(log, 1024 * 1024, 1);
+         File testFile = new File("src/test/resources/test.txt");
+         RawHttpClient.get(host, 8123, "/" + testFile.getAbsolutePath(), "Range: bytes=0-2");
+         SERVER.setAccessLog(null, 0, 0);
+         String line = AccessLogTest.readLines(log).get(0);
+         Assert.assertTrue(line, line.contains("\"GET /" + testFile.getAbsolutePath() + " HTTP/1.1\" 206 "));
+      } finally {
+         SERVER.setAccessLog(null, 0, 0);
+         log.delete();
+      }
+   }
+
+   @Test
+   public void testDirectoryIndex() throws Exception {
+      File root = File.createTempFile("index", "");
+      root.delete();
+      root.mkdir();
+      try {
+         DirectoryIndexTest.touch(new File(root, "a.jpg"), 10);
+         SERVER.setDirectoryIndex(root);
+         String path = "/" + root.getAbsolutePath() + "/";
+         String json = RawHttpClient.get(host, 8123, path, null);
+         Assert.assertTrue(json.startsWith("HTTP/1.1 200 OK"));
+         Assert.assertTrue(json.contains("Content-Type: application/json\r\n"));
+         Assert.assertTrue(json.contains("\"total\":1,\"offset\":0,\"limit\":100,\"entries\":[{\"name\":\"a.jpg\""));
+         // an event for a.jpg may still come in after the listing was built (and change its tag), wait until the
+         // listing answers with the same tag twice
+         String etag = etag(json);
+         for (String again; !(again = etag(RawHttpClient.get(host, 8123, path, null))).equals(etag);) {
+            etag = again;
+            Thread.sleep(50);
+         }
+         Assert.assertTrue(RawHttpClient.get(host, 8123, path, "If-None-Match: " + etag).startsWith("HTTP/1.1 304"));
+
+         String html = RawHttpClient.get(host, 8123, path + "?format=html&limit=5", null);
+         Assert.assertTrue(html.contains("Content-Type: text/html; charset=utf-8\r\n"));
+         Assert.assertTrue(html.contains("<a href=\"a.jpg\">a.jpg</a>"));
+
+         // outside of roots, server info as always
+         Assert.assertTrue(RawHttpClient.get(host, 8123, "/" + root.getParent() + "/", null).endsWith(
+                  "test-server (AndroidModel:null AndroidVersion:null)\r\n\r\n"));
+      } finally {
+         SERVER.setDirectoryIndex((File[]) null);
+         DirectoryIndexTest.delete(root);
+      }
+   }
+
+   @Test
+   public void testConnectionLimitSheds() throws Exception {
+      Socket held = new Socket(host, 8123);
+      try {
+         held.getOutputStream().write("GET / HTTP/1.1\r\n\r\n".getBytes("ISO-8859-1"));
+         InputStream in = held.getInputStream();
+         Assert.assertTrue(in.read(new byte[8192]) > 0);
+
+         SERVER.setAdmissionLimits(1, 0, 0);
+         long rejected = SERVER.getRejectedConnections();
+         String response = RawHttpClient.get(host, 8123, "/", null);
+         Assert.assertTrue(response.startsWith("HTTP/1.1 503 Service Unavailable"));
+         Assert.assertTrue(response.contains("Retry-After: 1\r\n"));
+         Assert.assertEquals(rejected + 1, SERVER.getRejectedConnections());
+      } finally {
+         SERVER.setAdmissionLimits(0, 0, 0);
+         held.close();
+      }
+   }
+
+   //
+   // priv helpers
+   //
+
+   private static String etag(String response) {
+      int start = response.indexOf("ETag: ") + 6;
+      return response.substring(start, response.indexOf("\r\n", start));
+   }
 }
@@ -0,0 +1,47 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HeaderWriterTest {
+
+   @Test
+   public void testHeaders() throws Exception {
+      HeaderWriter headers = HeaderWriter.get();
+      headers.status(Status.PARTIAL_OK).append(HeaderWriter.ACCEPT_RANGES);
+      headers.header(HeaderWriter.CONTENT_LENGTH, 3221225472L);
+      headers.header(HeaderWriter.ETAG, "\"abc\"");
+      headers.append(HeaderWriter.CONTENT_RANGE).append(0).append("-").append(9).append(HeaderWriter.CRLF);
+      Assert.assertEquals("HTTP/1.1 206 Partial Content\r\nAccept-Ranges: bytes\r\nContent-Length: 3221225472\r\n"
+               + "ETag: \"abc\"\r\nContent-Range: bytes 0-9\r\n", new String(headers.toByteArray(), "ISO-8859-1"));
+
+      // reused, starts empty
+      Assert.assertEquals(0, HeaderWriter.get().length());
+   }
+
+   @Test
+   public void testHeadFromPool() throws Exception {
+      BufferPool pool = new BufferPool();
+      HeaderWriter headers = HeaderWriter.get(pool);
+      headers.status(Status.NOT_MODIFIED).append(HeaderWriter.CRLF);
+      Response response = Response.bytes(Status.NOT_MODIFIED, headers, null, true);
+      // the writer's buffer, handed over as is
+      Assert.assertEquals("HTTP/1.1 304 Not Modified\r\n\r\n", new String(response.head.array(), 0,
+               response.head.limit(), "ISO-8859-1"));
+      Assert.assertEquals(1, pool.getInUse());
+      response.done();
+      response.done();
+      Assert.assertEquals(0, pool.getInUse());
+      // next head reuses it
+      HeaderWriter.get(pool).toHead();
+      Assert.assertEquals(1, pool.getAllocated());
+   }
+
+   @Test
+   public void testDate() throws Exception {
+      String date = HeaderWriter.get().date().toString();
+      Assert.assertTrue(date.matches("Date: \\w{3}, \\d{2} \\w{3} \\d{4} \\d{2}:\\d{2}:\\d{2} GMT\r\n"));
+   }
+}
@@ -0,0 +1,96 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class HpackTest {
+
+   @Test
+   public void testDecodeRequestsWithHuffman() throws Exception {
+      // RFC 7541 C.4, three requests on one connection, each uses what the one before added to the table
+      Hpack.Decoder decoder = new Hpack.Decoder();
+      List<String> headers = new ArrayList<String>();
+      decode(decoder, "828684418cf1e3c2e5f23a6ba0ab90f4ff", headers);
+      Assert.assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority",
+               "www.example.com"), headers);
+
+      headers.clear();
+      decode(decoder, "828684be5886a8eb10649cbf", headers);
+      Assert.assertEquals(Arrays.asList(":method", "GET", ":scheme", "http", ":path", "/", ":authority",
+               "www.example.com", "cache-control", "no-cache"), headers);
+
+      headers.clear();
+      decode(decoder, "828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf", headers);
+      Assert.assertEquals(Arrays.asList(":method", "GET", ":scheme", "https", ":path", "/index.html", ":authority",
+               "www.example.com", "custom-key", "custom-value"), headers);
+   }
+
+   @Test
+   public void testDecodeInvalid() throws Exception {
+      Hpack.Decoder decoder = new Hpack.Decoder();
+      List<String> headers = new ArrayList<String>();
+      try {
+         // index 70, nothing in the dynamic table
+         decode(decoder, "c6", headers);
+         Assert.fail("expected IOException");
+      } catch (IOException e) {
+         // expected
+      }
+      try {
+         // string longer than the block
+         decode(decoder, "400a637573746f6d", headers);
+         Assert.fail("expected IOException");
+      } catch (IOException e) {
+         // expected
+      }
+   }
+
+   @Test
+   public void testTableSizedInOctetsSent() throws Exception {
+      // room for exactly two entries of 1 + 2 + 32 octets
+      Hpack.Decoder decoder = new Hpack.Decoder(70);
+      List<String> headers = new ArrayList<String>();
+      // "a" with a value that isn't UTF-8 (0xff 0xfe, 2 octets, 6 if re-encoded), then "b: xy"
+      decode(decoder, "40016102fffe400162027879", headers);
+      headers.clear();
+      // both still in the table, as in the client's (newest is 62)
+      decode(decoder, "bfbe", headers);
+      Assert.assertEquals(Arrays.asList("a", "\ufffd\ufffd", "b", "xy"), headers);
+   }
+
+   @Test
+   public void testEncoderRoundTrip() throws Exception {
+      Hpack.Encoder encoder = new Hpack.Encoder();
+      encoder.status("200");
+      encoder.header("content-type", "text/plain");
+      encoder.header("x-custom", "value");
+      List<String> headers = new ArrayList<String>();
+      new Hpack.Decoder().decode(encoder.array(), 0, encoder.length(), headers);
+      Assert.assertEquals(Arrays.asList(":status", "200", "content-type", "text/plain", "x-custom", "value"), headers);
+
+      // no state kept, next block stands alone
+      encoder.reset();
+      encoder.status("404");
+      headers.clear();
+      new Hpack.Decoder().decode(encoder.array(), 0, encoder.length(), headers);
+      Assert.assertEquals(Arrays.asList(":status", "404"), headers);
+   }
+
+   private static void decode(Hpack.Decoder decoder, String hex, List<String> headers) throws IOException {
+      byte[] b = hex(hex);
+      decoder.decode(b, 0, b.length, headers);
+   }
+
+   private static byte[] hex(String s) {
+      byte[] b = new byte[s.length() / 2];
+      for (int i = 0; i < b.length; i++) {
+         b[i] = (byte) Integer.parseInt(s.substring(i * 2, i * 2 + 2), 16);
+      }
+      return b;
+   }
+}
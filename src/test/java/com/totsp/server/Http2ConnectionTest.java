@@ -0,0 +1,312 @@
+package com.totsp.server;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class Http2ConnectionTest {
+
+   // NOTE: h2c with the BLOCKING engine, raw frames (so tests see exactly what goes over the connection)
+
+   private static final HTTPServer SERVER = new HTTPServer("test-server", 8125, 4, null);
+   static {
+      SERVER.setHttp2(100);
+      SERVER.start();
+   }
+
+   private static final String HOST = "127.0.0.1";
+   private static final String TEXT = new File("src/test/resources/test.txt").getAbsolutePath();
+
+   @AfterClass
+   public static void tearDown() {
+      SERVER.stop();
+   }
+
+   @Test
+   public void testPriorKnowledge() throws Exception {
+      H2Client client = new H2Client(0);
+      try {
+         client.get(1, "/" + TEXT);
+         client.get(3, "/file.jpg");
+         client.awaitDone(1, 3);
+         Assert.assertEquals("200", client.header(1, ":status"));
+         Assert.assertEquals("86", client.header(1, "content-length"));
+         Assert.assertNull(client.header(1, "connection"));
+         Assert.assertEquals("say what you want about the tenets of national socialism, dude, at least it's an ethos",
+                  new String(client.body(1), "UTF-8"));
+         Assert.assertEquals("resource not a file\r\n\r\n", new String(client.body(3), "UTF-8"));
+      } finally {
+         client.close();
+      }
+   }
+
+   @Test
+   public void testUpgrade() throws Exception {
+      Socket socket = new Socket(HOST, 8125);
+      try {
+         socket.setSoTimeout(30000);
+         OutputStream out = socket.getOutputStream();
+         out.write(("GET /" + TEXT + " HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: Upgrade, HTTP2-Settings\r\n"
+                  + "Upgrade: h2c\r\nHTTP2-Settings: AAMAAABkAAQAAP__\r\n\r\n").getBytes("ISO-8859-1"));
+         out.flush();
+         InputStream in = socket.getInputStream();
+         StringBuilder head = new StringBuilder();
+         while (!head.toString().endsWith("\r\n\r\n")) {
+            head.append((char) in.read());
+         }
+         Assert.assertTrue(head.toString().startsWith("HTTP/1.1 101 Switching Protocols\r\n"));
+         // the upgrade request is answered as stream 1
+         H2Client client = new H2Client(socket);
+         client.preface();
+         client.frame(0, 0x4, 0, 0);
+         client.awaitDone(1);
+         Assert.assertEquals("200", client.header(1, ":status"));
+         Assert.assertEquals(86, client.body(1).length);
+         client.get(3, "/" + TEXT);
+         client.awaitDone(3);
+         Assert.assertEquals(86, client.body(3).length);
+      } finally {
+         socket.close();
+      }
+   }
+
+   @Test
+   public void testSmallFileNotBehindBigOne() throws Exception {
+      File big = CompressionTest.createTextFile(4000000);
+      H2Client client = new H2Client(0);
+      try {
+         client.settings(H2Client.INITIAL_WINDOW_SIZE, 8 * 1024 * 1024);
+         client.get(1, "/" + big.getAbsolutePath());
+         client.get(3, "/" + TEXT);
+         // connection window opened only after both requests, the big one can't run ahead before the small one is in
+         client.windowUpdate(0, 16 * 1024 * 1024);
+         client.awaitDone(1, 3);
+         // both on one connection, taking turns, small one done long before the big one
+         Assert.assertTrue(client.doneOrder.indexOf(3) < client.doneOrder.indexOf(1));
+         Assert.assertArrayEquals(ReadAheadTest.read(big, 0, 4000000), client.body(1));
+         Assert.assertEquals(86, client.body(3).length);
+      } finally {
+         client.close();
+         big.delete();
+      }
+   }
+
+   @Test
+   public void testSlowStreamDoesNotHoldUpOthers() throws Exception {
+      final CountDownLatch release = new CountDownLatch(1);
+      HTTPServer server = new HTTPServer("test-server", 8131, 2, new TextRequestCallback() {
+         public void onRequest(String request) {
+            if (request.contains("slow")) {
+               try {
+                  release.await(60, TimeUnit.SECONDS);
+               } catch (InterruptedException e) {
+                  Thread.currentThread().interrupt();
+               }
+            }
+         }
+      });
+      server.setHttp2(100);
+      server.start();
+      H2Client client = new H2Client(new Socket(HOST, 8131));
+      try {
+         client.preface();
+         client.frame(0, 0x4, 0, 0);
+         client.get(1, "/slow");
+         client.get(3, "/" + TEXT);
+         // answered, and frames still read, while the slow one's callback holds its worker
+         client.awaitDone(3);
+         Assert.assertEquals(86, client.body(3).length);
+         Assert.assertFalse(client.doneOrder.contains(1));
+         release.countDown();
+         client.awaitDone(1);
+         Assert.assertTrue(new String(client.body(1), "UTF-8").startsWith("ACK"));
+      } finally {
+         release.countDown();
+         client.close();
+         server.stop();
+      }
+   }
+
+   @Test
+   public void testFlowControl() throws Exception {
+      File file = CompressionTest.createTextFile(5000);
+      H2Client client = new H2Client(1000);
+      try {
+         client.get(1, "/" + file.getAbsolutePath());
+         // no more than the stream window, until the client gives some back
+         client.readFor(500);
+         Assert.assertEquals(1000, client.body(1).length);
+         Assert.assertFalse(client.doneOrder.contains(1));
+         client.windowUpdate(1, 4000);
+         client.awaitDone(1);
+         Assert.assertArrayEquals(ReadAheadTest.read(file, 0, 5000), client.body(1));
+      } finally {
+         client.close();
+         file.delete();
+      }
+   }
+
+   /**
+    * Just enough of an HTTP/2 client for these tests, GETs and whatever comes back, by stream.
+    *
+    */
+   private static final class H2Client {
+
+      static final int INITIAL_WINDOW_SIZE = 0x4;
+
+      private final Socket socket;
+      private final DataInputStream in;
+      private final OutputStream out;
+      private final Hpack.Decoder decoder = new Hpack.Decoder();
+      private final Map<Integer, Map<String, String>> headers = new HashMap<Integer, Map<String, String>>();
+      private final Map<Integer, ByteArrayOutputStream> bodies = new HashMap<Integer, ByteArrayOutputStream>();
+      private final List<Integer> doneOrder = new ArrayList<Integer>();
+
+      // prior knowledge, initialWindow 0 leaves the default
+      H2Client(int initialWindow) throws IOException {
+         this(new Socket(HOST, 8125));
+         preface();
+         if (initialWindow > 0) {
+            settings(INITIAL_WINDOW_SIZE, initialWindow);
+         } else {
+            frame(0, 4, 0, 0);
+            out.flush();
+         }
+      }
+
+      // connection already switched (upgrade answered), client still sends the preface
+      H2Client(Socket socket) throws IOException {
+         this.socket = socket;
+         socket.setSoTimeout(30000);
+         this.in = new DataInputStream(socket.getInputStream());
+         this.out = socket.getOutputStream();
+      }
+
+      void preface() throws IOException {
+         out.write(HeaderWriter.ascii("PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n"));
+      }
+
+      void get(int id, String path) throws IOException {
+         Hpack.Encoder encoder = new Hpack.Encoder();
+         encoder.header(":method", "GET");
+         encoder.header(":scheme", "http");
+         encoder.header(":path", path);
+         encoder.header(":authority", HOST);
+         frame(encoder.length(), 0x1, 0x4 | 0x1, id);
+         out.write(encoder.array(), 0, encoder.length());
+         out.flush();
+      }
+
+      void settings(int setting, int value) throws IOException {
+         frame(6, 0x4, 0, 0);
+         out.write(setting >>> 8);
+         out.write(setting);
+         int32(value);
+         out.flush();
+      }
+
+      void windowUpdate(int id, int increment) throws IOException {
+         frame(4, 0x8, 0, id);
+         int32(increment);
+         out.flush();
+      }
+
+      // read frames until every one of ids is done
+      void awaitDone(int... ids) throws IOException {
+         for (int id : ids) {
+            while (!doneOrder.contains(id)) {
+               readFrame();
+            }
+         }
+      }
+
+      // read whatever comes within millis
+      void readFor(int millis) throws IOException {
+         socket.setSoTimeout(millis);
+         try {
+            while (true) {
+               readFrame();
+            }
+         } catch (SocketTimeoutException e) {
+            // done
+         } finally {
+            socket.setSoTimeout(30000);
+         }
+      }
+
+      String header(int id, String name) {
+         Map<String, String> h = headers.get(id);
+         return h != null ? h.get(name) : null;
+      }
+
+      byte[] body(int id) {
+         ByteArrayOutputStream body = bodies.get(id);
+         return body != null ? body.toByteArray() : new byte[0];
+      }
+
+      void close() throws IOException {
+         socket.close();
+      }
+
+      private void readFrame() throws IOException {
+         byte[] h = new byte[9];
+         in.readFully(h);
+         int length = ((h[0] & 0xff) << 16) | ((h[1] & 0xff) << 8) | (h[2] & 0xff);
+         int type = h[3];
+         int flags = h[4];
+         int id = ((h[5] & 0x7f) << 24) | ((h[6] & 0xff) << 16) | ((h[7] & 0xff) << 8) | (h[8] & 0xff);
+         byte[] payload = new byte[length];
+         in.readFully(payload);
+         if (type == 0x1) {
+            List<String> list = new ArrayList<String>();
+            decoder.decode(payload, 0, length, list);
+            Map<String, String> map = new HashMap<String, String>();
+            for (int i = 0; i < list.size(); i += 2) {
+               map.put(list.get(i), list.get(i + 1));
+            }
+            headers.put(id, map);
+         } else if (type == 0x0) {
+            if (!bodies.containsKey(id)) {
+               bodies.put(id, new ByteArrayOutputStream());
+            }
+            bodies.get(id).write(payload);
+         } else if (type == 0x7) {
+            throw new IOException("GOAWAY");
+         }
+         if ((type == 0x0 || type == 0x1) && (flags & 0x1) != 0) {
+            doneOrder.add(id);
+         }
+      }
+
+      private void frame(int length, int type, int flags, int id) throws IOException {
+         out.write(length >>> 16);
+         out.write(length >>> 8);
+         out.write(length);
+         out.write(type);
+         out.write(flags);
+         int32(id);
+      }
+
+      private void int32(int value) throws IOException {
+         out.write(value >>> 24);
+         out.write(value >>> 16);
+         out.write(value >>> 8);
+         out.write(value);
+      }
+   }
+}
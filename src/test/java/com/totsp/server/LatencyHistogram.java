@@ -0,0 +1,43 @@
+package com.totsp.server;
+
+/**
+ * Latency histogram (microseconds) for the load generator, one per client thread, merged for the report.
+ * Buckets and percentiles are LatencyRecorder's (counts in its snapshot layout), without the atomics.
+ *
+ */
+public final class LatencyHistogram {
+
+   private final long[] snapshot = new long[LatencyRecorder.BUCKETS + 2];
+
+   public void record(long micros) {
+      long v = Math.max(0, micros);
+      snapshot[LatencyRecorder.index(v)]++;
+      snapshot[LatencyRecorder.BUCKETS] = Math.max(snapshot[LatencyRecorder.BUCKETS], v);
+      snapshot[LatencyRecorder.BUCKETS + 1] += v;
+   }
+
+   public void merge(LatencyHistogram other) {
+      for (int i = 0; i < LatencyRecorder.BUCKETS; i++) {
+         snapshot[i] += other.snapshot[i];
+      }
+      snapshot[LatencyRecorder.BUCKETS] = Math.max(snapshot[LatencyRecorder.BUCKETS],
+               other.snapshot[LatencyRecorder.BUCKETS]);
+      snapshot[LatencyRecorder.BUCKETS + 1] += other.snapshot[LatencyRecorder.BUCKETS + 1];
+   }
+
+   public long count() {
+      return LatencyRecorder.count(snapshot);
+   }
+
+   public long max() {
+      return snapshot[LatencyRecorder.BUCKETS];
+   }
+
+   /**
+    * Value at percentile (0 to 100), upper bound of its bucket, 0 if nothing recorded.
+    *
+    */
+   public long percentile(double percentile) {
+      return LatencyRecorder.percentile(snapshot, percentile);
+   }
+}
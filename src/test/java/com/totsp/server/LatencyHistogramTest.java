@@ -0,0 +1,36 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LatencyHistogramTest {
+
+   @Test
+   public void testPercentiles() {
+      LatencyHistogram h = new LatencyHistogram();
+      for (int i = 1; i <= 1000; i++) {
+         h.record(i * 100);
+      }
+      Assert.assertEquals(1000, h.count());
+      Assert.assertEquals(100000, h.max());
+      // within bucket error (under 2%)
+      MetricsTest.assertNear(50000, h.percentile(50));
+      MetricsTest.assertNear(99000, h.percentile(99));
+      MetricsTest.assertNear(99900, h.percentile(99.9));
+      Assert.assertEquals(100000, h.percentile(100));
+   }
+
+   @Test
+   public void testSmallValuesExactAndMerge() {
+      LatencyHistogram a = new LatencyHistogram();
+      LatencyHistogram b = new LatencyHistogram();
+      a.record(5);
+      b.record(7);
+      b.record(Long.MAX_VALUE);
+      a.merge(b);
+      Assert.assertEquals(3, a.count());
+      Assert.assertEquals(5, a.percentile(1));
+      Assert.assertEquals(7, a.percentile(50));
+      Assert.assertEquals(0, new LatencyHistogram().percentile(99));
+   }
+}
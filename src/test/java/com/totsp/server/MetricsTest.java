@@ -0,0 +1,78 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Status;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class MetricsTest {
+
+   @Test
+   public void testLatencyPercentiles() {
+      LatencyRecorder recorder = new LatencyRecorder();
+      for (int i = 1; i <= 1000; i++) {
+         recorder.recordNanos(i * 100 * 1000L);
+      }
+      long[] snapshot = recorder.snapshot();
+      Assert.assertEquals(1000, LatencyRecorder.count(snapshot));
+      // within bucket error (under 2%)
+      assertNear(50000, LatencyRecorder.percentile(snapshot, 50));
+      assertNear(99000, LatencyRecorder.percentile(snapshot, 99));
+      Assert.assertEquals(100000, LatencyRecorder.percentile(snapshot, 100));
+      Assert.assertEquals(0, LatencyRecorder.percentile(new LatencyRecorder().snapshot(), 99));
+   }
+
+   @Test
+   public void testKinds() {
+      File file = new File("src/test/resources/test.txt");
+      Assert.assertEquals(ServerMetrics.TEXT, ServerMetrics.kind(Response.bytes(Status.OK, new byte[0], null, true)));
+      Assert.assertEquals(ServerMetrics.FILE, ServerMetrics.kind(Response.segments(Status.OK, new byte[0], file,
+               new Response.Segment[0], true)));
+      Assert.assertEquals(ServerMetrics.FILE, ServerMetrics.kind(Response.bytes(Status.NOT_MODIFIED, new byte[0], null, true)));
+      Assert.assertEquals(ServerMetrics.RANGE, ServerMetrics.kind(Response.segments(Status.PARTIAL_OK, new byte[0], file,
+               new Response.Segment[0], true)));
+      Assert.assertEquals(ServerMetrics.ERROR, ServerMetrics.kind(Response.bytes(Status.RANGE_INVALID, new byte[0], null,
+               true)));
+      Assert.assertEquals(ServerMetrics.ERROR, ServerMetrics.kind(Response.bytes(Status.SERVICE_UNAVAILABLE, new byte[0],
+               null, false)));
+   }
+
+   @Test
+   public void testSnapshot() {
+      RequestProcessor processor = new RequestProcessor("test", null);
+      ServerMetrics metrics = processor.getMetrics();
+      Response ok = Response.bytes(Status.OK, new byte[10], new byte[5], true);
+      ok.received = System.nanoTime();
+      metrics.responseStarted(ok.received);
+      metrics.responseDone(ok, 15, true);
+      Response gone = Response.bytes(Status.OK, new byte[10], new byte[5], true);
+      gone.received = System.nanoTime();
+      metrics.responseDone(gone, 4, false);
+
+      Metrics snapshot = processor.snapshotMetrics();
+      Assert.assertEquals(1, snapshot.getRequests());
+      Assert.assertEquals(1, snapshot.getTextRequests());
+      Assert.assertEquals(1, snapshot.getAbortedRequests());
+      Assert.assertEquals(Long.valueOf(1), snapshot.getRequestsByStatus().get(Status.OK));
+      Assert.assertEquals(19, snapshot.getBytesServed());
+      Assert.assertEquals(1, snapshot.getFirstByteLatency().getCount());
+      Assert.assertEquals(1, snapshot.getTotalLatency().getCount());
+      Assert.assertEquals(0, snapshot.getContentCache().getHitRate(), 0);
+
+      String json = snapshot.toJson();
+      Assert.assertTrue(json, json.startsWith("{\"timestamp\":"));
+      Assert.assertTrue(json, json.contains("\"requests\":{\"total\":1,\"text\":1,"));
+      Assert.assertTrue(json, json.contains("\"status\":{\"200\":1,\"206\":0,"));
+      String prometheus = snapshot.toPrometheus();
+      Assert.assertTrue(prometheus, prometheus.contains("\nhttpserver_requests_total{kind=\"text\"} 1\n"));
+      Assert.assertTrue(prometheus, prometheus.contains("\nhttpserver_bytes_served_total 19\n"));
+      Assert.assertTrue(prometheus, prometheus.contains("\nhttpserver_response_seconds_count 1\n"));
+   }
+
+   // within 2%, the histogram bucket error
+   static void assertNear(long expected, long actual) {
+      Assert.assertTrue("expected ~" + expected + " got " + actual, Math.abs(expected - actual) <= expected / 50);
+   }
+}
@@ -0,0 +1,111 @@
+package com.totsp.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Raw socket GET for tests, so we can send any headers and see the whole response (status line and headers included).
+ *
+ */
+final class RawHttpClient {
+
+   private RawHttpClient() {
+   }
+
+   static String get(String host, int port, String path, String header) throws IOException {
+      return new String(getBytes(host, port, path, header), "ISO-8859-1");
+   }
+
+   static byte[] getBytes(String host, int port, String path, String header) throws IOException {
+      String request = "GET " + path + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n";
+      if (header != null) {
+         request += header + "\r\n";
+      }
+      return sendBytes(host, port, request + "\r\n");
+   }
+
+   // send raw request bytes (may be several requests), return everything until server closes
+   static String send(String host, int port, String requests) throws IOException {
+      return new String(sendBytes(host, port, requests), "ISO-8859-1");
+   }
+
+   static byte[] sendBytes(String host, int port, String requests) throws IOException {
+      Socket socket = new Socket(host, port);
+      try {
+         socket.setSoTimeout(30000);
+         OutputStream out = socket.getOutputStream();
+         out.write(requests.getBytes("ISO-8859-1"));
+         out.flush();
+
+         return readAll(socket.getInputStream());
+      } finally {
+         socket.close();
+      }
+   }
+
+   // everything until the server closes
+   static byte[] readAll(InputStream in) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      byte[] buffer = new byte[8192];
+      for (int read; (read = in.read(buffer)) > -1;) {
+         bytes.write(buffer, 0, read);
+      }
+      return bytes.toByteArray();
+   }
+
+   // responses one after another on a connection (pipelined), each with its Content-Length body
+   static List<String> split(String responses) {
+      List<String> split = new ArrayList<String>();
+      int start = 0;
+      while (start < responses.length()) {
+         int headEnd = responses.indexOf("\r\n\r\n", start);
+         if (headEnd < 0) {
+            throw new IllegalArgumentException("no header block end");
+         }
+         int length = 0;
+         int at = responses.indexOf("Content-Length: ", start);
+         if (at >= 0 && at < headEnd) {
+            length = Integer.parseInt(responses.substring(at + 16, responses.indexOf("\r\n", at)));
+         }
+         int end = headEnd + 4 + length;
+         split.add(responses.substring(start, end));
+         start = end;
+      }
+      return split;
+   }
+
+   // body of a single response (everything after the header block)
+   static byte[] body(byte[] response) {
+      for (int i = 0; i + 3 < response.length; i++) {
+         if (response[i] == '\r' && response[i + 1] == '\n' && response[i + 2] == '\r' && response[i + 3] == '\n') {
+            byte[] body = new byte[response.length - i - 4];
+            System.arraycopy(response, i + 4, body, 0, body.length);
+            return body;
+         }
+      }
+      throw new IllegalArgumentException("no header block end");
+   }
+
+   // data of a chunked body (chunk sizes and CRLFs removed), up to the last (0) chunk
+   static byte[] dechunk(byte[] body) {
+      ByteArrayOutputStream data = new ByteArrayOutputStream();
+      int i = 0;
+      while (true) {
+         int lineEnd = i;
+         while (body[lineEnd] != '\r') {
+            lineEnd++;
+         }
+         int size = Integer.parseInt(new String(body, i, lineEnd - i).trim(), 16);
+         if (size == 0) {
+            return data.toByteArray();
+         }
+         data.write(body, lineEnd + 2, size);
+         i = lineEnd + 2 + size + 2;
+      }
+   }
+}
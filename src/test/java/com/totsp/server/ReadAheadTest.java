@@ -0,0 +1,137 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+
+public class ReadAheadTest {
+
+   @Test
+   public void testSequentialRangesServedFromMemory() throws Exception {
+      File file = CompressionTest.createTextFile(1000000);
+      BufferPool buffers = new BufferPool();
+      ReadAhead ahead = new ReadAhead(1024 * 1024, 256 * 1024, buffers);
+      try {
+         FileInfoCache.FileInfo info = new FileInfoCache.FileInfo(file, 0);
+         Assert.assertNull(ahead.get(info, 0, 100000, true));
+         // second in a row, next window is read
+         Assert.assertNull(ahead.get(info, 100000, 100000, true));
+         awaitRead(ahead, 1);
+         ReadAhead.Hit hit = ahead.get(info, 200000, 100000, true);
+         Assert.assertNotNull(hit);
+         Assert.assertArrayEquals(read(file, 200000, 100000), bytes(hit.data));
+         Assert.assertEquals(1, ahead.getHits());
+         Assert.assertEquals(2, ahead.getMisses());
+
+         // seek, window read for 300000 is dropped
+         awaitRead(ahead, 2);
+         Assert.assertNull(ahead.get(info, 0, 1000, true));
+         Assert.assertEquals(1, ahead.getCancelled());
+         // window of the hit is kept until it's sent
+         Assert.assertEquals(100000, ahead.getUsedBytes());
+         hit.release();
+         hit.release();
+         Assert.assertEquals(0, ahead.getUsedBytes());
+         Assert.assertEquals(0, buffers.getInUse());
+      } finally {
+         ahead.close();
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testRangeWhileWindowIsRead() throws Exception {
+      File file = CompressionTest.createTextFile(1000000);
+      BufferPool buffers = new BufferPool();
+      ReadAhead ahead = new ReadAhead(4 * 1024 * 1024, 1024 * 1024, buffers);
+      try {
+         FileInfoCache.FileInfo info = new FileInfoCache.FileInfo(file, 0);
+         for (int i = 0; i < 5; i++) {
+            // back to back, no pause for the window to be read first
+            ReadAhead.Hit hit = ahead.get(info, i * 200000, 200000, true);
+            if (i >= 2) {
+               Assert.assertNotNull(hit);
+               Assert.assertArrayEquals(read(file, i * 200000, 200000), bytes(hit.data));
+               hit.release();
+            }
+         }
+         Assert.assertEquals(3, ahead.getHits());
+         Assert.assertEquals(0, ahead.getCancelled());
+      } finally {
+         ahead.close();
+         file.delete();
+      }
+      Assert.assertEquals(0, ahead.getUsedBytes());
+      Assert.assertEquals(0, buffers.getInUse());
+   }
+
+   @Test
+   public void testWindowShorterThanRange() throws Exception {
+      File file = CompressionTest.createTextFile(500000);
+      ReadAhead ahead = new ReadAhead(1024 * 1024, ReadAhead.MIN_WINDOW, new BufferPool());
+      try {
+         FileInfoCache.FileInfo info = new FileInfoCache.FileInfo(file, 0);
+         ahead.get(info, 0, 100000, true);
+         ahead.get(info, 100000, 100000, true);
+         awaitRead(ahead, 1);
+         // start of the range from memory, caller sends the rest from the file
+         ReadAhead.Hit hit = ahead.get(info, 200000, 100000, true);
+         Assert.assertArrayEquals(read(file, 200000, ReadAhead.MIN_WINDOW), bytes(hit.data));
+         hit.release();
+      } finally {
+         ahead.close();
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testMemoryBound() throws Exception {
+      File a = CompressionTest.createTextFile(500000);
+      File b = CompressionTest.createTextFile(500000);
+      ReadAhead ahead = new ReadAhead(100000, ReadAhead.MIN_WINDOW, new BufferPool());
+      try {
+         FileInfoCache.FileInfo infoA = new FileInfoCache.FileInfo(a, 0);
+         FileInfoCache.FileInfo infoB = new FileInfoCache.FileInfo(b, 0);
+         ahead.get(infoA, 0, 65536, false);
+         ahead.get(infoA, 65536, 65536, false);
+         Assert.assertEquals(65536, ahead.getUsedBytes());
+         // no room for a window of b
+         ahead.get(infoB, 0, 65536, false);
+         ahead.get(infoB, 65536, 65536, false);
+         Assert.assertEquals(65536, ahead.getUsedBytes());
+      } finally {
+         ahead.close();
+         a.delete();
+         b.delete();
+      }
+   }
+
+   static void awaitRead(ReadAhead ahead, long windows) throws InterruptedException {
+      for (int i = 0; i < 200 && ahead.getRead() < windows; i++) {
+         Thread.sleep(10);
+      }
+      Assert.assertTrue(ahead.getRead() >= windows);
+   }
+
+   static byte[] read(File file, long offset, int length) throws Exception {
+      RandomAccessFile in = new RandomAccessFile(file, "r");
+      try {
+         byte[] bytes = new byte[length];
+         in.seek(offset);
+         in.readFully(bytes);
+         return bytes;
+      } finally {
+         in.close();
+      }
+   }
+
+   // remaining bytes, without moving the buffer position
+   static byte[] bytes(ByteBuffer data) {
+      byte[] bytes = new byte[data.remaining()];
+      data.duplicate().get(bytes);
+      return bytes;
+   }
+}
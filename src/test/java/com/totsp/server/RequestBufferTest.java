@@ -0,0 +1,93 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+public class RequestBufferTest {
+
+   @Test
+   public void testRequestLineAndHeaders() throws Exception {
+      RequestBuffer buffer = feed(new RequestBuffer(),
+               "\r\nGET /sdcard/a.mp4?x=1 HTTP/1.1\r\nhost: foo\r\nRANGE:  bytes=0-9 \r\nConnection: close\r\n\r\n");
+      Request request = buffer.next();
+      Assert.assertSame(Request.GET, request.getMethod());
+      Assert.assertEquals("sdcard/a.mp4?x=1", request.getTarget());
+      Assert.assertSame(Request.HTTP_1_1, request.getVersion());
+      Assert.assertEquals("bytes=0-9", request.getHeader(Request.RANGE));
+      Assert.assertEquals("close", request.getHeader(Request.CONNECTION));
+      Assert.assertNull(request.getHeader(Request.IF_RANGE));
+      Assert.assertNull(buffer.next());
+      Assert.assertTrue(buffer.isEmpty());
+   }
+
+   @Test
+   public void testIncremental() throws Exception {
+      // one byte at a time, never rescanned, complete only at the blank line
+      String raw = "HEAD / HTTP/1.0\nConnection: keep-alive\n\n";
+      RequestBuffer buffer = new RequestBuffer();
+      for (int i = 0; i < raw.length() - 1; i++) {
+         feed(buffer, raw.substring(i, i + 1));
+         Assert.assertNull(buffer.next());
+      }
+      feed(buffer, "\n");
+      Request request = buffer.next();
+      Assert.assertSame(Request.HEAD, request.getMethod());
+      Assert.assertEquals("", request.getTarget());
+      Assert.assertSame(Request.HTTP_1_0, request.getVersion());
+      Assert.assertEquals("keep-alive", request.getHeader(Request.CONNECTION));
+   }
+
+   @Test
+   public void testPipelinedWithBody() throws Exception {
+      RequestBuffer buffer = feed(new RequestBuffer(),
+               "POST /a HTTP/1.1\r\nContent-Length: 5\r\n\r\nhelloGET /b HTTP/1.1\r\n\r\nDELETE");
+      Request first = buffer.next();
+      Assert.assertEquals("POST", first.getMethod());
+      Assert.assertEquals(5, first.getContentLength());
+      Request second = buffer.next();
+      Assert.assertSame(Request.GET, second.getMethod());
+      Assert.assertEquals("b", second.getTarget());
+      // previous request's headers don't leak into this one
+      Assert.assertEquals(0, second.getContentLength());
+      Assert.assertNull(buffer.next());
+      Assert.assertFalse(buffer.isEmpty());
+   }
+
+   @Test
+   public void testMalformedRequestLine() throws Exception {
+      Request request = feed(new RequestBuffer(), "GET\r\n\r\n").next();
+      Assert.assertSame(Request.GET, request.getMethod());
+      Assert.assertNull(request.getTarget());
+   }
+
+   @Test(expected = IOException.class)
+   public void testTooManyHeaderLines() throws Exception {
+      StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\n");
+      for (int i = 0; i < RequestBuffer.MAX_HEADER_LINES; i++) {
+         sb.append("X-" + i + ": y\r\n");
+      }
+      feed(new RequestBuffer(), sb.toString()).next();
+   }
+
+   @Test(expected = IOException.class)
+   public void testHeaderTooLarge() throws Exception {
+      RequestBuffer buffer = new RequestBuffer(16, 64);
+      StringBuilder sb = new StringBuilder("GET / HTTP/1.1\r\nX: ");
+      while (sb.length() < 64) {
+         sb.append('y');
+      }
+      feed(buffer, sb.toString());
+      buffer.next();
+   }
+
+   private RequestBuffer feed(RequestBuffer buffer, String data) throws IOException {
+      ByteArrayInputStream in = new ByteArrayInputStream(data.getBytes("UTF-8"));
+      while (buffer.read(in) > 0) {
+         // growing as needed, up to max
+      }
+      return buffer;
+   }
+}
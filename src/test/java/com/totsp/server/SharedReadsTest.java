@@ -0,0 +1,88 @@
+package com.totsp.server;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class SharedReadsTest {
+
+   @Test
+   public void testAloneReadsFile() throws Exception {
+      File file = CompressionTest.createTextFile(600000);
+      try {
+         SharedReads reads = new SharedReads(SharedReads.DEFAULT_MAX_BYTES, new BufferPool());
+         SharedReads.Stream stream = reads.open(new FileInfoCache.FileInfo(file, 0));
+         Assert.assertNull(stream.acquire(0, true));
+         stream.close();
+         Assert.assertEquals(0, reads.getMisses());
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testBlockReadOnce() throws Exception {
+      File file = CompressionTest.createTextFile(600000);
+      try {
+         SharedReads reads = new SharedReads(SharedReads.DEFAULT_MAX_BYTES, new BufferPool());
+         FileInfoCache.FileInfo info = new FileInfoCache.FileInfo(file, 0);
+         SharedReads.Stream a = reads.open(info);
+         SharedReads.Stream b = reads.open(info);
+
+         SharedReads.Block first = a.acquire(SharedReads.BLOCK_SIZE + 10, true);
+         SharedReads.Block second = b.acquire(SharedReads.BLOCK_SIZE + 1000, true);
+         Assert.assertSame(first, second);
+         Assert.assertEquals(1, reads.getMisses());
+         Assert.assertEquals(1, reads.getHits());
+         Assert.assertEquals(2 * SharedReads.BLOCK_SIZE, first.end());
+         Assert.assertArrayEquals(ReadAheadTest.read(file, SharedReads.BLOCK_SIZE + 1000, 5000),
+                  ReadAheadTest.bytes(second.slice(SharedReads.BLOCK_SIZE + 1000, 5000)));
+         // last block is what's left of the file
+         SharedReads.Block last = a.acquire(599999, true);
+         Assert.assertEquals(600000, last.end());
+         Assert.assertEquals(1, last.slice(599999, 100).remaining());
+
+         first.release();
+         second.release();
+         last.release();
+         a.close();
+         Assert.assertEquals(SharedReads.BLOCK_SIZE + 600000 - 2 * SharedReads.BLOCK_SIZE, reads.getUsedBytes());
+         b.close();
+         b.close();
+         Assert.assertEquals(0, reads.getUsedBytes());
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testOverMaxBytesReadsFile() throws Exception {
+      File file = CompressionTest.createTextFile(600000);
+      try {
+         BufferPool pool = new BufferPool();
+         SharedReads reads = new SharedReads(SharedReads.BLOCK_SIZE, pool);
+         FileInfoCache.FileInfo info = new FileInfoCache.FileInfo(file, 0);
+         SharedReads.Stream a = reads.open(info);
+         SharedReads.Stream b = reads.open(info);
+         SharedReads.Block held = a.acquire(0, true);
+         // no room while the first block is being sent
+         Assert.assertNull(b.acquire(SharedReads.BLOCK_SIZE, true));
+         Assert.assertEquals(1, reads.getDirect());
+         held.release();
+         // sent, dropped to make room
+         SharedReads.Block next = b.acquire(SharedReads.BLOCK_SIZE, true);
+         Assert.assertNotNull(next);
+         Assert.assertEquals(SharedReads.BLOCK_SIZE, reads.getUsedBytes());
+         next.release();
+         a.close();
+         b.close();
+         Assert.assertEquals(0, reads.getUsedBytes());
+         // block buffers went back to the pool, the second reused the first's
+         Assert.assertEquals(0, pool.getInUse());
+         Assert.assertEquals(1, pool.getAllocated());
+      } finally {
+         file.delete();
+      }
+   }
+}
@@ -0,0 +1,239 @@
+package com.totsp.server;
+
+import com.totsp.server.enums.Engine;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+
+public class TlsTest {
+
+   // NOTE: HTTPS with both engines, self-signed key in test resources (clients trust just that certificate)
+
+   private static final File KEY_STORE = new File("src/test/resources/test-keystore.p12");
+   private static final String PASSWORD = "changeit";
+   private static final String HOST = "127.0.0.1";
+   private static final int BLOCKING_PORT = 8126;
+   private static final int NIO_PORT = 8127;
+
+   private static final HTTPServer BLOCKING = new HTTPServer("test-server", BLOCKING_PORT, 2, null);
+   private static final HTTPServer NIO = new HTTPServer("test-server", NIO_PORT, 1, null);
+   static {
+      BLOCKING.setTls(KEY_STORE, PASSWORD);
+      BLOCKING.start();
+      NIO.setEngine(Engine.NIO);
+      NIO.setTls(KEY_STORE, PASSWORD);
+      NIO.start();
+   }
+
+   private static final String TEXT = new File("src/test/resources/test.txt").getAbsolutePath();
+
+   @AfterClass
+   public static void tearDown() {
+      BLOCKING.stop();
+      NIO.stop();
+   }
+
+   @Test
+   public void testTextFile() throws Exception {
+      SSLContext client = clientContext("TLS");
+      for (int port : new int[] { BLOCKING_PORT, NIO_PORT }) {
+         byte[] response = get(client, port, "GET /" + TEXT + " HTTP/1.1\r\nHost: " + HOST
+                  + "\r\nConnection: close\r\n\r\n", null);
+         Assert.assertTrue(new String(response, "ISO-8859-1").startsWith("HTTP/1.1 200 OK"));
+         Assert.assertEquals("say what you want about the tenets of national socialism, dude, at least it's an ethos",
+                  new String(RawHttpClient.body(response), "UTF-8"));
+      }
+   }
+
+   @Test
+   public void testBigFileAndKeepAlive() throws Exception {
+      File file = CompressionTest.createTextFile(3000000);
+      SSLContext client = clientContext("TLS");
+      try {
+         for (int port : new int[] { BLOCKING_PORT, NIO_PORT }) {
+            // pipelined on one connection, a small response after a big one
+            byte[] response = get(client, port, "GET /" + file.getAbsolutePath() + " HTTP/1.1\r\nHost: " + HOST
+                     + "\r\n\r\nGET /" + TEXT + " HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: close\r\n\r\n", null);
+            byte[] body = RawHttpClient.body(response);
+            Assert.assertArrayEquals(ReadAheadTest.read(file, 0, 3000000), Arrays.copyOfRange(body, 0, 3000000));
+            String rest = new String(body, 3000000, body.length - 3000000, "ISO-8859-1");
+            Assert.assertTrue(rest, rest.startsWith("HTTP/1.1 200 OK"));
+            Assert.assertTrue(rest, rest.endsWith("at least it's an ethos"));
+         }
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testSmallRecordsFirst() throws Exception {
+      File file = CompressionTest.createTextFile(300000);
+      // TLS 1.2, so application data records can be told from handshake records
+      SSLContext client = clientContext("TLSv1.2");
+      try {
+         for (int port : new int[] { BLOCKING_PORT, NIO_PORT }) {
+            List<Integer> records = new ArrayList<Integer>();
+            get(client, port, "GET /" + file.getAbsolutePath() + " HTTP/1.1\r\nHost: " + HOST
+                     + "\r\nConnection: close\r\n\r\n", records);
+            // response head and first bytes in records that fit a TCP segment, bulk in full size ones
+            Assert.assertTrue(records.toString(), records.get(0) < 1500);
+            Assert.assertTrue(records.toString(), records.get(records.size() - 2) > 16384);
+         }
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void testSessionResumed() throws Exception {
+      for (String protocol : new String[] { "TLSv1.2", "TLSv1.3" }) {
+         for (HTTPServer server : new HTTPServer[] { BLOCKING, NIO }) {
+            int port = server == BLOCKING ? BLOCKING_PORT : NIO_PORT;
+            SSLContext client = clientContext(protocol);
+            long resumed = server.getMetrics().getTlsResumed();
+            String request = "GET /" + TEXT + " HTTP/1.1\r\nHost: " + HOST + "\r\nConnection: close\r\n\r\n";
+            get(client, port, request, null);
+            get(client, port, request, null);
+            // second connection skipped the full handshake
+            Assert.assertEquals(protocol, resumed + 1, server.getMetrics().getTlsResumed());
+         }
+      }
+   }
+
+   @Test
+   public void testPlainHttpFails() throws Exception {
+      for (HTTPServer server : new HTTPServer[] { BLOCKING, NIO }) {
+         int port = server == BLOCKING ? BLOCKING_PORT : NIO_PORT;
+         long failed = server.getMetrics().getTlsFailed();
+         String response = RawHttpClient.get(HOST, port, "/" + TEXT, null);
+         Assert.assertFalse(response, response.contains("HTTP/1.1 200"));
+         for (int i = 0; i < 100 && server.getMetrics().getTlsFailed() == failed; i++) {
+            Thread.sleep(10);
+         }
+         Assert.assertEquals(failed + 1, server.getMetrics().getTlsFailed());
+      }
+   }
+
+   //
+   // helpers
+   //
+
+   // client that trusts the test key's (self-signed) certificate, protocol "TLS" is the newest both sides have
+   private static SSLContext clientContext(String protocol) throws Exception {
+      KeyStore store = KeyStore.getInstance("PKCS12");
+      InputStream in = new FileInputStream(KEY_STORE);
+      try {
+         store.load(in, PASSWORD.toCharArray());
+      } finally {
+         in.close();
+      }
+      TrustManagerFactory trust = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+      trust.init(store);
+      SSLContext context = SSLContext.getInstance(protocol);
+      context.init(null, trust.getTrustManagers(), null);
+      return context;
+   }
+
+   // send requests, return everything until the server closes, records (if not null) gets the length of each
+   // application data record received
+   private static byte[] get(SSLContext context, int port, String requests, final List<Integer> records)
+            throws IOException {
+      Socket plain = new Socket() {
+         private InputStream in;
+
+         @Override
+         public synchronized InputStream getInputStream() throws IOException {
+            if (in == null) {
+               in = records != null ? new RecordCounter(super.getInputStream(), records) : super.getInputStream();
+            }
+            return in;
+         }
+      };
+      plain.connect(new InetSocketAddress(HOST, port));
+      SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(plain, HOST, port, true);
+      try {
+         socket.setSoTimeout(30000);
+         OutputStream out = socket.getOutputStream();
+         out.write(requests.getBytes("ISO-8859-1"));
+         out.flush();
+         InputStream in = socket.getInputStream();
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         byte[] buffer = new byte[8192];
+         for (int read; (read = in.read(buffer)) > -1;) {
+            bytes.write(buffer, 0, read);
+         }
+         return bytes.toByteArray();
+      } finally {
+         socket.close();
+      }
+   }
+
+   /**
+    * Passes bytes through, and notes the length of each TLS application data record going by.
+    *
+    */
+   private static final class RecordCounter extends FilterInputStream {
+
+      private final List<Integer> records;
+      private final byte[] header = new byte[5];
+      private int headerRead;
+      private int bodyLeft;
+
+      RecordCounter(InputStream in, List<Integer> records) {
+         super(in);
+         this.records = records;
+      }
+
+      @Override
+      public int read() throws IOException {
+         int b = super.read();
+         if (b >= 0) {
+            see((byte) b);
+         }
+         return b;
+      }
+
+      @Override
+      public int read(byte[] b, int off, int len) throws IOException {
+         int n = super.read(b, off, len);
+         for (int i = 0; i < n; i++) {
+            see(b[off + i]);
+         }
+         return n;
+      }
+
+      private void see(byte b) {
+         if (bodyLeft > 0) {
+            bodyLeft--;
+            return;
+         }
+         header[headerRead++] = b;
+         if (headerRead == header.length) {
+            headerRead = 0;
+            bodyLeft = ((header[3] & 0xff) << 8) | (header[4] & 0xff);
+            if (header[0] == 23) {
+               records.add(bodyLeft);
+            }
+         }
+      }
+   }
+}
@@ -0,0 +1,444 @@
+package com.totsp.server.load;
+
+import com.totsp.server.LatencyHistogram;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loopback load generator, many concurrent persistent connections, each a thread making requests back to back,
+ * mixed per the workload weights, plus optional slow readers (clients that take a large file at a trickle,
+ * holding a connection, and a thread with the BLOCKING engine, the whole time).
+ *
+ * Latency is request write to last body byte, measured after warmup, reported as p50/p99/p999 per workload,
+ * with requests/s and MB/s of body. Reconnects when the server closes, counts anything but 200/206 as an error.
+ *
+ */
+final class LoadGenerator {
+
+   private final String host;
+   private final int port;
+
+   private int connections = 16;
+   private long durationMillis = 10000;
+   private long warmupMillis = 2000;
+   private final int[] weights = { 40, 20, 20, 20 }; // per Workload ordinal
+   private int rangeBytes = 256 * 1024;
+   private int slowReaders;
+   private int slowReaderBytesPerSecond = 64 * 1024;
+
+   private String jpgPath;
+   private String largePath;
+   private long largeLength;
+
+   LoadGenerator(final String host, final int port) {
+      this.host = host;
+      this.port = port;
+   }
+
+   void setConnections(int connections) {
+      this.connections = connections;
+   }
+
+   void setDuration(long durationMillis, long warmupMillis) {
+      this.durationMillis = durationMillis;
+      this.warmupMillis = warmupMillis;
+   }
+
+   // relative share of requests of this kind (0 for none)
+   void setWeight(Workload workload, int weight) {
+      weights[workload.ordinal()] = weight;
+   }
+
+   void setRangeBytes(int rangeBytes) {
+      this.rangeBytes = rangeBytes;
+   }
+
+   void setSlowReaders(int slowReaders, int bytesPerSecond) {
+      this.slowReaders = slowReaders;
+      this.slowReaderBytesPerSecond = bytesPerSecond;
+   }
+
+   // JPG requests get jpg, ranges (and slow readers) are of large
+   void setFiles(File jpg, File large) {
+      this.jpgPath = "/" + jpg.getAbsolutePath();
+      this.largePath = "/" + large.getAbsolutePath();
+      this.largeLength = large.length();
+   }
+
+   /**
+    * Run for warmup plus duration, then stop all clients and report.
+    *
+    */
+   Report run() throws InterruptedException {
+      long start = System.nanoTime();
+      final long measureFrom = start + TimeUnit.MILLISECONDS.toNanos(warmupMillis);
+      final long end = measureFrom + TimeUnit.MILLISECONDS.toNanos(durationMillis);
+
+      final List<Client> clients = new ArrayList<Client>();
+      List<Thread> threads = new ArrayList<Thread>();
+      for (int i = 0; i < connections + slowReaders; i++) {
+         final Client client = new Client(i, i >= connections, measureFrom, end);
+         clients.add(client);
+         Thread thread = new Thread("load-client-" + i) {
+            @Override
+            public void run() {
+               client.run();
+            }
+         };
+         thread.setDaemon(true);
+         threads.add(thread);
+         thread.start();
+      }
+      for (Thread thread : threads) {
+         thread.join(warmupMillis + durationMillis + 30000);
+      }
+
+      Report report = new Report(durationMillis);
+      for (Client client : clients) {
+         report.add(client);
+      }
+      return report;
+   }
+
+   //
+   // priv helpers
+   //
+
+   private Workload pick(Random random) {
+      int sum = 0;
+      for (int weight : weights) {
+         sum += weight;
+      }
+      int r = random.nextInt(sum);
+      for (Workload workload : Workload.values()) {
+         r -= weights[workload.ordinal()];
+         if (r < 0) {
+            return workload;
+         }
+      }
+      return Workload.TEXT;
+   }
+
+   /**
+    * Results of a run, per workload, plus slow readers (time to first byte, and bytes).
+    *
+    */
+   static final class Report {
+
+      final long durationMillis;
+      final LatencyHistogram[] latency = new LatencyHistogram[Workload.values().length];
+      final long[] bytes = new long[Workload.values().length];
+      final long[] errors = new long[Workload.values().length];
+      final LatencyHistogram slowFirstByte = new LatencyHistogram();
+      long slowBytes;
+      long slowErrors;
+
+      Report(long durationMillis) {
+         this.durationMillis = durationMillis;
+         for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+         }
+      }
+
+      void add(Client client) {
+         for (int i = 0; i < latency.length; i++) {
+            latency[i].merge(client.latency[i]);
+            bytes[i] += client.bytes[i];
+            errors[i] += client.errors[i];
+         }
+         slowFirstByte.merge(client.slowFirstByte);
+         slowBytes += client.slowBytes;
+         slowErrors += client.slowErrors;
+      }
+
+      LatencyHistogram total() {
+         LatencyHistogram total = new LatencyHistogram();
+         for (LatencyHistogram h : latency) {
+            total.merge(h);
+         }
+         return total;
+      }
+
+      long totalErrors() {
+         long total = slowErrors;
+         for (long e : errors) {
+            total += e;
+         }
+         return total;
+      }
+
+      double requestsPerSecond() {
+         return total().count() * 1000.0 / durationMillis;
+      }
+
+      @Override
+      public String toString() {
+         StringBuilder sb = new StringBuilder();
+         sb.append(String.format(Locale.US, "%-18s %10s %8s %10s %9s %9s %9s %9s %9s%n", "workload", "requests", "errors",
+                  "req/s", "MB/s", "p50 ms", "p99 ms", "p999 ms", "max ms"));
+         long totalBytes = 0;
+         for (Workload workload : Workload.values()) {
+            int i = workload.ordinal();
+            row(sb, workload.name(), latency[i], errors[i], bytes[i]);
+            totalBytes += bytes[i];
+         }
+         row(sb, "ALL", total(), totalErrors() - slowErrors, totalBytes);
+         if (slowFirstByte.count() > 0 || slowErrors > 0) {
+            row(sb, "SLOW (first byte)", slowFirstByte, slowErrors, slowBytes);
+         }
+         return sb.toString();
+      }
+
+      private void row(StringBuilder sb, String name, LatencyHistogram h, long errors, long bytes) {
+         double seconds = durationMillis / 1000.0;
+         sb.append(String.format(Locale.US, "%-18s %10d %8d %10.1f %9.2f %9.3f %9.3f %9.3f %9.3f%n", name, h.count(),
+                  errors, h.count() / seconds, bytes / seconds / (1024 * 1024), h.percentile(50) / 1000.0,
+                  h.percentile(99) / 1000.0, h.percentile(99.9) / 1000.0, h.max() / 1000.0));
+      }
+   }
+
+   // one connection (reconnected as needed), one thread, own stats (merged at the end, no sharing)
+   private final class Client {
+
+      final boolean slow;
+      final long measureFrom;
+      final long end;
+      final Random random;
+
+      final LatencyHistogram[] latency = new LatencyHistogram[Workload.values().length];
+      final long[] bytes = new long[Workload.values().length];
+      final long[] errors = new long[Workload.values().length];
+      final LatencyHistogram slowFirstByte = new LatencyHistogram();
+      long slowBytes;
+      long slowErrors;
+
+      private Socket socket;
+      private OutputStream out;
+      private InputStream in;
+      private final byte[] buffer = new byte[64 * 1024];
+      private long sequentialOffset;
+      private long requestNumber;
+
+      Client(int id, boolean slow, long measureFrom, long end) {
+         this.slow = slow;
+         this.measureFrom = measureFrom;
+         this.end = end;
+         this.random = new Random(id);
+         for (int i = 0; i < latency.length; i++) {
+            latency[i] = new LatencyHistogram();
+         }
+      }
+
+      void run() {
+         try {
+            if (slow) {
+               runSlow();
+            } else {
+               runFast();
+            }
+         } finally {
+            disconnect();
+         }
+      }
+
+      private void runFast() {
+         if (largeLength > 0) {
+            sequentialOffset = (random.nextLong() & Long.MAX_VALUE) % largeLength;
+         }
+         while (System.nanoTime() < end) {
+            Workload workload = pick(random);
+            int i = workload.ordinal();
+            long start = System.nanoTime();
+            try {
+               if (socket == null) {
+                  connect();
+               }
+               out.write(request(workload));
+               out.flush();
+               long body = readResponse(i, 0, start);
+               long now = System.nanoTime();
+               if (start >= measureFrom && now <= end) {
+                  latency[i].record(TimeUnit.NANOSECONDS.toMicros(now - start));
+                  bytes[i] += body;
+               }
+            } catch (IOException e) {
+               if (start >= measureFrom && System.nanoTime() < end) {
+                  errors[i]++;
+               }
+               disconnect();
+            }
+         }
+      }
+
+      // whole large file at a trickle, again and again, until the end
+      private void runSlow() {
+         while (System.nanoTime() < end) {
+            long start = System.nanoTime();
+            try {
+               connect();
+               out.write(("GET " + largePath + " HTTP/1.1\r\nHost: " + host + "\r\nConnection: close\r\n\r\n")
+                        .getBytes("ISO-8859-1"));
+               out.flush();
+               readResponse(-1, slowReaderBytesPerSecond, start);
+            } catch (IOException e) {
+               if (start >= measureFrom && System.nanoTime() < end) {
+                  slowErrors++;
+               }
+            } finally {
+               disconnect();
+            }
+         }
+      }
+
+      private byte[] request(Workload workload) throws IOException {
+         String target;
+         String range = null;
+         switch (workload) {
+            case JPG:
+               target = jpgPath;
+               break;
+            case SEQUENTIAL_RANGE:
+               target = largePath;
+               if (sequentialOffset >= largeLength) {
+                  sequentialOffset = 0;
+               }
+               range = rangeHeader(sequentialOffset);
+               sequentialOffset += rangeBytes;
+               break;
+            case RANDOM_RANGE:
+               target = largePath;
+               range = rangeHeader((random.nextLong() & Long.MAX_VALUE) % largeLength);
+               break;
+            default:
+               target = "/load~" + (requestNumber++);
+         }
+         String request = "GET " + target + " HTTP/1.1\r\nHost: " + host + "\r\n";
+         if (range != null) {
+            request += "Range: " + range + "\r\n";
+         }
+         return (request + "\r\n").getBytes("ISO-8859-1");
+      }
+
+      private String rangeHeader(long offset) {
+         return "bytes=" + offset + "-" + (Math.min(largeLength, offset + rangeBytes) - 1);
+      }
+
+      private void connect() throws IOException {
+         socket = new Socket(host, port);
+         socket.setTcpNoDelay(true);
+         socket.setSoTimeout(30000);
+         out = socket.getOutputStream();
+         in = new BufferedInputStream(socket.getInputStream(), 8192);
+      }
+
+      private void disconnect() {
+         if (socket != null) {
+            try {
+               socket.close();
+            } catch (IOException e) {
+               // gulp
+            }
+            socket = null;
+         }
+      }
+
+      // read one response, return body length, error (or disconnect) per status and Connection header,
+      // index -1 is slow reader, which reads at bytesPerSecond (and stops at the end of the run)
+      private long readResponse(int index, int bytesPerSecond, long start) throws IOException {
+         String status = readLine();
+         if (index < 0) {
+            // slow readers make few requests, count them all
+            slowFirstByte.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+         }
+         long contentLength = -1;
+         boolean close = false;
+         for (String line; (line = readLine()).length() > 0;) {
+            int colon = line.indexOf(':');
+            if (colon < 0) {
+               continue;
+            }
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Content-Length")) {
+               contentLength = Long.parseLong(value);
+            } else if (name.equalsIgnoreCase("Connection") && value.equalsIgnoreCase("close")) {
+               close = true;
+            }
+         }
+         if (contentLength < 0) {
+            throw new IOException("no Content-Length");
+         }
+         readBody(contentLength, index < 0 ? bytesPerSecond : 0);
+         boolean ok = status.startsWith("HTTP/1.1 200") || status.startsWith("HTTP/1.1 206");
+         if (!ok && index >= 0 && start >= measureFrom) {
+            errors[index]++;
+         }
+         if (close) {
+            disconnect();
+         }
+         return contentLength;
+      }
+
+      private void readBody(long length, int bytesPerSecond) throws IOException {
+         long started = System.nanoTime();
+         long read = 0;
+         while (read < length) {
+            int chunk = (int) Math.min(bytesPerSecond > 0 ? Math.min(4096, buffer.length) : buffer.length, length - read);
+            int n = in.read(buffer, 0, chunk);
+            if (n < 0) {
+               throw new IOException("connection closed in body");
+            }
+            read += n;
+            if (bytesPerSecond > 0) {
+               slowBytes += n;
+               if (System.nanoTime() >= end) {
+                  // run is over, just hang up (not an error)
+                  throw new InterruptedIOException("end of run");
+               }
+               // sleep until we're back under the rate
+               long dueNanos = read * 1000000000L / bytesPerSecond;
+               long aheadMillis = TimeUnit.NANOSECONDS.toMillis(dueNanos - (System.nanoTime() - started));
+               if (aheadMillis > 0) {
+                  sleep(aheadMillis);
+               }
+            }
+         }
+      }
+
+      private String readLine() throws IOException {
+         StringBuilder line = new StringBuilder();
+         while (true) {
+            int b = in.read();
+            if (b < 0) {
+               throw new IOException("connection closed");
+            }
+            if (b == '\n') {
+               return line.toString();
+            }
+            if (b != '\r') {
+               line.append((char) b);
+            }
+         }
+      }
+
+      private void sleep(long millis) throws IOException {
+         try {
+            Thread.sleep(millis);
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+         }
+      }
+   }
+}
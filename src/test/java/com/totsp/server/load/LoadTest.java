@@ -0,0 +1,80 @@
+package com.totsp.server.load;
+
+import com.totsp.server.HTTPServer;
+import com.totsp.server.enums.Engine;
+import com.totsp.server.enums.Execution;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Throughput and latency run against a local server, not part of the normal build, run with the load profile:
+ *
+ * mvn test -Pload -Dload.engine=NIO -Dload.connections=64
+ *
+ * Settings are system properties (see defaults below), so engines and settings can be compared run to run.
+ * Fails on any error, or if throughput is under load.minRequestsPerSecond (0, off, by default).
+ *
+ */
+public class LoadTest {
+
+   private static final int PORT = 8128;
+
+   @Test
+   public void testLoad() throws Exception {
+      Engine engine = Engine.valueOf(System.getProperty("load.engine", "BLOCKING"));
+      Execution execution = Execution.valueOf(System.getProperty("load.execution", "FIXED"));
+      int threads = Integer.getInteger("load.threads", 8);
+      int connections = Integer.getInteger("load.connections", 32);
+      int seconds = Integer.getInteger("load.seconds", 10);
+      int warmupSeconds = Integer.getInteger("load.warmupSeconds", 2);
+      int slowReaders = Integer.getInteger("load.slowReaders", 4);
+      int slowRate = Integer.getInteger("load.slowReaderBytesPerSecond", 64 * 1024);
+      int rangeBytes = Integer.getInteger("load.rangeBytes", 256 * 1024);
+      int largeMb = Integer.getInteger("load.largeFileMb", 64);
+      int contentCacheMb = Integer.getInteger("load.contentCacheMb", 0);
+      String weights = System.getProperty("load.weights", "40,20,20,20"); // TEXT, JPG, SEQUENTIAL_RANGE, RANDOM_RANGE
+      double minRequestsPerSecond = Double.parseDouble(System.getProperty("load.minRequestsPerSecond", "0"));
+
+      File jpg = new File("src/test/resources/test.jpg");
+      File large = File.createTempFile("load", ".mp4");
+      RandomAccessFile raf = new RandomAccessFile(large, "rw");
+      raf.setLength(largeMb * 1024L * 1024L);
+      raf.close();
+
+      HTTPServer server = new HTTPServer("load-server", PORT, threads, null);
+      server.setEngine(engine);
+      server.setExecution(execution);
+      server.setKeepAlive(5000, Integer.MAX_VALUE);
+      if (contentCacheMb > 0) {
+         server.setContentCache(contentCacheMb * 1024L * 1024L, contentCacheMb * 1024L * 1024L);
+      }
+      server.start();
+      try {
+         LoadGenerator generator = new LoadGenerator("localhost", PORT);
+         generator.setConnections(connections);
+         generator.setDuration(seconds * 1000L, warmupSeconds * 1000L);
+         generator.setSlowReaders(slowReaders, slowRate);
+         generator.setRangeBytes(rangeBytes);
+         generator.setFiles(jpg, large);
+         String[] w = weights.split(",");
+         for (Workload workload : Workload.values()) {
+            generator.setWeight(workload, Integer.parseInt(w[workload.ordinal()].trim()));
+         }
+
+         LoadGenerator.Report report = generator.run();
+         System.out.println("LOAD engine:" + engine + " execution:" + execution + " threads:" + threads + " connections:"
+                  + connections + " slowReaders:" + slowReaders + " seconds:" + seconds + "\n" + report);
+
+         Assert.assertEquals("errors", 0, report.totalErrors());
+         Assert.assertTrue("requests/s " + report.requestsPerSecond() + " under " + minRequestsPerSecond,
+                  report.requestsPerSecond() >= minRequestsPerSecond);
+      } finally {
+         server.stop();
+         large.delete();
+      }
+   }
+}
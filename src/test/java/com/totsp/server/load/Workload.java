@@ -0,0 +1,12 @@
+package com.totsp.server.load;
+
+/**
+ * Kinds of request a load client makes.
+ *
+ * TEXT is a text request (callback and ACK), JPG a whole small media file, SEQUENTIAL_RANGE the next range of a large file
+ * (a player streaming it), RANDOM_RANGE a range at a random offset of a large file (a player seeking).
+ *
+ */
+enum Workload {
+   TEXT, JPG, SEQUENTIAL_RANGE, RANDOM_RANGE;
+}